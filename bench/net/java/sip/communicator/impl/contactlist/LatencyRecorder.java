@@ -0,0 +1,92 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+/**
+ * Records latencies for the load harness and reports their percentiles. The
+ * latencies are kept so that the percentiles are exact, a run recording a
+ * few million of them at most.
+ */
+class LatencyRecorder
+{
+    /**
+     * The recorded latencies in nanoseconds, the first {@link #count} being
+     * used.
+     */
+    private long[] latencies = new long[1024];
+
+    /**
+     * The number of recorded latencies.
+     */
+    private int count = 0;
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    synchronized void record(long nanos)
+    {
+        if (count == latencies.length)
+            latencies = Arrays.copyOf(latencies, count * 2);
+        latencies[count++] = nanos;
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return the number of recorded latencies
+     */
+    synchronized int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Discards the recorded latencies.
+     */
+    synchronized void clear()
+    {
+        count = 0;
+    }
+
+    /**
+     * Returns a summary of the recorded latencies: their count and their
+     * median, 99th percentile and maximum in milliseconds.
+     *
+     * @return the summary of the recorded latencies
+     */
+    synchronized String summary()
+    {
+        if (count == 0)
+            return "n=0";
+
+        long[] sorted = Arrays.copyOf(latencies, count);
+
+        Arrays.sort(sorted);
+        return String.format(
+            "n=%d p50=%.3fms p99=%.3fms max=%.3fms",
+            count,
+            sorted[percentileIndex(50)] / 1e6,
+            sorted[percentileIndex(99)] / 1e6,
+            sorted[count - 1] / 1e6);
+    }
+
+    /**
+     * Returns the index of a percentile in the sorted latencies.
+     *
+     * @param percentile the percentile
+     * @return the index of the percentile
+     */
+    private int percentileIndex(int percentile)
+    {
+        return Math.min(count - 1,
+            (int) Math.ceil(count * percentile / 100.0) - 1);
+    }
+}
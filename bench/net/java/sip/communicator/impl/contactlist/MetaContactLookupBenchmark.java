@@ -0,0 +1,150 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.contactlist.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the lookups <tt>MetaContactListServiceImpl</tt> does for every
+ * message and presence event on a list of <tt>contacts</tt> contacts. Every
+ * invocation looks up a random contact of the list. The <tt>scan</tt>
+ * benchmark searches the groups recursively the way the lookups did before
+ * the list was indexed, for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetaContactLookupBenchmark
+{
+    /**
+     * The number of contacts of the list.
+     */
+    @Param({ "20000" })
+    public int contacts;
+
+    /**
+     * The number of groups of the list.
+     */
+    @Param({ "50" })
+    public int groups;
+
+    /**
+     * The contact list.
+     */
+    private SyntheticContactList contactList;
+
+    /**
+     * The meta uids of the meta contacts in the order of
+     * {@link SyntheticContactList#contacts}.
+     */
+    private String[] metaUIDs;
+
+    /**
+     * The source of the looked up contacts.
+     */
+    private Random random;
+
+    /**
+     * Creates the contact list.
+     */
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        contactList = new SyntheticContactList(contacts, groups);
+        metaUIDs = new String[contacts];
+        for (int i = 0; i < contacts; i++)
+        {
+            metaUIDs[i]
+                = contactList.metaContactList.findMetaContactByContact(
+                        contactList.contacts.get(i)).getMetaUID();
+        }
+        random = new Random(0);
+    }
+
+    /**
+     * Returns a random contact of the list.
+     *
+     * @return a random contact of the list
+     */
+    private MockContact nextContact()
+    {
+        return contactList.contacts.get(random.nextInt(contacts));
+    }
+
+    /**
+     * Finds the meta contact of a protocol contact, as done for an incoming
+     * message.
+     *
+     * @return the found meta contact
+     */
+    @Benchmark
+    public MetaContact findMetaContactByContact()
+    {
+        return contactList.metaContactList.findMetaContactByContact(
+            nextContact());
+    }
+
+    /**
+     * Finds the meta contact of a protocol contact by address and account,
+     * as done when reading the history.
+     *
+     * @return the found meta contact
+     */
+    @Benchmark
+    public MetaContact findMetaContactByAddress()
+    {
+        return contactList.metaContactList.findMetaContactByContact(
+            SyntheticContactList.getAddress(random.nextInt(contacts)),
+            contactList.getAccountID());
+    }
+
+    /**
+     * Finds a meta contact by meta uid.
+     *
+     * @return the found meta contact
+     */
+    @Benchmark
+    public MetaContact findMetaContactByMetaUID()
+    {
+        return contactList.metaContactList.findMetaContactByMetaUID(
+            metaUIDs[random.nextInt(contacts)]);
+    }
+
+    /**
+     * Finds the meta contact group of a protocol group.
+     *
+     * @return the found meta contact group
+     */
+    @Benchmark
+    public MetaContactGroup findMetaContactGroupByContactGroup()
+    {
+        return contactList.metaContactList.findMetaContactGroupByContactGroup(
+            contactList.groups.get(random.nextInt(groups)));
+    }
+
+    /**
+     * Finds the meta contact of a protocol contact by searching the groups
+     * of the list.
+     *
+     * @return the found meta contact
+     */
+    @Benchmark
+    public MetaContact scan()
+    {
+        return contactList.metaContactList.rootMetaGroup
+            .findMetaContactByContact(nextContact());
+    }
+}
@@ -0,0 +1,734 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import javax.swing.*;
+
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.service.protocol.event.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+import org.jitsi.service.libjitsi.*;
+import org.osgi.framework.*;
+
+/**
+ * Loads the meta contact list with large rosters of mock accounts and
+ * reports how it scales. Unlike the JMH benchmarks, which measure single
+ * operations, the harness runs the meta contact list, its storage manager,
+ * the message history and the contact list tree model of the GUI together
+ * at given event rates:
+ * <ol>
+ * <li>the mock accounts are registered with their rosters on the server and
+ * the meta contact list is started, storing the rosters;</li>
+ * <li>the meta contact list is restarted with the accounts offline, loading
+ * the stored rosters;</li>
+ * <li>the contact list tree model is filled with the loaded list;</li>
+ * <li>presence changes and incoming messages are generated at the given
+ * rates for the given duration.</li>
+ * </ol>
+ * The duration of the first three phases, the heap used by the loaded list
+ * and, for the load phase, the achieved rates, the garbage collections and
+ * the latencies of the presence changes and the messages are printed.
+ * <p>
+ * The latency of a presence change lasts from the time the change was due
+ * until the event dispatch thread has run the updates the change queued to
+ * the tree model, which includes the sorting of the group when the meta
+ * contact list reorders it synchronously. The latency of a message lasts
+ * until it is written to the history the way the message history service
+ * writes it. The times are taken from when the events were due rather than
+ * from when they were sent, so that a generator falling behind shows in the
+ * latencies.
+ * <p>
+ * The parameters are given as <tt>name=value</tt> arguments:
+ * <tt>accounts</tt>, <tt>contacts</tt> (in total), <tt>groups</tt> (per
+ * account), <tt>presenceRate</tt> and <tt>messageRate</tt> (per second),
+ * <tt>duration</tt> (in seconds) and <tt>asyncDispatch</tt>. The files are
+ * stored under the home directory given by the
+ * <tt>net.java.sip.communicator.SC_HOME_DIR_LOCATION</tt> and
+ * <tt>net.java.sip.communicator.SC_HOME_DIR_NAME</tt> properties.
+ */
+public class RosterLoadHarness
+{
+    /**
+     * The prefix of the user names of the mock accounts.
+     */
+    private static final String USER_NAME_PREFIX = "load";
+
+    /**
+     * The structure of the message history records.
+     */
+    private static final HistoryRecordStructure MESSAGE_STRUCTURE
+        = new HistoryRecordStructure(new String[] { "dir", "msg_CDATA",
+            "msgTyp", "enc", "uid", "sub", "receivedTimestamp" });
+
+    /**
+     * The property enabling the asynchronous event dispatch of the meta
+     * contact list.
+     */
+    private static final String ASYNC_EVENT_DISPATCH_PROPERTY
+        = "net.java.sip.communicator.impl.contactlist.ASYNC_EVENT_DISPATCH";
+
+    /**
+     * The first component of the ids of the message histories.
+     */
+    private static final String MESSAGES_ID = "messages";
+
+    /**
+     * The values of the parameters by name.
+     */
+    private final Map<String, String> parameters
+        = new HashMap<String, String>();
+
+    /**
+     * The history service the messages are written to.
+     */
+    private HistoryService historyService;
+
+    /**
+     * The meta contact list of the load phase.
+     */
+    private MetaContactListServiceImpl metaContactList;
+
+    /**
+     * The latencies of the presence changes.
+     */
+    private final LatencyRecorder presenceLatencies = new LatencyRecorder();
+
+    /**
+     * The latencies of the messages.
+     */
+    private final LatencyRecorder messageLatencies = new LatencyRecorder();
+
+    /**
+     * The number of exceptions thrown in the event dispatch thread, such as
+     * by the sorting of a group whose order changes while it is sorted.
+     */
+    private final AtomicInteger treeModelFailures = new AtomicInteger();
+
+    /**
+     * Creates a harness with the parameters given as <tt>name=value</tt>
+     * arguments.
+     *
+     * @param args the arguments
+     */
+    RosterLoadHarness(String[] args)
+    {
+        parameters.put("accounts", "4");
+        parameters.put("contacts", "50000");
+        parameters.put("groups", "50");
+        parameters.put("presenceRate", "1000");
+        parameters.put("messageRate", "20");
+        parameters.put("duration", "30");
+        parameters.put("asyncDispatch", "false");
+
+        for (String arg : args)
+        {
+            int separator = arg.indexOf('=');
+
+            if (separator < 0 || !parameters.containsKey(
+                    arg.substring(0, separator)))
+                throw new IllegalArgumentException("Unknown argument " + arg);
+            parameters.put(arg.substring(0, separator),
+                arg.substring(separator + 1));
+        }
+    }
+
+    /**
+     * Runs the harness.
+     *
+     * @param args the parameters as <tt>name=value</tt> arguments
+     * @throws Exception if the harness fails
+     */
+    public static void main(String[] args)
+        throws Exception
+    {
+        new RosterLoadHarness(args).run();
+        System.exit(0);
+    }
+
+    /**
+     * Returns the value of an integer parameter.
+     *
+     * @param name the name of the parameter
+     * @return the value of the parameter
+     */
+    private int getInt(String name)
+    {
+        return Integer.parseInt(parameters.get(name));
+    }
+
+    /**
+     * Runs the phases of the harness and prints their results.
+     *
+     * @throws Exception if the harness fails
+     */
+    void run()
+        throws Exception
+    {
+        System.out.println("Parameters: " + new TreeMap<String, String>(
+            parameters));
+
+        LibJitsi.start();
+
+        ConfigurationService configService
+            = LibJitsi.getConfigurationService();
+
+        configService.setProperty(
+            ASYNC_EVENT_DISPATCH_PROPERTY,
+            parameters.get("asyncDispatch"));
+        deleteStoredContactList();
+
+        // register the accounts with their rosters on the server
+        List<MockProvider> providers = createProviders(true);
+        BundleContext bundleContext = createBundleContext(providers);
+        MetaContactListServiceImpl registeredList
+            = new MetaContactListServiceImpl();
+
+        long start = System.nanoTime();
+        registeredList.start(bundleContext);
+        printPhase("Register", start,
+            countMetaContacts(registeredList.getRoot()) + " meta contacts");
+        registeredList.stop(bundleContext);
+
+        // restart with the accounts offline, loading the stored rosters
+        providers = createProviders(false);
+        bundleContext = createBundleContext(providers);
+        metaContactList = new MetaContactListServiceImpl();
+
+        start = System.nanoTime();
+        metaContactList.start(bundleContext);
+        printPhase("Restart", start,
+            countMetaContacts(metaContactList.getRoot()) + " meta contacts");
+
+        // fill the tree model
+        RosterTreeModel treeModel = new RosterTreeModel(metaContactList);
+
+        start = System.nanoTime();
+        treeModel.fill();
+        printPhase("Fill tree model", start,
+            treeModel.getContactCount() + " contact nodes");
+
+        metaContactList.addMetaContactListListener(treeModel);
+        for (MockProvider provider : providers)
+        {
+            provider.getOperationSet(OperationSetPersistentPresence.class)
+                .addContactPresenceStatusListener(treeModel);
+        }
+
+        historyService = new HistoryServiceImpl(bundleContext);
+        historyService.purgeLocallyStoredHistory(
+            HistoryID.createFromRawID(new String[] { MESSAGES_ID }));
+
+        System.out.println("Heap used after loading: "
+            + getUsedHeap() / (1024 * 1024) + " MB");
+
+        runLoad(providers);
+
+        metaContactList.stop(bundleContext);
+    }
+
+    /**
+     * Generates presence changes and messages at the given rates for the
+     * given duration and prints the results.
+     *
+     * @param providers the mock providers of the accounts
+     * @throws Exception if the load fails
+     */
+    private void runLoad(List<MockProvider> providers)
+        throws Exception
+    {
+        final List<MockContact> contacts = new ArrayList<MockContact>();
+
+        collectContacts(metaContactList.getRoot(), contacts);
+
+        final long durationNanos = getInt("duration") * 1000000000L;
+        final long startTime = System.nanoTime();
+        final Random presenceRandom = new Random(0);
+        final Random messageRandom = new Random(1);
+        final MockStatusEnum[] statuses = new MockStatusEnum[] {
+            MockStatusEnum.MOCK_STATUS_00, MockStatusEnum.MOCK_STATUS_50,
+            MockStatusEnum.MOCK_STATUS_100 };
+        long gcCount = getGcCount();
+        long gcTime = getGcTime();
+
+        SwingUtilities.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                Thread.currentThread().setUncaughtExceptionHandler(
+                    new Thread.UncaughtExceptionHandler()
+                    {
+                        public void uncaughtException(Thread t, Throwable e)
+                        {
+                            if (treeModelFailures.getAndIncrement() == 0)
+                                e.printStackTrace();
+                        }
+                    });
+            }
+        });
+
+        Thread presenceThread = startGenerator("presence",
+            getInt("presenceRate"), startTime, durationNanos,
+            new EventGenerator()
+            {
+                public void generate(final long dueTime)
+                {
+                    MockContact contact = contacts.get(
+                        presenceRandom.nextInt(contacts.size()));
+                    MockStatusEnum status
+                        = statuses[presenceRandom.nextInt(statuses.length)];
+
+                    if (status == contact.getPresenceStatus())
+                        status = statuses[(presenceRandom.nextInt(
+                            statuses.length - 1) + 1) % statuses.length];
+                    ((MockPersistentPresenceOperationSet)
+                        contact.getProtocolProvider().getOperationSet(
+                            OperationSetPersistentPresence.class))
+                        .changePresenceStatusForContact(contact, status);
+
+                    // runs after the updates queued by the change
+                    SwingUtilities.invokeLater(new Runnable()
+                    {
+                        public void run()
+                        {
+                            presenceLatencies.record(
+                                System.nanoTime() - dueTime);
+                        }
+                    });
+                }
+            });
+        Thread messageThread = startGenerator("message",
+            getInt("messageRate"), startTime, durationNanos,
+            new EventGenerator()
+            {
+                public void generate(long dueTime)
+                    throws IOException
+                {
+                    MockContact contact = contacts.get(
+                        messageRandom.nextInt(contacts.size()));
+                    OperationSetBasicInstantMessaging imOpSet
+                        = contact.getProtocolProvider().getOperationSet(
+                            OperationSetBasicInstantMessaging.class);
+                    Message message = imOpSet.createMessage(
+                        "load message " + messageLatencies.getCount());
+
+                    writeMessage(
+                        new MessageReceivedEvent(message, contact, new Date()));
+                    messageLatencies.record(System.nanoTime() - dueTime);
+                }
+            });
+
+        presenceThread.join();
+        messageThread.join();
+        SwingUtilities.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                // wait for the queued updates
+            }
+        });
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        System.out.println(String.format(
+            "Load: %.1f s, %.0f presence changes/s, %.0f messages/s,"
+                + " %d GCs taking %d ms",
+            seconds,
+            presenceLatencies.getCount() / seconds,
+            messageLatencies.getCount() / seconds,
+            getGcCount() - gcCount,
+            getGcTime() - gcTime));
+        System.out.println("Presence to tree model latency: "
+            + presenceLatencies.summary());
+        System.out.println("Message to history latency: "
+            + messageLatencies.summary());
+        System.out.println("Tree model failures: " + treeModelFailures.get());
+        System.out.println("Heap used after the load: "
+            + getUsedHeap() / (1024 * 1024) + " MB");
+    }
+
+    /**
+     * Writes a received message to its history like the message history
+     * service does: the meta contact of the sender is looked up and the
+     * message is appended to the history of the sender in the account.
+     *
+     * @param evt the event of the received message
+     * @throws IOException if the history cannot be written
+     */
+    private void writeMessage(MessageReceivedEvent evt)
+        throws IOException
+    {
+        Contact contact = evt.getSourceContact();
+        Message message = evt.getSourceMessage();
+
+        if (metaContactList.findMetaContactByContact(contact) == null)
+            return;
+
+        HistoryID historyID = HistoryID.createFromRawID(new String[] {
+            MESSAGES_ID, "default",
+            contact.getProtocolProvider().getAccountID().getAccountUniqueID(),
+            contact.getAddress() });
+        History history = historyService.isHistoryCreated(historyID)
+            ? historyService.getHistory(historyID)
+            : historyService.createHistory(historyID, MESSAGE_STRUCTURE);
+
+        history.getWriter().addRecord(new String[] { "in",
+            message.getContent(), message.getContentType(),
+            message.getEncoding(), message.getMessageUID(),
+            message.getSubject(),
+            new SimpleDateFormat(HistoryService.DATE_FORMAT).format(
+                evt.getTimestamp()) },
+            evt.getTimestamp());
+    }
+
+    /**
+     * Generates an event of the load.
+     */
+    private interface EventGenerator
+    {
+        /**
+         * Generates an event.
+         *
+         * @param dueTime the time the event was due, as returned by
+         * <tt>System.nanoTime()</tt>
+         * @throws Exception if the event fails
+         */
+        void generate(long dueTime)
+            throws Exception;
+    }
+
+    /**
+     * Starts a thread generating events at a fixed rate.
+     *
+     * @param name the name of the events
+     * @param rate the number of events per second
+     * @param startTime the time the first event is due
+     * @param durationNanos the time events are generated for
+     * @param generator the generator of the events
+     * @return the started thread
+     */
+    private static Thread startGenerator(final String name,
+                                         final int rate,
+                                         final long startTime,
+                                         final long durationNanos,
+                                         final EventGenerator generator)
+    {
+        Thread thread = new Thread(name + " generator")
+        {
+            @Override
+            public void run()
+            {
+                if (rate <= 0)
+                    return;
+
+                long period = 1000000000L / rate;
+
+                for (long i = 0; ; i++)
+                {
+                    long dueTime = startTime + i * period;
+
+                    if (dueTime - startTime >= durationNanos)
+                        break;
+
+                    long delay = dueTime - System.nanoTime();
+                    if (delay > 0)
+                        LockSupport.parkNanos(delay);
+
+                    try
+                    {
+                        generator.generate(dueTime);
+                    }
+                    catch (Exception ex)
+                    {
+                        System.err.println("Failed " + name + " event: "
+                            + ex);
+                    }
+                }
+            }
+        };
+
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Creates the mock providers of the accounts.
+     *
+     * @param withRosters whether the server stored contact lists of the
+     * accounts contain their rosters or are empty
+     * @return the mock providers
+     */
+    private List<MockProvider> createProviders(boolean withRosters)
+    {
+        int accounts = getInt("accounts");
+        int contacts = getInt("contacts");
+        int groups = getInt("groups");
+        List<MockProvider> providers = new ArrayList<MockProvider>();
+
+        for (int a = 0; a < accounts; a++)
+        {
+            MockProvider provider = new MockProvider(USER_NAME_PREFIX + a);
+
+            providers.add(provider);
+            if (!withRosters)
+                continue;
+
+            MockPersistentPresenceOperationSet presenceOpSet
+                = (MockPersistentPresenceOperationSet) provider.getOperationSet(
+                        OperationSetPersistentPresence.class);
+            List<MockContactGroup> accountGroups
+                = new ArrayList<MockContactGroup>();
+
+            for (int g = 0; g < groups; g++)
+            {
+                MockContactGroup group
+                    = new MockContactGroup("group" + g, provider);
+
+                presenceOpSet.addMockGroup(group);
+                accountGroups.add(group);
+            }
+
+            // the contacts are shared evenly by the accounts and their groups
+            for (int c = a; c < contacts; c += accounts)
+            {
+                accountGroups.get((c / accounts) % groups).addContact(
+                    new MockContact(SyntheticContactList.getAddress(c),
+                        provider));
+            }
+        }
+        return providers;
+    }
+
+    /**
+     * Deletes the contact list stored by a previous run.
+     */
+    private static void deleteStoredContactList()
+        throws Exception
+    {
+        FileAccessService faService = LibJitsi.getFileAccessService();
+        File contactlistFile
+            = faService.getPrivatePersistentFile("contactlist.xml");
+
+        for (String extension : new String[] {
+                "", MclJournal.JOURNAL_EXTENSION,
+                MclSnapshot.SNAPSHOT_EXTENSION })
+        {
+            new File(contactlistFile.getPath() + extension).delete();
+        }
+    }
+
+    /**
+     * Creates a bundle context providing the configuration and file access
+     * services of libjitsi and the mock providers of the accounts as
+     * registered protocol providers.
+     *
+     * @param providers the mock providers of the accounts
+     * @return the bundle context
+     */
+    private static BundleContext createBundleContext(
+        final List<MockProvider> providers)
+    {
+        final Map<ServiceReference, Object> services
+            = new HashMap<ServiceReference, Object>();
+        final Map<String, ServiceReference> references
+            = new HashMap<String, ServiceReference>();
+        final ServiceReference[] providerReferences
+            = new ServiceReference[providers.size()];
+
+        references.put(ConfigurationService.class.getName(),
+            createServiceReference(services,
+                LibJitsi.getConfigurationService()));
+        references.put(FileAccessService.class.getName(),
+            createServiceReference(services,
+                LibJitsi.getFileAccessService()));
+        for (int i = 0; i < providerReferences.length; i++)
+        {
+            providerReferences[i]
+                = createServiceReference(services, providers.get(i));
+        }
+
+        return (BundleContext) Proxy.newProxyInstance(
+            RosterLoadHarness.class.getClassLoader(),
+            new Class<?>[] { BundleContext.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+
+                    if (name.equals("getServiceReference"))
+                        return references.get(args[0]);
+                    if (name.equals("getServiceReferences"))
+                    {
+                        return ProtocolProviderService.class.getName()
+                                .equals(args[0])
+                            ? providerReferences
+                            : null;
+                    }
+                    if (name.equals("getService"))
+                        return services.get(args[0]);
+                    if (name.equals("hashCode"))
+                        return System.identityHashCode(proxy);
+                    if (name.equals("equals"))
+                        return proxy == args[0];
+                    // the service listeners are not needed since the
+                    // providers do not change
+                    return method.getReturnType() == boolean.class
+                        ? Boolean.FALSE
+                        : null;
+                }
+            });
+    }
+
+    /**
+     * Creates a reference to a service.
+     *
+     * @param services the services by reference the service is added to
+     * @param service the service
+     * @return the reference to <tt>service</tt>
+     */
+    private static ServiceReference createServiceReference(
+        Map<ServiceReference, Object> services,
+        final Object service)
+    {
+        ServiceReference reference = (ServiceReference) Proxy.newProxyInstance(
+            RosterLoadHarness.class.getClassLoader(),
+            new Class<?>[] { ServiceReference.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    String name = method.getName();
+
+                    if (name.equals("hashCode"))
+                        return System.identityHashCode(proxy);
+                    if (name.equals("equals"))
+                        return proxy == args[0];
+                    if (name.equals("toString"))
+                        return "ServiceReference[" + service + "]";
+                    return null;
+                }
+            });
+
+        services.put(reference, service);
+        return reference;
+    }
+
+    /**
+     * Adds the mock contacts of the meta contacts of a group and its
+     * subgroups to <tt>contacts</tt>.
+     *
+     * @param group the meta contact group
+     * @param contacts the list the mock contacts are added to
+     */
+    private static void collectContacts(MetaContactGroup group,
+                                        List<MockContact> contacts)
+    {
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+        {
+            Iterator<Contact> protoContacts = metaContacts.next().getContacts();
+
+            while (protoContacts.hasNext())
+            {
+                Contact contact = protoContacts.next();
+
+                if (contact instanceof MockContact)
+                    contacts.add((MockContact) contact);
+            }
+        }
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            collectContacts(subgroups.next(), contacts);
+    }
+
+    /**
+     * Returns the number of meta contacts of a group and its subgroups.
+     *
+     * @param group the meta contact group
+     * @return the number of meta contacts
+     */
+    private static int countMetaContacts(MetaContactGroup group)
+    {
+        int count = group.countChildContacts();
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+
+        while (subgroups.hasNext())
+            count += countMetaContacts(subgroups.next());
+        return count;
+    }
+
+    /**
+     * Prints the duration of a phase.
+     *
+     * @param phase the name of the phase
+     * @param start the time the phase started
+     * @param result a description of the result of the phase
+     */
+    private static void printPhase(String phase, long start, String result)
+    {
+        System.out.println(String.format("%s: %.0f ms, %s",
+            phase, (System.nanoTime() - start) / 1e6, result));
+    }
+
+    /**
+     * Returns the heap used once the garbage has been collected.
+     *
+     * @return the used heap in bytes
+     */
+    private static long getUsedHeap()
+    {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+            .getUsed();
+    }
+
+    /**
+     * Returns the number of garbage collections since the start.
+     *
+     * @return the number of garbage collections
+     */
+    private static long getGcCount()
+    {
+        long count = 0;
+
+        for (GarbageCollectorMXBean gc
+                : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    /**
+     * Returns the time spent collecting garbage since the start.
+     *
+     * @return the collection time in milliseconds
+     */
+    private static long getGcTime()
+    {
+        long time = 0;
+
+        for (GarbageCollectorMXBean gc
+                : ManagementFactory.getGarbageCollectorMXBeans())
+            time += Math.max(0, gc.getCollectionTime());
+        return time;
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+import javax.swing.*;
+
+import net.java.sip.communicator.impl.gui.main.contactlist.*;
+import net.java.sip.communicator.plugin.desktoputil.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.contactlist.event.*;
+import net.java.sip.communicator.service.gui.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.service.protocol.event.*;
+
+/**
+ * The contact list tree model of the GUI filled with a meta contact list and
+ * kept up to date the way <tt>MetaContactListSource</tt> does it, without
+ * the rest of the GUI, for the load harness. The groups and contacts are
+ * added to the model with <tt>sortedAddContactGroup</tt> and
+ * <tt>sortedAddContacts</tt> like a filter does, a group is sorted when the
+ * meta contact list reorders its contacts and a contact node is repositioned
+ * when the status of one of its protocol contacts changes.
+ */
+class RosterTreeModel
+    extends MetaContactListAdapter
+    implements ContactPresenceStatusListener
+{
+    /**
+     * The tree displaying the model, which also receives its events.
+     */
+    private final JTree tree = new JTree();
+
+    /**
+     * The contact list tree model.
+     */
+    private final ContactListTreeModel treeModel
+        = new ContactListTreeModel(tree);
+
+    /**
+     * The meta contact list shown by the model.
+     */
+    private final MetaContactListServiceImpl metaContactList;
+
+    /**
+     * The UI contacts by meta contact.
+     */
+    private final Map<MetaContact, RosterUIContact> uiContacts
+        = new ConcurrentHashMap<MetaContact, RosterUIContact>();
+
+    /**
+     * The UI groups by meta contact group.
+     */
+    private final Map<MetaContactGroup, RosterUIGroup> uiGroups
+        = new ConcurrentHashMap<MetaContactGroup, RosterUIGroup>();
+
+    /**
+     * Creates the model of <tt>metaContactList</tt>. The model is empty
+     * until {@link #fill()} is called.
+     *
+     * @param metaContactList the meta contact list to show
+     */
+    RosterTreeModel(MetaContactListServiceImpl metaContactList)
+    {
+        this.metaContactList = metaContactList;
+        tree.setModel(treeModel);
+    }
+
+    /**
+     * Adds all the groups and contacts of the meta contact list to the
+     * model, in the event dispatch thread.
+     *
+     * @throws Exception if the event dispatch thread fails
+     */
+    void fill()
+        throws Exception
+    {
+        SwingUtilities.invokeAndWait(new Runnable()
+        {
+            public void run()
+            {
+                MetaContactGroup root = metaContactList.getRoot();
+
+                addChildContacts(root, treeModel.getRoot());
+
+                Iterator<MetaContactGroup> subgroups = root.getSubgroups();
+                while (subgroups.hasNext())
+                {
+                    MetaContactGroup metaGroup = subgroups.next();
+                    RosterUIGroup uiGroup = new RosterUIGroup(metaGroup);
+
+                    uiGroups.put(metaGroup, uiGroup);
+                    addChildContacts(metaGroup,
+                        treeModel.getRoot().sortedAddContactGroup(uiGroup));
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the child contacts of a meta contact group to its node.
+     *
+     * @param metaGroup the meta contact group
+     * @param groupNode the node of <tt>metaGroup</tt>
+     */
+    private void addChildContacts(MetaContactGroup metaGroup,
+                                  GroupNode groupNode)
+    {
+        Iterator<MetaContact> childContacts = metaGroup.getChildContacts();
+        List<RosterUIContact> groupContacts = new ArrayList<RosterUIContact>();
+
+        while (childContacts.hasNext())
+        {
+            MetaContact metaContact = childContacts.next();
+            RosterUIContact uiContact = new RosterUIContact(metaContact);
+
+            uiContacts.put(metaContact, uiContact);
+            groupContacts.add(uiContact);
+        }
+        groupNode.sortedAddContacts(groupContacts);
+    }
+
+    /**
+     * Returns the number of contact nodes of the model.
+     *
+     * @return the number of contact nodes
+     */
+    int getContactCount()
+    {
+        return uiContacts.size();
+    }
+
+    /**
+     * Sorts the node of a group whose contacts the meta contact list has
+     * reordered.
+     *
+     * @param evt the <tt>MetaContactGroupEvent</tt> that notified us
+     */
+    @Override
+    public void childContactsReordered(MetaContactGroupEvent evt)
+    {
+        MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
+        GroupNode groupNode;
+
+        if (metaGroup == metaContactList.getRoot())
+            groupNode = treeModel.getRoot();
+        else
+        {
+            RosterUIGroup uiGroup = uiGroups.get(metaGroup);
+
+            groupNode = (uiGroup == null) ? null : uiGroup.getGroupNode();
+        }
+
+        if (groupNode != null)
+            groupNode.sort(treeModel);
+    }
+
+    /**
+     * Repositions the node of the meta contact of a protocol contact whose
+     * status has changed.
+     *
+     * @param evt the <tt>ContactPresenceStatusChangeEvent</tt> that notified
+     * us
+     */
+    public void contactPresenceStatusChanged(
+        ContactPresenceStatusChangeEvent evt)
+    {
+        if (evt.getOldStatus() == evt.getNewStatus())
+            return;
+
+        MetaContact metaContact
+            = metaContactList.findMetaContactByContact(evt.getSourceContact());
+
+        if (metaContact == null)
+            return;
+
+        final RosterUIContact uiContact = uiContacts.get(metaContact);
+
+        if (uiContact == null)
+            return;
+
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                ContactNode contactNode = uiContact.getContactNode();
+
+                if (contactNode != null)
+                {
+                    ((GroupNode) contactNode.getParent())
+                        .repositionContact(contactNode);
+                }
+            }
+        });
+    }
+
+    /**
+     * The UI contact of a meta contact, with the index of the meta contact
+     * in its group as source index like <tt>MetaUIContact</tt>.
+     */
+    private static class RosterUIContact
+        extends UIContactImpl
+    {
+        /**
+         * The meta contact.
+         */
+        private final MetaContact metaContact;
+
+        /**
+         * The node of this contact.
+         */
+        private ContactNode contactNode;
+
+        /**
+         * The parent UI group.
+         */
+        private UIGroup parentGroup;
+
+        /**
+         * Creates the UI contact of <tt>metaContact</tt>.
+         *
+         * @param metaContact the meta contact
+         */
+        RosterUIContact(MetaContact metaContact)
+        {
+            this.metaContact = metaContact;
+        }
+
+        @Override
+        public Object getDescriptor()
+        {
+            return metaContact;
+        }
+
+        @Override
+        public String getDisplayName()
+        {
+            return metaContact.getDisplayName();
+        }
+
+        @Override
+        public String getDisplayDetails()
+        {
+            return null;
+        }
+
+        @Override
+        public int getSourceIndex()
+        {
+            MetaContactGroup parent = metaContact.getParentMetaContactGroup();
+
+            return (parent == null) ? -1 : parent.indexOf(metaContact);
+        }
+
+        @Override
+        public ExtendedTooltip getToolTip()
+        {
+            return null;
+        }
+
+        @Override
+        public Component getRightButtonMenu()
+        {
+            return null;
+        }
+
+        @Override
+        public UIGroup getParentGroup()
+        {
+            return parentGroup;
+        }
+
+        @Override
+        public void setParentGroup(UIGroup parentGroup)
+        {
+            this.parentGroup = parentGroup;
+        }
+
+        @Override
+        public Iterator<String> getSearchStrings()
+        {
+            return Collections.singletonList(getDisplayName()).iterator();
+        }
+
+        @Override
+        public UIContactDetail getDefaultContactDetail(
+            Class<? extends OperationSet> opSetClass)
+        {
+            return null;
+        }
+
+        @Override
+        public List<UIContactDetail> getContactDetailsForOperationSet(
+            Class<? extends OperationSet> opSetClass)
+        {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public List<UIContactDetail> getContactDetails()
+        {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public Collection<SIPCommButton> getContactCustomActionButtons()
+        {
+            return null;
+        }
+
+        @Override
+        public ContactNode getContactNode()
+        {
+            return contactNode;
+        }
+
+        @Override
+        public void setContactNode(ContactNode contactNode)
+        {
+            this.contactNode = contactNode;
+        }
+
+        @Override
+        public ImageIcon getStatusIcon()
+        {
+            return null;
+        }
+
+        @Override
+        public ImageIcon getScaledAvatar(
+            boolean isSelected, int width, int height)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * The UI group of a meta contact group, with the index of the group in
+     * its parent as source index like <tt>MetaUIGroup</tt>.
+     */
+    private static class RosterUIGroup
+        extends UIGroupImpl
+    {
+        /**
+         * The meta contact group.
+         */
+        private final MetaContactGroup metaGroup;
+
+        /**
+         * The node of this group.
+         */
+        private GroupNode groupNode;
+
+        /**
+         * Creates the UI group of <tt>metaGroup</tt>.
+         *
+         * @param metaGroup the meta contact group
+         */
+        RosterUIGroup(MetaContactGroup metaGroup)
+        {
+            this.metaGroup = metaGroup;
+        }
+
+        @Override
+        public Object getDescriptor()
+        {
+            return metaGroup;
+        }
+
+        @Override
+        public String getDisplayName()
+        {
+            return metaGroup.getGroupName();
+        }
+
+        @Override
+        public int getSourceIndex()
+        {
+            return metaGroup.getParentMetaContactGroup().indexOf(metaGroup);
+        }
+
+        @Override
+        public UIGroup getParentGroup()
+        {
+            return null;
+        }
+
+        @Override
+        public boolean isGroupCollapsed()
+        {
+            return false;
+        }
+
+        @Override
+        public int countOnlineChildContacts()
+        {
+            return metaGroup.countOnlineChildContacts();
+        }
+
+        @Override
+        public int countChildContacts()
+        {
+            return metaGroup.countChildContacts();
+        }
+
+        @Override
+        public String getId()
+        {
+            return metaGroup.getMetaUID();
+        }
+
+        @Override
+        public Component getRightButtonMenu()
+        {
+            return null;
+        }
+
+        @Override
+        public GroupNode getGroupNode()
+        {
+            return groupNode;
+        }
+
+        @Override
+        public void setGroupNode(GroupNode groupNode)
+        {
+            this.groupNode = groupNode;
+        }
+    }
+}
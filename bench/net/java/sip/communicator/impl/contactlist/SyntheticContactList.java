@@ -0,0 +1,113 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Creates a meta contact list outside OSGi holding the contacts of a mock
+ * protocol provider, for the benchmarks. The server stored contact list of
+ * the provider has <tt>groups</tt> groups sharing the contacts evenly and
+ * the meta contact list mirrors it the way it does when the provider is
+ * registered: a meta contact group per protocol group and a meta contact
+ * per protocol contact.
+ */
+public class SyntheticContactList
+{
+    /**
+     * The user name of the mock provider.
+     */
+    static final String USER_NAME = "benchmark";
+
+    /**
+     * The mock provider owning the contacts.
+     */
+    final MockProvider provider = new MockProvider(USER_NAME);
+
+    /**
+     * The meta contact list.
+     */
+    final MetaContactListServiceImpl metaContactList
+        = new MetaContactListServiceImpl();
+
+    /**
+     * The protocol contacts of the list.
+     */
+    final List<MockContact> contacts = new ArrayList<MockContact>();
+
+    /**
+     * The protocol groups of the list.
+     */
+    final List<MockContactGroup> groups = new ArrayList<MockContactGroup>();
+
+    /**
+     * Creates a contact list.
+     *
+     * @param contactCount the number of contacts
+     * @param groupCount the number of groups
+     */
+    SyntheticContactList(int contactCount, int groupCount)
+    {
+        MockPersistentPresenceOperationSet presenceOpSet
+            = (MockPersistentPresenceOperationSet) provider.getOperationSet(
+                    OperationSetPersistentPresence.class);
+        MetaContactGroupImpl rootMetaGroup = metaContactList.rootMetaGroup;
+
+        rootMetaGroup.addProtoGroup(
+            presenceOpSet.getServerStoredContactListRoot());
+        for (int i = 0; i < groupCount; i++)
+        {
+            MockContactGroup group
+                = new MockContactGroup("group" + i, provider);
+            MetaContactGroupImpl metaGroup
+                = new MetaContactGroupImpl(metaContactList, "group" + i);
+
+            presenceOpSet.addMockGroup(group);
+            metaGroup.addProtoGroup(group);
+            rootMetaGroup.addSubgroup(metaGroup);
+            groups.add(group);
+        }
+
+        for (int i = 0; i < contactCount; i++)
+        {
+            MockContactGroup group = groups.get(i % groupCount);
+            MockContact contact = new MockContact(getAddress(i), provider);
+            MetaContactImpl metaContact = new MetaContactImpl();
+
+            group.addContact(contact);
+            metaContact.addProtoContact(contact);
+            ((MetaContactGroupImpl)
+                    metaContactList.findMetaContactGroupByContactGroup(group))
+                .addMetaContact(metaContact);
+            contacts.add(contact);
+        }
+    }
+
+    /**
+     * Returns the address of a contact of the list.
+     *
+     * @param contact the index of the contact
+     * @return the address of the contact
+     */
+    static String getAddress(int contact)
+    {
+        return "contact" + contact + "@bench.example";
+    }
+
+    /**
+     * Returns the unique id of the account of the contacts.
+     *
+     * @return the unique id of the account of the mock provider
+     */
+    String getAccountID()
+    {
+        return provider.getAccountID().getAccountUniqueID();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.history.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the first query after the application starts: discovering the
+ * existing histories and reading the last messages of one of them with a
+ * new history service, which has neither loaded documents nor loaded
+ * indexes. The files stay in the cache of the operating system, so this is
+ * the cost of a restart rather than of a cold disk.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class HistoryColdStartBenchmark
+{
+    /**
+     * The number of histories.
+     */
+    @Param({ "100" })
+    public int contacts;
+
+    /**
+     * The number of records of every history.
+     */
+    @Param({ "1000" })
+    public int records;
+
+    /**
+     * The storage mode of the history services.
+     */
+    @Param({ "default", "cache" })
+    public String mode;
+
+    /**
+     * The history service started for the measured query.
+     */
+    private HistoryServiceImpl service;
+
+    /**
+     * Generates the histories.
+     *
+     * @throws Exception if the histories cannot be created
+     */
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception
+    {
+        SyntheticHistories.generate(contacts, records);
+    }
+
+    /**
+     * Removes the histories.
+     *
+     * @throws Exception if the histories cannot be removed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+        throws Exception
+    {
+        HistoryServiceImpl service = SyntheticHistories.createService(mode);
+
+        SyntheticHistories.purge(service);
+        service.stop();
+    }
+
+    /**
+     * Starts a new history service.
+     *
+     * @throws Exception if the service cannot be created
+     */
+    @Setup(Level.Invocation)
+    public void startService()
+        throws Exception
+    {
+        service = SyntheticHistories.createService(mode);
+    }
+
+    /**
+     * Stops the history service.
+     */
+    @TearDown(Level.Invocation)
+    public void stopService()
+    {
+        service.stop();
+        service = null;
+    }
+
+    /**
+     * Discovers the histories and reads the last messages of one of them.
+     *
+     * @return the number of read records
+     */
+    @Benchmark
+    public int firstQuery()
+    {
+        History history
+            = SyntheticHistories.getHistory(service, contacts / 2);
+
+        return SyntheticHistories.consume(
+            history.getReader().findLast(20));
+    }
+}
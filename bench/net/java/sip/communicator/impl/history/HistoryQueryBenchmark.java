@@ -0,0 +1,153 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.history.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the queries of <tt>HistoryReader</tt> on histories of
+ * <tt>contacts</tt> contacts having <tt>records</tt> records each. Every
+ * invocation queries the history of another contact, so that a cache of
+ * the history documents only helps if it can keep them all.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HistoryQueryBenchmark
+{
+    /**
+     * The number of histories.
+     */
+    @Param({ "10" })
+    public int contacts;
+
+    /**
+     * The number of records of every history.
+     */
+    @Param({ "1000", "10000" })
+    public int records;
+
+    /**
+     * The storage mode of the history service.
+     */
+    @Param({ "default", "cache" })
+    public String mode;
+
+    /**
+     * The history service.
+     */
+    private HistoryServiceImpl service;
+
+    /**
+     * The histories of the contacts.
+     */
+    private History[] histories;
+
+    /**
+     * The index of the contact whose history is queried next.
+     */
+    private int next = 0;
+
+    /**
+     * Generates the histories.
+     *
+     * @throws Exception if the histories cannot be created
+     */
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception
+    {
+        SyntheticHistories.generate(contacts, records);
+
+        service = SyntheticHistories.createService(mode);
+        histories = new History[contacts];
+        for (int i = 0; i < contacts; i++)
+            histories[i] = SyntheticHistories.getHistory(service, i);
+    }
+
+    /**
+     * Removes the histories.
+     *
+     * @throws Exception if the histories cannot be removed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+        throws Exception
+    {
+        service.stop();
+        SyntheticHistories.purge(service);
+    }
+
+    /**
+     * Returns the reader of the history to query next.
+     *
+     * @return the reader of the history of the next contact
+     */
+    private HistoryReader nextReader()
+    {
+        HistoryReader reader = histories[next].getReader();
+
+        next = (next + 1) % histories.length;
+        return reader;
+    }
+
+    /**
+     * Reads the last messages, as the chat window does when opened.
+     *
+     * @return the number of read records
+     */
+    @Benchmark
+    public int findLast()
+    {
+        return SyntheticHistories.consume(nextReader().findLast(20));
+    }
+
+    /**
+     * Reads the messages of a day in the middle of the history.
+     *
+     * @return the number of read records
+     */
+    @Benchmark
+    public int findByPeriod()
+    {
+        Date start = SyntheticHistories.getTimestamp(records / 2);
+
+        return SyntheticHistories.consume(nextReader().findByPeriod(
+            start, new Date(start.getTime() + 24 * 60 * 60 * 1000L)));
+    }
+
+    /**
+     * Searches the whole history for a word.
+     *
+     * @return the number of read records
+     */
+    @Benchmark
+    public int findByKeyword()
+    {
+        return SyntheticHistories.consume(nextReader().findByKeyword(
+            "weekend", SyntheticHistories.SEARCH_FIELD));
+    }
+
+    /**
+     * Counts the records of the history.
+     *
+     * @return the number of records
+     */
+    @Benchmark
+    public int countRecords()
+    {
+        return nextReader().countRecords();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.history.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the throughput of <tt>HistoryWriter.addRecord</tt> in every
+ * storage mode. The records are added to a single history which grows
+ * during the measurement, like the history of an active conversation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HistoryWriteBenchmark
+{
+    /**
+     * The storage mode of the history service.
+     */
+    @Param({ "default", "appendOnly", "writeBehind" })
+    public String mode;
+
+    /**
+     * The history service.
+     */
+    private HistoryServiceImpl service;
+
+    /**
+     * The writer of the history the records are added to.
+     */
+    private HistoryWriter writer;
+
+    /**
+     * The source of the content of the added records.
+     */
+    private Random random;
+
+    /**
+     * The number of added records.
+     */
+    private int records;
+
+    /**
+     * Creates an empty history.
+     *
+     * @throws Exception if the history cannot be created
+     */
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception
+    {
+        service = SyntheticHistories.createService(mode);
+        SyntheticHistories.purge(service);
+        writer = service.createHistory(
+            SyntheticHistories.getID(0), SyntheticHistories.STRUCTURE)
+                .getWriter();
+        random = new Random(0);
+        records = 0;
+    }
+
+    /**
+     * Removes the history.
+     *
+     * @throws Exception if the history cannot be removed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+        throws Exception
+    {
+        service.stop();
+        SyntheticHistories.purge(service);
+    }
+
+    /**
+     * Adds a record to the history.
+     *
+     * @throws Exception if the record cannot be added
+     */
+    @Benchmark
+    public void addRecord()
+        throws Exception
+    {
+        writer.addRecord(
+            SyntheticHistories.createRecord(random, 0, records),
+            SyntheticHistories.getTimestamp(records));
+        records++;
+    }
+}
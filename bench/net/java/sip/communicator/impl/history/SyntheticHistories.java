@@ -0,0 +1,276 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+
+/**
+ * Creates history services outside OSGi and fills them with synthetic
+ * message histories for the benchmarks. The histories have the structure of
+ * the message history and their messages have the lengths of typical chat
+ * messages, mostly short with a few long ones. The content is generated from
+ * a fixed seed, so that every run measures the same data.
+ *
+ * @author Damian Minkov
+ */
+public class SyntheticHistories
+{
+    /**
+     * The structure of the generated histories, the one of the message
+     * history.
+     */
+    static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(new String[] { "dir", "msg_CDATA",
+            "msgTyp", "enc", "uid", "sub", "receivedTimestamp" });
+
+    /**
+     * The property searched by the keyword queries.
+     */
+    static final String SEARCH_FIELD = "msg";
+
+    /**
+     * The timestamp of the first generated record.
+     */
+    static final long START_TIME = 1356998400000L;
+
+    /**
+     * The time between two generated records of a contact.
+     */
+    static final long RECORD_INTERVAL = 60 * 1000L;
+
+    /**
+     * The words of the generated messages.
+     */
+    static final String[] WORDS = new String[] { "hello", "meeting",
+        "tomorrow", "call", "jitsi", "video", "the", "a", "is", "to", "and",
+        "conference", "thanks", "sure", "see", "you", "later", "file",
+        "sent", "ok", "what", "about", "lunch", "network", "audio", "great",
+        "weekend", "project", "review", "release", "bug", "fixed" };
+
+    /**
+     * The first component of the IDs of the generated histories.
+     */
+    private static final String ID_PREFIX = "benchmark";
+
+    /**
+     * Whether libjitsi, which provides the configuration and file access
+     * services outside OSGi, has been started.
+     */
+    private static boolean libJitsiStarted = false;
+
+    /**
+     * Creates a history service configured for the given storage mode.
+     *
+     * @param mode <tt>default</tt>, <tt>cache</tt>, <tt>appendOnly</tt> or
+     * <tt>writeBehind</tt>
+     * @return the history service
+     * @throws Exception if the service cannot be created
+     */
+    static synchronized HistoryServiceImpl createService(String mode)
+        throws Exception
+    {
+        if (!libJitsiStarted)
+        {
+            LibJitsi.start();
+            libJitsiStarted = true;
+        }
+
+        ConfigurationService configService
+            = LibJitsi.getConfigurationService();
+
+        configService.setProperty(HistoryService.CACHE_ENABLED_PROPERTY,
+            Boolean.toString("cache".equals(mode)));
+        configService.setProperty(
+            HistoryServiceImpl.APPEND_ONLY_ENABLED_PROPERTY,
+            Boolean.toString("appendOnly".equals(mode)));
+        configService.setProperty(
+            HistoryServiceImpl.WRITE_BEHIND_ENABLED_PROPERTY,
+            Boolean.toString("writeBehind".equals(mode)));
+        configService.setProperty(
+            HistoryServiceImpl.COMPACTION_ENABLED_PROPERTY,
+            Boolean.FALSE.toString());
+
+        return new HistoryServiceImpl(
+            configService, LibJitsi.getFileAccessService());
+    }
+
+    /**
+     * Returns the ID of a generated history.
+     *
+     * @param contact the index of the contact
+     * @return the ID of the history of the contact
+     */
+    static HistoryID getID(int contact)
+    {
+        return HistoryID.createFromRawID(
+            new String[] { ID_PREFIX, "contact" + contact });
+    }
+
+    /**
+     * Removes all the generated histories.
+     *
+     * @param service the history service
+     * @throws IOException if the histories cannot be removed
+     */
+    static void purge(HistoryService service)
+        throws IOException
+    {
+        service.purgeLocallyStoredHistory(
+            HistoryID.createFromRawID(new String[] { ID_PREFIX }));
+    }
+
+    /**
+     * Replaces the generated histories with <tt>contacts</tt> histories of
+     * <tt>records</tt> records each. The records are written by a service of
+     * their own in the write-behind mode, which writes every file a few
+     * times only, and which is stopped once all the records are on disk.
+     *
+     * @param contacts the number of histories
+     * @param records the number of records of every history
+     * @throws Exception if the histories cannot be written
+     */
+    static void generate(int contacts, int records)
+        throws Exception
+    {
+        HistoryServiceImpl service = createService("writeBehind");
+        Random random = new Random(contacts * 31L + records);
+
+        try
+        {
+            purge(service);
+
+            for (int c = 0; c < contacts; c++)
+            {
+                HistoryWriter writer
+                    = service.createHistory(getID(c), STRUCTURE).getWriter();
+
+                for (int r = 0; r < records; r++)
+                {
+                    writer.addRecord(
+                        createRecord(random, c, r), getTimestamp(r));
+                }
+            }
+        }
+        finally
+        {
+            service.stop();
+        }
+    }
+
+    /**
+     * Returns the history of a generated contact, loading the existing
+     * histories first if <tt>service</tt> has not loaded them yet.
+     *
+     * @param service the history service
+     * @param contact the index of the contact
+     * @return the history of the contact
+     */
+    static History getHistory(HistoryService service, int contact)
+    {
+        HistoryID id = getID(contact);
+
+        if (!service.isHistoryExisting(id))
+        {
+            Iterator<HistoryID> ids = service.getExistingIDs();
+            while (ids.hasNext())
+                ids.next();
+        }
+
+        return service.getHistory(id);
+    }
+
+    /**
+     * Returns the timestamp of a generated record.
+     *
+     * @param record the index of the record in its history
+     * @return the timestamp of the record
+     */
+    static Date getTimestamp(int record)
+    {
+        return new Date(START_TIME + record * RECORD_INTERVAL);
+    }
+
+    /**
+     * Creates the property values of a generated record.
+     *
+     * @param random the source of the content of the record
+     * @param contact the index of the contact
+     * @param record the index of the record in its history
+     * @return the values of the properties of {@link #STRUCTURE}
+     */
+    static String[] createRecord(Random random, int contact, int record)
+    {
+        return new String[]
+        {
+            random.nextBoolean() ? "in" : "out",
+            createMessage(random),
+            "text/plain",
+            "UTF-8",
+            contact + "-" + record + "-" + Long.toHexString(random.nextLong()),
+            null,
+            Long.toString(getTimestamp(record).getTime())
+        };
+    }
+
+    /**
+     * Creates the text of a message. Most messages have a few words, one in
+     * ten is a paragraph and one in a hundred a pasted text of a few
+     * kilobytes.
+     *
+     * @param random the source of the content of the message
+     * @return the text of the message
+     */
+    static String createMessage(Random random)
+    {
+        int p = random.nextInt(100);
+        int words;
+
+        if (p == 0)
+            words = 300 + random.nextInt(500);
+        else if (p < 10)
+            words = 30 + random.nextInt(70);
+        else
+            words = 1 + random.nextInt(12);
+
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < words; i++)
+        {
+            if (i > 0)
+                message.append(' ');
+            message.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+
+        return message.toString();
+    }
+
+    /**
+     * Reads all the records of a query result, so that lazily evaluated
+     * results are measured completely.
+     *
+     * @param result the result of a query
+     * @return the number of records of the result
+     */
+    static int consume(QueryResultSet<HistoryRecord> result)
+    {
+        int count = 0;
+
+        while (result.hasNext())
+        {
+            result.nextRecord();
+            count++;
+        }
+
+        return count;
+    }
+}
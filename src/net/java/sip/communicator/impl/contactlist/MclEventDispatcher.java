@@ -0,0 +1,626 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.service.contactlist.event.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Delivers the events of the meta contact list to its listeners.
+ * <p>
+ * By default the events are delivered on the thread making the change, which
+ * is usually a protocol thread. In asynchronous mode every listener has its
+ * own queue of events which is drained in order on a small pool of daemon
+ * threads, so a slow listener only delays its own events. An event
+ * making the last queued event of a listener redundant replaces it instead
+ * of being queued: a modification of a protocol contact, the update of the
+ * avatar of a meta contact and the reordering of a group. The inline
+ * listener, the storage manager, is always notified synchronously since it
+ * mirrors the list as it changes.
+ * <p>
+ * The dispatcher counts the queued, coalesced and delivered events and
+ * measures the time events spend in the queues.
+ */
+class MclEventDispatcher
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>MclEventDispatcher</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MclEventDispatcher.class);
+
+    /**
+     * The maximum number of threads delivering the events of all the
+     * listeners.
+     */
+    private static final int MAX_DISPATCH_THREADS = 2;
+
+    /**
+     * The maximum number of events of a listener delivered in a row before
+     * letting the events of the other listeners through.
+     */
+    private static final int MAX_DISPATCH_BATCH = 64;
+
+    /**
+     * Whether the events are delivered asynchronously.
+     */
+    private final boolean asynchronous;
+
+    /**
+     * The listener always notified on the thread firing the events.
+     */
+    private final MetaContactListListener inlineListener;
+
+    /**
+     * The pool delivering the queued events, created on first use.
+     */
+    private ThreadPoolExecutor executor = null;
+
+    /**
+     * The queues of the listeners notified asynchronously.
+     */
+    private final Map<MetaContactListListener, ListenerQueue> queues
+        = new IdentityHashMap<MetaContactListListener, ListenerQueue>();
+
+    /**
+     * The number of events currently queued.
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /**
+     * The highest number of events queued at the same time.
+     */
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    /**
+     * The number of events delivered asynchronously.
+     */
+    private final AtomicLong dispatchedCount = new AtomicLong();
+
+    /**
+     * The number of events which replaced a queued event.
+     */
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * The total time in nanoseconds the delivered events spent queued.
+     */
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    /**
+     * The longest time in nanoseconds a delivered event spent queued.
+     */
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Creates a dispatcher.
+     *
+     * @param asynchronous <tt>true</tt> to queue the events of the listeners
+     * and deliver them on the threads of the dispatcher, <tt>false</tt> to
+     * deliver them on the thread firing them
+     * @param inlineListener the listener always notified on the thread
+     * firing the events or <tt>null</tt>
+     */
+    MclEventDispatcher(boolean asynchronous,
+                       MetaContactListListener inlineListener)
+    {
+        this.asynchronous = asynchronous;
+        this.inlineListener = inlineListener;
+    }
+
+    /**
+     * Determines whether the events are delivered asynchronously.
+     *
+     * @return <tt>true</tt> if the events are delivered asynchronously
+     */
+    boolean isAsynchronous()
+    {
+        return asynchronous;
+    }
+
+    /**
+     * Delivers an event to listeners, or queues it for them in asynchronous
+     * mode.
+     *
+     * @param event a <tt>MetaContactEvent</tt>,
+     * <tt>MetaContactGroupEvent</tt>, <tt>ProtoContactEvent</tt> or
+     * <tt>MetaContactPropertyChangeEvent</tt>
+     * @param listeners the listeners to notify
+     */
+    void fireEvent(EventObject event, MetaContactListListener[] listeners)
+    {
+        for (MetaContactListListener listener : listeners)
+        {
+            if (!asynchronous || listener == inlineListener)
+                deliver(listener, event);
+            else
+            {
+                ListenerQueue queue;
+
+                synchronized (queues)
+                {
+                    queue = queues.get(listener);
+                }
+
+                // a null queue means the listener has just been removed
+                if (queue != null)
+                    queue.add(event);
+            }
+        }
+    }
+
+    /**
+     * Prepares the queue of a new listener in asynchronous mode.
+     *
+     * @param listener the added listener
+     */
+    void listenerAdded(MetaContactListListener listener)
+    {
+        if (!asynchronous || listener == inlineListener)
+            return;
+
+        synchronized (queues)
+        {
+            if (!queues.containsKey(listener))
+                queues.put(listener, new ListenerQueue(listener));
+        }
+    }
+
+    /**
+     * Discards the queued events of a listener which is no longer interested
+     * in them.
+     *
+     * @param listener the removed listener
+     */
+    void listenerRemoved(MetaContactListListener listener)
+    {
+        ListenerQueue queue;
+
+        synchronized (queues)
+        {
+            queue = queues.remove(listener);
+        }
+        if (queue != null)
+            queue.clear();
+    }
+
+    /**
+     * Stops the threads of the dispatcher once they have delivered the queued
+     * events and logs its counters.
+     */
+    void stop()
+    {
+        synchronized (queues)
+        {
+            if (executor != null)
+                executor.shutdown();
+        }
+
+        if (asynchronous && logger.isInfoEnabled())
+            logger.info("Meta contact list events: " + this);
+    }
+
+    /**
+     * Returns the number of events currently queued.
+     *
+     * @return the number of events currently queued
+     */
+    int getQueueDepth()
+    {
+        return queueDepth.get();
+    }
+
+    /**
+     * Returns the highest number of events queued at the same time.
+     *
+     * @return the highest number of events queued at the same time
+     */
+    int getMaxQueueDepth()
+    {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Returns the number of events delivered asynchronously.
+     *
+     * @return the number of events delivered asynchronously
+     */
+    long getDispatchedCount()
+    {
+        return dispatchedCount.get();
+    }
+
+    /**
+     * Returns the number of events which replaced a queued event instead of
+     * being queued.
+     *
+     * @return the number of coalesced events
+     */
+    long getCoalescedCount()
+    {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Returns the average time the delivered events spent queued.
+     *
+     * @return the average dispatch latency in nanoseconds
+     */
+    long getAverageLatency()
+    {
+        long count = dispatchedCount.get();
+
+        return (count == 0) ? 0 : totalLatency.get() / count;
+    }
+
+    /**
+     * Returns the longest time a delivered event spent queued.
+     *
+     * @return the maximum dispatch latency in nanoseconds
+     */
+    long getMaxLatency()
+    {
+        return maxLatency.get();
+    }
+
+    /**
+     * Returns a summary of the counters of this dispatcher.
+     *
+     * @return a summary of the counters of this dispatcher
+     */
+    @Override
+    public String toString()
+    {
+        return "queued=" + getQueueDepth()
+            + " maxQueued=" + getMaxQueueDepth()
+            + " dispatched=" + getDispatchedCount()
+            + " coalesced=" + getCoalescedCount()
+            + " avgLatencyMs=" + getAverageLatency() / 1000000.0
+            + " maxLatencyMs=" + getMaxLatency() / 1000000.0;
+    }
+
+    /**
+     * Runs a task on the pool of the dispatcher, creating it if necessary.
+     *
+     * @param task the task to run
+     */
+    private void execute(Runnable task)
+    {
+        ThreadPoolExecutor executor;
+
+        synchronized (queues)
+        {
+            if (this.executor == null)
+            {
+                this.executor = new ThreadPoolExecutor(
+                    MAX_DISPATCH_THREADS, MAX_DISPATCH_THREADS,
+                    30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        private int count = 0;
+
+                        public synchronized Thread newThread(Runnable r)
+                        {
+                            Thread t = new Thread(r,
+                                "MetaContactListEventDispatcher-" + (++count));
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                this.executor.allowCoreThreadTimeOut(true);
+            }
+            executor = this.executor;
+        }
+
+        try
+        {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // stopped, run the remaining events here
+            task.run();
+        }
+    }
+
+    /**
+     * Determines whether <tt>event</tt> makes the queued event
+     * <tt>queued</tt> redundant, the listener only needing the latest of
+     * them.
+     *
+     * @param queued the last queued event of a listener
+     * @param event the new event for the listener
+     * @return <tt>true</tt> if <tt>event</tt> can replace <tt>queued</tt>
+     */
+    private static boolean supersedes(EventObject queued, EventObject event)
+    {
+        if (queued.getClass() != event.getClass()
+            || queued.getSource() != event.getSource())
+            return false;
+
+        if (event instanceof ProtoContactEvent)
+        {
+            ProtoContactEvent queuedEvt = (ProtoContactEvent) queued;
+            ProtoContactEvent evt = (ProtoContactEvent) event;
+
+            return ProtoContactEvent.PROTO_CONTACT_MODIFIED.equals(
+                        evt.getPropertyName())
+                && evt.getPropertyName().equals(queuedEvt.getPropertyName())
+                && evt.getOldParent() == queuedEvt.getOldParent()
+                && evt.getNewParent() == queuedEvt.getNewParent();
+        }
+        if (event instanceof MetaContactAvatarUpdateEvent)
+            return true;
+        if (event instanceof MetaContactGroupEvent)
+        {
+            return ((MetaContactGroupEvent) event).getEventID()
+                    == MetaContactGroupEvent.CHILD_CONTACTS_REORDERED
+                && ((MetaContactGroupEvent) queued).getEventID()
+                    == MetaContactGroupEvent.CHILD_CONTACTS_REORDERED;
+        }
+        return false;
+    }
+
+    /**
+     * Calls the method of <tt>listener</tt> corresponding to
+     * <tt>event</tt>.
+     *
+     * @param listener the listener to notify
+     * @param event the event to deliver
+     */
+    private static void deliver(MetaContactListListener listener,
+                                EventObject event)
+    {
+        if (event instanceof MetaContactEvent)
+        {
+            MetaContactEvent evt = (MetaContactEvent) event;
+
+            switch (evt.getEventID())
+            {
+                case MetaContactEvent.META_CONTACT_ADDED:
+                    listener.metaContactAdded(evt);
+                    break;
+                case MetaContactEvent.META_CONTACT_REMOVED:
+                    listener.metaContactRemoved(evt);
+                    break;
+                default:
+                    logger.error("Unknown event type " + evt.getEventID());
+            }
+        }
+        else if (event instanceof MetaContactGroupEvent)
+        {
+            MetaContactGroupEvent evt = (MetaContactGroupEvent) event;
+
+            switch (evt.getEventID())
+            {
+                case MetaContactGroupEvent.META_CONTACT_GROUP_ADDED:
+                    listener.metaContactGroupAdded(evt);
+                    break;
+                case MetaContactGroupEvent.META_CONTACT_GROUP_REMOVED:
+                    listener.metaContactGroupRemoved(evt);
+                    break;
+                case MetaContactGroupEvent.CHILD_CONTACTS_REORDERED:
+                    listener.childContactsReordered(evt);
+                    break;
+                case MetaContactGroupEvent
+                    .META_CONTACT_GROUP_RENAMED:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_RENAMED_IN_META_GROUP:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_REMOVED_FROM_META_GROUP:
+                case MetaContactGroupEvent
+                    .CONTACT_GROUP_ADDED_TO_META_GROUP:
+                case MetaContactGroupEvent
+                    .CONTACT_LIST_LOADED:
+                case MetaContactGroupEvent
+                    .CONTACTS_IMPORTED:
+                    listener.metaContactGroupModified(evt);
+                    break;
+                default:
+                    logger.error("Unknown event type (" + evt.getEventID()
+                                 + ") for event: " + evt);
+            }
+        }
+        else if (event instanceof ProtoContactEvent)
+        {
+            ProtoContactEvent evt = (ProtoContactEvent) event;
+            String eventName = evt.getPropertyName();
+
+            if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_ADDED))
+            {
+                listener.protoContactAdded(evt);
+            }
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MOVED))
+            {
+                listener.protoContactMoved(evt);
+            }
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_REMOVED))
+            {
+                listener.protoContactRemoved(evt);
+            }
+            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MODIFIED))
+            {
+                listener.protoContactModified(evt);
+            }
+        }
+        else if (event instanceof MetaContactMovedEvent)
+        {
+            listener.metaContactMoved( (MetaContactMovedEvent) event);
+        }
+        else if (event instanceof MetaContactRenamedEvent)
+        {
+            listener.metaContactRenamed( (MetaContactRenamedEvent) event);
+        }
+        else if (event instanceof MetaContactModifiedEvent)
+        {
+            listener.metaContactModified( (MetaContactModifiedEvent) event);
+        }
+        else if (event instanceof MetaContactAvatarUpdateEvent)
+        {
+            listener.metaContactAvatarUpdated(
+                (MetaContactAvatarUpdateEvent) event);
+        }
+    }
+
+    /**
+     * An event waiting in the queue of a listener.
+     */
+    private static class QueuedEvent
+    {
+        /**
+         * The event.
+         */
+        EventObject event;
+
+        /**
+         * The time in nanoseconds the event, or the event it replaced, was
+         * queued.
+         */
+        final long queueTime;
+
+        /**
+         * Creates a queued event.
+         *
+         * @param event the event
+         */
+        QueuedEvent(EventObject event)
+        {
+            this.event = event;
+            this.queueTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * The events queued for a listener, delivered in order by a single task
+     * of the pool at a time.
+     */
+    private class ListenerQueue
+        implements Runnable
+    {
+        /**
+         * The listener.
+         */
+        private final MetaContactListListener listener;
+
+        /**
+         * The queued events.
+         */
+        private final LinkedList<QueuedEvent> events
+            = new LinkedList<QueuedEvent>();
+
+        /**
+         * Whether a task delivering the events is running or scheduled.
+         */
+        private boolean scheduled = false;
+
+        /**
+         * Creates the queue of a listener.
+         *
+         * @param listener the listener
+         */
+        ListenerQueue(MetaContactListListener listener)
+        {
+            this.listener = listener;
+        }
+
+        /**
+         * Queues an event, unless it replaces the last queued event, and
+         * schedules its delivery.
+         *
+         * @param event the event
+         */
+        void add(EventObject event)
+        {
+            boolean schedule;
+
+            synchronized (this)
+            {
+                QueuedEvent last = events.peekLast();
+
+                if (last != null && supersedes(last.event, event))
+                {
+                    last.event = event;
+                    coalescedCount.incrementAndGet();
+                    return;
+                }
+
+                events.add(new QueuedEvent(event));
+
+                int depth = queueDepth.incrementAndGet();
+                int maxDepth;
+                while (depth > (maxDepth = maxQueueDepth.get())
+                        && !maxQueueDepth.compareAndSet(maxDepth, depth));
+
+                schedule = !scheduled;
+                scheduled = true;
+            }
+
+            if (schedule)
+                execute(this);
+        }
+
+        /**
+         * Discards the queued events.
+         */
+        synchronized void clear()
+        {
+            queueDepth.addAndGet(-events.size());
+            events.clear();
+        }
+
+        /**
+         * Delivers the queued events, a batch at a time.
+         */
+        public void run()
+        {
+            for (int i = 0; i < MAX_DISPATCH_BATCH; i++)
+            {
+                QueuedEvent queued;
+
+                synchronized (this)
+                {
+                    queued = events.poll();
+                    if (queued == null)
+                    {
+                        scheduled = false;
+                        return;
+                    }
+                    queueDepth.decrementAndGet();
+                }
+
+                long latency = System.nanoTime() - queued.queueTime;
+                long max;
+
+                totalLatency.addAndGet(latency);
+                while (latency > (max = maxLatency.get())
+                        && !maxLatency.compareAndSet(max, latency));
+
+                try
+                {
+                    deliver(listener, queued.event);
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    logger.error("Listener " + listener
+                        + " failed to handle " + queued.event, t);
+                }
+                dispatchedCount.incrementAndGet();
+            }
+
+            // let the other listeners through
+            execute(this);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Indexes the meta contacts and meta contact groups of the meta contact list
+ * so that finding the meta contact of a protocol contact, which happens for
+ * every message and presence event, does not walk the whole list.
+ * <p>
+ * Only the groups and contacts reachable from the root group are indexed.
+ * <tt>MetaContactGroupImpl</tt> and <tt>MetaContactImpl</tt> report their
+ * changes here and a change made to a group or meta contact which is not
+ * part of the list is ignored, its content being indexed once it is added
+ * to the list. The indexed entries are checked against the list when they
+ * are found, so that an entry left by a concurrent change is never
+ * returned.
+ * <p>
+ * The index only finds protocol contacts by their exact address. Some
+ * protocol contacts are also equal to other forms of their address, e.g.
+ * without the <tt>sip:</tt> prefix or in another case, so the caller has to
+ * search the list if a protocol contact is not found here.
+ */
+class MclIndex
+{
+    /**
+     * The meta contacts of the list by meta uid.
+     */
+    private final ConcurrentMap<String, MetaContactImpl> metaContacts
+        = new ConcurrentHashMap<String, MetaContactImpl>();
+
+    /**
+     * The meta contact groups of the list by meta uid.
+     */
+    private final ConcurrentMap<String, MetaContactGroupImpl> groups
+        = new ConcurrentHashMap<String, MetaContactGroupImpl>();
+
+    /**
+     * The meta contacts of the list by the protocol contacts they contain.
+     */
+    private final ConcurrentMap<Contact, MetaContactImpl> contacts
+        = new ConcurrentHashMap<Contact, MetaContactImpl>();
+
+    /**
+     * The meta contacts of the list by the account id and the address of the
+     * protocol contacts they contain. Several meta contacts may contain a
+     * protocol contact with the same address. The sets are only modified
+     * while holding the lock of the map.
+     */
+    private final ConcurrentMap<String, Set<MetaContactImpl>> addresses
+        = new ConcurrentHashMap<String, Set<MetaContactImpl>>();
+
+    /**
+     * The meta contact groups of the list by the protocol groups they
+     * encapsulate.
+     */
+    private final ConcurrentMap<ContactGroup, MetaContactGroupImpl> protoGroups
+        = new ConcurrentHashMap<ContactGroup, MetaContactGroupImpl>();
+
+    /**
+     * Indexes the root group of the list.
+     *
+     * @param root the root group of the meta contact list
+     */
+    void setRoot(MetaContactGroupImpl root)
+    {
+        addGroup(root);
+    }
+
+    /**
+     * Returns the meta contact with the specified meta uid.
+     *
+     * @param metaUID the meta uid of the meta contact
+     * @return the meta contact or <tt>null</tt> if the list does not contain
+     * it
+     */
+    MetaContact findMetaContactByMetaUID(String metaUID)
+    {
+        return (metaUID == null) ? null : metaContacts.get(metaUID);
+    }
+
+    /**
+     * Returns the meta contact group with the specified meta uid.
+     *
+     * @param metaUID the meta uid of the meta contact group
+     * @return the meta contact group or <tt>null</tt> if the list does not
+     * contain it
+     */
+    MetaContactGroup findMetaContactGroupByMetaUID(String metaUID)
+    {
+        return (metaUID == null) ? null : groups.get(metaUID);
+    }
+
+    /**
+     * Returns the meta contact containing a protocol contact with the
+     * address and the provider of <tt>contact</tt>. The caller has to search
+     * the list if the meta contact is not found here.
+     *
+     * @param contact the protocol contact
+     * @return the meta contact or <tt>null</tt> if it is not found
+     */
+    MetaContact findMetaContactByContact(Contact contact)
+    {
+        String address = contact.getAddress();
+        ProtocolProviderService provider = contact.getProtocolProvider();
+        MetaContactImpl metaContact = contacts.get(contact);
+
+        if (metaContact != null
+            && metaContact.getContact(address, provider) != null
+            && isIndexed(metaContact))
+            return metaContact;
+
+        // another instance of the contact, which the contacts of some
+        // protocols are not equal to
+        Set<MetaContactImpl> addressMetaContacts
+            = addresses.get(
+                getAddressKey(address,
+                    provider.getAccountID().getAccountUniqueID()));
+
+        if (addressMetaContacts != null)
+        {
+            for (MetaContactImpl addressMetaContact : addressMetaContacts)
+            {
+                if (addressMetaContact.getContact(address, provider) != null
+                    && isIndexed(addressMetaContact))
+                    return addressMetaContact;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the meta contact containing a protocol contact with the
+     * specified address of the specified account. The caller has to search
+     * the list if the meta contact is not found here.
+     *
+     * @param address the address of the protocol contact
+     * @param accountID the unique id of the account of the protocol contact
+     * @return the meta contact or <tt>null</tt> if it is not found
+     */
+    MetaContact findMetaContactByContact(String address, String accountID)
+    {
+        Set<MetaContactImpl> addressMetaContacts
+            = addresses.get(getAddressKey(address, accountID));
+
+        if (addressMetaContacts != null)
+        {
+            for (MetaContactImpl metaContact : addressMetaContacts)
+            {
+                if (metaContact.getContact(address, accountID) != null
+                    && isIndexed(metaContact))
+                    return metaContact;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the meta contact group encapsulating the <tt>protoGroup</tt>
+     * instance. The caller has to search the list if the group is not found
+     * here, in case an equal instance is encapsulated or a protocol group is
+     * renamed and changes its hash code.
+     *
+     * @param protoGroup the protocol group
+     * @return the meta contact group or <tt>null</tt> if it is not found
+     */
+    MetaContactGroupImpl findMetaContactGroupByContactGroup(
+        ContactGroup protoGroup)
+    {
+        MetaContactGroupImpl group = protoGroups.get(protoGroup);
+
+        if (group != null
+            && group.containsProtoGroup(protoGroup)
+            && isIndexed(group))
+            return group;
+        return null;
+    }
+
+    /**
+     * Indexes a group added to <tt>parent</tt> and its content if
+     * <tt>parent</tt> is part of the list.
+     *
+     * @param parent the group <tt>group</tt> is added to
+     * @param group the added group
+     */
+    void groupAdded(MetaContactGroupImpl parent, MetaContactGroupImpl group)
+    {
+        if (isIndexed(parent))
+            addGroup(group);
+    }
+
+    /**
+     * Removes a group and its content from the index.
+     *
+     * @param group the removed group
+     */
+    void groupRemoved(MetaContactGroupImpl group)
+    {
+        if (!groups.remove(group.getMetaUID(), group))
+            return;
+
+        Iterator<ContactGroup> protoGroupsIter = group.getContactGroups();
+        while (protoGroupsIter.hasNext())
+            protoGroups.remove(protoGroupsIter.next(), group);
+
+        Iterator<MetaContact> metaContactsIter = group.getChildContacts();
+        while (metaContactsIter.hasNext())
+            metaContactRemoved((MetaContactImpl) metaContactsIter.next());
+
+        Iterator<MetaContactGroup> subgroupsIter = group.getSubgroups();
+        while (subgroupsIter.hasNext())
+            groupRemoved((MetaContactGroupImpl) subgroupsIter.next());
+    }
+
+    /**
+     * Indexes a protocol group now encapsulated by <tt>group</tt> if
+     * <tt>group</tt> is part of the list.
+     *
+     * @param group the meta contact group
+     * @param protoGroup the added protocol group
+     */
+    void protoGroupAdded(MetaContactGroupImpl group, ContactGroup protoGroup)
+    {
+        if (isIndexed(group))
+            protoGroups.put(protoGroup, group);
+    }
+
+    /**
+     * Removes a protocol group no longer encapsulated by <tt>group</tt> from
+     * the index.
+     *
+     * @param group the meta contact group
+     * @param protoGroup the removed protocol group
+     */
+    void protoGroupRemoved(MetaContactGroupImpl group, ContactGroup protoGroup)
+    {
+        protoGroups.remove(protoGroup, group);
+    }
+
+    /**
+     * Indexes a meta contact added to <tt>parent</tt> and its protocol
+     * contacts if <tt>parent</tt> is part of the list.
+     *
+     * @param parent the group <tt>metaContact</tt> is added to
+     * @param metaContact the added meta contact
+     */
+    void metaContactAdded(MetaContactGroupImpl parent,
+                          MetaContactImpl metaContact)
+    {
+        if (isIndexed(parent))
+            addMetaContact(metaContact);
+    }
+
+    /**
+     * Removes a meta contact and its protocol contacts from the index.
+     *
+     * @param metaContact the removed meta contact
+     */
+    void metaContactRemoved(MetaContactImpl metaContact)
+    {
+        if (!metaContacts.remove(metaContact.getMetaUID(), metaContact))
+            return;
+
+        Iterator<Contact> contactsIter = metaContact.getContacts();
+        while (contactsIter.hasNext())
+            protoContactRemoved(metaContact, contactsIter.next());
+    }
+
+    /**
+     * Indexes a protocol contact added to <tt>metaContact</tt> if
+     * <tt>metaContact</tt> is part of the list.
+     *
+     * @param metaContact the meta contact
+     * @param contact the added protocol contact
+     */
+    void protoContactAdded(MetaContactImpl metaContact, Contact contact)
+    {
+        if (isIndexed(metaContact))
+            addProtoContact(metaContact, contact);
+    }
+
+    /**
+     * Removes a protocol contact no longer contained in
+     * <tt>metaContact</tt> from the index.
+     *
+     * @param metaContact the meta contact
+     * @param contact the removed protocol contact
+     */
+    void protoContactRemoved(MetaContactImpl metaContact, Contact contact)
+    {
+        contacts.remove(contact, metaContact);
+
+        String key = getAddressKey(contact);
+
+        synchronized (addresses)
+        {
+            Set<MetaContactImpl> addressMetaContacts = addresses.get(key);
+
+            if (addressMetaContacts != null
+                && addressMetaContacts.remove(metaContact)
+                && addressMetaContacts.isEmpty())
+                addresses.remove(key);
+        }
+    }
+
+    /**
+     * Indexes a group and its content.
+     *
+     * @param group the group
+     */
+    private void addGroup(MetaContactGroupImpl group)
+    {
+        groups.put(group.getMetaUID(), group);
+
+        Iterator<ContactGroup> protoGroupsIter = group.getContactGroups();
+        while (protoGroupsIter.hasNext())
+            protoGroups.put(protoGroupsIter.next(), group);
+
+        Iterator<MetaContact> metaContactsIter = group.getChildContacts();
+        while (metaContactsIter.hasNext())
+            addMetaContact((MetaContactImpl) metaContactsIter.next());
+
+        Iterator<MetaContactGroup> subgroupsIter = group.getSubgroups();
+        while (subgroupsIter.hasNext())
+            addGroup((MetaContactGroupImpl) subgroupsIter.next());
+    }
+
+    /**
+     * Indexes a meta contact and its protocol contacts.
+     *
+     * @param metaContact the meta contact
+     */
+    private void addMetaContact(MetaContactImpl metaContact)
+    {
+        metaContacts.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contactsIter = metaContact.getContacts();
+        while (contactsIter.hasNext())
+            addProtoContact(metaContact, contactsIter.next());
+    }
+
+    /**
+     * Indexes a protocol contact of a meta contact.
+     *
+     * @param metaContact the meta contact
+     * @param contact the protocol contact
+     */
+    private void addProtoContact(MetaContactImpl metaContact, Contact contact)
+    {
+        contacts.put(contact, metaContact);
+
+        String key = getAddressKey(contact);
+
+        synchronized (addresses)
+        {
+            Set<MetaContactImpl> addressMetaContacts = addresses.get(key);
+
+            if (addressMetaContacts == null)
+            {
+                addressMetaContacts
+                    = new CopyOnWriteArraySet<MetaContactImpl>();
+                addresses.put(key, addressMetaContacts);
+            }
+            addressMetaContacts.add(metaContact);
+        }
+    }
+
+    /**
+     * Determines whether <tt>group</tt> is part of the list.
+     *
+     * @param group the meta contact group
+     * @return <tt>true</tt> if <tt>group</tt> is indexed
+     */
+    private boolean isIndexed(MetaContactGroupImpl group)
+    {
+        return groups.get(group.getMetaUID()) == group;
+    }
+
+    /**
+     * Determines whether <tt>metaContact</tt> is part of the list.
+     *
+     * @param metaContact the meta contact
+     * @return <tt>true</tt> if <tt>metaContact</tt> is indexed
+     */
+    private boolean isIndexed(MetaContactImpl metaContact)
+    {
+        return metaContacts.get(metaContact.getMetaUID()) == metaContact;
+    }
+
+    /**
+     * Returns the key of a protocol contact in {@link #addresses}.
+     *
+     * @param contact the protocol contact
+     * @return the key of <tt>contact</tt>
+     */
+    private static String getAddressKey(Contact contact)
+    {
+        return getAddressKey(contact.getAddress(),
+            contact.getProtocolProvider().getAccountID()
+                .getAccountUniqueID());
+    }
+
+    /**
+     * Returns the key of a protocol contact in {@link #addresses}.
+     *
+     * @param address the address of the protocol contact
+     * @param accountID the unique id of the account of the protocol contact
+     * @return the key of the protocol contact
+     */
+    private static String getAddressKey(String address, String accountID)
+    {
+        return accountID + '\n' + address;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * An append-only log of the changes made to the meta contact list since the
+ * contact list file was last written. Instead of rewriting the whole file on
+ * every change, the <tt>MclStorageManager</tt> appends the new state of the
+ * changed meta contact or group here and only periodically checkpoints the
+ * document into the contact list file, after which the journal is
+ * discarded.
+ * <p>
+ * Every entry is stored as a {@link JournalFile} frame. Entries either put
+ * an element, replacing the element with the same uid, or remove an element,
+ * so replaying an entry whose change is already part of the file does not
+ * change it. Reading stops at the first truncated or corrupted entry.
+ */
+class MclJournal
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(MclJournal.class);
+
+    /**
+     * The extension appended to the name of the contact list file in order
+     * to obtain the name of its journal.
+     */
+    static final String JOURNAL_EXTENSION = ".log";
+
+    /**
+     * The operation of an entry putting an element into the document.
+     */
+    static final byte PUT = 1;
+
+    /**
+     * The operation of an entry removing an element from the document.
+     */
+    static final byte REMOVE = 2;
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * The number of entries appended since the last checkpoint.
+     */
+    private int entryCount = 0;
+
+    /**
+     * Creates the journal of the contact list file <tt>contactlistFile</tt>.
+     * The content of the journal is kept so that it can be read and
+     * replayed.
+     *
+     * @param contactlistFile the contact list file
+     */
+    MclJournal(File contactlistFile)
+    {
+        this.file = new File(contactlistFile.getParentFile(),
+            contactlistFile.getName() + JOURNAL_EXTENSION);
+    }
+
+    /**
+     * Appends entries to the journal with a single write.
+     *
+     * @param entries the entries to append
+     * @throws IOException if writing to the journal fails
+     */
+    synchronized void append(List<Entry> entries)
+        throws IOException
+    {
+        List<byte[]> payloads = new ArrayList<byte[]>(entries.size());
+
+        for (Entry entry : entries)
+            payloads.add(entry.toBytes());
+
+        JournalFile.append(file, payloads);
+
+        entryCount += entries.size();
+    }
+
+    /**
+     * Returns the number of entries appended since the last checkpoint.
+     *
+     * @return the number of entries appended since the last checkpoint
+     */
+    synchronized int getEntryCount()
+    {
+        return entryCount;
+    }
+
+    /**
+     * Discards the content of the journal. Called once the document has been
+     * checkpointed to the contact list file.
+     */
+    synchronized void clear()
+    {
+        if (file.exists() && !file.delete())
+            logger.warn("Cannot remove contact list journal " + file);
+
+        entryCount = 0;
+    }
+
+    /**
+     * Reads the valid entries of the journal.
+     *
+     * @return the entries of the journal in the order they were appended
+     */
+    synchronized List<Entry> read()
+    {
+        List<Entry> entries = new ArrayList<Entry>();
+
+        for (byte[] payload : JournalFile.read(file))
+        {
+            try
+            {
+                entries.add(Entry.fromBytes(payload));
+            }
+            catch (IOException e)
+            {
+                logger.warn("Stopped reading contact list journal " + file
+                    + " after " + entries.size() + " entries: "
+                    + e.getMessage());
+                break;
+            }
+        }
+
+        entryCount = entries.size();
+        return entries;
+    }
+
+    /**
+     * A change of the meta contact list.
+     */
+    static class Entry
+    {
+        /**
+         * The operation of this entry, {@link #PUT} or {@link #REMOVE}.
+         */
+        final byte operation;
+
+        /**
+         * The name of the changed element.
+         */
+        final String nodeName;
+
+        /**
+         * The uid of the changed element.
+         */
+        final String uid;
+
+        /**
+         * The uid of the group the put element belongs to or <tt>null</tt>.
+         */
+        final String parentUID;
+
+        /**
+         * The XML of the put element or <tt>null</tt>.
+         */
+        final String xml;
+
+        /**
+         * Creates an entry.
+         *
+         * @param operation {@link #PUT} or {@link #REMOVE}
+         * @param nodeName the name of the changed element
+         * @param uid the uid of the changed element
+         * @param parentUID the uid of the group the put element belongs to
+         * or <tt>null</tt> for a removal
+         * @param xml the XML of the put element or <tt>null</tt> for a
+         * removal
+         */
+        Entry(byte operation,
+              String nodeName,
+              String uid,
+              String parentUID,
+              String xml)
+        {
+            this.operation = operation;
+            this.nodeName = nodeName;
+            this.uid = uid;
+            this.parentUID = parentUID;
+            this.xml = xml;
+        }
+
+        /**
+         * Serializes the payload of this entry.
+         *
+         * @return the payload of this entry
+         * @throws IOException if serializing fails
+         */
+        byte[] toBytes()
+            throws IOException
+        {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream payloadOut = new DataOutputStream(payload);
+
+            payloadOut.writeByte(operation);
+            JournalFile.writeString(payloadOut, nodeName);
+            JournalFile.writeString(payloadOut, uid);
+            if (operation == PUT)
+            {
+                JournalFile.writeString(payloadOut, parentUID);
+                JournalFile.writeString(payloadOut, xml);
+            }
+            payloadOut.flush();
+
+            return payload.toByteArray();
+        }
+
+        /**
+         * Reads an entry serialized by {@link #toBytes()}.
+         *
+         * @param bytes the payload of the entry
+         * @return the entry
+         * @throws IOException if the payload is invalid
+         */
+        static Entry fromBytes(byte[] bytes)
+            throws IOException
+        {
+            DataInputStream payload
+                = new DataInputStream(new ByteArrayInputStream(bytes));
+
+            byte operation = payload.readByte();
+            String nodeName = JournalFile.readString(payload);
+            String uid = JournalFile.readString(payload);
+
+            if (operation == PUT)
+            {
+                String parentUID = JournalFile.readString(payload);
+
+                return new Entry(operation, nodeName, uid, parentUID,
+                    JournalFile.readString(payload));
+            }
+            else if (operation == REMOVE)
+                return new Entry(operation, nodeName, uid, null, null);
+            else
+                throw new IOException("Unknown operation " + operation);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.concurrent.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Indexes the group, meta contact and proto contact elements of the contact
+ * list document of the <tt>MclStorageManager</tt>, so that handling an event
+ * of the meta contact list does not walk the whole document.
+ * <p>
+ * Groups and meta contacts are indexed by their uid and proto contacts by
+ * their account id and address. The storage manager adds every element it
+ * puts into the document and removes every element it takes out of it. An
+ * element moved within the document stays indexed. The index is only
+ * modified while holding the lock of the document, it can be read at any
+ * time.
+ */
+public class MclNodeIndex
+{
+    /**
+     * The meta contact elements by the uid of their meta contact.
+     */
+    private final ConcurrentMap<String, Element> metaContactNodes
+        = new ConcurrentHashMap<String, Element>();
+
+    /**
+     * The group elements by the uid of their meta contact group.
+     */
+    private final ConcurrentMap<String, Element> groupNodes
+        = new ConcurrentHashMap<String, Element>();
+
+    /**
+     * The proto contact elements by the account id and the address of their
+     * contact.
+     */
+    private final ConcurrentMap<String, Element> protoContactNodes
+        = new ConcurrentHashMap<String, Element>();
+
+    /**
+     * Returns the element of the meta contact with the specified uid.
+     *
+     * @param metaContactUID the uid of the meta contact
+     * @return the element of the meta contact or <tt>null</tt> if it is not
+     * indexed
+     */
+    public Element findMetaContactNode(String metaContactUID)
+    {
+        return (metaContactUID == null)
+            ? null
+            : metaContactNodes.get(metaContactUID);
+    }
+
+    /**
+     * Returns the element of the meta contact group with the specified uid.
+     *
+     * @param metaContactGroupUID the uid of the meta contact group
+     * @return the element of the group or <tt>null</tt> if it is not indexed
+     */
+    public Element findGroupNode(String metaContactGroupUID)
+    {
+        return (metaContactGroupUID == null)
+            ? null
+            : groupNodes.get(metaContactGroupUID);
+    }
+
+    /**
+     * Returns the element of the proto contact with the specified address
+     * stored for the specified account. The same address may be stored in
+     * several meta contacts, only the last indexed element is returned.
+     *
+     * @param accountID the unique id of the account of the proto contact
+     * @param address the address of the proto contact
+     * @return the element of the proto contact or <tt>null</tt> if it is not
+     * indexed
+     */
+    public Element findProtoContactNode(String accountID, String address)
+    {
+        return protoContactNodes.get(getProtoContactKey(accountID, address));
+    }
+
+    /**
+     * Indexes the group, meta contact and proto contact elements of the whole
+     * contact list document, discarding the previous index.
+     *
+     * @param document the contact list document
+     */
+    public void rebuild(Document document)
+    {
+        metaContactNodes.clear();
+        groupNodes.clear();
+        protoContactNodes.clear();
+
+        Element root = document.getDocumentElement();
+
+        if (root != null)
+            add(root);
+    }
+
+    /**
+     * Adds <tt>element</tt> and the group, meta contact and proto contact
+     * elements it contains to the index.
+     *
+     * @param element an element just added to the contact list document
+     */
+    public void add(Element element)
+    {
+        String nodeName = element.getNodeName();
+
+        if (MclStorageManager.GROUP_NODE_NAME.equals(nodeName))
+        {
+            groupNodes.put(
+                element.getAttribute(MclStorageManager.UID_ATTR_NAME),
+                element);
+        }
+        else if (MclStorageManager.META_CONTACT_NODE_NAME.equals(nodeName))
+        {
+            metaContactNodes.put(
+                element.getAttribute(MclStorageManager.UID_ATTR_NAME),
+                element);
+        }
+        else if (MclStorageManager.PROTO_CONTACT_NODE_NAME.equals(nodeName))
+        {
+            protoContactNodes.put(getProtoContactKey(element), element);
+            return;
+        }
+
+        for (Node child = element.getFirstChild();
+                child != null;
+                child = child.getNextSibling())
+        {
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                add((Element) child);
+        }
+    }
+
+    /**
+     * Removes <tt>element</tt> and the group, meta contact and proto contact
+     * elements it contains from the index, unless they have been replaced by
+     * other elements meanwhile.
+     *
+     * @param element an element just removed from the contact list document
+     */
+    public void remove(Element element)
+    {
+        String nodeName = element.getNodeName();
+
+        if (MclStorageManager.GROUP_NODE_NAME.equals(nodeName))
+        {
+            groupNodes.remove(
+                element.getAttribute(MclStorageManager.UID_ATTR_NAME),
+                element);
+        }
+        else if (MclStorageManager.META_CONTACT_NODE_NAME.equals(nodeName))
+        {
+            metaContactNodes.remove(
+                element.getAttribute(MclStorageManager.UID_ATTR_NAME),
+                element);
+        }
+        else if (MclStorageManager.PROTO_CONTACT_NODE_NAME.equals(nodeName))
+        {
+            protoContactNodes.remove(getProtoContactKey(element), element);
+            return;
+        }
+
+        for (Node child = element.getFirstChild();
+                child != null;
+                child = child.getNextSibling())
+        {
+            if (child.getNodeType() == Node.ELEMENT_NODE)
+                remove((Element) child);
+        }
+    }
+
+    /**
+     * Returns the key of a proto contact element in
+     * {@link #protoContactNodes}.
+     *
+     * @param element a proto contact element
+     * @return the key of the proto contact element
+     */
+    private static String getProtoContactKey(Element element)
+    {
+        return getProtoContactKey(
+            element.getAttribute(MclStorageManager.ACCOUNT_ID_ATTR_NAME),
+            element.getAttribute(
+                MclStorageManager.PROTO_CONTACT_ADDRESS_ATTR_NAME));
+    }
+
+    /**
+     * Returns the key of a proto contact element in
+     * {@link #protoContactNodes}.
+     *
+     * @param accountID the unique id of the account of the proto contact
+     * @param address the address of the proto contact
+     * @return the key of the proto contact element
+     */
+    private static String getProtoContactKey(String accountID, String address)
+    {
+        return accountID + '\n' + address;
+    }
+}
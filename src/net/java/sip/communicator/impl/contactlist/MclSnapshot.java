@@ -0,0 +1,401 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import javax.xml.parsers.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * A binary copy of the contact list document written at clean shutdown, so
+ * that the next start reads it with a single sequential read instead of
+ * parsing the contact list file.
+ * <p>
+ * The snapshot records the length and the modification time of the contact
+ * list file it was taken from and is only used if the file has not changed
+ * since. It is deleted once read, since the contact list file is written
+ * again while the application runs, so that only the file is trusted after a
+ * crash. A missing, stale or corrupted snapshot makes the contact list file
+ * parsed as before.
+ * <p>
+ * The document is stored as a tree of elements with their attributes and
+ * text, each element and attribute name being written once and then
+ * referenced by its index. The whitespace between elements is not stored.
+ */
+class MclSnapshot
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(MclSnapshot.class);
+
+    /**
+     * The extension appended to the name of the contact list file in order
+     * to obtain the name of its snapshot.
+     */
+    static final String SNAPSHOT_EXTENSION = ".bin";
+
+    /**
+     * The first bytes of a snapshot, followed by its version.
+     */
+    private static final int MAGIC = 0x4D434C53;
+
+    /**
+     * The version of the format of the snapshots.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The type of an element node.
+     */
+    private static final byte ELEMENT = 1;
+
+    /**
+     * The type of a text node.
+     */
+    private static final byte TEXT = 2;
+
+    /**
+     * The type of a CDATA node.
+     */
+    private static final byte CDATA = 3;
+
+    /**
+     * The contact list file.
+     */
+    private final File contactlistFile;
+
+    /**
+     * The snapshot file.
+     */
+    private final File file;
+
+    /**
+     * Creates the snapshot of the contact list file
+     * <tt>contactlistFile</tt>.
+     *
+     * @param contactlistFile the contact list file
+     */
+    MclSnapshot(File contactlistFile)
+    {
+        this.contactlistFile = contactlistFile;
+        this.file = new File(contactlistFile.getParentFile(),
+            contactlistFile.getName() + SNAPSHOT_EXTENSION);
+    }
+
+    /**
+     * Writes the snapshot of <tt>document</tt>, which has to be the content
+     * of the contact list file as it is now.
+     *
+     * @param document the contact list document
+     * @throws IOException if writing the snapshot fails
+     */
+    void write(Document document)
+        throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+
+        writeNode(payloadOut, document.getDocumentElement(),
+            new HashMap<String, Integer>());
+        payloadOut.flush();
+
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(contactlistFile.length());
+            out.writeLong(contactlistFile.lastModified());
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if ((file.exists() && !file.delete()) || !tmpFile.renameTo(file))
+        {
+            tmpFile.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Reads the snapshot and deletes it.
+     *
+     * @param builder the builder creating the document
+     * @return the contact list document or <tt>null</tt> if there is no
+     * snapshot or it does not match the contact list file
+     */
+    Document read(DocumentBuilder builder)
+    {
+        if (!file.exists())
+            return null;
+
+        try
+        {
+            byte[] bytes = new byte[(int) file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try
+            {
+                in.readFully(bytes);
+            }
+            finally
+            {
+                in.close();
+            }
+
+            DataInputStream snapshotIn
+                = new DataInputStream(new ByteArrayInputStream(bytes));
+
+            if (snapshotIn.readInt() != MAGIC
+                || snapshotIn.readInt() != VERSION)
+            {
+                logger.warn("Ignoring contact list snapshot of another format");
+                return null;
+            }
+            if (snapshotIn.readLong() != contactlistFile.length()
+                || snapshotIn.readLong() != contactlistFile.lastModified())
+            {
+                logger.info("Ignoring stale contact list snapshot");
+                return null;
+            }
+
+            int length = snapshotIn.readInt();
+            int checksum = snapshotIn.readInt();
+            int offset = bytes.length - snapshotIn.available();
+
+            if (length != bytes.length - offset)
+                throw new IOException("Truncated snapshot");
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes, offset, length);
+            if ((int) crc.getValue() != checksum)
+                throw new IOException("Snapshot checksum mismatch");
+
+            Document document = builder.newDocument();
+            document.appendChild(
+                readNode(snapshotIn, document, new ArrayList<String>()));
+            return document;
+        }
+        catch (Exception ex)
+        {
+            logger.warn("Cannot read contact list snapshot " + file, ex);
+            return null;
+        }
+        finally
+        {
+            delete();
+        }
+    }
+
+    /**
+     * Deletes the snapshot.
+     */
+    void delete()
+    {
+        if (file.exists() && !file.delete())
+            logger.warn("Cannot remove contact list snapshot " + file);
+    }
+
+    /**
+     * Writes a node and its children.
+     *
+     * @param out the stream to write to
+     * @param node the node to write
+     * @param names the indexes of the names written so far
+     * @throws IOException if writing fails
+     */
+    private static void writeNode(DataOutputStream out,
+                                  Node node,
+                                  Map<String, Integer> names)
+        throws IOException
+    {
+        switch (node.getNodeType())
+        {
+        case Node.ELEMENT_NODE:
+            out.writeByte(ELEMENT);
+            writeName(out, node.getNodeName(), names);
+
+            NamedNodeMap attributes = node.getAttributes();
+            out.writeInt(attributes.getLength());
+            for (int i = 0; i < attributes.getLength(); i++)
+            {
+                Node attribute = attributes.item(i);
+
+                writeName(out, attribute.getNodeName(), names);
+                JournalFile.writeString(out, attribute.getNodeValue());
+            }
+
+            List<Node> children = getStoredChildren(node);
+            out.writeInt(children.size());
+            for (Node child : children)
+                writeNode(out, child, names);
+            break;
+        case Node.CDATA_SECTION_NODE:
+            out.writeByte(CDATA);
+            JournalFile.writeString(out, node.getNodeValue());
+            break;
+        default:
+            out.writeByte(TEXT);
+            JournalFile.writeString(out, node.getNodeValue());
+            break;
+        }
+    }
+
+    /**
+     * Returns the children of <tt>node</tt> which are stored: the elements
+     * and the text, except the whitespace between elements.
+     *
+     * @param node an element
+     * @return the children of <tt>node</tt> to store
+     */
+    private static List<Node> getStoredChildren(Node node)
+    {
+        List<Node> children = new ArrayList<Node>();
+        boolean hasElements = false;
+
+        for (Node child = node.getFirstChild();
+                child != null;
+                child = child.getNextSibling())
+        {
+            switch (child.getNodeType())
+            {
+            case Node.ELEMENT_NODE:
+                hasElements = true;
+                children.add(child);
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                children.add(child);
+                break;
+            }
+        }
+
+        if (hasElements)
+        {
+            Iterator<Node> childIter = children.iterator();
+
+            while (childIter.hasNext())
+            {
+                Node child = childIter.next();
+
+                if (child.getNodeType() == Node.TEXT_NODE
+                    && child.getNodeValue().trim().length() == 0)
+                    childIter.remove();
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Reads a node written by
+     * {@link #writeNode(DataOutputStream, Node, Map)} and its children.
+     *
+     * @param in the stream to read from
+     * @param document the document creating the node
+     * @param names the names read so far
+     * @return the node
+     * @throws IOException if the snapshot is invalid
+     */
+    private static Node readNode(DataInputStream in,
+                                 Document document,
+                                 List<String> names)
+        throws IOException
+    {
+        byte type = in.readByte();
+
+        switch (type)
+        {
+        case ELEMENT:
+            Element element = document.createElement(readName(in, names));
+
+            int attributeCount = in.readInt();
+            for (int i = 0; i < attributeCount; i++)
+                element.setAttribute(
+                    readName(in, names), JournalFile.readString(in));
+
+            int childCount = in.readInt();
+            for (int i = 0; i < childCount; i++)
+                element.appendChild(readNode(in, document, names));
+            return element;
+        case TEXT:
+            return document.createTextNode(JournalFile.readString(in));
+        case CDATA:
+            return document.createCDATASection(JournalFile.readString(in));
+        default:
+            throw new IOException("Unknown node type " + type);
+        }
+    }
+
+    /**
+     * Writes an element or attribute name, or its index if it has already
+     * been written.
+     *
+     * @param out the stream to write to
+     * @param name the name to write
+     * @param names the indexes of the names written so far
+     * @throws IOException if writing fails
+     */
+    private static void writeName(DataOutputStream out,
+                                  String name,
+                                  Map<String, Integer> names)
+        throws IOException
+    {
+        Integer index = names.get(name);
+
+        if (index != null)
+            out.writeInt(index);
+        else
+        {
+            out.writeInt(-1);
+            JournalFile.writeString(out, name);
+            names.put(name, names.size());
+        }
+    }
+
+    /**
+     * Reads a name written by
+     * {@link #writeName(DataOutputStream, String, Map)}.
+     *
+     * @param in the stream to read from
+     * @param names the names read so far
+     * @return the name
+     * @throws IOException if the snapshot is invalid
+     */
+    private static String readName(DataInputStream in, List<String> names)
+        throws IOException
+    {
+        int index = in.readInt();
+
+        if (index == -1)
+        {
+            String name = JournalFile.readString(in);
+
+            names.add(name);
+            return name;
+        }
+        if (index < 0 || index >= names.size())
+            throw new IOException("Invalid name index " + index);
+        return names.get(index);
+    }
+}
@@ -10,6 +10,9 @@ import java.io.*;
 import java.util.*;
 
 import javax.xml.parsers.*;
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.contactlist.event.*;
@@ -22,6 +25,7 @@ import org.jitsi.util.xml.*;
 import org.jitsi.util.xml.XMLUtils;
 import org.osgi.framework.*;
 import org.w3c.dom.*;
+import org.xml.sax.*;
 
 /**
  * The class handles read / write operations over the file where a persistent
@@ -38,6 +42,17 @@ import org.w3c.dom.*;
  * belonging to this new provider. Unresolved proto groups and contacts will be
  * created for every one of them.
  * <p>
+ * Changes made to the meta contact list are not written by rewriting the
+ * whole file. The new state of every changed meta contact or group is
+ * appended to a journal by a storage thread, outside the lock the listener
+ * callbacks use, and the document is only checkpointed into the file
+ * periodically or after changes which are not journaled. The journal is
+ * replayed when the file is loaded.
+ * <p>
+ * At clean shutdown a binary snapshot of the document is written next to the
+ * file and read instead of parsing the file at the next start if the file has
+ * not changed since.
+ * <p>
  *
  * @author Emil Ivov
  */
@@ -93,6 +108,80 @@ public class MclStorageManager
      */
     private FailSafeTransaction contactlistTrans = null;
 
+    /**
+     * The journal of the changes made since the contact list file was last
+     * written.
+     */
+    private MclJournal journal = null;
+
+    /**
+     * The binary snapshot of the contact list file written at shutdown.
+     */
+    private MclSnapshot binarySnapshot = null;
+
+    /**
+     * The journal entries of the changes made to the contact list document
+     * which are not yet appended to the journal, in the order the changes
+     * were made. Guarded by <tt>contactListRWLock</tt>.
+     */
+    private List<MclJournal.Entry> pendingEntries
+        = new ArrayList<MclJournal.Entry>();
+
+    /**
+     * The number of snapshots of the contact list document taken in order
+     * to be written to the contact list file.
+     */
+    private volatile int snapshotCount = 0;
+
+    /**
+     * The number of the last snapshot written to the contact list file.
+     * Guarded by <tt>storageLock</tt>.
+     */
+    private int storedSnapshotCount = 0;
+
+    /**
+     * The time of the last checkpoint of the contact list document.
+     */
+    private long lastCheckpointTime = 0;
+
+    /**
+     * Serializes the writes of the contact list file and of its journal,
+     * which happen outside <tt>contactListRWLock</tt> so that they do not
+     * block the listener callbacks.
+     */
+    private final Object storageLock = new Object();
+
+    /**
+     * The thread journaling and checkpointing the changes, which may still
+     * be writing a change it took before we were stopped.
+     */
+    private Thread storageThread = null;
+
+    /**
+     * The group, meta contact and proto contact elements of the contact list
+     * document, so that handling an event does not walk the whole document.
+     * Guarded by <tt>contactListRWLock</tt> for writing.
+     */
+    private final MclNodeIndex nodeIndex = new MclNodeIndex();
+
+    /**
+     * The transformer serializing the changed elements into journal
+     * entries. Only used while holding <tt>contactListRWLock</tt>.
+     */
+    private Transformer elementTransformer = null;
+
+    /**
+     * The number of journal entries after which the contact list document
+     * is checkpointed into the contact list file.
+     */
+    private static final int CHECKPOINT_ENTRY_COUNT = 500;
+
+    /**
+     * The time in milliseconds after which the changes in the journal are
+     * checkpointed into the contact list file.
+     */
+    private static final long CHECKPOINT_INTERVAL = 5 * 60 * 1000;
+
     /**
      * A reference to the MetaContactListServiceImpl that created and started
      * us.
@@ -113,7 +202,7 @@ public class MclStorageManager
     /**
      * The name of the XML node corresponding to a meta contact group.
      */
-    private static final String GROUP_NODE_NAME = "group";
+    static final String GROUP_NODE_NAME = "group";
 
     /**
      * The name of the XML node corresponding to a collection of meta contact
@@ -146,7 +235,7 @@ public class MclStorageManager
     /**
      * The name of the XML attribute that contains unique identifiers
      */
-    private static final String UID_ATTR_NAME = "uid";
+    static final String UID_ATTR_NAME = "uid";
 
     /**
      * The name of the XML attribute that contains unique identifiers for parent
@@ -159,12 +248,12 @@ public class MclStorageManager
      * The name of the XML attribute that contains account identifiers
      * indicating proto group's and proto contacts' owning providers.
      */
-    private static final String ACCOUNT_ID_ATTR_NAME = "account-id";
+    static final String ACCOUNT_ID_ATTR_NAME = "account-id";
 
     /**
      * The name of the XML node that contains meta contact details.
      */
-    private static final String META_CONTACT_NODE_NAME = "meta-contact";
+    static final String META_CONTACT_NODE_NAME = "meta-contact";
 
     /**
      * The name of the XML node that contains meta contact display names.
@@ -197,12 +286,12 @@ public class MclStorageManager
     /**
      * The name of the XML node that contains information of a proto contact
      */
-    private static final String PROTO_CONTACT_NODE_NAME = "contact";
+    static final String PROTO_CONTACT_NODE_NAME = "contact";
 
     /**
      * The name of the XML node that contains information of a proto contact
      */
-    private static final String PROTO_CONTACT_ADDRESS_ATTR_NAME = "address";
+    static final String PROTO_CONTACT_ADDRESS_ATTR_NAME = "address";
 
     /**
      * The name of the XML node that contains information that contacts or
@@ -325,6 +414,10 @@ public class MclStorageManager
             logger.error("The contactlist file can't be found", e);
         }
 
+        journal = new MclJournal(contactlistFile);
+        binarySnapshot = new MclSnapshot(contactlistFile);
+        lastCheckpointTime = System.currentTimeMillis();
+
         try
         {
             // load the contact list
@@ -334,17 +427,28 @@ public class MclStorageManager
             if (contactlistFile.length() == 0)
             {
                 // if the contact list does not exist - create it.
+                binarySnapshot.delete();
                 contactListDocument = builder.newDocument();
                 initVirginDocument(mclServImpl, contactListDocument);
+                nodeIndex.rebuild(contactListDocument);
 
                 // write the contact list so that it is there for the parser
-                storeContactList0();
+                journal.clear();
+                storeContactList();
             }
             else
             {
                 try
                 {
-                    contactListDocument = builder.parse(contactlistFile);
+                    contactListDocument = binarySnapshot.read(builder);
+                    if (contactListDocument == null)
+                        contactListDocument = builder.parse(contactlistFile);
+                    nodeIndex.rebuild(contactListDocument);
+
+                    // the changes made since the last checkpoint are
+                    // checkpointed once we are started
+                    if (replayJournal(builder) > 0)
+                        isModified = true;
                 }
                 catch (Throwable ex)
                 {
@@ -356,9 +460,11 @@ public class MclStorageManager
                     contactlistFile.createNewFile();
                     contactListDocument = builder.newDocument();
                     initVirginDocument(mclServImpl, contactListDocument);
+                    nodeIndex.rebuild(contactListDocument);
 
                     // write the contact list so that it is there for the parser
-                    storeContactList0();
+                    journal.clear();
+                    storeContactList();
                 }
             }
         }
@@ -376,7 +482,8 @@ public class MclStorageManager
     }
 
     /**
-     * Stores the contact list in its current state.
+     * Schedules a checkpoint of the whole contact list, for changes which
+     * are not journaled.
      *
      * @throws IOException if writing fails.
      */
@@ -392,21 +499,234 @@ public class MclStorageManager
         }
     }
 
+    /**
+     * Schedules the storage of a meta contact or group element which has
+     * been added to or changed in the contact list document, by appending
+     * its new state to the journal.
+     *
+     * @param element the added or changed element
+     * @throws IOException if the element cannot be serialized.
+     */
+    private void scheduleElementStorage(Element element) throws IOException
+    {
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            Node parentNode = element.getParentNode();
+            Node parentGroupNode
+                = (parentNode == null) ? null : parentNode.getParentNode();
+
+            // the root group is only stored with the whole document
+            if (parentGroupNode == null
+                || !GROUP_NODE_NAME.equals(parentGroupNode.getNodeName()))
+            {
+                this.isModified = true;
+            }
+            else
+            {
+                pendingEntries.add(new MclJournal.Entry(MclJournal.PUT,
+                    element.getNodeName(),
+                    element.getAttribute(UID_ATTR_NAME),
+                    ((Element) parentGroupNode).getAttribute(UID_ATTR_NAME),
+                    toXml(element)));
+            }
+            contactListRWLock.notifyAll();
+        }
+    }
+
+    /**
+     * Schedules the removal of a meta contact or group element from the
+     * stored contact list, by appending it to the journal.
+     *
+     * @param element the element removed from the contact list document
+     */
+    private void scheduleElementRemoval(Element element)
+    {
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            pendingEntries.add(new MclJournal.Entry(MclJournal.REMOVE,
+                element.getNodeName(),
+                element.getAttribute(UID_ATTR_NAME),
+                null,
+                null));
+            contactListRWLock.notifyAll();
+        }
+    }
+
+    /**
+     * Serializes an element of the contact list document for the journal.
+     * Must be called while holding <tt>contactListRWLock</tt>.
+     *
+     * @param element the element to serialize
+     * @return the XML of the element
+     * @throws IOException if the element cannot be serialized.
+     */
+    private String toXml(Element element) throws IOException
+    {
+        try
+        {
+            if (elementTransformer == null)
+            {
+                elementTransformer
+                    = TransformerFactory.newInstance().newTransformer();
+                elementTransformer.setOutputProperty(
+                    OutputKeys.OMIT_XML_DECLARATION, "yes");
+            }
+
+            StringWriter writer = new StringWriter();
+
+            elementTransformer.transform(
+                new DOMSource(element), new StreamResult(writer));
+            return writer.toString();
+        }
+        catch (TransformerException ex)
+        {
+            throw new IOException("Failed to serialize "
+                + element.getNodeName() + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Applies the changes of the journal to the contact list document just
+     * loaded from the contact list file. The entries whose changes are
+     * already in the file leave it unchanged.
+     *
+     * @param builder the builder parsing the elements of the entries
+     * @return the number of replayed entries
+     */
+    private int replayJournal(DocumentBuilder builder)
+    {
+        int replayed = 0;
+
+        for (MclJournal.Entry entry : journal.read())
+        {
+            Element current
+                = GROUP_NODE_NAME.equals(entry.nodeName)
+                    ? findMetaContactGroupNode(entry.uid)
+                    : findMetaContactNode(entry.uid);
+
+            if (entry.operation == MclJournal.REMOVE)
+            {
+                if (current != null)
+                {
+                    current.getParentNode().removeChild(current);
+                    nodeIndex.remove(current);
+                }
+                replayed++;
+                continue;
+            }
+
+            Element parentGroupNode = findMetaContactGroupNode(entry.parentUID);
+            Element containerNode
+                = (parentGroupNode == null)
+                    ? null
+                    : XMLUtils.findChild(parentGroupNode,
+                        GROUP_NODE_NAME.equals(entry.nodeName)
+                            ? SUBGROUPS_NODE_NAME
+                            : CHILD_CONTACTS_NODE_NAME);
+
+            if (containerNode == null)
+            {
+                logger.warn("Cannot replay " + entry.nodeName + " "
+                    + entry.uid + ", parent group not found: "
+                    + entry.parentUID);
+                continue;
+            }
+
+            Element element;
+            try
+            {
+                element = (Element) contactListDocument.importNode(
+                    builder.parse(new InputSource(new StringReader(entry.xml)))
+                        .getDocumentElement(),
+                    true);
+            }
+            catch (Exception ex)
+            {
+                logger.warn("Cannot replay " + entry.nodeName + " "
+                    + entry.uid, ex);
+                continue;
+            }
+
+            if (current != null && current.getParentNode() == containerNode)
+                containerNode.replaceChild(element, current);
+            else
+            {
+                if (current != null)
+                    current.getParentNode().removeChild(current);
+                containerNode.appendChild(element);
+            }
+            if (current != null)
+                nodeIndex.remove(current);
+            nodeIndex.add(element);
+            replayed++;
+        }
+
+        return replayed;
+    }
+
+    /**
+     * Copies the contact list document in order to write it outside
+     * <tt>contactListRWLock</tt>. The pending journal entries are discarded
+     * since their changes are part of the copy. Must be called while holding
+     * <tt>contactListRWLock</tt>.
+     *
+     * @return the copy of the contact list document
+     */
+    private Document createSnapshot()
+    {
+        isModified = false;
+        pendingEntries = new ArrayList<MclJournal.Entry>();
+        snapshotCount++;
+
+        return (Document) contactListDocument.cloneNode(true);
+    }
+
     /**
      * Writes the contact list on the hard disk.
      *
      * @throws IOException in case writing fails.
      */
-    private void storeContactList0() throws IOException
+    private void storeContactList() throws IOException
     {
-        if (logger.isTraceEnabled())
-            logger.trace("storing contact list. because is started =="
-            + isStarted());
-        if (logger.isTraceEnabled())
-            logger.trace("storing contact list. because is modified =="
-            + isModified);
-        if (isStarted())
+        Document snapshot;
+        int snapshotNumber;
+
+        synchronized (contactListRWLock)
+        {
+            snapshot = createSnapshot();
+            snapshotNumber = snapshotCount;
+        }
+
+        storeContactList0(snapshot, snapshotNumber);
+    }
+
+    /**
+     * Writes a snapshot of the contact list on the hard disk and discards
+     * the journal, whose changes are part of the snapshot. Does nothing if a
+     * more recent snapshot has already been written.
+     *
+     * @param snapshot the copy of the contact list document to write
+     * @param snapshotNumber the number of the snapshot
+     * @throws IOException in case writing fails.
+     */
+    private void storeContactList0(Document snapshot, int snapshotNumber)
+        throws IOException
+    {
+        synchronized (storageLock)
         {
+            if (snapshotNumber <= storedSnapshotCount)
+                return;
+
+            if (logger.isTraceEnabled())
+                logger.trace("storing contact list snapshot "
+                + snapshotNumber);
+
             // begin a new transaction
             try
             {
@@ -419,7 +739,7 @@ public class MclStorageManager
 
             // really write the modification
             OutputStream stream = new FileOutputStream(contactlistFile);
-            XMLUtils.indentedWriteXML(contactListDocument, stream);
+            XMLUtils.indentedWriteXML(snapshot, stream);
             stream.close();
 
             // commit the changes
@@ -431,34 +751,97 @@ public class MclStorageManager
             {
                 logger.error("the contactlist file is missing", e);
             }
+
+            journal.clear();
+            storedSnapshotCount = snapshotNumber;
+            lastCheckpointTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Appends journal entries to the journal unless a snapshot containing
+     * their changes has been taken since they were scheduled.
+     *
+     * @param entries the entries to append
+     * @param snapshotNumber the number of snapshots taken when the entries
+     * were removed from the pending entries
+     * @throws IOException in case writing fails.
+     */
+    private void appendToJournal(List<MclJournal.Entry> entries,
+                                 int snapshotNumber)
+        throws IOException
+    {
+        synchronized (storageLock)
+        {
+            if (snapshotNumber != snapshotCount)
+                return;
+
+            if (logger.isTraceEnabled())
+                logger.trace("journaling " + entries.size()
+                + " contact list changes");
+
+            journal.append(entries);
         }
     }
 
     /**
      * Launches a separate thread that waits on the contact list rw lock and
-     * when notified stores the contact list in case there have been
-     * modifications since last time it saved.
+     * when notified appends the changes made since last time to the journal,
+     * or checkpoints the contact list when the journal has grown too big or
+     * old or a change which is not journaled has been made.
      */
     private void launchStorageThread()
     {
-        new Thread()
+        storageThread = new Thread()
         {
             @Override
             public void run()
             {
                 try
                 {
-                    synchronized (contactListRWLock)
+                    while (true)
                     {
-                        while (isStarted())
+                        List<MclJournal.Entry> entries = null;
+                        Document snapshot = null;
+                        int snapshotNumber;
+
+                        synchronized (contactListRWLock)
                         {
-                            contactListRWLock.wait(5000);
-                            if (isModified)
+                            if (!isStarted())
+                                break;
+                            if (pendingEntries.isEmpty() && !isModified)
+                                contactListRWLock.wait(5000);
+                            if (!isStarted())
+                                break;
+
+                            int journaled
+                                = journal.getEntryCount()
+                                    + pendingEntries.size();
+
+                            if (isModified
+                                || journaled >= CHECKPOINT_ENTRY_COUNT
+                                || (journaled > 0
+                                    && System.currentTimeMillis()
+                                            - lastCheckpointTime
+                                        >= CHECKPOINT_INTERVAL))
                             {
-                                storeContactList0();
-                                isModified = false;
+                                snapshot = createSnapshot();
                             }
+                            else if (!pendingEntries.isEmpty())
+                            {
+                                entries = pendingEntries;
+                                pendingEntries
+                                    = new ArrayList<MclJournal.Entry>();
+                            }
+                            snapshotNumber = snapshotCount;
                         }
+
+                        // write outside the lock so that the changes made
+                        // meanwhile are not blocked
+                        if (snapshot != null)
+                            storeContactList0(snapshot, snapshotNumber);
+                        else if (entries != null)
+                            appendToJournal(entries, snapshotNumber);
                     }
                 }
                 catch (IOException ex)
@@ -473,7 +856,8 @@ public class MclStorageManager
                 }
 
             }
-        }.start();
+        };
+        storageThread.start();
     }
 
     /**
@@ -481,6 +865,10 @@ public class MclStorageManager
      */
     public void storeContactListAndStopStorageManager()
     {
+        Document snapshot = null;
+        Document shutdownSnapshot;
+        int snapshotNumber;
+
         synchronized (contactListRWLock)
         {
             if (!isStarted())
@@ -490,11 +878,46 @@ public class MclStorageManager
 
             // make sure everyone gets released after we finish.
             contactListRWLock.notifyAll();
+        }
+
+        // let the storage thread finish writing what it has already taken
+        // or it would write it, and clear the journal, after we return
+        if (storageThread != null && storageThread != Thread.currentThread())
+        {
+            try
+            {
+                storageThread.join();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (contactListRWLock)
+        {
+            // nothing to write if all the changes are already in the file
+            if (isModified
+                || !pendingEntries.isEmpty()
+                || journal.getEntryCount() > 0)
+            {
+                snapshot = createSnapshot();
+                shutdownSnapshot = snapshot;
+            }
+            else
+            {
+                shutdownSnapshot
+                    = (Document) contactListDocument.cloneNode(true);
+            }
+            snapshotNumber = snapshotCount;
+        }
 
-            // write the contact list ourselves before we go out..
+        // write the contact list ourselves before we go out..
+        if (snapshot != null)
+        {
             try
             {
-                storeContactList0();
+                storeContactList0(snapshot, snapshotNumber);
             }
             catch (IOException ex)
             {
@@ -502,6 +925,25 @@ public class MclStorageManager
                     .debug("Failed to store contact list before stopping", ex);
             }
         }
+
+        // and its binary snapshot once the file will no longer change
+        synchronized (storageLock)
+        {
+            if (snapshotNumber == storedSnapshotCount)
+            {
+                try
+                {
+                    binarySnapshot.write(shutdownSnapshot);
+                }
+                catch (IOException ex)
+                {
+                    logger.debug(
+                        "Failed to store contact list snapshot before stopping",
+                        ex);
+                    binarySnapshot.delete();
+                }
+            }
+        }
     }
 
     /**
@@ -528,9 +970,7 @@ public class MclStorageManager
             if (persistentData != null)
             {
                 Element currentNode =
-                    XMLUtils.locateElement(metaContactNode,
-                        PROTO_CONTACT_NODE_NAME,
-                        PROTO_CONTACT_ADDRESS_ATTR_NAME, item.getAddress());
+                    findProtoContactNode(metaContactNode, item);
 
                 Element persistentDataNode =
                     XMLUtils.findChild(currentNode, PERSISTENT_DATA_NODE_NAME);
@@ -613,9 +1053,10 @@ public class MclStorageManager
                 contactListDocument = builder.newDocument();
 
                 initVirginDocument(mclServiceImpl, contactListDocument);
+                nodeIndex.rebuild(contactListDocument);
 
                 // write the contact list so that it is there for the parser
-                storeContactList0();
+                scheduleContactListStorage();
             }
             else
             {
@@ -624,6 +1065,10 @@ public class MclStorageManager
                 // contacts
                 processGroupXmlNode(mclServiceImpl, accountID, root, null, null);
 
+                // faulty and duplicate nodes may have been removed while
+                // processing
+                nodeIndex.rebuild(contactListDocument);
+
                 // now save the contact list in case it has changed
                 scheduleContactListStorage();
             }
@@ -1221,6 +1666,72 @@ public class MclStorageManager
         return metaGroupElement;
     }
 
+    /**
+     * Adds to <tt>metaGroupElement</tt> the nodes of the persistent proto
+     * groups, subgroups and child contacts of <tt>metaGroup</tt> which it
+     * does not contain yet, recursively.
+     *
+     * @param metaGroup the MetaContactGroup whose new content is added
+     * @param metaGroupElement the node of <tt>metaGroup</tt>
+     */
+    private void mergeMetaContactGroupNode(MetaContactGroup metaGroup,
+                                           Element metaGroupElement)
+    {
+        Element protoGroupsElement
+            = XMLUtils.findChild(metaGroupElement, PROTO_GROUPS_NODE_NAME);
+        Iterator<ContactGroup> protoGroups = metaGroup.getContactGroups();
+
+        while (protoGroups.hasNext())
+        {
+            ContactGroup group = protoGroups.next();
+
+            if (group.isPersistent()
+                && XMLUtils.locateElement(protoGroupsElement,
+                        PROTO_GROUP_NODE_NAME, UID_ATTR_NAME, group.getUID())
+                    == null)
+            {
+                protoGroupsElement.appendChild(
+                    createProtoContactGroupNode(group));
+            }
+        }
+
+        Element subgroupsElement
+            = XMLUtils.findChild(metaGroupElement, SUBGROUPS_NODE_NAME);
+        Iterator<MetaContactGroup> subgroups = metaGroup.getSubgroups();
+
+        while (subgroups.hasNext())
+        {
+            MetaContactGroup subgroup = subgroups.next();
+            Element subgroupEl = findMetaContactGroupNode(subgroup.getMetaUID());
+
+            if (subgroupEl != null)
+                mergeMetaContactGroupNode(subgroup, subgroupEl);
+            else
+            {
+                subgroupEl = createMetaContactGroupNode(subgroup);
+                subgroupsElement.appendChild(subgroupEl);
+                nodeIndex.add(subgroupEl);
+            }
+        }
+
+        Element childContactsElement
+            = XMLUtils.findChild(metaGroupElement, CHILD_CONTACTS_NODE_NAME);
+        Iterator<MetaContact> childContacts = metaGroup.getChildContacts();
+
+        while (childContacts.hasNext())
+        {
+            MetaContact metaContact = childContacts.next();
+
+            if (findMetaContactNode(metaContact.getMetaUID()) == null)
+            {
+                Element metaContactEl = createMetaContactNode(metaContact);
+
+                childContactsElement.appendChild(metaContactEl);
+                nodeIndex.add(metaContactEl);
+            }
+        }
+    }
+
     /**
      * Indicates that a MetaContact has been successfully added to the
      * MetaContact list.
@@ -1252,10 +1763,11 @@ public class MclStorageManager
             createMetaContactNode(evt.getSourceMetaContact());
 
         parentGroupNode.appendChild(metaContactElement);
+        nodeIndex.add(metaContactElement);
 
         try
         {
-            scheduleContactListStorage();
+            scheduleElementStorage(metaContactElement);
         }
         catch (IOException ex)
         {
@@ -1306,10 +1818,11 @@ public class MclStorageManager
             XMLUtils.findChild(parentGroupNode, SUBGROUPS_NODE_NAME);
 
         subgroupsNode.appendChild(newGroupElement);
+        nodeIndex.add(newGroupElement);
 
         try
         {
-            scheduleContactListStorage();
+            scheduleElementStorage(newGroupElement);
         }
         catch (IOException ex)
         {
@@ -1345,21 +1858,9 @@ public class MclStorageManager
 
         // remove the meta contact node.
         metaContactGroupNode.getParentNode().removeChild(metaContactGroupNode);
+        nodeIndex.remove(metaContactGroupNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing group "
-                + evt.getSourceMetaContactGroup(), ex);
-        }
+        scheduleElementRemoval(metaContactGroupNode);
     }
 
     /**
@@ -1392,6 +1893,7 @@ public class MclStorageManager
         {
             // create new node
             metaContactNode = createMetaContactNode(evt.getSourceMetaContact());
+            nodeIndex.add(metaContactNode);
         }
         else
         {
@@ -1407,7 +1909,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleElementStorage(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1490,21 +1992,9 @@ public class MclStorageManager
 
         // remove the meta contact node.
         metaContactNode.getParentNode().removeChild(metaContactNode);
+        nodeIndex.remove(metaContactNode);
 
-        try
-        {
-            scheduleContactListStorage();
-        }
-        catch (IOException ex)
-        {
-            /**
-             * given we're being invoked from an event dispatch thread that was
-             * probably triggered by a net operation - we could not do much. so
-             * ... log and @todo one day we'll have a global error dispatcher
-             */
-            logger.error("Writing CL failed after removing "
-                + evt.getSourceMetaContact(), ex);
-        }
+        scheduleElementRemoval(metaContactNode);
     }
 
     /**
@@ -1548,7 +2038,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleElementStorage(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1588,7 +2078,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleElementStorage(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1734,7 +2224,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleElementStorage(metaContactNode);
         }
         catch (IOException ex)
         {
@@ -1768,15 +2258,14 @@ public class MclStorageManager
         }
 
         Element protoNode =
-            XMLUtils.locateElement(oldMcNode, PROTO_CONTACT_NODE_NAME,
-                PROTO_CONTACT_ADDRESS_ATTR_NAME, evt.getProtoContact()
-                    .getAddress());
+            findProtoContactNode(oldMcNode, evt.getProtoContact());
 
         protoNode.getParentNode().removeChild(protoNode);
+        nodeIndex.remove(protoNode);
 
         try
         {
-            scheduleContactListStorage();
+            scheduleElementStorage(oldMcNode);
         }
         catch (IOException ex)
         {
@@ -1809,6 +2298,10 @@ public class MclStorageManager
      */
     public void metaContactGroupModified(MetaContactGroupEvent evt)
     {
+        // the loaded groups and contacts come from the document
+        if (evt.getEventID() == MetaContactGroupEvent.CONTACT_LIST_LOADED)
+            return;
+
         MetaContactGroup mcGroup = evt.getSourceMetaContactGroup();
         Element mcGroupNode = findMetaContactGroupNode(mcGroup.getMetaUID());
 
@@ -1824,6 +2317,26 @@ public class MclStorageManager
             return;
         }
 
+        if (evt.getEventID() == MetaContactGroupEvent.CONTACTS_IMPORTED)
+        {
+            // add the imported groups and contacts to the existing nodes,
+            // which also hold the contacts of the accounts not loaded yet,
+            // and write the contact list once for the whole import
+            mergeMetaContactGroupNode(mcGroup, mcGroupNode);
+            try
+            {
+                scheduleContactListStorage();
+            }
+            catch (IOException ex)
+            {
+                logger.error(
+                    "Writing CL failed after importing contacts into "
+                        + mcGroup.getGroupName(),
+                    ex);
+            }
+            return;
+        }
+
         switch (evt.getEventID())
         {
         case MetaContactGroupEvent.CONTACT_GROUP_RENAMED_IN_META_GROUP:
@@ -1837,27 +2350,14 @@ public class MclStorageManager
             Node parentNode = mcGroupNode.getParentNode();
 
             parentNode.removeChild(mcGroupNode);
+            nodeIndex.remove(mcGroupNode);
 
             Element newGroupElement = createMetaContactGroupNode(mcGroup);
 
             parentNode.appendChild(newGroupElement);
+            nodeIndex.add(newGroupElement);
 
-            try
-            {
-                scheduleContactListStorage();
-            }
-            catch (IOException ex)
-            {
-                /**
-                 * given we're being invoked from an event dispatch thread that
-                 * was probably triggered by a net operation - we could not do
-                 * much. so ... log and @todo one day we'll have a global error
-                 * dispatcher
-                 */
-                logger.error(
-                    "Writing CL failed after adding contact " + mcGroup,
-                    ex);
-            }
+            mcGroupNode = newGroupElement;
             break;
         case MetaContactGroupEvent.META_CONTACT_GROUP_RENAMED:
             mcGroupNode
@@ -1867,7 +2367,7 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleElementStorage(mcGroupNode);
         }
         catch (IOException ex)
         {
@@ -1906,10 +2406,11 @@ public class MclStorageManager
         Element protoNode = createProtoContactNode(evt.getProtoContact());
 
         mcNode.appendChild(protoNode);
+        nodeIndex.add(protoNode);
 
         try
         {
-            scheduleContactListStorage();
+            scheduleElementStorage(mcNode);
         }
         catch (IOException ex)
         {
@@ -1954,9 +2455,7 @@ public class MclStorageManager
         }
 
         Element protoNode =
-            XMLUtils.locateElement(oldMcNode, PROTO_CONTACT_NODE_NAME,
-                PROTO_CONTACT_ADDRESS_ATTR_NAME, evt.getProtoContact()
-                    .getAddress());
+            findProtoContactNode(oldMcNode, evt.getProtoContact());
 
         protoNode.getParentNode().removeChild(protoNode);
 
@@ -1967,7 +2466,8 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleElementStorage(oldMcNode);
+            scheduleElementStorage(newMcNode);
         }
         catch (IOException ex)
         {
@@ -1993,10 +2493,7 @@ public class MclStorageManager
      */
     private Element findMetaContactNode(String metaContactUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
-
-        return XMLUtils.locateElement(root, META_CONTACT_NODE_NAME,
-            UID_ATTR_NAME, metaContactUID);
+        return nodeIndex.findMetaContactNode(metaContactUID);
     }
 
     /**
@@ -2011,10 +2508,35 @@ public class MclStorageManager
      */
     private Element findMetaContactGroupNode(String metaContactGroupUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
+        return nodeIndex.findGroupNode(metaContactGroupUID);
+    }
 
-        return XMLUtils.locateElement(root, GROUP_NODE_NAME, UID_ATTR_NAME,
-            metaContactGroupUID);
+    /**
+     * Returns the node of the proto contact <tt>protoContact</tt> within the
+     * node of its meta contact.
+     *
+     * @param metaContactNode the node of the meta contact of
+     *            <tt>protoContact</tt>
+     * @param protoContact the proto contact whose node we are looking for
+     * @return the node of <tt>protoContact</tt> or null if
+     *         <tt>metaContactNode</tt> does not contain it
+     */
+    private Element findProtoContactNode(Element metaContactNode,
+                                         Contact protoContact)
+    {
+        Element protoNode = nodeIndex.findProtoContactNode(
+            protoContact.getProtocolProvider().getAccountID()
+                .getAccountUniqueID(),
+            protoContact.getAddress());
+
+        if (protoNode != null && protoNode.getParentNode() == metaContactNode)
+            return protoNode;
+
+        // the same address may be stored in another meta contact or by
+        // another account, look for it the way the file was always searched
+        return XMLUtils.locateElement(metaContactNode,
+            PROTO_CONTACT_NODE_NAME, PROTO_CONTACT_ADDRESS_ATTR_NAME,
+            protoContact.getAddress());
     }
 
     /**
@@ -2023,6 +2545,8 @@ public class MclStorageManager
     void removeContactListFile()
     {
         this.contactlistFile.delete();
+        this.journal.clear();
+        this.binarySnapshot.delete();
     }
 
     /**
@@ -37,10 +37,12 @@ public class MetaContactGroupImpl
                                         = new TreeSet<MetaContactGroupImpl>();
 
     /**
-     * A list containing all child contacts.
+     * A list containing all child contacts. Its iterators are over the
+     * contacts it contained when they were created so we use it for returning
+     * iterators and searching over the list without copying it.
      */
-    private final Set<MetaContactImpl> childContacts
-                                            = new TreeSet<MetaContactImpl>();
+    private final IndexedSortedSet<MetaContact> childContacts
+                                        = new IndexedSortedSet<MetaContact>();
 
     /**
      * A list of the contact groups encapsulated by this MetaContactGroup
@@ -57,14 +59,6 @@ public class MetaContactGroupImpl
      */
     private String groupName = null;
 
-    /**
-     * We use this copy for returning iterators and searching over the list
-     * in order to avoid creating it upon each query. The copy is updated upon
-     * each modification
-     */
-    private List<MetaContact> childContactsOrderedCopy
-                                            = new LinkedList<MetaContact>();
-
     /**
      * We use this copy for returning iterators and searching over the list
      * in order to avoid creating it upon each query. The copy is updated upon
@@ -254,7 +248,7 @@ public class MetaContactGroupImpl
      */
     public Iterator<MetaContact> getChildContacts()
     {
-        return childContactsOrderedCopy.iterator();
+        return childContacts.iterator();
     }
 
     /**
@@ -292,23 +286,7 @@ public class MetaContactGroupImpl
      */
     public int indexOf(MetaContact metaContact)
     {
-        int i = 0;
-
-        Iterator<MetaContact> childrenIter = getChildContacts();
-
-        while (childrenIter.hasNext())
-        {
-            MetaContact current = childrenIter.next();
-
-            if (current == metaContact)
-            {
-                return i;
-            }
-            i++;
-        }
-
-        //if we got here then metaContact is not in this list
-        return -1;
+        return childContacts.indexOf(metaContact);
     }
 
     /**
@@ -685,7 +663,7 @@ public class MetaContactGroupImpl
     public MetaContact getMetaContact(int index) throws
         IndexOutOfBoundsException
     {
-        return this.childContactsOrderedCopy.get(index);
+        return this.childContacts.get(index);
     }
 
     /**
@@ -699,6 +677,7 @@ public class MetaContactGroupImpl
         metaContact.setParentGroup(this);
 
         lightAddMetaContact(metaContact);
+        mclServiceImpl.getIndex().metaContactAdded(this, metaContact);
     }
 
     /**
@@ -713,14 +692,7 @@ public class MetaContactGroupImpl
      */
     int lightAddMetaContact(MetaContactImpl metaContact)
     {
-        synchronized(childContacts)
-        {
-            this.childContacts.add(metaContact);
-            //no need to synch it's not a disaster if s.o. else reads the old copy.
-            childContactsOrderedCopy
-                = new LinkedList<MetaContact>(childContacts);
-            return childContactsOrderedCopy.indexOf(metaContact);
-        }
+        return this.childContacts.add(metaContact);
     }
 
     /**
@@ -728,22 +700,14 @@ public class MetaContactGroupImpl
       * contacts without unsetting its parent contact and without any
       * synchronization. This method is meant for use _PRIMARILY_ by the
       * <tt>MetaContact</tt> itself upon change in its encapsulated protocol
-      * specific contacts. The method would also regenerate the ordered copy
-      * used for generating iterators and performing search operations over
-      * the group.
+      * specific contacts.
       *
       * @param metaContact the <tt>MetaContact</tt> to remove from the local
       * vector.
       */
     void lightRemoveMetaContact(MetaContactImpl metaContact)
     {
-        synchronized(childContacts)
-        {
-            this.childContacts.remove(metaContact);
-            //no need to synch it's not a disaster if s.o. else reads the old copy.
-            childContactsOrderedCopy
-                            = new LinkedList<MetaContact>(childContacts);
-        }
+        this.childContacts.remove(metaContact);
     }
 
 
@@ -756,6 +720,7 @@ public class MetaContactGroupImpl
     {
         metaContact.unsetParentGroup(this);
         lightRemoveMetaContact(metaContact);
+        mclServiceImpl.getIndex().metaContactRemoved(metaContact);
     }
 
     /**
@@ -827,10 +792,7 @@ public class MetaContactGroupImpl
      */
     public boolean contains(MetaContact contact)
     {
-        synchronized (childContacts)
-        {
-            return this.childContacts.contains(contact);
-        }
+        return this.childContacts.contains(contact);
     }
 
     /**
@@ -938,6 +900,7 @@ public class MetaContactGroupImpl
     void addProtoGroup( ContactGroup protoGroup)
     {
         protoGroups.add(protoGroup);
+        mclServiceImpl.getIndex().protoGroupAdded(this, protoGroup);
     }
 
     /**
@@ -949,6 +912,29 @@ public class MetaContactGroupImpl
     void removeProtoGroup( ContactGroup protoGroup)
     {
         protoGroups.remove(protoGroup);
+        mclServiceImpl.getIndex().protoGroupRemoved(this, protoGroup);
+    }
+
+    /**
+     * Determines whether this meta contact group encapsulates the
+     * <tt>protoGroup</tt> instance. Unlike <tt>contains</tt>, the groups are
+     * compared by reference because some protocols compare the content of
+     * their groups.
+     * @param protoGroup the protocol specific group
+     * @return <tt>true</tt> if <tt>protoGroup</tt> itself is merged in this
+     * meta contact group and <tt>false</tt> otherwise.
+     */
+    boolean containsProtoGroup(ContactGroup protoGroup)
+    {
+        synchronized (protoGroups)
+        {
+            for (ContactGroup group : protoGroups)
+            {
+                if (group == protoGroup)
+                    return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -966,6 +952,9 @@ public class MetaContactGroupImpl
 
         this.subgroupsOrderedCopy =
             new LinkedList<MetaContactGroup>(subgroups);
+
+        mclServiceImpl.getIndex().groupAdded(
+            this, (MetaContactGroupImpl) subgroup);
     }
 
     /**
@@ -983,6 +972,8 @@ public class MetaContactGroupImpl
 
         subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
 
+        mclServiceImpl.getIndex().groupRemoved(subgroup);
+
         return subgroup;
     }
 
@@ -994,7 +985,13 @@ public class MetaContactGroupImpl
      */
     boolean removeSubgroup(MetaContactGroup group)
     {
-        return subgroups.remove(group);
+        if (!subgroups.remove(group))
+            return false;
+
+        subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
+
+        mclServiceImpl.getIndex().groupRemoved((MetaContactGroupImpl) group);
+        return true;
     }
 
     /**
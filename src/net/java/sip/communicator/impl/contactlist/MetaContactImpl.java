@@ -671,6 +671,9 @@ public class MetaContactImpl
             contactsOnline += contact.getPresenceStatus().isOnline() ? 1 : 0;
 
             this.protoContacts.add(contact);
+            MclIndex index = getIndex();
+            if (index != null)
+                index.protoContactAdded(this, contact);
 
             // Re-init the default contact.
             defaultContact = null;
@@ -769,6 +772,9 @@ public class MetaContactImpl
                 parentGroup.lightRemoveMetaContact(this);
             contactsOnline -= contact.getPresenceStatus().isOnline() ? 1 : 0;
             this.protoContacts.remove(contact);
+            MclIndex index = getIndex();
+            if (index != null)
+                index.protoContactRemoved(this, contact);
 
             if (defaultContact == contact)
                 defaultContact = null;
@@ -820,6 +826,9 @@ public class MetaContactImpl
             if (contact.getProtocolProvider() == provider)
             {
                 contactsIter.remove();
+                MclIndex index = getIndex();
+                if (index != null)
+                    index.protoContactRemoved(this, contact);
                 modified = true;
             }
         }
@@ -853,6 +862,9 @@ public class MetaContactImpl
             if (contact.getParentContactGroup() == protoGroup)
             {
                 contactsIter.remove();
+                MclIndex index = getIndex();
+                if (index != null)
+                    index.protoContactRemoved(this, contact);
                 modified = true;
             }
         }
@@ -1161,6 +1173,23 @@ public class MetaContactImpl
         }
     }
 
+    /**
+     * Returns the index of the meta contact list containing the parent group
+     * of this meta contact.
+     *
+     * @return the index of the meta contact list or <tt>null</tt> if this
+     * meta contact has no parent group
+     */
+    private MclIndex getIndex()
+    {
+        MetaContactGroupImpl parentGroup = this.parentGroup;
+
+        return
+            (parentGroup == null)
+                ? null
+                : parentGroup.getMclServiceImpl().getIndex();
+    }
+
     /**
      * Gets the sync lock for use when modifying {@link #parentGroup}.
      *
@@ -14,6 +14,7 @@ import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
 import net.java.sip.communicator.util.*;
 
+import org.jitsi.service.configuration.*;
 import org.jitsi.util.xml.*;
 import org.osgi.framework.*;
 
@@ -73,6 +74,14 @@ public class MetaContactListServiceImpl
      */
     public static final int CONTACT_LIST_MODIFICATION_TIMEOUT = 10000;
 
+    /**
+     * The name of the property indicating whether the events of the meta
+     * contact list are queued for every listener and delivered on separate
+     * threads instead of the thread making the change.
+     */
+    private static final String ASYNC_EVENT_DISPATCH_PROPERTY
+        = "net.java.sip.communicator.impl.contactlist.ASYNC_EVENT_DISPATCH";
+
     /**
      * Listeners interested in events dispatched upon modification of the meta
      * contact list.
@@ -114,6 +123,20 @@ public class MetaContactListServiceImpl
      */
     private final MclStorageManager storageManager = new MclStorageManager();
 
+    /**
+     * The index of the meta contacts and meta contact groups of the list,
+     * which the lookups by protocol contact, protocol group and meta uid
+     * use instead of searching the list.
+     */
+    private final MclIndex index = new MclIndex();
+
+    /**
+     * Delivers the events of the list to its listeners, synchronously unless
+     * asynchronous dispatch is enabled when the service starts.
+     */
+    private volatile MclEventDispatcher eventDispatcher
+        = new MclEventDispatcher(false, storageManager);
+
     /**
      * Creates an instance of this class.
      */
@@ -124,6 +147,19 @@ public class MetaContactListServiceImpl
                     this,
                     "RootMetaContactGroup",
                     "RootMetaContactGroup");
+        index.setRoot(rootMetaGroup);
+    }
+
+    /**
+     * Returns the index of the meta contacts and meta contact groups of this
+     * list, which <tt>MetaContactGroupImpl</tt> and <tt>MetaContactImpl</tt>
+     * keep up to date.
+     *
+     * @return the index of this meta contact list
+     */
+    MclIndex getIndex()
+    {
+        return index;
     }
 
     /**
@@ -155,6 +191,17 @@ public class MetaContactListServiceImpl
             logger.debug("Starting the meta contact list implementation.");
         this.bundleContext = bc;
 
+        ConfigurationService configService
+            = ServiceUtils.getService(bc, ConfigurationService.class);
+
+        if (configService != null
+            && configService.getBoolean(ASYNC_EVENT_DISPATCH_PROPERTY, false))
+        {
+            eventDispatcher = new MclEventDispatcher(true, storageManager);
+            for (MetaContactListListener l : getMetaContactListListeners())
+                eventDispatcher.listenerAdded(l);
+        }
+
         //initialize the meta contact list from what has been stored locally.
         try
         {
@@ -246,6 +293,7 @@ public class MetaContactListServiceImpl
         }
         currentlyInstalledProviders.clear();
         storageManager.stop();
+        eventDispatcher.stop();
     }
 
     /**
@@ -259,7 +307,10 @@ public class MetaContactListServiceImpl
         synchronized (metaContactListListeners)
         {
             if(!metaContactListListeners.contains(listener))
+            {
                 metaContactListListeners.add(listener);
+                eventDispatcher.listenerAdded(listener);
+            }
         }
     }
 
@@ -410,28 +461,7 @@ public class MetaContactListServiceImpl
         }
         catch(OperationFailedException ex)
         {
-            if(ex.getErrorCode()
-               == OperationFailedException.SUBSCRIPTION_ALREADY_EXISTS)
-            {
-                throw new MetaContactListException(
-                "failed to create contact " + contactID
-                , ex
-                , MetaContactListException.CODE_CONTACT_ALREADY_EXISTS_ERROR);
-            }
-            else if(ex.getErrorCode()
-               == OperationFailedException.NOT_SUPPORTED_OPERATION)
-            {
-                throw new MetaContactListException(
-                "failed to create contact " + contactID
-                , ex
-                , MetaContactListException.CODE_NOT_SUPPORTED_OPERATION);
-            }
-
-            throw new MetaContactListException(
-                "failed to create contact " + contactID
-                , ex
-                , MetaContactListException.CODE_NETWORK_ERROR);
-
+            throw createSubscriptionException(contactID, ex);
         }
         catch (Exception ex)
         {
@@ -489,6 +519,35 @@ public class MetaContactListServiceImpl
                 (MetaContactImpl)metaContact);
     }
 
+    /**
+     * Creates the <tt>MetaContactListException</tt> corresponding to the
+     * failure of a subscription.
+     *
+     * @param contactID the identifier of the contact we failed to create
+     * @param ex the exception thrown by the subscription
+     * @return the <tt>MetaContactListException</tt> to report
+     */
+    private static MetaContactListException createSubscriptionException(
+        String contactID, OperationFailedException ex)
+    {
+        int code;
+
+        switch (ex.getErrorCode())
+        {
+        case OperationFailedException.SUBSCRIPTION_ALREADY_EXISTS:
+            code = MetaContactListException.CODE_CONTACT_ALREADY_EXISTS_ERROR;
+            break;
+        case OperationFailedException.NOT_SUPPORTED_OPERATION:
+            code = MetaContactListException.CODE_NOT_SUPPORTED_OPERATION;
+            break;
+        default:
+            code = MetaContactListException.CODE_NETWORK_ERROR;
+        }
+
+        return new MetaContactListException(
+            "failed to create contact " + contactID, ex, code);
+    }
+
     /**
      * Makes sure that directories in the whole path from the root to the
      * specified group have corresponding directories in the protocol indicated
@@ -504,6 +563,29 @@ public class MetaContactListServiceImpl
      */
     private ContactGroup resolveProtoPath(ProtocolProviderService protoProvider,
                                           MetaContactGroupImpl metaGroup)
+    {
+        return resolveProtoPath(protoProvider, metaGroup, true);
+    }
+
+    /**
+     * Makes sure that directories in the whole path from the root to the
+     * specified group have corresponding directories in the protocol indicated
+     * by <tt>protoProvider</tt>. The method does not return before creating
+     * all groups has completed.
+     *
+     * @param protoProvider a reference to the protocol provider where the
+     * groups should be created.
+     * @param metaGroup a ref to the last group of the path that should be
+     * created in the specified <tt>protoProvider</tt>
+     * @param fireEvents whether to fire an event for every meta group which
+     * a created proto group is added to, the bulk import firing a single
+     * event instead
+     *
+     * @return e reference to the newly created <tt>ContactGroup</tt>
+     */
+    private ContactGroup resolveProtoPath(ProtocolProviderService protoProvider,
+                                          MetaContactGroupImpl metaGroup,
+                                          boolean fireEvents)
     {
         Iterator<ContactGroup> contactGroupsForProv = metaGroup
             .getContactGroupsForProvider(protoProvider);
@@ -540,7 +622,8 @@ public class MetaContactListServiceImpl
             parentProtoGroup = opSetPersPresence.
                                     getServerStoredContactListRoot();
         } else {
-            parentProtoGroup = resolveProtoPath(protoProvider, parentMetaGroup);
+            parentProtoGroup
+                = resolveProtoPath(protoProvider, parentMetaGroup, fireEvents);
         }
 
         //create the proto group
@@ -590,11 +673,14 @@ public class MetaContactListServiceImpl
         //now add the proto group to the meta group.
         metaGroup.addProtoGroup(evtRetriever.evt.getSourceGroup());
 
-        fireMetaContactGroupEvent(
-            metaGroup
-            , evtRetriever.evt.getSourceProvider()
-            , evtRetriever.evt.getSourceGroup()
-            , MetaContactGroupEvent.CONTACT_GROUP_ADDED_TO_META_GROUP);
+        if (fireEvents)
+        {
+            fireMetaContactGroupEvent(
+                metaGroup
+                , evtRetriever.evt.getSourceProvider()
+                , evtRetriever.evt.getSourceGroup()
+                , MetaContactGroupEvent.CONTACT_GROUP_ADDED_TO_META_GROUP);
+        }
 
         return evtRetriever.evt.getSourceGroup();
     }
@@ -695,6 +781,237 @@ public class MetaContactListServiceImpl
         return newMetaContact;
     }
 
+    /**
+     * Creates a meta contact for each of many protocol specific contacts at
+     * once. The subscriptions of every group are sent without waiting for
+     * each other and their confirmations are then awaited together, the
+     * listeners receive a single <tt>CONTACTS_IMPORTED</tt> event and the
+     * storage manager writes the contact list once.
+     *
+     * @param provider the <tt>ProtocolProviderService</tt> which will create
+     * the protocol specific contacts.
+     * @param parentGroup the <tt>MetaContactGroup</tt> where the contacts and
+     * groups are imported.
+     * @param contactIDsByGroup the identifiers of the contacts to create by
+     * the name of the subgroup of <tt>parentGroup</tt> they belong to or by
+     * <tt>null</tt> for the contacts of <tt>parentGroup</tt> itself.
+     * @return the created meta contacts and groups and the contacts which
+     * failed
+     */
+    public MetaContactImportResult importMetaContacts(
+                                  ProtocolProviderService provider,
+                                  MetaContactGroup parentGroup,
+                                  Map<String, List<String>> contactIDsByGroup)
+    {
+        if (! (parentGroup instanceof MetaContactGroupImpl))
+        {
+            throw new IllegalArgumentException(parentGroup
+                + " is not an instance of MetaContactGroupImpl");
+        }
+
+        MetaContactImportResult result = new MetaContactImportResult();
+        OperationSetPersistentPresence opSetPersPresence =
+            provider.getOperationSet(OperationSetPersistentPresence.class);
+
+        if (opSetPersPresence == null)
+        {
+            for (List<String> contactIDs : contactIDsByGroup.values())
+            {
+                for (String contactID : contactIDs)
+                {
+                    result.addFailure(contactID, new MetaContactListException(
+                        "failed to create contact " + contactID
+                        , null
+                        , MetaContactListException
+                            .CODE_NOT_SUPPORTED_OPERATION));
+                }
+            }
+            return result;
+        }
+
+        for (Map.Entry<String, List<String>> entry
+                : contactIDsByGroup.entrySet())
+        {
+            MetaContactGroupImpl metaGroup = (MetaContactGroupImpl) parentGroup;
+
+            if (entry.getKey() != null)
+            {
+                metaGroup = (MetaContactGroupImpl)
+                    parentGroup.getMetaContactSubgroup(entry.getKey());
+                if (metaGroup == null)
+                {
+                    metaGroup = new MetaContactGroupImpl(this, entry.getKey());
+                    ((MetaContactGroupImpl) parentGroup).addSubgroup(metaGroup);
+                    result.addCreatedGroup(metaGroup);
+                }
+            }
+
+            importMetaContacts(provider, opSetPersPresence, metaGroup,
+                entry.getValue(), result);
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Imported contacts into " + parentGroup + ": "
+                + result);
+
+        if (!result.getCreatedMetaContacts().isEmpty()
+            || !result.getCreatedGroups().isEmpty())
+        {
+            fireMetaContactGroupEvent(parentGroup, provider, null,
+                MetaContactGroupEvent.CONTACTS_IMPORTED);
+        }
+        return result;
+    }
+
+    /**
+     * Creates the meta contacts of a group for
+     * {@link #importMetaContacts(ProtocolProviderService, MetaContactGroup,
+     * Map)}, without firing events.
+     *
+     * @param provider the <tt>ProtocolProviderService</tt> which will create
+     * the protocol specific contacts.
+     * @param opSetPersPresence the persistent presence operation set of
+     * <tt>provider</tt>
+     * @param metaGroup the group where the meta contacts are created
+     * @param contactIDs the identifiers of the contacts to create
+     * @param result the result where the created meta contacts and the
+     * failures are recorded
+     */
+    private void importMetaContacts(
+                            ProtocolProviderService provider,
+                            OperationSetPersistentPresence opSetPersPresence,
+                            MetaContactGroupImpl metaGroup,
+                            List<String> contactIDs,
+                            MetaContactImportResult result)
+    {
+        String accountID = provider.getAccountID().getAccountUniqueID();
+        Set<String> pendingIDs = new LinkedHashSet<String>();
+
+        // an identifier repeated in the list is created once
+        for (String contactID : contactIDs)
+        {
+            if (findMetaContactByContact(contactID, accountID) != null)
+            {
+                result.addFailure(contactID, new MetaContactListException(
+                    "failed to create contact " + contactID
+                    , null
+                    , MetaContactListException
+                        .CODE_CONTACT_ALREADY_EXISTS_ERROR));
+            }
+            else
+                pendingIDs.add(contactID);
+        }
+        if (pendingIDs.isEmpty())
+            return;
+
+        ContactGroup parentProtoGroup;
+
+        try
+        {
+            parentProtoGroup = resolveProtoPath(provider, metaGroup, false);
+            if (parentProtoGroup == null)
+            {
+                throw new MetaContactListException(
+                    "Could not obtain proto group parent for " + metaGroup
+                    , null
+                    , MetaContactListException.CODE_NETWORK_ERROR);
+            }
+        }
+        catch (MetaContactListException ex)
+        {
+            for (String contactID : pendingIDs)
+                result.addFailure(contactID, ex);
+            return;
+        }
+
+        BulkSubscriptionEventRetriever evtRetriever
+            = new BulkSubscriptionEventRetriever(pendingIDs);
+        Set<String> failedIDs = new HashSet<String>();
+
+        for (String contactID : pendingIDs)
+            addContactToEventIgnoreList(contactID, provider);
+
+        opSetPersPresence.addSubscriptionListener(evtRetriever);
+        opSetPersPresence.addServerStoredGroupChangeListener(evtRetriever);
+
+        try
+        {
+            // send all the subscriptions before waiting for any of them
+            for (String contactID : pendingIDs)
+            {
+                try
+                {
+                    if(metaGroup.equals(rootMetaGroup))
+                        opSetPersPresence.subscribe(contactID);
+                    else
+                        opSetPersPresence.subscribe(parentProtoGroup, contactID);
+                }
+                catch (OperationFailedException ex)
+                {
+                    evtRetriever.cancel(contactID);
+                    failedIDs.add(contactID);
+                    result.addFailure(contactID,
+                        createSubscriptionException(contactID, ex));
+                }
+                catch (Exception ex)
+                {
+                    evtRetriever.cancel(contactID);
+                    failedIDs.add(contactID);
+                    result.addFailure(contactID, new MetaContactListException(
+                        "failed to create contact " + contactID
+                        , ex
+                        , MetaContactListException.CODE_NETWORK_ERROR));
+                }
+            }
+
+            evtRetriever.waitForEvents(CONTACT_LIST_MODIFICATION_TIMEOUT);
+        }
+        finally
+        {
+            for (String contactID : pendingIDs)
+                removeContactFromEventIgnoreList(contactID, provider);
+            opSetPersPresence.removeSubscriptionListener(evtRetriever);
+            opSetPersPresence.removeServerStoredGroupChangeListener(
+                evtRetriever);
+        }
+
+        for (String contactID : pendingIDs)
+        {
+            if (failedIDs.contains(contactID))
+                continue;
+
+            EventObject evt = evtRetriever.getEvent(contactID);
+
+            if (evt == null)
+            {
+                result.addFailure(contactID, new MetaContactListException(
+                    "Failed to create a contact with address: " + contactID
+                    , null
+                    , MetaContactListException.CODE_NETWORK_ERROR));
+            }
+            else if (evt instanceof SubscriptionEvent
+                && ((SubscriptionEvent) evt).getEventID()
+                    == SubscriptionEvent.SUBSCRIPTION_FAILED)
+            {
+                result.addFailure(contactID, new MetaContactListException(
+                    "Failed to create a contact with address: "
+                    + contactID + " "
+                    + ((SubscriptionEvent) evt).getErrorReason()
+                    , null
+                    , MetaContactListException.CODE_UNKNOWN_ERROR));
+            }
+            else
+            {
+                MetaContactImpl newMetaContact = new MetaContactImpl();
+
+                newMetaContact.addProtoContact(
+                    evtRetriever.getContact(contactID));
+                metaGroup.addMetaContact(newMetaContact);
+                result.addCreatedMetaContact(newMetaContact);
+            }
+        }
+    }
+
     /**
      * Creates a <tt>MetaContactGroup</tt> with the specified group name.
      * The meta contact group would only be created locally and resolved
@@ -1245,7 +1562,8 @@ public class MetaContactListServiceImpl
     {
         synchronized (metaContactListListeners)
         {
-            this.metaContactListListeners.remove(listener);
+            if (this.metaContactListListeners.remove(listener))
+                eventDispatcher.listenerRemoved(listener);
         }
     }
 
@@ -1492,7 +1810,18 @@ public class MetaContactListServiceImpl
     public MetaContactGroup findMetaContactGroupByContactGroup
         (ContactGroup contactGroup)
     {
-        return rootMetaGroup.findMetaContactGroupByContactGroup(contactGroup);
+        MetaContactGroup metaGroup
+            = index.findMetaContactGroupByContactGroup(contactGroup);
+
+        // the hash code of some protocol groups changes when they are
+        // renamed, the groups are few so they can still be searched
+        if (metaGroup == null)
+        {
+            metaGroup
+                = rootMetaGroup.findMetaContactGroupByContactGroup(
+                        contactGroup);
+        }
+        return metaGroup;
     }
 
     /**
@@ -1510,7 +1839,13 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByContact(Contact contact)
     {
-        return rootMetaGroup.findMetaContactByContact(contact);
+        MetaContact metaContact = index.findMetaContactByContact(contact);
+
+        // the index only knows the exact addresses, some protocol contacts
+        // also match other forms of their address
+        if (metaContact == null)
+            metaContact = rootMetaGroup.findMetaContactByContact(contact);
+        return metaContact;
     }
 
     /**
@@ -1533,8 +1868,16 @@ public class MetaContactListServiceImpl
     public MetaContact findMetaContactByContact(String contactAddress,
                                                 String accountID)
     {
-        return rootMetaGroup.findMetaContactByContact(contactAddress
-                                                      , accountID);
+        MetaContact metaContact
+            = index.findMetaContactByContact(contactAddress, accountID);
+
+        if (metaContact == null)
+        {
+            metaContact
+                = rootMetaGroup.findMetaContactByContact(
+                        contactAddress, accountID);
+        }
+        return metaContact;
     }
 
     /**
@@ -1547,8 +1890,7 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByMetaUID(String metaContactID)
     {
-
-        return rootMetaGroup.findMetaContactByMetaUID(metaContactID);
+        return index.findMetaContactByMetaUID(metaContactID);
     }
 
     /**
@@ -1562,7 +1904,7 @@ public class MetaContactListServiceImpl
      */
     public MetaContactGroup findMetaContactGroupByMetaUID(String metaGroupID)
     {
-        return rootMetaGroup.findMetaContactGroupByMetaUID(metaGroupID);
+        return index.findMetaContactGroupByMetaUID(metaGroupID);
     }
 
     /**
@@ -1889,6 +2231,12 @@ public class MetaContactListServiceImpl
                 logger.error("Failed to load contacts for account "
                              + provider.getAccountID().getAccountUniqueID(), exc);
             }
+
+            // a single event for whatever was loaded rather than one for
+            // every loaded group and meta contact
+            fireMetaContactGroupEvent(rootMetaGroup, provider, null,
+                MetaContactGroupEvent.CONTACT_LIST_LOADED);
+
             synchronizeOpSetWithLocalContactList(opSetPersPresence);
         }
         else
@@ -2857,20 +3205,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl event: "
                      + evt);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            switch (evt.getEventID())
-            {
-                case MetaContactEvent.META_CONTACT_ADDED:
-                    listener.metaContactAdded(evt);
-                    break;
-                case MetaContactEvent.META_CONTACT_REMOVED:
-                    listener.metaContactRemoved(evt);
-                    break;
-                default:
-                    logger.error("Unknown event type " + evt.getEventID());
-            }
-        }
+        eventDispatcher.fireEvent(evt, getMetaContactListListeners());
     }
 
     /**
@@ -2911,26 +3246,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl property change event: "
                      + event);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            if (event instanceof MetaContactMovedEvent)
-            {
-                listener.metaContactMoved( (MetaContactMovedEvent) event);
-            }
-            else if (event instanceof MetaContactRenamedEvent)
-            {
-                listener.metaContactRenamed( (MetaContactRenamedEvent) event);
-            }
-            else if (event instanceof MetaContactModifiedEvent)
-            {
-                listener.metaContactModified( (MetaContactModifiedEvent) event);
-            }
-            else if (event instanceof MetaContactAvatarUpdateEvent)
-            {
-                listener.metaContactAvatarUpdated(
-                    (MetaContactAvatarUpdateEvent) event);
-            }
-        }
+        eventDispatcher.fireEvent(event, getMetaContactListListeners());
     }
 
     /**
@@ -2963,25 +3279,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl property change event: "
                      + event);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_ADDED))
-            {
-                listener.protoContactAdded(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MOVED))
-            {
-                listener.protoContactMoved(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_REMOVED))
-            {
-                listener.protoContactRemoved(event);
-            }
-            else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MODIFIED))
-            {
-                listener.protoContactModified(event);
-            }
-        }
+        eventDispatcher.fireEvent(event, getMetaContactListListeners());
     }
 
     /**
@@ -3047,11 +3345,8 @@ public class MetaContactListServiceImpl
 
         parentGroup.addSubgroup(newMetaGroup);
 
-        //I don't think this method needs to produce events since it is
-        //currently only called upon initialization ... but it doesn't hurt
-        //trying
-        fireMetaContactGroupEvent(newMetaGroup, null, null
-            , MetaContactGroupEvent.META_CONTACT_GROUP_ADDED);
+        // no event here, the listeners are notified with a single
+        // CONTACT_LIST_LOADED event once all the stored contacts are loaded
 
         return newMetaGroup;
     }
@@ -3176,10 +3471,6 @@ public class MetaContactListServiceImpl
 
         parentGroup.addMetaContact(newMetaContact);
 
-        fireMetaContactEvent(   newMetaContact,
-                                parentGroup,
-                                MetaContactEvent.META_CONTACT_ADDED);
-
         if (logger.isTraceEnabled())
             logger.trace("Created meta contact: " + newMetaContact);
 
@@ -3217,34 +3508,7 @@ public class MetaContactListServiceImpl
             logger.trace("Will dispatch the following mcl event: "
                      + evt);
 
-        for (MetaContactListListener listener : getMetaContactListListeners())
-        {
-            switch (eventID)
-            {
-                case MetaContactGroupEvent.META_CONTACT_GROUP_ADDED:
-                    listener.metaContactGroupAdded(evt);
-                    break;
-                case MetaContactGroupEvent.META_CONTACT_GROUP_REMOVED:
-                    listener.metaContactGroupRemoved(evt);
-                    break;
-                case MetaContactGroupEvent.CHILD_CONTACTS_REORDERED:
-                    listener.childContactsReordered(evt);
-                    break;
-                case MetaContactGroupEvent
-                    .META_CONTACT_GROUP_RENAMED:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_RENAMED_IN_META_GROUP:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_REMOVED_FROM_META_GROUP:
-                case MetaContactGroupEvent
-                    .CONTACT_GROUP_ADDED_TO_META_GROUP:
-                    listener.metaContactGroupModified(evt);
-                    break;
-                default:
-                    logger.error("Unknown event type (" + eventID
-                                 + ") for event: " + evt);
-            }
-        }
+        eventDispatcher.fireEvent(evt, getMetaContactListListeners());
     }
 
     /**
@@ -3478,6 +3742,212 @@ public class MetaContactListServiceImpl
         }
     }
 
+    /**
+     * Utility class used for blocking the current thread until the events
+     * confirming the creation of several contacts are all delivered.
+     */
+    private static class BulkSubscriptionEventRetriever
+        implements SubscriptionListener,
+                   ServerStoredGroupListener
+    {
+        /**
+         * The addresses of the contacts whose creation is still awaited.
+         */
+        private final Set<String> pendingAddresses;
+
+        /**
+         * The events received for each address.
+         */
+        private final Map<String, EventObject> events
+            = new HashMap<String, EventObject>();
+
+        /**
+         * The contacts created or failed for each address.
+         */
+        private final Map<String, Contact> sourceContacts
+            = new HashMap<String, Contact>();
+
+        /**
+         * Creates an instance of the retriever that will wait for events
+         * confirming the creation of the subscriptions with the specified
+         * addresses.
+         * @param subscriptionAddresses the addresses of the contacts whose
+         * creation we're waiting for.
+         */
+        BulkSubscriptionEventRetriever(Set<String> subscriptionAddresses)
+        {
+            this.pendingAddresses = new HashSet<String>(subscriptionAddresses);
+        }
+
+        /**
+         * Records the event delivered for a pending address and wakes up the
+         * waiting thread once no address is pending.
+         * @param address the address of the contact
+         * @param contact the contact the event is about
+         * @param event the event
+         */
+        private void received(String address, Contact contact,
+                              EventObject event)
+        {
+            if (pendingAddresses.remove(address))
+            {
+                events.put(address, event);
+                sourceContacts.put(address, contact);
+                if (pendingAddresses.isEmpty())
+                    this.notifyAll();
+            }
+        }
+
+        /**
+         * Stops waiting for an address whose subscription could not be sent.
+         * @param address the address of the contact
+         */
+        public synchronized void cancel(String address)
+        {
+            if (pendingAddresses.remove(address) && pendingAddresses.isEmpty())
+                this.notifyAll();
+        }
+
+        /**
+         * Called whenever an indication is received that a new server stored
+         * group is created.
+         * @param event a ServerStoredGroupEvent containing a reference to the
+         * newly created group.
+         */
+        public synchronized void groupCreated(ServerStoredGroupEvent event)
+        {
+            for (String address : new ArrayList<String>(pendingAddresses))
+            {
+                Contact contact = event.getSourceGroup().getContact(address);
+
+                if (contact != null)
+                    received(address, contact, event);
+            }
+        }
+
+        /**
+         * Events delivered through this method are ignored
+         * @param event param ignored
+         */
+        public void groupResolved(ServerStoredGroupEvent event)
+        {}
+
+        /**
+         * Events delivered through this method are ignored
+         * @param event param ignored
+         */
+        public void groupRemoved(ServerStoredGroupEvent event)
+        {}
+
+        /**
+         * Events delivered through this method are ignored
+         * @param event param ignored
+         */
+        public void groupNameChanged(ServerStoredGroupEvent event)
+        {}
+
+        /**
+         * Called whenever an indication is received that a subscription is
+         * created.
+         * @param event a <tt>SubscriptionEvent</tt> containing a reference to
+         * the newly created contact.
+         */
+        public synchronized void subscriptionCreated(SubscriptionEvent event)
+        {
+            received(event.getSourceContact().getAddress(),
+                event.getSourceContact(), event);
+        }
+
+        /**
+         * Called whenever an indication is received that a subscription
+         * creation has failed.
+         * @param event a <tt>SubscriptionEvent</tt> containing a reference to
+         * the contact we are trying to subscribe.
+         */
+        public synchronized void subscriptionFailed(SubscriptionEvent event)
+        {
+            received(event.getSourceContact().getAddress(),
+                event.getSourceContact(), event);
+        }
+
+        /**
+         * Events delivered through this method are ignored
+         * @param event param ignored
+         */
+        public void subscriptionRemoved(SubscriptionEvent event)
+        {}
+
+        /**
+         * Events delivered through this method are ignored
+         * @param event param ignored
+         */
+        public void subscriptionMoved(SubscriptionMovedEvent event)
+        {}
+
+        /**
+         * Events delivered through this method are ignored
+         * @param event param ignored
+         */
+        public void subscriptionResolved(SubscriptionEvent event)
+        {}
+
+        /**
+         * Events delivered through this method are ignored
+         * @param event param ignored
+         */
+        public void contactModified(ContactPropertyChangeEvent event)
+        {}
+
+        /**
+         * Returns the event received for an address.
+         * @param address the address of the contact
+         * @return the event or <tt>null</tt> if none was received
+         */
+        public synchronized EventObject getEvent(String address)
+        {
+            return events.get(address);
+        }
+
+        /**
+         * Returns the contact the event received for an address is about.
+         * @param address the address of the contact
+         * @return the contact or <tt>null</tt> if no event was received
+         */
+        public synchronized Contact getContact(String address)
+        {
+            return sourceContacts.get(address);
+        }
+
+        /**
+         * Block the execution of the current thread until either an event is
+         * received for every address or milis miliseconds pass.
+         * @param millis the number of milis to wait upon determining a failure.
+         */
+        public synchronized void waitForEvents(long millis)
+        {
+            long deadline = System.currentTimeMillis() + millis;
+
+            while (!pendingAddresses.isEmpty())
+            {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0)
+                    break;
+                try
+                {
+                    this.wait(remaining);
+                }
+                catch (InterruptedException ex)
+                {
+                    logger.error(
+                        "Interrupted while waiting for contact creation"
+                        , ex);
+                    break;
+                }
+            }
+        }
+    }
+
     /**
      * Notifies this listener that the list of the <tt>OperationSet</tt>
      * capabilities of a <tt>Contact</tt> has changed.
@@ -21,6 +21,7 @@ import net.java.sip.communicator.impl.gui.main.chat.*;
 import net.java.sip.communicator.impl.gui.main.chat.conference.*;
 import net.java.sip.communicator.impl.gui.main.chat.filetransfer.*;
 import net.java.sip.communicator.plugin.desktoputil.*;
+import net.java.sip.communicator.plugin.desktoputil.SwingWorker;
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.filehistory.*;
 import net.java.sip.communicator.service.gui.*;
@@ -96,6 +97,18 @@ public class HistoryWindow
 
     private int lastProgress = 0;
 
+    /**
+     * The loader of the messages shown in the conversation panel, canceled
+     * when the messages of another period are requested.
+     */
+    private HistoryLoader messagesLoader;
+
+    /**
+     * The loader of the dates found for the last searched keyword, canceled
+     * when another keyword is searched.
+     */
+    private HistoryLoader keywordDatesLoader;
+
     /**
      * If the <code>historyContact</code> is a <code>MetaContact</code>,
      * contains the <code>OperationSetBasicInstantMessaging</code> instances to
@@ -227,10 +240,25 @@ public class HistoryWindow
             //init progress bar by precising the date that will be loaded.
             this.initProgressBar(startDate);
 
-            new MessagesLoader(startDate, endDate).start();
+            loadMessages(startDate, endDate);
         }
     }
 
+    /**
+     * Loads the messages of a period in the conversation panel, canceling
+     * the loading of the previously requested period.
+     * @param startDate the start date of the period
+     * @param endDate the end date of the period
+     */
+    private void loadMessages(Date startDate, Date endDate)
+    {
+        if (messagesLoader != null)
+            messagesLoader.cancel();
+
+        messagesLoader = new MessagesLoader(startDate, endDate);
+        messagesLoader.start();
+    }
+
     /**
      * Shows a history for a given keyword.
      * @param keyword the keyword to search
@@ -242,7 +270,14 @@ public class HistoryWindow
         chatConvPanel.clear();
         datesPanel.setLastSelectedIndex(-1);
 
-        new KeywordDatesLoader(keyword).start();
+        // the results of the previous search are not shown anymore
+        if (messagesLoader != null)
+            messagesLoader.cancel();
+        if (keywordDatesLoader != null)
+            keywordDatesLoader.cancel();
+
+        keywordDatesLoader = new KeywordDatesLoader(keyword);
+        keywordDatesLoader.start();
 
         searchKeyword = keyword;
     }
@@ -475,15 +510,100 @@ public class HistoryWindow
     }
 
     /**
-     * Loads history dates.
+     * Loads history in the background and shows it in the window unless it
+     * has been canceled meanwhile. The loaders run in the shared pool of the
+     * <tt>SwingWorker</tt>s. A canceled loader is interrupted and stops at
+     * the next loaded message it goes through, but the query of the history
+     * service it is waiting for cannot be interrupted and runs to its end.
      */
-    private class DatesLoader extends Thread
+    private abstract class HistoryLoader extends SwingWorker
     {
+        /**
+         * Indicates if this loader has been canceled. Set in the event
+         * dispatch thread.
+         */
+        private volatile boolean canceled = false;
+
+        /**
+         * Indicates if the history has been loaded and should be shown.
+         */
+        private volatile boolean loaded = false;
+
+        /**
+         * Loads the history in the background.
+         * @return <tt>null</tt>
+         */
         @Override
-        public void run()
+        protected final Object construct()
         {
-            Collection<Object> msgList = null;
+            loaded = load();
+            return null;
+        }
+
+        /**
+         * Cancels this loader, its results are not shown.
+         */
+        public void cancel()
+        {
+            canceled = true;
+            interrupt();
+        }
+
+        /**
+         * Indicates if this loader has been canceled, checked while going
+         * through the loaded messages.
+         * @return <tt>true</tt> if this loader has been canceled
+         */
+        protected boolean isCanceled()
+        {
+            return canceled;
+        }
+
+        /**
+         * Shows the loaded history unless this loader has been canceled.
+         */
+        @Override
+        protected void finished()
+        {
+            if (loaded && !canceled)
+                showHistory();
+        }
+
+        /**
+         * Logs the exception thrown while loading unless this loader has
+         * been canceled.
+         * @param exception the exception thrown while loading
+         */
+        @Override
+        protected void catchException(Throwable exception)
+        {
+            if (!canceled)
+                super.catchException(exception);
+        }
+
+        /**
+         * Loads the history. Called in a background thread.
+         * @return <tt>false</tt> if there is nothing to show
+         */
+        protected abstract boolean load();
 
+        /**
+         * Shows the loaded history in the window. Called in the event
+         * dispatch thread.
+         */
+        protected abstract void showHistory();
+    }
+
+    /**
+     * Loads history dates.
+     */
+    private class DatesLoader extends HistoryLoader
+    {
+        private Collection<Object> msgList = null;
+
+        @Override
+        protected boolean load()
+        {
             if (historyContact instanceof MetaContact)
             {
                 msgList = history.findByEndDate(
@@ -497,7 +617,7 @@ public class HistoryWindow
                     = (ChatRoomWrapper) historyContact;
 
                 if(chatRoomWrapper.getChatRoom() == null)
-                    return;
+                    return false;
 
                 msgList = history.findByEndDate(
                     HISTORY_FILTER,
@@ -508,6 +628,9 @@ public class HistoryWindow
             if (msgList != null)
             for (Object o : msgList)
             {
+                if (isCanceled())
+                    return false;
+
                 Date date = new Date(0);
 
                 if (o instanceof MessageDeliveredEvent)
@@ -556,27 +679,28 @@ public class HistoryWindow
                 }
             }
 
+            return true;
+        }
+
+        @Override
+        protected void showHistory()
+        {
             if((msgList != null) && (msgList.size() > 0))
             {
-                Runnable updateDatesPanel = new Runnable() {
-                    public void run() {
-                        Date date = null;
-                        for(Date curr : datesDisplayed)
-                        {
-                            date = curr;
-                            if(!datesPanel.containsDate(date))
-                                datesPanel.addDate(date);
-                        }
-                        if(date != null) {
-                            ignoreProgressDate = date;
-                        }
-                        //Initializes the conversation panel with the data of
-                        //the last conversation.
-                        int lastDateIndex = datesPanel.getDatesNumber() - 1;
-                        datesPanel.setSelected(lastDateIndex);
-                    }
-                };
-                SwingUtilities.invokeLater(updateDatesPanel);
+                Date date = null;
+                for(Date curr : datesDisplayed)
+                {
+                    date = curr;
+                    if(!datesPanel.containsDate(date))
+                        datesPanel.addDate(date);
+                }
+                if(date != null) {
+                    ignoreProgressDate = date;
+                }
+                //Initializes the conversation panel with the data of
+                //the last conversation.
+                int lastDateIndex = datesPanel.getDatesNumber() - 1;
+                datesPanel.setSelected(lastDateIndex);
             }
         }
      }
@@ -584,13 +708,14 @@ public class HistoryWindow
     /**
      * Loads history messages in the right panel.
      */
-    private class MessagesLoader extends Thread
+    private class MessagesLoader extends HistoryLoader
     {
         private final Date startDate;
         private final Date endDate;
+        private Collection<Object> msgList = null;
 
         /**
-         * Creates a MessageLoader thread charged to load history messages in
+         * Creates a MessageLoader charged to load history messages in
          * the right panel.
          *
          * @param startDate the start date of the history to load
@@ -603,10 +728,8 @@ public class HistoryWindow
         }
 
         @Override
-        public void run()
+        protected boolean load()
         {
-            final Collection<Object> msgList;
-
             if(historyContact instanceof MetaContact)
             {
                 msgList = history.findByPeriod(
@@ -620,42 +743,39 @@ public class HistoryWindow
                     = (ChatRoomWrapper) historyContact;
 
                 if(chatRoomWrapper.getChatRoom() == null)
-                    return;
+                    return false;
 
                 msgList = history.findByPeriod(
                     HISTORY_FILTER,
                     chatRoomWrapper.getChatRoom(),
                     startDate, endDate);
             }
-            else
-                msgList = null;
 
-            Runnable updateMessagesPanel = new Runnable()
-            {
-                public void run()
-                {
-                    HTMLDocument doc = createHistory(msgList);
+            return true;
+        }
 
-                    if(searchKeyword == null || searchKeyword.length() == 0)
-                    {
-                        dateHistoryTable.put(startDate, doc);
-                    }
-                }
-            };
-            SwingUtilities.invokeLater(updateMessagesPanel);
+        @Override
+        protected void showHistory()
+        {
+            HTMLDocument doc = createHistory(msgList);
+
+            if(searchKeyword == null || searchKeyword.length() == 0)
+            {
+                dateHistoryTable.put(startDate, doc);
+            }
         }
     }
 
     /**
      * Loads dates found for keyword.
      */
-    private class KeywordDatesLoader extends Thread
+    private class KeywordDatesLoader extends HistoryLoader
     {
         private Vector<Date> keywordDatesVector = new Vector<Date>();
         private final String keyword;
 
         /**
-         * Creates a KeywordDatesLoader thread charged to load a list of dates
+         * Creates a KeywordDatesLoader charged to load a list of dates
          * of messages found by the given keyword.
          *
          * @param keyword the keyword to search for
@@ -666,7 +786,7 @@ public class HistoryWindow
         }
 
         @Override
-        public void run()
+        protected boolean load()
         {
             Collection<Object> msgList = null;
 
@@ -682,7 +802,7 @@ public class HistoryWindow
                     = (ChatRoomWrapper) historyContact;
 
                 if (chatRoomWrapper.getChatRoom() == null)
-                    return;
+                    return false;
 
                 msgList = history.findByKeyword(
                     HISTORY_FILTER,
@@ -692,6 +812,9 @@ public class HistoryWindow
             if (msgList != null)
             for (Object o : msgList)
             {
+                if (isCanceled())
+                    return false;
+
                 Date date = new Date(0);
 
                 if (o instanceof MessageDeliveredEvent)
@@ -717,49 +840,48 @@ public class HistoryWindow
                 }
             }
 
-            Runnable updateDatesPanel = new Runnable()
+            return true;
+        }
+
+        @Override
+        protected void showHistory()
+        {
+            datesPanel.removeAllDates();
+            if(keywordDatesVector.size() > 0)
             {
-                public void run()
+                Date date = null;
+                for(int i = 0; i < keywordDatesVector.size(); i++)
                 {
-                    datesPanel.removeAllDates();
-                    if(keywordDatesVector.size() > 0)
-                    {
-                        Date date = null;
-                        for(int i = 0; i < keywordDatesVector.size(); i++)
-                        {
-                            date = keywordDatesVector.get(i);
-
-                            /* I have tried to remove and add dates in the
-                             * datesList. A lot of problems occured because
-                             * it seems that the list generates selection events
-                             * when removing elements. This was solved but after
-                             * that a problem occured when one and the same
-                             * selection was done twice.
-                             *
-                             * if(!keywordDatesVector.contains(date)) {
-                             *    datesPanel.removeDate(date);
-                             * }
-                             * else {
-                             *    if(!datesPanel.containsDate(date)) {
-                             *        datesPanel.addDate(date);
-                             *    }
-                            }*/
-                            if(!datesPanel.containsDate(date))
-                                datesPanel.addDate(date);
-                        }
-                        if(date != null)
-                        {
-                            ignoreProgressDate = date;
-                        }
-                        datesPanel.setSelected(datesPanel.getDatesNumber() - 1);
-                    }
-                    else
-                    {
-                        chatConvPanel.setDefaultContent();
-                    }
+                    date = keywordDatesVector.get(i);
+
+                    /* I have tried to remove and add dates in the
+                     * datesList. A lot of problems occured because
+                     * it seems that the list generates selection events
+                     * when removing elements. This was solved but after
+                     * that a problem occured when one and the same
+                     * selection was done twice.
+                     *
+                     * if(!keywordDatesVector.contains(date)) {
+                     *    datesPanel.removeDate(date);
+                     * }
+                     * else {
+                     *    if(!datesPanel.containsDate(date)) {
+                     *        datesPanel.addDate(date);
+                     *    }
+                    }*/
+                    if(!datesPanel.containsDate(date))
+                        datesPanel.addDate(date);
+                }
+                if(date != null)
+                {
+                    ignoreProgressDate = date;
                 }
-            };
-            SwingUtilities.invokeLater(updateDatesPanel);
+                datesPanel.setSelected(datesPanel.getDatesNumber() - 1);
+            }
+            else
+            {
+                chatConvPanel.setDefaultContent();
+            }
         }
     }
 
@@ -787,6 +909,11 @@ public class HistoryWindow
             GuiActivator.getUIService().getHistoryWindowManager()
                 .removeHistoryWindowForContact(historyContact);
 
+            if (messagesLoader != null)
+                messagesLoader.cancel();
+            if (keywordDatesLoader != null)
+                keywordDatesLoader.cancel();
+
             datesPanel.dispose();
             chatConvPanel.dispose();
 
@@ -958,6 +1085,6 @@ public class HistoryWindow
         //init progress bar by precising the date that will be loaded.
         this.initProgressBar(startDate);
 
-        new MessagesLoader(startDate, getNextDateFromHistory(startDate)).start();
+        loadMessages(startDate, getNextDateFromHistory(startDate));
     }
 }
@@ -106,12 +106,12 @@ public class GroupNode
     }
 
     /**
-     * Creates a <tt>ContactNode</tt> for the given <tt>uiContact</tt>,
-     * adds it to this group and performs a sort at the end.
+     * Creates a <tt>ContactNode</tt> for the given <tt>uiContact</tt> and
+     * inserts it in this group at its sorted position, found by a binary
+     * search.
      * @param uiContact the <tt>UIContactImpl</tt> to add
      * @return the created <tt>ContactNode</tt>
      */
-    @SuppressWarnings("unchecked")
     public ContactNode sortedAddContact(UIContactImpl uiContact)
     {
         if (logger.isDebugEnabled())
@@ -121,19 +121,87 @@ public class GroupNode
         ContactNode contactNode = new ContactNode(uiContact);
         uiContact.setContactNode(contactNode);
 
-        add(contactNode);
-
-        // TODO: Optimize!
-        Collections.sort(children, nodeComparator);
+        int contactIndex = getInsertionIndex(contactNode);
 
-        int contactIndex = getIndex(contactNode);
+        insert(contactNode, contactIndex);
 
-        if (contactIndex > -1)
-            fireNodeInserted(contactIndex);
+        fireNodeInserted(contactIndex);
 
         return contactNode;
     }
 
+    /**
+     * Creates a <tt>ContactNode</tt> for each of the given
+     * <tt>uiContacts</tt> and adds them to this group at their sorted
+     * positions. The new nodes are sorted once and merged with the children
+     * of this group, and a single event is fired for all of them, which makes
+     * adding many contacts at once, as the filters do, much cheaper than
+     * adding them one by one.
+     * @param uiContacts the <tt>UIContactImpl</tt>s to add
+     * @return the created <tt>ContactNode</tt>s
+     */
+    @SuppressWarnings("unchecked")
+    public List<ContactNode> sortedAddContacts(
+        Collection<? extends UIContactImpl> uiContacts)
+    {
+        List<ContactNode> contactNodes
+            = new ArrayList<ContactNode>(uiContacts.size());
+
+        for (UIContactImpl uiContact : uiContacts)
+        {
+            ContactNode contactNode = new ContactNode(uiContact);
+            uiContact.setContactNode(contactNode);
+
+            contactNodes.add(contactNode);
+        }
+
+        if (contactNodes.isEmpty())
+            return contactNodes;
+
+        ContactListNode[] newNodes
+            = sortNodes(contactNodes.toArray(
+                    new ContactListNode[contactNodes.size()]));
+        ContactListNode[] oldNodes = new ContactListNode[getChildCount()];
+        int[] insertedIndexes = new int[newNodes.length];
+
+        for (int i = 0; i < oldNodes.length; i++)
+            oldNodes[i] = (ContactListNode) getChildAt(i);
+
+        if (children == null)
+            children = new Vector<TreeNode>();
+        else
+            children.removeAllElements();
+
+        // Merges the sorted new nodes into the children, which keep their
+        // order.
+        int oldIndex = 0;
+        int newIndex = 0;
+
+        while (newIndex < newNodes.length)
+        {
+            if (oldIndex < oldNodes.length
+                && nodeComparator.compare(
+                        oldNodes[oldIndex], newNodes[newIndex]) <= 0)
+            {
+                children.addElement(oldNodes[oldIndex++]);
+            }
+            else
+            {
+                ContactNode contactNode = (ContactNode) newNodes[newIndex];
+
+                contactNode.setParent(this);
+                insertedIndexes[newIndex++] = children.size();
+                children.addElement(contactNode);
+            }
+        }
+        while (oldIndex < oldNodes.length)
+            children.addElement(oldNodes[oldIndex++]);
+
+        treeModel.nodesWereInserted(this, insertedIndexes);
+
+        return contactNodes;
+    }
+
     /**
      * Removes the node corresponding to the given <tt>uiContact</tt> from this
      * group.
@@ -215,31 +283,68 @@ public class GroupNode
     }
 
     /**
-     * Creates a <tt>GroupNode</tt> for the given <tt>uiGroup</tt>,
-     * adds it to this group node and performs a sort at the end.
+     * Creates a <tt>GroupNode</tt> for the given <tt>uiGroup</tt> and
+     * inserts it in this group node at its sorted position, found by a
+     * binary search.
      * @param uiGroup the <tt>UIGroupImpl</tt> to add
      * @return the created <tt>GroupNode</tt>
      */
-    @SuppressWarnings("unchecked")
     public GroupNode sortedAddContactGroup(UIGroupImpl uiGroup)
     {
         GroupNode groupNode = new GroupNode(treeModel, uiGroup);
 
         uiGroup.setGroupNode(groupNode);
 
-        add(groupNode);
-
-        // TODO: Optimize!
-        Collections.sort(children, nodeComparator);
+        int groupIndex = getInsertionIndex(groupNode);
 
-        int contactIndex = getIndex(groupNode);
+        insert(groupNode, groupIndex);
 
-        if (contactIndex > -1)
-            fireNodeInserted(contactIndex);
+        fireNodeInserted(groupIndex);
 
         return groupNode;
     }
 
+    /**
+     * Moves the given <tt>contactNode</tt> of this group to its sorted
+     * position, when its contact has changed, e.g. its status. If the node is
+     * already in place only a change of the node is fired, otherwise its
+     * removal and its insertion at the new position are fired, instead of
+     * sorting and refreshing the whole group.
+     * @param contactNode the <tt>ContactNode</tt> to move
+     */
+    @SuppressWarnings("unchecked")
+    public void repositionContact(ContactNode contactNode)
+    {
+        int index = getIndex(contactNode);
+
+        if (index < 0)
+            return;
+
+        int newIndex = getInsertionIndex(contactNode, index);
+
+        if (newIndex == index)
+        {
+            treeModel.nodesChanged(this, new int[]{index});
+            return;
+        }
+
+        TreePath selectionPath = getLeadSelectionPath();
+        int selectedIndex = getLeadSelectionRow();
+
+        // We move the node directly in the list, thus skipping all the checks
+        // verifying if the node belongs to this parent.
+        children.removeElementAt(index);
+        fireNodeRemoved(contactNode, index);
+
+        children.insertElementAt(contactNode, newIndex);
+        fireNodeInserted(newIndex);
+
+        if (selectionPath != null)
+            treeModel.getParentTree().setSelectionPath(selectionPath);
+
+        refreshSelection(selectedIndex, getLeadSelectionRow());
+    }
+
     /**
      * Returns a collection of all direct children of this <tt>GroupNode</tt>.
      *
@@ -273,11 +378,11 @@ public class GroupNode
     }
 
     /**
-     * Sorts the children of this node.
+     * Sorts the children of this node. Only the children which have moved
+     * are refreshed.
      * @param treeModel the <tt>ContactListTreeModel</tt>, which should be
      * refreshed
      */
-    @SuppressWarnings("unchecked")
     public void sort(final ContactListTreeModel treeModel)
     {
         if (children != null)
@@ -289,9 +394,8 @@ public class GroupNode
                     TreePath selectionPath = getLeadSelectionPath();
                     int oldSelectionIndex = getLeadSelectionRow();
 
-                    Collections.sort(children, nodeComparator);
-
-                    fireNodesChanged();
+                    if (!sortChildren())
+                        return;
 
                     treeModel.getParentTree().setSelectionPath(selectionPath);
 
@@ -364,17 +468,141 @@ public class GroupNode
     }
 
     /**
-     * Notifies all interested listeners that all nodes have changed.
+     * Notifies all interested listeners that the nodes from
+     * <tt>fromIndex</tt> to <tt>toIndex</tt> have changed.
+     * @param fromIndex the index of the first changed node
+     * @param toIndex the index of the last changed node
      */
-    private void fireNodesChanged()
+    private void fireNodesChanged(int fromIndex, int toIndex)
+    {
+        int[] changedIndexes = new int[toIndex - fromIndex + 1];
+
+        for (int i = 0; i < changedIndexes.length; i++)
+            changedIndexes[i] = fromIndex + i;
+
+        treeModel.nodesChanged(this, changedIndexes);
+    }
+
+    /**
+     * Sorts the children of this node and notifies all interested listeners
+     * of the range of nodes which have moved.
+     * @return <tt>true</tt> if any node has moved, <tt>false</tt> if the
+     * children were already sorted
+     */
+    @SuppressWarnings("unchecked")
+    private boolean sortChildren()
     {
         int childCount = getChildCount();
-        int[] changedIndexes = new int[childCount];
+        ContactListNode[] nodes = new ContactListNode[childCount];
 
         for (int i = 0; i < childCount; i++)
-            changedIndexes[i] = i;
+            nodes[i] = (ContactListNode) getChildAt(i);
 
-        treeModel.nodesChanged(this, changedIndexes);
+        ContactListNode[] sortedNodes = sortNodes(nodes);
+
+        int fromIndex = 0;
+        while (fromIndex < childCount
+                && sortedNodes[fromIndex] == nodes[fromIndex])
+            fromIndex++;
+
+        if (fromIndex == childCount)
+            return false;
+
+        int toIndex = childCount - 1;
+        while (sortedNodes[toIndex] == nodes[toIndex])
+            toIndex--;
+
+        for (int i = fromIndex; i <= toIndex; i++)
+            children.setElementAt(sortedNodes[i], i);
+
+        fireNodesChanged(fromIndex, toIndex);
+
+        return true;
+    }
+
+    /**
+     * Returns the index at which the given <tt>node</tt> should be inserted
+     * in the sorted children of this group, after the children equal to it.
+     * @param node the node to insert
+     * @return the index at which <tt>node</tt> should be inserted
+     */
+    private int getInsertionIndex(ContactListNode node)
+    {
+        return getInsertionIndex(node, -1);
+    }
+
+    /**
+     * Returns the index at which the given <tt>node</tt> should be inserted
+     * in the sorted children of this group, as if the child at
+     * <tt>skippedIndex</tt> was not there. Like a stable sort, the node is
+     * inserted after the children equal to it which were before
+     * <tt>skippedIndex</tt> and before the ones which were after it.
+     * @param node the node to insert
+     * @param skippedIndex the index of a child to ignore, or -1
+     * @return the index at which <tt>node</tt> should be inserted, once the
+     * child at <tt>skippedIndex</tt> has been removed
+     */
+    private int getInsertionIndex(ContactListNode node, int skippedIndex)
+    {
+        int low = 0;
+        int high = getChildCount();
+
+        if (skippedIndex >= 0)
+            high--;
+
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            boolean afterSkipped
+                = (skippedIndex >= 0 && middle >= skippedIndex);
+            int childIndex = afterSkipped ? middle + 1 : middle;
+            int result = nodeComparator.compare(
+                    (ContactListNode) getChildAt(childIndex), node);
+
+            if (result < 0 || (result == 0 && !afterSkipped))
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the given <tt>nodes</tt> sorted in the order of the
+     * <tt>NodeComparator</tt>, nodes which are equal keeping their order. The
+     * source index of each node is read once, so that the order cannot change
+     * while the nodes are sorted if the source reorders them meanwhile.
+     * @param nodes the nodes to sort
+     * @return the sorted nodes
+     */
+    private static ContactListNode[] sortNodes(final ContactListNode[] nodes)
+    {
+        final int[] sourceIndexes = new int[nodes.length];
+        Integer[] positions = new Integer[nodes.length];
+
+        for (int i = 0; i < nodes.length; i++)
+        {
+            sourceIndexes[i] = nodes[i].getSourceIndex();
+            positions[i] = i;
+        }
+
+        // Arrays.sort is stable for objects.
+        Arrays.sort(positions, new Comparator<Integer>()
+        {
+            public int compare(Integer position1, Integer position2)
+            {
+                return NodeComparator.compare(
+                    nodes[position1], sourceIndexes[position1],
+                    nodes[position2], sourceIndexes[position2]);
+            }
+        });
+
+        ContactListNode[] sortedNodes = new ContactListNode[nodes.length];
+
+        for (int i = 0; i < positions.length; i++)
+            sortedNodes[i] = nodes[positions[i]];
+
+        return sortedNodes;
     }
 
     /**
@@ -395,6 +623,25 @@ public class GroupNode
          * one, 0 if there's no matter
          */
         public int compare(ContactListNode node1, ContactListNode node2)
+        {
+            return compare(
+                node1, node1.getSourceIndex(),
+                node2, node2.getSourceIndex());
+        }
+
+        /**
+         * Compares two nodes for order given their source indexes, which
+         * <tt>sortNodes</tt> reads only once per node.
+         * @param node1 the first <tt>ContactListNode</tt> to compare
+         * @param index1 the source index of <tt>node1</tt>
+         * @param node2 the second <tt>ContactListNode</tt> to compare
+         * @param index2 the source index of <tt>node2</tt>
+         * @return -1 if the first node should be positioned before the second
+         * one, 1 if the first argument should be positioned after the second
+         * one, 0 if there's no matter
+         */
+        static int compare(ContactListNode node1, int index1,
+                           ContactListNode node2, int index2)
         {
             // Child groups are shown after child contacts.
             if (node1 instanceof GroupNode)
@@ -408,9 +655,9 @@ public class GroupNode
                     return -1;
             }
 
-            int index1 = node1.getSourceIndex();
-            int index2 = node2.getSourceIndex();
-
+            // Nodes whose indexes are both unknown keep their order.
+            if (index1 < 0 && index2 < 0)
+                return 0;
             // If the first index is unknown then we position it at the end.
             if (index1 < 0)
                 return 1;
@@ -200,6 +200,8 @@ public class PresenceFilter
                                 int resultCount)
     {
         Iterator<MetaContact> childContacts = metaGroup.getChildContacts();
+        UIGroup groupUIGroup = null;
+        List<UIContact> initialUIContacts = new ArrayList<UIContact>();
 
         while (childContacts.hasNext() && !query.isCanceled())
         {
@@ -210,16 +212,16 @@ public class PresenceFilter
                 resultCount++;
                 if (resultCount <= INITIAL_CONTACT_COUNT)
                 {
-                    UIGroup uiGroup = null;
-                    if (!MetaContactListSource.isRootGroup(metaGroup))
+                    if (groupUIGroup == null
+                        && !MetaContactListSource.isRootGroup(metaGroup))
                     {
                         synchronized (metaGroup)
                         {
-                            uiGroup = MetaContactListSource
+                            groupUIGroup = MetaContactListSource
                                 .getUIGroup(metaGroup);
 
-                            if (uiGroup == null)
-                                uiGroup = MetaContactListSource
+                            if (groupUIGroup == null)
+                                groupUIGroup = MetaContactListSource
                                     .createUIGroup(metaGroup);
                         }
                     }
@@ -235,11 +237,7 @@ public class PresenceFilter
                             .createUIContact(metaContact);
                     }
 
-                    GuiActivator.getContactList().addContact(
-                            newUIContact,
-                            uiGroup,
-                            true,
-                            true);
+                    initialUIContacts.add(newUIContact);
 
                     query.setInitialResultCount(resultCount);
                 }
@@ -248,6 +246,11 @@ public class PresenceFilter
             }
         }
 
+        // The initial contacts of the group are added at once.
+        if (!initialUIContacts.isEmpty())
+            GuiActivator.getContactList().addContacts(
+                initialUIContacts, groupUIGroup);
+
         // If in the meantime the filtering has been stopped we return here.
         if (query.isCanceled())
             return;
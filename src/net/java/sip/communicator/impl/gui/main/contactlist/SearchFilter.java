@@ -248,22 +248,50 @@ public class SearchFilter
     }
 
     /**
-     * Adds the list of <tt>sourceContacts</tt> to the contact list.
+     * Adds the list of <tt>sourceContacts</tt> to the contact list. The
+     * contacts to be sorted are added to their groups at once when the
+     * contact list is a <tt>TreeContactList</tt>.
      * @param sourceContacts the list of <tt>SourceContact</tt>s to add
      */
     protected void addMatching(List<SourceContact> sourceContacts)
     {
+        Map<UIGroup, List<UIContact>> sortedContacts
+            = new LinkedHashMap<UIGroup, List<UIContact>>();
         Iterator<SourceContact> contactsIter = sourceContacts.iterator();
 
         while (contactsIter.hasNext())
-            addSourceContact(contactsIter.next());
+            addSourceContact(contactsIter.next(), sortedContacts);
+
+        for (Map.Entry<UIGroup, List<UIContact>> groupContacts
+                : sortedContacts.entrySet())
+        {
+            UIGroup uiGroup = groupContacts.getKey();
+
+            if (sourceContactList instanceof TreeContactList)
+            {
+                ((TreeContactList) sourceContactList).addContacts(
+                    groupContacts.getValue(), uiGroup);
+            }
+            else
+            {
+                for (UIContact uiContact : groupContacts.getValue())
+                {
+                    sourceContactList.addContact(
+                        uiContact, uiGroup, true, true);
+                }
+            }
+        }
     }
 
     /**
      * Adds the given <tt>sourceContact</tt> to the contact list.
      * @param sourceContact the <tt>SourceContact</tt> to add
+     * @param sortedContacts the contacts to be sorted, by group, to which
+     * the contact is added instead of the contact list if it is to be sorted
      */
-    private void addSourceContact(SourceContact sourceContact)
+    private void addSourceContact(
+        SourceContact sourceContact,
+        Map<UIGroup, List<UIContact>> sortedContacts)
     {
         ContactSourceService contactSource
             = sourceContact.getContactSource();
@@ -279,11 +307,22 @@ public class SearchFilter
         {
             boolean isSorted = (sourceContact.getIndex() > -1) ? true : false;
 
-            sourceContactList.addContact(
-                sourceUI.createUIContact(sourceContact),
-                sourceUI.getUIGroup(),
-                isSorted,
-                true);
+            UIContact uiContact = sourceUI.createUIContact(sourceContact);
+            UIGroup uiGroup = sourceUI.getUIGroup();
+
+            if (isSorted)
+            {
+                List<UIContact> groupContacts = sortedContacts.get(uiGroup);
+
+                if (groupContacts == null)
+                {
+                    groupContacts = new ArrayList<UIContact>();
+                    sortedContacts.put(uiGroup, groupContacts);
+                }
+                groupContacts.add(uiContact);
+            }
+            else
+                sourceContactList.addContact(uiContact, uiGroup, false, true);
         }
         else
             sourceUI.removeUIContact(sourceContact);
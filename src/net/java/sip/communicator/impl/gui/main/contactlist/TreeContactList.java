@@ -492,6 +492,85 @@ public class TreeContactList
             return;
         }
 
+        GroupNode groupNode = getContactGroupNode(group, isGroupSorted);
+
+        if (groupNode == null)
+            return;
+
+        contact.setParentGroup(groupNode.getGroupDescriptor());
+
+        if (!(contact instanceof UIContactImpl))
+            return;
+
+        UIContactImpl contactImpl = (UIContactImpl) contact;
+
+        if (isContactSorted)
+            groupNode.sortedAddContact(contactImpl);
+        else
+            groupNode.addContact(contactImpl);
+
+        expandContactGroup(groupNode);
+    }
+
+    /**
+     * Adds the given <tt>contacts</tt> of the same group to this list, sorted
+     * regarding to the <tt>GroupNode</tt> policy. The contacts are sorted once
+     * and inserted in the group together, which is much faster than adding
+     * them one by one when filling a large group.
+     * @param contacts the <tt>UIContact</tt>s to add
+     * @param group the <tt>UIGroup</tt> to add to
+     */
+    public void addContacts(final List<? extends UIContact> contacts,
+                            final UIGroup group)
+    {
+        if (!SwingUtilities.isEventDispatchThread())
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    addContacts(contacts, group);
+                }
+            });
+            return;
+        }
+
+        GroupNode groupNode = getContactGroupNode(group, true);
+
+        if (groupNode == null)
+            return;
+
+        List<UIContactImpl> contactImpls
+            = new ArrayList<UIContactImpl>(contacts.size());
+
+        for (UIContact contact : contacts)
+        {
+            contact.setParentGroup(groupNode.getGroupDescriptor());
+
+            if (contact instanceof UIContactImpl)
+                contactImpls.add((UIContactImpl) contact);
+        }
+
+        if (contactImpls.isEmpty())
+            return;
+
+        groupNode.sortedAddContacts(contactImpls);
+
+        expandContactGroup(groupNode);
+    }
+
+    /**
+     * Returns the <tt>GroupNode</tt> contacts of the given <tt>group</tt>
+     * should be added to, adding the group to this list if it isn't there.
+     * @param group the <tt>UIGroup</tt> of the contacts
+     * @param isGroupSorted indicates if the group should be sorted regarding
+     * to the <tt>GroupNode</tt> policy in case it doesn't exist and should be
+     * added
+     * @return the <tt>GroupNode</tt> to add the contacts to or <tt>null</tt>
+     * if they cannot be added to this list
+     */
+    private GroupNode getContactGroupNode(UIGroup group, boolean isGroupSorted)
+    {
         GroupNode groupNode = null;
         if (group == null ||
             (ConfigurationUtils.isFlattenGroupEnabled() &&
@@ -518,22 +597,16 @@ public class TreeContactList
                     groupNode = parentNode.addContactGroup(contactImpl);
             }
         }
+        return groupNode;
+    }
 
-        if (groupNode == null)
-            return;
-
-        contact.setParentGroup(groupNode.getGroupDescriptor());
-
-        if (!(contact instanceof UIContactImpl))
-            return;
-
-        UIContactImpl contactImpl = (UIContactImpl) contact;
-
-        if (isContactSorted)
-            groupNode.sortedAddContact(contactImpl);
-        else
-            groupNode.addContact(contactImpl);
-
+    /**
+     * Expands the given <tt>groupNode</tt>, to which contacts have been added,
+     * unless the presence filter is applied and the group is collapsed.
+     * @param groupNode the <tt>GroupNode</tt> contacts have been added to
+     */
+    private void expandContactGroup(GroupNode groupNode)
+    {
         if ((!currentFilter.equals(presenceFilter)
                 || !groupNode.isCollapsed()))
             this.expandGroup(groupNode);
@@ -689,6 +762,43 @@ public class TreeContactList
         treeModel.nodeChanged(((UIContactImpl) contact).getContactNode());
     }
 
+    /**
+     * Indicates that the given <tt>contact</tt> has changed in a way which may
+     * change its position in its group, e.g. its status. The node of the
+     * contact is moved to its sorted position if needed and refreshed.
+     *
+     * @param contact the contact that has changed
+     */
+    public void repositionContact(final UIContact contact)
+    {
+        if (!SwingUtilities.isEventDispatchThread())
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    repositionContact(contact);
+                }
+            });
+            return;
+        }
+
+        if (!(contact instanceof UIContactImpl))
+            return;
+
+        ContactNode contactNode = ((UIContactImpl) contact).getContactNode();
+
+        if (contactNode == null)
+            return;
+
+        TreeNode parentNode = contactNode.getParent();
+
+        if (parentNode instanceof GroupNode)
+            ((GroupNode) parentNode).repositionContact(contactNode);
+        else
+            treeModel.nodeChanged(contactNode);
+    }
+
     /**
      * Adds the given group to this list.
      * @param group the <tt>UIGroup</tt> to add
@@ -85,6 +85,13 @@ public class MetaContactListSource
     private static final Logger logger
         = Logger.getLogger(MetaContactListSource.class);
 
+    /**
+     * Indicates if the contact list is already to be filtered again because
+     * contacts have been loaded or imported, so that the events of several
+     * accounts cause a single new filtering.
+     */
+    private boolean isRefilterPending = false;
+
     /**
      * Returns the <tt>UIContact</tt> corresponding to the given
      * <tt>MetaContact</tt>.
@@ -235,6 +242,8 @@ public class MetaContactListSource
                                         int resultCount)
     {
         Iterator<MetaContact> childContacts = parentGroup.getChildContacts();
+        UIGroup uiGroup = null;
+        List<UIContact> initialUIContacts = new ArrayList<UIContact>();
 
         while (childContacts.hasNext() && !query.isCanceled())
         {
@@ -246,8 +255,8 @@ public class MetaContactListSource
 
                 if (resultCount <= INITIAL_CONTACT_COUNT)
                 {
-                    UIGroup uiGroup = null;
-                    if (!MetaContactListSource.isRootGroup(parentGroup))
+                    if (uiGroup == null
+                        && !MetaContactListSource.isRootGroup(parentGroup))
                     {
                         synchronized (parentGroup)
                         {
@@ -267,11 +276,7 @@ public class MetaContactListSource
                             = MetaContactListSource.createUIContact(metaContact);
                     }
 
-                    GuiActivator.getContactList().addContact(
-                        newUIContact,
-                        uiGroup,
-                        true,
-                        true);
+                    initialUIContacts.add(newUIContact);
 
                     query.setInitialResultCount(resultCount);
                 }
@@ -280,6 +285,11 @@ public class MetaContactListSource
             }
         }
 
+        // The initial contacts of the group are added at once.
+        if (!initialUIContacts.isEmpty())
+            GuiActivator.getContactList().addContacts(
+                initialUIContacts, uiGroup);
+
         // If in the meantime the query is canceled we return here.
         if(query.isCanceled())
             return;
@@ -432,8 +442,7 @@ public class MetaContactListSource
                 GuiActivator.getContactList().removeContact(uiContact);
             }
             else
-                GuiActivator.getContactList()
-                    .nodeChanged(uiContact.getContactNode());
+                GuiActivator.getContactList().repositionContact(uiContact);
         }
     }
 
@@ -576,11 +585,22 @@ public class MetaContactListSource
 
     /**
      * Notifies the tree model, when a <tt>MetaContactGroup</tt> has been
-     * modified in the <tt>MetaContactListService</tt>.
+     * modified in the <tt>MetaContactListService</tt>, or rebuilds the tree
+     * when the stored contacts of an account have been loaded.
      * @param evt the <tt>MetaContactGroupEvent</tt> that notified us
      */
     public void metaContactGroupModified(MetaContactGroupEvent evt)
     {
+        // the stored contacts of an account have been loaded or many
+        // contacts imported at once, so rebuild the tree once instead of
+        // adding them one by one
+        if (evt.getEventID() == MetaContactGroupEvent.CONTACT_LIST_LOADED
+            || evt.getEventID() == MetaContactGroupEvent.CONTACTS_IMPORTED)
+        {
+            refilterContactList();
+            return;
+        }
+
         final MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
         UIGroupImpl uiGroup;
@@ -599,6 +619,41 @@ public class MetaContactListSource
         }
     }
 
+    /**
+     * Applies the current filter of the contact list again in the swing
+     * thread. Every filtering clears and rebuilds the whole tree, so the
+     * events received before the swing thread gets to it, e.g. the ones of
+     * all the accounts loading their stored contacts at startup, cause a
+     * single filtering.
+     */
+    private void refilterContactList()
+    {
+        synchronized (this)
+        {
+            if (isRefilterPending)
+                return;
+
+            isRefilterPending = true;
+        }
+
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                // Events received from now on need a new filtering, since
+                // this one may miss their contacts.
+                synchronized (MetaContactListSource.this)
+                {
+                    isRefilterPending = false;
+                }
+
+                TreeContactList contactList = GuiActivator.getContactList();
+
+                contactList.applyFilter(contactList.getCurrentFilter());
+            }
+        });
+    }
+
     /**
      * Removes the corresponding group node in the contact list, when a
      * <tt>MetaContactGroup</tt> has been removed from the
@@ -0,0 +1,147 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.zip.*;
+
+import org.jitsi.util.xml.XMLUtils;
+import org.w3c.dom.*;
+
+/**
+ * Reads and writes the history files which have been archived, that is
+ * rewritten gzip compressed by the <tt>HistoryCompactor</tt> because all
+ * their records are older than the configured archive age.
+ * <p>
+ * An archived file is stored as <tt>&lt;name&gt;.gz</tt> but keeps the name
+ * of the file it replaces everywhere else: in the document list of the
+ * history, in its indexes and in the query results. Only the code opening
+ * the files needs to know whether a file is archived.
+ */
+class HistoryArchive
+{
+    /**
+     * The extension added to the name of an archived file.
+     */
+    static final String EXTENSION = ".gz";
+
+    /**
+     * Returns the file storing the history file <tt>filename</tt>, which is
+     * the archived file if the file itself does not exist.
+     *
+     * @param directory the directory of the history
+     * @param filename the name of the history file
+     * @return the file storing the records of <tt>filename</tt>
+     */
+    static File getStoredFile(File directory, String filename)
+    {
+        File file = new File(directory, filename);
+
+        if (!file.exists())
+        {
+            File archive = new File(directory, filename + EXTENSION);
+
+            if (archive.exists())
+                return archive;
+        }
+        return file;
+    }
+
+    /**
+     * Checks whether <tt>file</tt> is an archived file.
+     *
+     * @param file a history file
+     * @return <tt>true</tt> if the file is gzip compressed
+     */
+    static boolean isArchive(File file)
+    {
+        return file.getName().endsWith(EXTENSION);
+    }
+
+    /**
+     * Opens a history file for reading, decompressing it if it is archived.
+     *
+     * @param file the history file
+     * @return the stream of the XML content of the file
+     * @throws IOException if the file cannot be opened
+     */
+    static InputStream openInputStream(File file)
+        throws IOException
+    {
+        return openInputStream(file, isArchive(file));
+    }
+
+    /**
+     * Opens a history file for reading.
+     *
+     * @param file the history file
+     * @param compressed whether the file is gzip compressed
+     * @return the stream of the XML content of the file
+     * @throws IOException if the file cannot be opened
+     */
+    static InputStream openInputStream(File file, boolean compressed)
+        throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+
+        if (!compressed)
+            return new BufferedInputStream(in);
+
+        try
+        {
+            return new BufferedInputStream(new GZIPInputStream(in));
+        }
+        catch (IOException e)
+        {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a history document to <tt>file</tt>, compressed if the file is
+     * archived.
+     *
+     * @param doc the document to write
+     * @param file the history file
+     * @throws IOException if the file cannot be written
+     */
+    static void writeXML(Document doc, File file)
+        throws IOException
+    {
+        writeXML(doc, file, isArchive(file));
+    }
+
+    /**
+     * Writes a history document to <tt>file</tt>.
+     *
+     * @param doc the document to write
+     * @param file the file to write to
+     * @param compressed whether to gzip the XML content
+     * @throws IOException if the file cannot be written
+     */
+    static void writeXML(Document doc, File file, boolean compressed)
+        throws IOException
+    {
+        if (!compressed)
+        {
+            XMLUtils.writeXML(doc, file);
+            return;
+        }
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+            new GZIPOutputStream(new FileOutputStream(file)), "UTF-8"));
+        try
+        {
+            XMLUtils.writeXML(doc, out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,900 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import javax.xml.parsers.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Rewrites the many small files of a history into fewer files holding up to
+ * <tt>segmentSize</tt> records each, so that queries open, parse and index
+ * fewer files. The work is done one segment at a time through
+ * {@link #compactNext()}: consecutive files are read, written together to a
+ * temporary file which is read back and compared record by record with the
+ * records read, and only then the temporary file replaces the first file of
+ * the segment and the other files are deleted. If the application stops
+ * between these two steps the records of the deleted files are duplicated
+ * instead of lost.
+ * <p>
+ * A compactor either works on a history in use by the application, in which
+ * case the files the writer may still add records to are left alone and the
+ * swap of the files is invisible to the readers, or on the directory of a
+ * history while the application is not running, see {@link #main(String[])}.
+ * <p>
+ * When an archive age is given, the files whose records are all older than
+ * it are archived: they are grouped into segments of their own which are
+ * written gzip compressed, see {@link HistoryArchive}. Archived segments are
+ * not compacted again.
+ */
+public class HistoryCompactor
+{
+    /**
+     * The default maximum number of records of a compacted file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1500;
+
+    /**
+     * The extension of the file a segment is written to before it replaces
+     * the compacted files.
+     */
+    private static final String TEMP_EXTENSION = ".compact";
+
+    /**
+     * The time in milliseconds to wait before trying again to lock the files
+     * of a history which are being queried.
+     */
+    private static final long LOCK_RETRY_DELAY = 50;
+
+    /**
+     * The history being compacted, <tt>null</tt> when compacting a directory
+     * offline.
+     */
+    private final HistoryImpl historyImpl;
+
+    /**
+     * The directory of the history.
+     */
+    private final File directory;
+
+    /**
+     * The maximum number of records of a compacted file.
+     */
+    private final int segmentSize;
+
+    /**
+     * The age in milliseconds of the records of the files to archive or
+     * <tt>0</tt> if no file is archived.
+     */
+    private final long archiveAge;
+
+    /**
+     * The names of the record properties as read from the files mapped to
+     * the names of the structure of the history, which tell which values are
+     * written as CDATA.
+     */
+    private final Map<String, String> propertyNames
+        = new HashMap<String, String>();
+
+    /**
+     * The last file visited by the compaction, the next segment starts after
+     * it.
+     */
+    private String lastFile = null;
+
+    /**
+     * The statistics of the compaction so far.
+     */
+    private final Result result = new Result();
+
+    /**
+     * Creates a compactor of a history in use by the application.
+     *
+     * @param historyImpl the history to compact
+     * @param segmentSize the maximum number of records of a compacted file
+     */
+    public HistoryCompactor(HistoryImpl historyImpl, int segmentSize)
+    {
+        this(historyImpl, segmentSize, 0);
+    }
+
+    /**
+     * Creates a compactor of a history in use by the application which also
+     * archives the files older than <tt>archiveAge</tt>.
+     *
+     * @param historyImpl the history to compact
+     * @param segmentSize the maximum number of records of a compacted file
+     * @param archiveAge the age in milliseconds of the records of the files
+     * to archive or <tt>0</tt> not to archive any file
+     */
+    public HistoryCompactor(HistoryImpl historyImpl, int segmentSize,
+                            long archiveAge)
+    {
+        this.historyImpl = historyImpl;
+        this.directory = historyImpl.getDirectory();
+        this.segmentSize = segmentSize;
+        this.archiveAge = archiveAge;
+
+        addPropertyNames(
+            historyImpl.getHistoryRecordsStructure().getPropertyNames());
+    }
+
+    /**
+     * Creates a compactor of the history stored in <tt>directory</tt>. The
+     * history must not be in use while it is compacted.
+     *
+     * @param directory the directory of the history, containing its
+     * {@link HistoryServiceImpl#DATA_FILE}
+     * @param segmentSize the maximum number of records of a compacted file
+     * @throws IOException if the structure of the history cannot be read
+     */
+    public HistoryCompactor(File directory, int segmentSize)
+        throws IOException
+    {
+        this(directory, segmentSize, 0);
+    }
+
+    /**
+     * Creates a compactor of the history stored in <tt>directory</tt> which
+     * also archives the files older than <tt>archiveAge</tt>. The history
+     * must not be in use while it is compacted.
+     *
+     * @param directory the directory of the history, containing its
+     * {@link HistoryServiceImpl#DATA_FILE}
+     * @param segmentSize the maximum number of records of a compacted file
+     * @param archiveAge the age in milliseconds of the records of the files
+     * to archive or <tt>0</tt> not to archive any file
+     * @throws IOException if the structure of the history cannot be read
+     */
+    public HistoryCompactor(File directory, int segmentSize, long archiveAge)
+        throws IOException
+    {
+        this.historyImpl = null;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.archiveAge = archiveAge;
+
+        try
+        {
+            Document doc = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder().parse(
+                    new File(directory, HistoryServiceImpl.DATA_FILE));
+            NodeList nodes = doc.getElementsByTagName("property");
+            String[] names = new String[nodes.getLength()];
+
+            for (int i = 0; i < names.length; i++)
+                names[i] = ((Element) nodes.item(i)).getAttribute("name");
+            addPropertyNames(names);
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Cannot read the structure of the history "
+                + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Compacts the next segment of the history.
+     *
+     * @return <tt>false</tt> if all the files of the history have been
+     * visited, <tt>true</tt> if there may be more files to compact
+     * @throws IOException if the compacted file cannot be written or does
+     * not contain exactly the records of the files it replaces, in which
+     * case the history is left unchanged
+     */
+    public synchronized boolean compactNext()
+        throws IOException
+    {
+        long startTime = System.currentTimeMillis();
+
+        try
+        {
+            if (historyImpl == null)
+                return compactNextSegment();
+
+            // updateRecord must not modify the files while they are copied
+            synchronized (historyImpl.getUpdateLock())
+            {
+                return compactNextSegment();
+            }
+        }
+        finally
+        {
+            result.elapsedTime += System.currentTimeMillis() - startTime;
+        }
+    }
+
+    /**
+     * Compacts all the remaining segments of the history.
+     *
+     * @return the statistics of the compaction
+     * @throws IOException if a segment cannot be compacted
+     */
+    public Result compactAll()
+        throws IOException
+    {
+        while (compactNext());
+
+        return getResult();
+    }
+
+    /**
+     * Returns the statistics of the compaction so far.
+     *
+     * @return the statistics of the compaction
+     */
+    public synchronized Result getResult()
+    {
+        return result.copy();
+    }
+
+    /**
+     * Reads the files following {@link #lastFile} as long as their records
+     * fit in a segment and are all old enough to be archived or all not, and
+     * compacts them if there are at least two or if they are archived.
+     *
+     * @return <tt>false</tt> if there were no files left to visit
+     * @throws IOException if the segment cannot be compacted
+     */
+    private boolean compactNextSegment()
+        throws IOException
+    {
+        List<String> group = new ArrayList<String>();
+        List<Integer> counts = new ArrayList<Integer>();
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        boolean visited = false;
+        boolean archive = false;
+        long cutoff = (archiveAge > 0)
+            ? System.currentTimeMillis() - archiveAge
+            : Long.MIN_VALUE;
+
+        for (String filename : getFiles())
+        {
+            if (lastFile != null && filename.compareTo(lastFile) <= 0)
+                continue;
+
+            visited = true;
+
+            // archived segments are complete
+            if (HistoryArchive.isArchive(
+                    HistoryArchive.getStoredFile(directory, filename)))
+            {
+                if (!group.isEmpty())
+                    break;
+                lastFile = filename;
+                continue;
+            }
+
+            List<HistoryRecord> fileRecords = readFile(filename);
+            if (fileRecords == null)
+            {
+                // leave the broken file alone and start after it next time
+                result.unreadableFiles++;
+                lastFile = filename;
+                break;
+            }
+
+            boolean old = isOlder(fileRecords, cutoff);
+            if (!group.isEmpty()
+                && (records.size() + fileRecords.size() > segmentSize
+                    || old != archive))
+                break;
+
+            archive = old;
+            group.add(filename);
+            counts.add(fileRecords.size());
+            records.addAll(fileRecords);
+            lastFile = filename;
+        }
+
+        if (group.size() > 1 || archive)
+            compact(group, counts, records, archive);
+
+        return visited;
+    }
+
+    /**
+     * Checks whether all the records of a file are older than
+     * <tt>cutoff</tt>.
+     *
+     * @param records the records of the file
+     * @param cutoff the time in milliseconds
+     * @return <tt>true</tt> if the file has records and they are all older
+     * than <tt>cutoff</tt>
+     */
+    private static boolean isOlder(List<HistoryRecord> records, long cutoff)
+    {
+        if (records.isEmpty())
+            return false;
+
+        for (HistoryRecord record : records)
+        {
+            if (record.getTimestamp().getTime() >= cutoff)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the files of <tt>group</tt> with a single file containing
+     * <tt>records</tt>.
+     *
+     * @param group the compacted files from oldest to newest
+     * @param counts the number of records of each compacted file
+     * @param records the records of the files in the order they were read
+     * @param archive whether to write the compacted file gzip compressed
+     * @throws IOException if the compacted file cannot be written or verified
+     */
+    private void compact(List<String> group,
+                         List<Integer> counts,
+                         List<HistoryRecord> records,
+                         boolean archive)
+        throws IOException
+    {
+        String target = group.get(0);
+        File targetFile = new File(directory,
+            archive ? target + HistoryArchive.EXTENSION : target);
+        File tempFile = new File(directory, target + TEMP_EXTENSION);
+        long bytesBefore = 0;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        Document doc;
+        try
+        {
+            doc = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder().newDocument();
+        }
+        catch (ParserConfigurationException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+
+        Node root = doc.appendChild(doc.createElement("history"));
+        for (HistoryRecord record : records)
+        {
+            String[] names = record.getPropertyNames();
+            String[] storedNames = new String[names.length];
+
+            for (int i = 0; i < names.length; i++)
+            {
+                String storedName = propertyNames.get(names[i]);
+
+                storedNames[i] = (storedName == null) ? names[i] : storedName;
+            }
+
+            root.appendChild(HistoryWriterImpl.createRecordElement(doc,
+                storedNames, record.getPropertyValues(),
+                record.getTimestamp()));
+
+            long timestamp = record.getTimestamp().getTime();
+            min = Math.min(min, timestamp);
+            max = Math.max(max, timestamp);
+        }
+
+        try
+        {
+            HistoryArchive.writeXML(doc, tempFile, archive);
+            verify(tempFile, archive, records);
+        }
+        catch (IOException e)
+        {
+            tempFile.delete();
+            throw e;
+        }
+
+        for (String filename : group)
+            bytesBefore
+                += HistoryArchive.getStoredFile(directory, filename).length();
+
+        if (historyImpl == null)
+            replaceFiles(group, tempFile, targetFile);
+        else
+        {
+            // queries see either the old files or the compacted one
+            Lock lock = lockFiles();
+            if (lock == null)
+            {
+                tempFile.delete();
+                throw new InterruptedIOException("Compaction interrupted");
+            }
+
+            try
+            {
+                replaceFiles(group, tempFile, targetFile);
+                historyImpl.filesCompacted(
+                    group, counts, min, max, records.size(), targetFile);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        result.segments++;
+        if (archive)
+            result.archivedSegments++;
+        result.files += group.size();
+        result.records += records.size();
+        result.bytesBefore += bytesBefore;
+        result.bytesAfter += targetFile.length();
+    }
+
+    /**
+     * Acquires the lock of the files of the history exclusively. Waiting in
+     * the queue of the lock would block the queries started after a long
+     * running one, so the lock is only taken when no query runs.
+     *
+     * @return the acquired lock or <tt>null</tt> if the thread has been
+     * interrupted while waiting
+     */
+    private Lock lockFiles()
+    {
+        Lock lock = historyImpl.getFilesLock().writeLock();
+
+        while (!lock.tryLock())
+        {
+            try
+            {
+                Thread.sleep(LOCK_RETRY_DELAY);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Moves the verified compacted file over the first file of the group and
+     * deletes the other files and all the journals of the group.
+     *
+     * @param group the compacted files from oldest to newest
+     * @param tempFile the verified compacted file
+     * @param targetFile the first file of the group or its archive
+     * @throws IOException if the compacted file cannot be moved
+     */
+    private void replaceFiles(List<String> group, File tempFile,
+                              File targetFile)
+        throws IOException
+    {
+        if (!tempFile.renameTo(targetFile)
+            && !(targetFile.delete() && tempFile.renameTo(targetFile)))
+        {
+            tempFile.delete();
+            throw new IOException("Cannot replace " + targetFile);
+        }
+
+        for (int i = 0; i < group.size(); i++)
+        {
+            File file = new File(directory, group.get(i));
+
+            // the first file is replaced unless it has been archived
+            if (i > 0 || !file.equals(targetFile))
+                file.delete();
+            HistoryJournal.getJournalFile(directory, group.get(i)).delete();
+        }
+    }
+
+    /**
+     * Reads back the compacted file and checks that it contains exactly
+     * <tt>records</tt>.
+     *
+     * @param file the compacted file
+     * @param compressed whether the compacted file is gzip compressed
+     * @param records the records read from the compacted files
+     * @throws IOException if the file differs from <tt>records</tt>
+     */
+    private static void verify(File file, boolean compressed,
+                               final List<HistoryRecord> records)
+        throws IOException
+    {
+        final int[] count = new int[1];
+        final String[] error = new String[1];
+
+        try
+        {
+            HistoryFileReader.read(
+                HistoryArchive.openInputStream(file, compressed),
+                new HistoryFileReader.RecordHandler()
+                {
+                    public boolean handleRecord(HistoryRecord record,
+                                                boolean complete)
+                    {
+                        int index = count[0]++;
+
+                        if (index >= records.size())
+                            error[0] = "too many records";
+                        else if (!sameRecord(records.get(index), record))
+                            error[0] = "record " + index + " differs";
+                        return error[0] == null;
+                    }
+                });
+        }
+        catch (Exception e)
+        {
+            throw new IOException("Cannot read back " + file + ": "
+                + e.getMessage());
+        }
+
+        if (error[0] == null && count[0] != records.size())
+            error[0] = count[0] + " records instead of " + records.size();
+        if (error[0] != null)
+            throw new IOException("Compacted file " + file + " is not valid: "
+                + error[0]);
+    }
+
+    /**
+     * Compares the timestamps, property names and property values of two
+     * records.
+     *
+     * @param r1 a record
+     * @param r2 another record
+     * @return <tt>true</tt> if the records are the same
+     */
+    private static boolean sameRecord(HistoryRecord r1, HistoryRecord r2)
+    {
+        return r1.getTimestamp().equals(r2.getTimestamp())
+            && Arrays.equals(r1.getPropertyNames(), r2.getPropertyNames())
+            && Arrays.equals(r1.getPropertyValues(), r2.getPropertyValues());
+    }
+
+    /**
+     * Returns the files which may be compacted. The last file of the history
+     * and the files the writer keeps in memory are never compacted.
+     *
+     * @return the names of the files from oldest to newest
+     */
+    private List<String> getFiles()
+    {
+        if (historyImpl != null)
+            return historyImpl.getStoredFiles();
+
+        // archived files are listed under the name of the file they replace
+        SortedSet<String> names = new TreeSet<String>();
+        String[] stored = directory.list();
+
+        if (stored != null)
+        {
+            String archiveType = "." + HistoryImpl.SUPPORTED_FILETYPE
+                + HistoryArchive.EXTENSION;
+
+            for (String name : stored)
+            {
+                if (name.endsWith(archiveType))
+                {
+                    names.add(name.substring(0,
+                        name.length() - HistoryArchive.EXTENSION.length()));
+                }
+                else if (name.endsWith("." + HistoryImpl.SUPPORTED_FILETYPE))
+                    names.add(name);
+            }
+        }
+
+        List<String> files = new ArrayList<String>(names);
+        if (!files.isEmpty())
+            files.remove(files.size() - 1);
+        return files;
+    }
+
+    /**
+     * Reads all the records of a file, including those which are only in its
+     * journal.
+     *
+     * @param filename the name of the file
+     * @return the records of the file in the order they were written or
+     * <tt>null</tt> if the file cannot be read
+     */
+    private List<HistoryRecord> readFile(String filename)
+    {
+        final List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        HistoryFileReader.RecordHandler handler
+            = new HistoryFileReader.RecordHandler()
+            {
+                public boolean handleRecord(HistoryRecord record,
+                                            boolean complete)
+                {
+                    records.add(record);
+                    return true;
+                }
+            };
+
+        if (historyImpl != null)
+        {
+            try
+            {
+                return historyImpl.readRecords(filename, handler)
+                    ? records : null;
+            }
+            catch (InvalidParameterException e)
+            {
+                // removed meanwhile
+                return null;
+            }
+        }
+
+        try
+        {
+            int count = HistoryFileReader.read(
+                HistoryArchive.getStoredFile(directory, filename), handler);
+
+            for (HistoryJournal.Frame frame
+                    : HistoryJournal.read(directory, filename))
+            {
+                // already written with the last checkpoint
+                if (frame.position < count)
+                    continue;
+                if (frame.position > count)
+                    break;
+
+                records.add(frame.toHistoryRecord());
+                count++;
+            }
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+
+        return records;
+    }
+
+    /**
+     * Maps the names of the record properties as read from the files to the
+     * names of the structure.
+     *
+     * @param names the names of the structure of the history
+     */
+    private void addPropertyNames(String[] names)
+    {
+        for (String name : names)
+        {
+            String readName = name;
+
+            if (readName.endsWith(HistoryWriterImpl.CDATA_SUFFIX))
+            {
+                readName = readName.substring(0,
+                    readName.length()
+                        - HistoryWriterImpl.CDATA_SUFFIX.length());
+            }
+            propertyNames.put(readName, name);
+        }
+    }
+
+    /**
+     * Compacts all the histories found under a directory. The application
+     * must not be running.
+     * <p>
+     * Usage: <tt>HistoryCompactor &lt;history directory&gt;
+     * [segment size] [archive age in days]</tt>
+     *
+     * @param args the history directory, usually
+     * <tt>~/.jitsi/history_ver1.0</tt>, optionally the maximum number of
+     * records of a compacted file and optionally the age in days of the
+     * records of the files to archive
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 1 || args.length > 3)
+        {
+            System.err.println("Usage: HistoryCompactor <history directory>"
+                + " [segment size, default " + DEFAULT_SEGMENT_SIZE + "]"
+                + " [archive age in days, default none]");
+            System.exit(1);
+        }
+
+        int segmentSize = (args.length > 1)
+            ? Integer.parseInt(args[1])
+            : DEFAULT_SEGMENT_SIZE;
+        long archiveAge = (args.length > 2)
+            ? Long.parseLong(args[2]) * 24 * 60 * 60 * 1000
+            : 0;
+        List<File> directories = new ArrayList<File>();
+        Result total = new Result();
+        boolean failed = false;
+
+        findHistories(new File(args[0]), directories);
+        for (File directory : directories)
+        {
+            try
+            {
+                Result result = new HistoryCompactor(
+                    directory, segmentSize, archiveAge).compactAll();
+
+                System.out.println(directory + ": " + result);
+                total.add(result);
+            }
+            catch (IOException e)
+            {
+                System.err.println(directory + ": " + e.getMessage());
+                failed = true;
+            }
+        }
+
+        System.out.println("Compacted " + directories.size()
+            + " histories: " + total);
+        if (failed)
+            System.exit(2);
+    }
+
+    /**
+     * Adds to <tt>histories</tt> all the directories under
+     * <tt>directory</tt> which contain a history.
+     *
+     * @param directory the directory to search
+     * @param histories the found history directories
+     */
+    private static void findHistories(File directory, List<File> histories)
+    {
+        if (new File(directory, HistoryServiceImpl.DATA_FILE).exists())
+            histories.add(directory);
+
+        File[] children = directory.listFiles();
+        if (children == null)
+            return;
+
+        Arrays.sort(children);
+        for (File child : children)
+        {
+            if (child.isDirectory())
+                findHistories(child, histories);
+        }
+    }
+
+    /**
+     * The statistics of a compaction.
+     */
+    public static class Result
+    {
+        /**
+         * The number of written files.
+         */
+        private int segments = 0;
+
+        /**
+         * The number of written files which are archived.
+         */
+        private int archivedSegments = 0;
+
+        /**
+         * The number of files replaced by the written ones.
+         */
+        private int files = 0;
+
+        /**
+         * The number of records of the written files.
+         */
+        private long records = 0;
+
+        /**
+         * The size of the replaced files.
+         */
+        private long bytesBefore = 0;
+
+        /**
+         * The size of the written files.
+         */
+        private long bytesAfter = 0;
+
+        /**
+         * The number of files left alone because they cannot be read.
+         */
+        private int unreadableFiles = 0;
+
+        /**
+         * The time spent compacting in milliseconds.
+         */
+        private long elapsedTime = 0;
+
+        /**
+         * Returns the number of written files.
+         * @return the number of written files
+         */
+        public int getSegments()
+        {
+            return segments;
+        }
+
+        /**
+         * Returns the number of written files which are archived.
+         * @return the number of archived files
+         */
+        public int getArchivedSegments()
+        {
+            return archivedSegments;
+        }
+
+        /**
+         * Returns the number of files replaced by the written ones.
+         * @return the number of replaced files
+         */
+        public int getFiles()
+        {
+            return files;
+        }
+
+        /**
+         * Returns the number of records of the written files.
+         * @return the number of compacted records
+         */
+        public long getRecords()
+        {
+            return records;
+        }
+
+        /**
+         * Returns the number of files left alone because they cannot be
+         * read.
+         * @return the number of unreadable files
+         */
+        public int getUnreadableFiles()
+        {
+            return unreadableFiles;
+        }
+
+        /**
+         * Returns the time spent compacting.
+         * @return the time spent compacting in milliseconds
+         */
+        public long getElapsedTime()
+        {
+            return elapsedTime;
+        }
+
+        /**
+         * Returns a description of the statistics including the throughput.
+         * @return a description of the statistics
+         */
+        @Override
+        public String toString()
+        {
+            return files + " files (" + bytesBefore + " bytes) compacted into "
+                + segments + " files (" + bytesAfter + " bytes, "
+                + archivedSegments + " archived), "
+                + records + " records in " + elapsedTime + " ms ("
+                + (records * 1000 / Math.max(1, elapsedTime))
+                + " records/s), " + unreadableFiles + " unreadable files";
+        }
+
+        /**
+         * Adds the statistics of another compaction to these ones.
+         * @param result the statistics to add
+         */
+        private void add(Result result)
+        {
+            segments += result.segments;
+            archivedSegments += result.archivedSegments;
+            files += result.files;
+            records += result.records;
+            bytesBefore += result.bytesBefore;
+            bytesAfter += result.bytesAfter;
+            unreadableFiles += result.unreadableFiles;
+            elapsedTime += result.elapsedTime;
+        }
+
+        /**
+         * Returns a copy of these statistics.
+         * @return a copy of these statistics
+         */
+        private Result copy()
+        {
+            Result copy = new Result();
+
+            copy.add(this);
+            return copy;
+        }
+    }
+}
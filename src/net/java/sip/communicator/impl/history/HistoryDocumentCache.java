@@ -0,0 +1,329 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * A least recently used cache of parsed history documents shared by all the
+ * histories of a <tt>HistoryServiceImpl</tt>. The cache is bounded by an
+ * estimate of the heap used by the cached documents, computed from the size
+ * of their files, and keeps hit, miss and eviction counters.
+ */
+public class HistoryDocumentCache
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryDocumentCache.class);
+
+    /**
+     * The ratio between the heap used by a parsed document and the size of
+     * its XML file.
+     */
+    private static final int DOCUMENT_SIZE_FACTOR = 5;
+
+    /**
+     * The minimum estimated size of a cached document.
+     */
+    private static final long MIN_DOCUMENT_SIZE = 1024;
+
+    /**
+     * The cached documents by file, in access order.
+     */
+    private final LinkedHashMap<File, CachedDocument> documents
+        = new LinkedHashMap<File, CachedDocument>(16, 0.75f, true);
+
+    /**
+     * The maximum estimated size of the cached documents.
+     */
+    private final long maxSize;
+
+    /**
+     * The estimated size of the cached documents.
+     */
+    private long size = 0;
+
+    /**
+     * The number of lookups which found their document.
+     */
+    private long hits = 0;
+
+    /**
+     * The number of lookups which did not find their document.
+     */
+    private long misses = 0;
+
+    /**
+     * The number of documents removed to stay within the maximum size.
+     */
+    private long evictions = 0;
+
+    /**
+     * Creates a cache keeping up to <tt>maxSize</tt> estimated bytes of
+     * documents.
+     *
+     * @param maxSize the maximum estimated size of the cached documents
+     */
+    public HistoryDocumentCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached document of <tt>file</tt>.
+     *
+     * @param file the history file
+     * @return the cached document or <tt>null</tt> if it is not cached
+     */
+    public synchronized Document get(File file)
+    {
+        CachedDocument cached = documents.get(file);
+
+        if (cached == null)
+        {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return cached.document;
+    }
+
+    /**
+     * Caches <tt>doc</tt> as the document of <tt>file</tt>, replacing the
+     * currently cached one. Used by the writer whose document is always the
+     * most recent one. If <tt>doc</tt> is already cached, its size is
+     * estimated again since the writer may have made it grow.
+     *
+     * @param file the history file
+     * @param doc the document of the file
+     */
+    public synchronized void put(File file, Document doc)
+    {
+        CachedDocument cached = documents.get(file);
+
+        if (cached != null)
+        {
+            if (cached.document == doc)
+            {
+                long newSize = estimateSize(file);
+
+                size += newSize - cached.size;
+                cached.size = newSize;
+                evict(file);
+                return;
+            }
+
+            remove(file);
+        }
+
+        add(file, doc);
+    }
+
+    /**
+     * Caches <tt>doc</tt> as the document of <tt>file</tt> unless another
+     * document is already cached for it. Used by readers which may have
+     * parsed the file while the writer was modifying it.
+     *
+     * @param file the history file
+     * @param doc the parsed document of the file
+     * @return the cached document of the file
+     */
+    public synchronized Document putIfAbsent(File file, Document doc)
+    {
+        CachedDocument cached = documents.get(file);
+
+        if (cached != null)
+            return cached.document;
+
+        add(file, doc);
+        return doc;
+    }
+
+    /**
+     * Removes the documents of all the files in <tt>directory</tt> and its
+     * subdirectories.
+     *
+     * @param directory the directory of the removed or moved histories
+     */
+    synchronized void removeAll(File directory)
+    {
+        String prefix = directory.getAbsolutePath() + File.separator;
+
+        Iterator<Map.Entry<File, CachedDocument>> iter
+            = documents.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry<File, CachedDocument> entry = iter.next();
+
+            if (entry.getKey().getAbsolutePath().startsWith(prefix))
+            {
+                size -= entry.getValue().size;
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of lookups which found their document.
+     * @return the number of cache hits
+     */
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups which did not find their document.
+     * @return the number of cache misses
+     */
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of documents removed to stay within the maximum
+     * size.
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Returns the estimated size of the cached documents.
+     * @return the estimated size of the cached documents in bytes
+     */
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Returns a description of the state of the cache.
+     * @return a description of the state of the cache
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return "HistoryDocumentCache[documents=" + documents.size()
+            + ", size=" + size + "/" + maxSize
+            + ", hits=" + hits
+            + ", misses=" + misses
+            + ", evictions=" + evictions + "]";
+    }
+
+    /**
+     * Adds a document which is not yet cached and evicts the least recently
+     * used documents if the maximum size is exceeded.
+     *
+     * @param file the history file
+     * @param doc the document of the file
+     */
+    private void add(File file, Document doc)
+    {
+        CachedDocument cached = new CachedDocument(doc, estimateSize(file));
+
+        documents.put(file, cached);
+        size += cached.size;
+
+        evict(file);
+    }
+
+    /**
+     * Returns the estimated heap used by the parsed document of
+     * <tt>file</tt>, including the records which are only in its journal.
+     *
+     * @param file the history file
+     * @return the estimated size of the document in bytes
+     */
+    private static long estimateSize(File file)
+    {
+        long length = file.length()
+            + new File(file.getPath() + HistoryJournal.JOURNAL_EXTENSION)
+                .length();
+
+        return Math.max(MIN_DOCUMENT_SIZE, length * DOCUMENT_SIZE_FACTOR);
+    }
+
+    /**
+     * Evicts the least recently used documents while the maximum size is
+     * exceeded, except the document of <tt>file</tt>.
+     *
+     * @param file the history file whose document has just been cached
+     */
+    private void evict(File file)
+    {
+        Iterator<Map.Entry<File, CachedDocument>> iter
+            = documents.entrySet().iterator();
+        while (size > maxSize && iter.hasNext())
+        {
+            Map.Entry<File, CachedDocument> eldest = iter.next();
+
+            // always keep the document we have just added
+            if (eldest.getKey().equals(file))
+                continue;
+
+            size -= eldest.getValue().size;
+            iter.remove();
+            evictions++;
+        }
+
+        if (logger.isTraceEnabled())
+            logger.trace("Cached " + file + ": " + this);
+    }
+
+    /**
+     * Removes the document of <tt>file</tt>.
+     *
+     * @param file the history file
+     */
+    public synchronized void remove(File file)
+    {
+        CachedDocument cached = documents.remove(file);
+
+        if (cached != null)
+            size -= cached.size;
+    }
+
+    /**
+     * A cached document and its estimated size.
+     */
+    private static class CachedDocument
+    {
+        /**
+         * The document.
+         */
+        final Document document;
+
+        /**
+         * The estimated size of the document in bytes.
+         */
+        long size;
+
+        /**
+         * Creates a cached document.
+         *
+         * @param document the document
+         * @param size the estimated size of the document
+         */
+        CachedDocument(Document document, long size)
+        {
+            this.document = document;
+            this.size = size;
+        }
+    }
+}
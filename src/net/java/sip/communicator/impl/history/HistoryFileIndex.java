@@ -0,0 +1,469 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Keeps the minimum and maximum record timestamp and the number of records
+ * of every file of a history, so that period queries can skip the files
+ * which do not overlap the requested period without parsing them and the
+ * records of the history are counted exactly without reading its files.
+ * <p>
+ * The index is stored in a sidecar file in the history directory. An entry
+ * loaded from disk is trusted only if the length of its file did not change
+ * since it was indexed and the file has no pending journal. Files without a
+ * trusted entry are always considered by the queries and are indexed the
+ * next time they are parsed.
+ * <p>
+ * The entries are updated as soon as the writer adds a record, but only the
+ * values they had when their file was last written are saved, so that the
+ * saved count never includes records which have not reached the disk. Records
+ * only appended to a journal need no care, an entry whose file has a journal
+ * is not trusted on load.
+ */
+class HistoryFileIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryFileIndex.class);
+
+    /**
+     * The name of the index file stored in the history directory.
+     */
+    static final String INDEX_FILE = "fileindex.dat";
+
+    /**
+     * The directory of the history.
+     */
+    private final File directory;
+
+    /**
+     * The entries of the index by file name.
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * The entries by file name as they were when their file was last written
+     * or indexed, these are the ones saved to the index file.
+     */
+    private final Map<String, Entry> writtenEntries
+        = new HashMap<String, Entry>();
+
+    /**
+     * Whether there are changes not yet saved to the index file.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Creates the index of the history stored in <tt>directory</tt> and
+     * loads the entries which are still valid.
+     *
+     * @param directory the directory of the history
+     */
+    HistoryFileIndex(File directory)
+    {
+        this.directory = directory;
+
+        load();
+    }
+
+    /**
+     * Checks whether the file <tt>filename</tt> may contain records with
+     * timestamps in the period [<tt>startDate</tt>, <tt>endDate</tt>).
+     *
+     * @param filename the name of the history file
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @return <tt>false</tt> if the file is known to have no records in the
+     * period, <tt>true</tt> otherwise
+     */
+    synchronized boolean overlaps(String filename,
+                                  Date startDate,
+                                  Date endDate)
+    {
+        Entry entry = entries.get(filename);
+
+        if (entry == null)
+            return true;
+        if (entry.count == 0)
+            return false;
+
+        return (startDate == null || entry.max >= startDate.getTime())
+            && (endDate == null || entry.min < endDate.getTime());
+    }
+
+    /**
+     * Removes from <tt>files</tt> all the files which are known to have no
+     * records in the period [<tt>startDate</tt>, <tt>endDate</tt>).
+     *
+     * @param files the file names to filter
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @return <tt>files</tt>
+     */
+    Vector<String> filter(Vector<String> files, Date startDate, Date endDate)
+    {
+        if (startDate == null && endDate == null)
+            return files;
+
+        Iterator<String> iter = files.iterator();
+        while (iter.hasNext())
+        {
+            if (!overlaps(iter.next(), startDate, endDate))
+                iter.remove();
+        }
+
+        return files;
+    }
+
+    /**
+     * Returns the number of records in <tt>filename</tt> if it is known.
+     *
+     * @param filename the name of the history file
+     * @return the number of records or <tt>-1</tt> if unknown
+     */
+    synchronized int getRecordCount(String filename)
+    {
+        Entry entry = entries.get(filename);
+
+        return (entry == null) ? -1 : entry.count;
+    }
+
+    /**
+     * Creates an empty entry for a newly created history file.
+     *
+     * @param filename the name of the history file
+     */
+    synchronized void fileCreated(String filename)
+    {
+        if (!entries.containsKey(filename))
+        {
+            entries.put(filename, new Entry());
+            dirty = true;
+        }
+    }
+
+    /**
+     * Indexes the document loaded from <tt>filename</tt> unless the file is
+     * already indexed.
+     *
+     * @param filename the name of the history file
+     * @param doc the document loaded from the file
+     */
+    void indexIfAbsent(String filename, Document doc)
+    {
+        synchronized (this)
+        {
+            if (entries.containsKey(filename))
+                return;
+        }
+
+        Entry entry = new Entry();
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+
+        // the entry is put while holding the document so that a record
+        // appended meanwhile by the writer cannot be missed
+        synchronized (doc)
+        {
+            NodeList nodes = doc.getElementsByTagName("record");
+            for (int i = 0; i < nodes.getLength(); i++)
+            {
+                String ts = ((Element) nodes.item(i)).getAttribute("timestamp");
+                long timestamp;
+
+                try
+                {
+                    timestamp = sdf.parse(ts).getTime();
+                }
+                catch (ParseException e)
+                {
+                    try
+                    {
+                        timestamp = Long.parseLong(ts);
+                    }
+                    catch (NumberFormatException nfe)
+                    {
+                        // do not trust an index we cannot compute
+                        return;
+                    }
+                }
+
+                entry.add(timestamp);
+            }
+            entry.length
+                = HistoryArchive.getStoredFile(directory, filename).length();
+
+            synchronized (this)
+            {
+                if (!entries.containsKey(filename))
+                {
+                    entries.put(filename, entry);
+                    writtenEntries.put(filename, entry.copy());
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Indexes <tt>filename</tt> with the values computed while reading all of
+     * its records unless the file is already indexed.
+     *
+     * @param filename the name of the history file
+     * @param min the smallest record timestamp
+     * @param max the greatest record timestamp
+     * @param count the number of records
+     */
+    synchronized void indexIfAbsent(String filename,
+                                    long min,
+                                    long max,
+                                    int count)
+    {
+        if (entries.containsKey(filename))
+            return;
+
+        Entry entry = new Entry();
+        entry.min = min;
+        entry.max = max;
+        entry.count = count;
+        entry.length
+            = HistoryArchive.getStoredFile(directory, filename).length();
+
+        entries.put(filename, entry);
+        writtenEntries.put(filename, entry.copy());
+        dirty = true;
+    }
+
+    /**
+     * Updates the entry of <tt>filename</tt> with a newly added record. The
+     * record is saved with the entry only after the file has been written.
+     *
+     * @param filename the name of the history file
+     * @param timestamp the timestamp of the added record
+     */
+    synchronized void recordAdded(String filename, Date timestamp)
+    {
+        Entry entry = entries.get(filename);
+
+        // the file is not indexed, we cannot tell its real range
+        if (entry == null)
+            return;
+
+        entry.add(timestamp.getTime());
+    }
+
+    /**
+     * Notifies the index that <tt>filename</tt> has been written to disk.
+     * Must be called while still holding the written document so that the
+     * saved entry has exactly the records of the file. The index itself is
+     * not saved here, an entry whose file was written after the last save is
+     * dropped on load and recomputed when needed.
+     *
+     * @param filename the name of the history file
+     */
+    synchronized void fileWritten(String filename)
+    {
+        Entry entry = entries.get(filename);
+
+        if (entry != null)
+        {
+            entry.length
+                = HistoryArchive.getStoredFile(directory, filename).length();
+            writtenEntries.put(filename, entry.copy());
+            dirty = true;
+        }
+    }
+
+    /**
+     * Removes the entry of a file which no longer exists or whose records
+     * have been replaced.
+     *
+     * @param filename the name of the history file
+     */
+    synchronized void fileRemoved(String filename)
+    {
+        writtenEntries.remove(filename);
+        if (entries.remove(filename) != null)
+            dirty = true;
+    }
+
+    /**
+     * Saves the index if it has changed since it was last saved.
+     */
+    synchronized void save()
+    {
+        if (!dirty)
+            return;
+
+        File indexFile = new File(directory, INDEX_FILE);
+        File tmpFile = new File(directory, INDEX_FILE + ".tmp");
+
+        try
+        {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(tmpFile), "UTF-8"));
+            try
+            {
+                for (Map.Entry<String, Entry> e : writtenEntries.entrySet())
+                {
+                    Entry entry = e.getValue();
+
+                    out.print(e.getKey());
+                    out.print(' ');
+                    out.print(entry.min);
+                    out.print(' ');
+                    out.print(entry.max);
+                    out.print(' ');
+                    out.print(entry.count);
+                    out.print(' ');
+                    out.println(entry.length);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmpFile.renameTo(indexFile))
+            {
+                indexFile.delete();
+                if (!tmpFile.renameTo(indexFile))
+                    throw new IOException("Cannot rename " + tmpFile);
+            }
+
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot save history file index " + indexFile, e);
+        }
+    }
+
+    /**
+     * Loads the index file and keeps the entries which are still valid.
+     */
+    private void load()
+    {
+        File indexFile = new File(directory, INDEX_FILE);
+
+        if (!indexFile.exists())
+            return;
+
+        try
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(indexFile), "UTF-8"));
+            try
+            {
+                String line;
+                while ((line = in.readLine()) != null)
+                {
+                    String[] tokens = line.split(" ");
+
+                    if (tokens.length != 5)
+                        continue;
+
+                    Entry entry = new Entry();
+                    entry.min = Long.parseLong(tokens[1]);
+                    entry.max = Long.parseLong(tokens[2]);
+                    entry.count = Integer.parseInt(tokens[3]);
+                    entry.length = Long.parseLong(tokens[4]);
+
+                    File file
+                        = HistoryArchive.getStoredFile(directory, tokens[0]);
+                    if (file.length() == entry.length
+                        && !HistoryJournal.getJournalFile(
+                                directory, tokens[0]).exists())
+                    {
+                        entries.put(tokens[0], entry);
+                        writtenEntries.put(tokens[0], entry.copy());
+                    }
+                    else
+                        dirty = true;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (Exception e)
+        {
+            logger.warn("Cannot load history file index " + indexFile, e);
+            entries.clear();
+            writtenEntries.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * The timestamp range and the number of records of a history file.
+     */
+    private static class Entry
+    {
+        /**
+         * The smallest record timestamp.
+         */
+        long min = Long.MAX_VALUE;
+
+        /**
+         * The greatest record timestamp.
+         */
+        long max = Long.MIN_VALUE;
+
+        /**
+         * The number of records.
+         */
+        int count = 0;
+
+        /**
+         * The length of the file when it was last indexed or written.
+         */
+        long length = -1;
+
+        /**
+         * Adds a record with the given timestamp to the entry.
+         *
+         * @param timestamp the timestamp of the record
+         */
+        void add(long timestamp)
+        {
+            if (timestamp < min)
+                min = timestamp;
+            if (timestamp > max)
+                max = timestamp;
+            count++;
+        }
+
+        /**
+         * Returns a copy of this entry.
+         *
+         * @return a copy of this entry
+         */
+        Entry copy()
+        {
+            Entry entry = new Entry();
+            entry.min = min;
+            entry.max = max;
+            entry.count = count;
+            entry.length = length;
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Reads the records of a single history file and passes them one by one to
+ * a {@link RecordHandler}. Files are read with a streaming pull parser so no
+ * DOM tree is built, no lock shared between histories is needed and the
+ * reading stops as soon as the handler has enough records. Documents which
+ * are already loaded (cached or being written) are walked directly.
+ */
+class HistoryFileReader
+{
+    /**
+     * The factory of the pull parsers, its readers are created per file.
+     */
+    private static final XMLInputFactory inputFactory;
+
+    static
+    {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        inputFactory.setProperty(
+            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    /**
+     * Receives the records read from a history file.
+     */
+    interface RecordHandler
+    {
+        /**
+         * Handles a record read from a history file.
+         *
+         * @param record the record
+         * @param complete <tt>false</tt> if some of the properties of the
+         * record have no value and have been left out of <tt>record</tt>
+         * @return <tt>true</tt> to continue reading, <tt>false</tt> to stop
+         */
+        boolean handleRecord(HistoryRecord record, boolean complete);
+    }
+
+    /**
+     * Reads the records of <tt>file</tt> with a pull parser, decompressing
+     * it if it is archived.
+     *
+     * @param file the history file
+     * @param handler the handler of the read records
+     * @return the number of records read from the file
+     * @throws IOException if the file cannot be read
+     * @throws XMLStreamException if the file is not well formed
+     */
+    static int read(File file, RecordHandler handler)
+        throws IOException,
+               XMLStreamException
+    {
+        return read(HistoryArchive.openInputStream(file), handler);
+    }
+
+    /**
+     * Reads the records of a history file with a pull parser and closes the
+     * stream.
+     *
+     * @param in the stream of the XML content of the file
+     * @param handler the handler of the read records
+     * @return the number of records read from the file
+     * @throws IOException if the file cannot be read
+     * @throws XMLStreamException if the file is not well formed
+     */
+    static int read(InputStream in, RecordHandler handler)
+        throws IOException,
+               XMLStreamException
+    {
+        XMLStreamReader reader = null;
+        int records = 0;
+
+        try
+        {
+            reader = inputFactory.createXMLStreamReader(in);
+
+            SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+            List<String> nameVals = new ArrayList<String>();
+            Date timestamp = null;
+            boolean complete = true;
+            String propertyName = null;
+            StringBuilder propertyValue = null;
+            int depth = 0;
+
+            while (reader.hasNext())
+            {
+                switch (reader.next())
+                {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    if (depth == 2)
+                    {
+                        timestamp = parseTimestamp(
+                            sdf, reader.getAttributeValue(null, "timestamp"));
+                        nameVals.clear();
+                        complete = true;
+                    }
+                    else if (depth == 3)
+                    {
+                        propertyName = reader.getLocalName();
+                        propertyValue = null;
+                    }
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (depth == 3)
+                    {
+                        if (propertyValue == null)
+                            propertyValue = new StringBuilder();
+                        propertyValue.append(reader.getText());
+                    }
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    if (depth == 3)
+                    {
+                        if (propertyValue != null)
+                        {
+                            nameVals.add(propertyName);
+                            nameVals.add(propertyValue.toString());
+                        }
+                        else
+                            complete = false;
+                    }
+                    else if (depth == 2)
+                    {
+                        records++;
+                        if (!handler.handleRecord(
+                                createRecord(nameVals, timestamp), complete))
+                            return records;
+                    }
+                    depth--;
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            if (reader != null)
+                reader.close();
+            in.close();
+        }
+
+        return records;
+    }
+
+    /**
+     * Walks the records of an already loaded history document.
+     *
+     * @param doc the history document
+     * @param handler the handler of the records
+     * @return the number of records walked
+     */
+    static int read(Document doc, RecordHandler handler)
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        List<String> nameVals = new ArrayList<String>();
+        int records = 0;
+
+        synchronized (doc)
+        {
+            NodeList nodes = doc.getElementsByTagName("record");
+
+            for (int i = 0; i < nodes.getLength(); i++)
+            {
+                Element node = (Element) nodes.item(i);
+                Date timestamp
+                    = parseTimestamp(sdf, node.getAttribute("timestamp"));
+                boolean complete = true;
+
+                nameVals.clear();
+
+                NodeList propertyNodes = node.getChildNodes();
+                for (int j = 0; j < propertyNodes.getLength(); j++)
+                {
+                    Node propertyNode = propertyNodes.item(j);
+                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+                    {
+                        // Get nested TEXT node's value
+                        Node nodeValue = propertyNode.getFirstChild();
+
+                        if(nodeValue != null)
+                        {
+                            nameVals.add(propertyNode.getNodeName());
+                            nameVals.add(nodeValue.getNodeValue());
+                        }
+                        else
+                            complete = false;
+                    }
+                }
+
+                records++;
+                if (!handler.handleRecord(
+                        createRecord(nameVals, timestamp), complete))
+                    break;
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Parses the timestamp of a record, written either in
+     * {@link net.java.sip.communicator.service.history.HistoryService
+     * #DATE_FORMAT} or in milliseconds.
+     *
+     * @param sdf the format of the timestamps
+     * @param ts the value of the timestamp attribute
+     * @return the timestamp
+     */
+    static Date parseTimestamp(SimpleDateFormat sdf, String ts)
+    {
+        try
+        {
+            return sdf.parse(ts);
+        }
+        catch (ParseException e)
+        {
+            return new Date(Long.parseLong(ts));
+        }
+    }
+
+    /**
+     * Creates a <tt>HistoryRecord</tt> from a list of alternating property
+     * names and values.
+     *
+     * @param nameVals the property names and values
+     * @param timestamp the timestamp of the record
+     * @return the new record
+     */
+    private static HistoryRecord createRecord(List<String> nameVals,
+                                              Date timestamp)
+    {
+        String[] propertyNames = new String[nameVals.size() / 2];
+        String[] propertyValues = new String[propertyNames.length];
+        for (int j = 0; j < propertyNames.length; j++)
+        {
+            propertyNames[j] = nameVals.get(j * 2);
+            propertyValues[j] = nameVals.get(j * 2 + 1);
+        }
+
+        return new HistoryRecord(propertyNames, propertyValues, timestamp);
+    }
+}
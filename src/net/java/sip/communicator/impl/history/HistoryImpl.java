@@ -9,12 +9,12 @@ package net.java.sip.communicator.impl.history;
 import java.io.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.locks.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
 import net.java.sip.communicator.util.*;
 
-import org.jitsi.util.xml.XMLUtils;
 import org.w3c.dom.*;
 
 /**
@@ -51,6 +51,43 @@ public class HistoryImpl
     private SortedMap<String, Object> historyDocuments
         = new TreeMap<String, Object>();
 
+    /**
+     * The timestamp range index of the files of this history.
+     */
+    private HistoryFileIndex fileIndex;
+
+    /**
+     * The keyword index of the files of this history.
+     */
+    private HistoryKeywordIndex keywordIndex;
+
+    /**
+     * The index of the records of this history by identifying property.
+     */
+    private HistoryRecordIndex recordIndex;
+
+    /**
+     * Held while records already written to the files of this history are
+     * rewritten, by the writer when updating a record and by the
+     * <tt>HistoryCompactor</tt>.
+     */
+    private final Object updateLock = new Object();
+
+    /**
+     * Shared by the queries of this history and held exclusively while files
+     * are removed from it, so that a query sees all its files until it
+     * returns. Adding records does not need it.
+     */
+    private final ReadWriteLock filesLock = new ReentrantReadWriteLock();
+
+    /**
+     * The compactions of the files of this history since it was loaded,
+     * each one telling where the records of the replaced files are in the
+     * compacted file.
+     */
+    private final List<Map<String, FileRange>> compactions
+        = new ArrayList<Map<String, FileRange>>();
+
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
      * identifier, the directory, the <tt>HistoryRecordStructure</tt> to use
@@ -80,6 +117,9 @@ public class HistoryImpl
             this.historyRecordStructure = historyRecordStructure;
             this.reader = null;
             this.writer = null;
+            this.fileIndex = new HistoryFileIndex(directory);
+            this.keywordIndex = new HistoryKeywordIndex(directory);
+            this.recordIndex = new HistoryRecordIndex(directory);
 
             this.reloadDocumentList();
         } finally {
@@ -162,6 +202,43 @@ public class HistoryImpl
         return this.historyServiceImpl;
     }
 
+    /**
+     * Returns the directory where the files of this history are stored.
+     * @return the directory of this history
+     */
+    File getDirectory()
+    {
+        return this.directory;
+    }
+
+    /**
+     * Returns the timestamp range index of the files of this history.
+     * @return the file index of this history
+     */
+    HistoryFileIndex getFileIndex()
+    {
+        return this.fileIndex;
+    }
+
+    /**
+     * Returns the keyword index of the files of this history.
+     * @return the keyword index of this history
+     */
+    HistoryKeywordIndex getKeywordIndex()
+    {
+        return this.keywordIndex;
+    }
+
+    /**
+     * Returns the index of the records of this history by identifying
+     * property.
+     * @return the record index of this history
+     */
+    HistoryRecordIndex getRecordIndex()
+    {
+        return this.recordIndex;
+    }
+
     void reloadDocumentList()
     {
         synchronized (this.historyDocuments)
@@ -174,15 +251,26 @@ public class HistoryImpl
 
             for (int i = 0; i < files.length; i++)
             {
-                if (!files[i].isDirectory())
-                {
-                    String filename = files[i].getName();
+                String filename = files[i].getName();
 
-                    if (filename.endsWith(SUPPORTED_FILETYPE))
-                    {
-                        this.historyDocuments.put(filename, files[i]);
-                    }
+                // archived files keep the name of the file they replace
+                boolean archive = filename.endsWith(
+                    SUPPORTED_FILETYPE + HistoryArchive.EXTENSION);
+                if (archive)
+                {
+                    filename = filename.substring(0,
+                        filename.length() - HistoryArchive.EXTENSION.length());
                 }
+                else if (!filename.endsWith(SUPPORTED_FILETYPE))
+                    continue;
+
+                if (files[i].isDirectory())
+                    continue;
+
+                // the archive replaces the file it was written from if the
+                // application stopped before the file was deleted
+                if (archive || !this.historyDocuments.containsKey(filename))
+                    this.historyDocuments.put(filename, files[i]);
             }
         }
     }
@@ -210,7 +298,7 @@ public class HistoryImpl
 
     protected void writeFile(String filename) throws InvalidParameterException,
             IOException {
-        File file = new File(this.directory, filename);
+        Object obj;
 
         synchronized (this.historyDocuments)
         {
@@ -220,24 +308,17 @@ public class HistoryImpl
                         + "filename does not exist in the document list.");
             }
 
-            Object obj = this.historyDocuments.get(filename);
-
-            if (obj instanceof Document)
-            {
-                Document doc = (Document) obj;
-
-                synchronized (doc)
-                {
-                    XMLUtils.writeXML(doc, file);
-                }
-            }
+            obj = this.historyDocuments.get(filename);
         }
+
+        if (obj instanceof Document)
+            writeFile(filename, (Document) obj);
     }
 
     protected void writeFile(String filename, Document doc)
         throws InvalidParameterException, IOException
     {
-        File file = new File(this.directory, filename);
+        File file;
 
         synchronized (this.historyDocuments)
         {
@@ -247,21 +328,318 @@ public class HistoryImpl
                         + "filename does not exist in the document list.");
             }
 
-            synchronized (doc)
+            // an updated record may be in an archived file
+            Object obj = this.historyDocuments.get(filename);
+            file = (obj instanceof File)
+                ? (File) obj
+                : new File(this.directory, filename);
+        }
+
+        // only the readers of this file wait for the write
+        synchronized (doc)
+        {
+            writeXML(doc, file);
+
+            // no record can be added before the written count is taken
+            fileIndex.fileWritten(filename);
+        }
+
+        synchronized (this.historyDocuments)
+        {
+            // removed while it was written
+            if (this.historyDocuments.containsKey(filename))
+                fileWritten(filename, file, doc);
+        }
+    }
+
+    /**
+     * Writes <tt>doc</tt> to a temporary file which then replaces
+     * <tt>file</tt>, so that the readers streaming <tt>file</tt> at the same
+     * time read either its previous or its new content. If the file cannot
+     * be replaced, as happens on some systems while it is open, it is
+     * written in place with the document list locked so that no reader
+     * parses it meanwhile.
+     *
+     * @param doc the document to write
+     * @param file the history file
+     * @throws IOException if the file cannot be written
+     */
+    private void writeXML(Document doc, File file)
+        throws IOException
+    {
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        HistoryArchive.writeXML(doc, tempFile, HistoryArchive.isArchive(file));
+
+        if (tempFile.renameTo(file))
+            return;
+
+        synchronized (this.historyDocuments)
+        {
+            if (!(file.delete() && tempFile.renameTo(file)))
+            {
+                tempFile.delete();
+                HistoryArchive.writeXML(doc, file);
+            }
+        }
+    }
+
+    /**
+     * Updates the state kept for a file which has just been written. From
+     * now on the file is read from disk, possibly through the documents
+     * cache, instead of keeping its document in the document list forever.
+     *
+     * @param filename the name of the written file
+     * @param file the written file
+     * @param doc the written document
+     */
+    private void fileWritten(String filename, File file, Document doc)
+    {
+        this.historyDocuments.put(filename, file);
+        documentChanged(file, doc);
+
+        keywordIndex.fileWritten(filename);
+        recordIndex.fileWritten(filename);
+    }
+
+    /**
+     * Notifies this history that the writer has modified the document of the
+     * file <tt>filename</tt>, so that the cache does not keep an older copy
+     * of it.
+     *
+     * @param filename the name of the modified file
+     * @param doc the modified document
+     */
+    void documentChanged(String filename, Document doc)
+    {
+        documentChanged(
+            HistoryArchive.getStoredFile(this.directory, filename), doc);
+    }
+
+    /**
+     * Keeps the document of the file <tt>filename</tt> in the document list
+     * while it has records which are not yet written to disk, so that the
+     * readers see them.
+     *
+     * @param filename the name of the modified file
+     * @param doc the modified document
+     */
+    void documentPending(String filename, Document doc)
+    {
+        synchronized (this.historyDocuments)
+        {
+            this.historyDocuments.put(filename, doc);
+        }
+    }
+
+    /**
+     * Notifies this history that the pending records of the file
+     * <tt>filename</tt> have been appended to its journal, so that the file
+     * is read from disk again.
+     *
+     * @param filename the name of the flushed file
+     */
+    void documentFlushed(String filename)
+    {
+        synchronized (this.historyDocuments)
+        {
+            if (this.historyDocuments.containsKey(filename))
             {
-                XMLUtils.writeXML(doc, file);
+                this.historyDocuments.put(filename,
+                    HistoryArchive.getStoredFile(this.directory, filename));
             }
         }
     }
 
+    /**
+     * Replaces the cached document of <tt>file</tt> with <tt>doc</tt> if
+     * caching is enabled.
+     *
+     * @param file the modified file
+     * @param doc the modified document
+     */
+    private void documentChanged(File file, Document doc)
+    {
+        HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+
+        if (cache != null)
+            cache.put(file, doc);
+    }
+
     protected Iterator<String> getFileList()
     {
-        return this.historyDocuments.keySet().iterator();
+        // a copy, files may be removed by the compaction meanwhile
+        synchronized (this.historyDocuments)
+        {
+            return new ArrayList<String>(this.historyDocuments.keySet())
+                .iterator();
+        }
+    }
+
+    /**
+     * Returns the lock held while records already written to the files of
+     * this history are rewritten.
+     * @return the lock of the updates of written records
+     */
+    Object getUpdateLock()
+    {
+        return this.updateLock;
+    }
+
+    /**
+     * Returns the lock shared by the queries of this history and held
+     * exclusively while files are removed from it.
+     * @return the lock of the files of this history
+     */
+    ReadWriteLock getFilesLock()
+    {
+        return this.filesLock;
+    }
+
+    /**
+     * Returns the files of this history which are only stored on disk, that
+     * is all the files except the last one and the ones whose document is
+     * kept in memory by the writer.
+     *
+     * @return the names of the stored files from oldest to newest
+     */
+    List<String> getStoredFiles()
+    {
+        List<String> files = new ArrayList<String>();
+
+        synchronized (this.historyDocuments)
+        {
+            for (Map.Entry<String, Object> e : historyDocuments.entrySet())
+            {
+                if (e.getValue() instanceof File)
+                    files.add(e.getKey());
+            }
+
+            // the writer appends to the last file
+            if (!historyDocuments.isEmpty())
+                files.remove(historyDocuments.lastKey());
+        }
+
+        if (writer instanceof HistoryWriterImpl)
+            files.remove(((HistoryWriterImpl) writer).getCurrentFile());
+
+        return files;
+    }
+
+    /**
+     * Replaces the files of <tt>group</tt> with the compacted file, named
+     * after the first of them, which already contains all their records.
+     * Called by the <tt>HistoryCompactor</tt> after the files have been
+     * replaced on disk.
+     *
+     * @param group the names of the compacted files from oldest to newest
+     * @param counts the number of records of each compacted file
+     * @param min the smallest record timestamp of the compacted file
+     * @param max the greatest record timestamp of the compacted file
+     * @param count the number of records in the compacted file
+     * @param targetFile the compacted file, archived or not
+     */
+    void filesCompacted(List<String> group, List<Integer> counts,
+                        long min, long max, int count, File targetFile)
+    {
+        HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+        String target = group.get(0);
+        Map<String, FileRange> ranges = new HashMap<String, FileRange>();
+
+        synchronized (this.historyDocuments)
+        {
+            int offset = 0;
+
+            for (int i = 0; i < group.size(); i++)
+            {
+                String filename = group.get(i);
+                Object obj = (i > 0)
+                    ? this.historyDocuments.remove(filename)
+                    : this.historyDocuments.get(filename);
+
+                if (i == 0 && obj != null)
+                    this.historyDocuments.put(filename, targetFile);
+                if (cache != null && obj instanceof File)
+                    cache.remove((File) obj);
+                fileIndex.fileRemoved(filename);
+                keywordIndex.fileUpdated(filename);
+
+                ranges.put(filename,
+                    new FileRange(target, offset, counts.get(i)));
+                offset += counts.get(i);
+            }
+
+            fileIndex.indexIfAbsent(target, min, max, count);
+            recordIndex.filesCompacted(target, ranges);
+            this.compactions.add(ranges);
+        }
+
+        saveIndexes();
+    }
+
+    /**
+     * Saves the indexes of this history which have changed since they were
+     * last saved.
+     */
+    void saveIndexes()
+    {
+        fileIndex.save();
+        keywordIndex.save();
+        recordIndex.save();
+    }
+
+    /**
+     * Returns the number of compactions of the files of this history since
+     * it was loaded. Query results read after a compaction use it to find
+     * the records of the files they were created with.
+     *
+     * @return the number of compactions so far
+     */
+    int getGeneration()
+    {
+        synchronized (this.historyDocuments)
+        {
+            return this.compactions.size();
+        }
+    }
+
+    /**
+     * Finds where the records the file <tt>filename</tt> had when this
+     * history was at <tt>generation</tt> are now.
+     *
+     * @param filename the name of a file of the history at
+     * <tt>generation</tt>
+     * @param generation a value returned by {@link #getGeneration()}
+     * @return the range of the file now holding the records or
+     * <tt>null</tt> if the file has not been compacted since
+     */
+    FileRange locate(String filename, int generation)
+    {
+        FileRange range = null;
+
+        synchronized (this.historyDocuments)
+        {
+            for (int i = generation; i < this.compactions.size(); i++)
+            {
+                FileRange r = this.compactions.get(i).get(
+                    (range == null) ? filename : range.filename);
+
+                if (r == null)
+                    continue;
+
+                range = (range == null)
+                    ? r
+                    : new FileRange(
+                        r.filename, r.offset + range.offset, range.count);
+            }
+        }
+
+        return range;
     }
 
     protected Document getDocumentForFile(String filename)
             throws InvalidParameterException, RuntimeException {
-        Document retVal = null;
+        Object obj;
 
         synchronized (this.historyDocuments)
         {
@@ -271,42 +649,271 @@ public class HistoryImpl
                         + "filename does not exist in the document list.");
             }
 
-            Object obj = this.historyDocuments.get(filename);
-            if (obj instanceof Document)
-            {
-                // Document already loaded. Use it directly
-                retVal = (Document) obj;
-            } else if (obj instanceof File)
-            {
-                File file = (File) obj;
+            obj = this.historyDocuments.get(filename);
+        }
+
+        if (obj instanceof Document)
+        {
+            // Document already loaded. Use it directly
+            return (Document) obj;
+        }
+        else if (!(obj instanceof File))
+        {
+            // TODO: Assert: Assert.fail("Internal error - the data type " +
+            // "should be either Document or File.");
+            return null;
+        }
+
+        File file = (File) obj;
+        HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+        Document retVal;
 
-                try {
+        if (cache != null)
+        {
+            retVal = cache.get(file);
+            if (retVal != null)
+                return retVal;
+        }
+
+        // read before the file, a checkpoint may replace both meanwhile
+        List<HistoryJournal.Frame> frames
+            = historyServiceImpl.isAppendOnlyEnabled()
+                ? HistoryJournal.read(directory, filename)
+                : null;
+
+        // parsed without locking the document list, the files are replaced
+        // atomically when written
+        try {
+            retVal = this.historyServiceImpl.parse(file);
+        } catch (Exception e)
+        {
+            synchronized (this.historyDocuments)
+            {
+                // the file may have been written in place meanwhile
+                try
+                {
                     retVal = this.historyServiceImpl.parse(file);
-                } catch (Exception e)
+                }
+                catch (Exception ex)
                 {
-//                    throw new RuntimeException("Error occured while "
-//                            + "parsing XML document.", e);
-//                    log.error("Error occured while parsing XML document.", e);
                     log.error("Error occured while parsing XML document.", e);
 
                     // will try to fix the xml file
                     retVal = getFixedDocument(file);
+                }
+            }
+
+            // if is not fixed return
+            if(retVal == null)
+                return null;
+        }
+
+        // records appended after the last checkpoint
+        if(frames != null)
+            HistoryJournal.replay(frames, retVal);
+
+        fileIndex.indexIfAbsent(filename, retVal);
+        fileIndex.save();
+
+        // Cache the loaded document for reuse if configured
+        if (cache != null)
+            retVal = cache.putIfAbsent(file, retVal);
+
+        return retVal;
+    }
+
+    /**
+     * Reads the records of the file <tt>filename</tt> one by one without
+     * building its DOM unless it is already loaded. Records appended to the
+     * journal of the file are read as well. If the file is broken, it is
+     * loaded and fixed through {@link #getDocumentForFile(String)}.
+     *
+     * @param filename the name of the history file
+     * @param handler the handler of the read records
+     * @return <tt>false</tt> if the file cannot be read, <tt>true</tt>
+     * otherwise
+     * @throws InvalidParameterException if the file is not part of this
+     * history
+     */
+    boolean readRecords(String filename, HistoryFileReader.RecordHandler handler)
+        throws InvalidParameterException
+    {
+        Object obj;
+
+        synchronized (this.historyDocuments)
+        {
+            if (!this.historyDocuments.containsKey(filename))
+            {
+                throw new InvalidParameterException("The requested "
+                        + "filename does not exist in the document list.");
+            }
+
+            obj = this.historyDocuments.get(filename);
+        }
+
+        if (obj instanceof Document)
+        {
+            Document doc = (Document) obj;
 
-                    // if is not fixed return
-                    if(retVal == null)
-                        return null;
+            synchronized (doc)
+            {
+                // once written, the writer adds records to the document
+                // before they are in the file, read them from the file
+                synchronized (this.historyDocuments)
+                {
+                    obj = this.historyDocuments.get(filename);
                 }
 
-                // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
-            } else {
-                // TODO: Assert: Assert.fail("Internal error - the data type " +
-                // "should be either Document or File.");
+                if (obj == doc)
+                {
+                    HistoryFileReader.read(doc, handler);
+                    return true;
+                }
             }
+
+            if (obj == null)
+                return false;
         }
 
-        return retVal;
+        HistoryDocumentCache cache = historyServiceImpl.getDocumentCache();
+        if (cache != null && obj instanceof File)
+        {
+            Document doc = cache.get((File) obj);
+
+            if (doc != null)
+                obj = doc;
+        }
+
+        if (obj instanceof Document)
+        {
+            HistoryFileReader.read((Document) obj, handler);
+            return true;
+        }
+
+        IndexingRecordHandler indexingHandler
+            = new IndexingRecordHandler(handler);
+        try
+        {
+            // read before the file, a checkpoint may replace both meanwhile
+            List<HistoryJournal.Frame> frames
+                = historyServiceImpl.isAppendOnlyEnabled()
+                    ? HistoryJournal.read(directory, filename)
+                    : null;
+            int records = HistoryFileReader.read((File) obj, indexingHandler);
+
+            if (!indexingHandler.stopped && frames != null)
+            {
+                for (HistoryJournal.Frame frame : frames)
+                {
+                    // already written with the last checkpoint
+                    if (frame.position < records)
+                        continue;
+                    // appended after a checkpoint we have not read
+                    if (frame.position > records)
+                        break;
+
+                    if (!indexingHandler.handleRecord(
+                            frame.toHistoryRecord(), true))
+                        break;
+                    records++;
+                }
+            }
+
+            if (!indexingHandler.stopped)
+            {
+                fileIndex.indexIfAbsent(filename,
+                    indexingHandler.min, indexingHandler.max,
+                    indexingHandler.count);
+            }
+
+            return true;
+        }
+        catch (Exception e)
+        {
+            log.error("Error occured while reading XML document.", e);
+        }
+
+        Document doc = getDocumentForFile(filename);
+        if (doc == null)
+            return false;
+
+        // skip what was delivered before the broken part of the file
+        final int delivered = indexingHandler.count;
+        final HistoryFileReader.RecordHandler target = handler;
+        HistoryFileReader.read(doc, new HistoryFileReader.RecordHandler()
+        {
+            private int skipped = 0;
+
+            public boolean handleRecord(HistoryRecord record, boolean complete)
+            {
+                if (skipped < delivered)
+                {
+                    skipped++;
+                    return true;
+                }
+                return target.handleRecord(record, complete);
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Forwards records to another handler and computes the values needed to
+     * index the file they are read from.
+     */
+    private static class IndexingRecordHandler
+        implements HistoryFileReader.RecordHandler
+    {
+        /**
+         * The handler the records are forwarded to.
+         */
+        private final HistoryFileReader.RecordHandler handler;
+
+        /**
+         * The smallest timestamp seen so far.
+         */
+        long min = Long.MAX_VALUE;
+
+        /**
+         * The greatest timestamp seen so far.
+         */
+        long max = Long.MIN_VALUE;
+
+        /**
+         * The number of records forwarded so far.
+         */
+        int count = 0;
+
+        /**
+         * Whether the handler asked to stop reading.
+         */
+        boolean stopped = false;
+
+        /**
+         * Creates a handler forwarding records to <tt>handler</tt>.
+         * @param handler the handler the records are forwarded to
+         */
+        IndexingRecordHandler(HistoryFileReader.RecordHandler handler)
+        {
+            this.handler = handler;
+        }
+
+        public boolean handleRecord(HistoryRecord record, boolean complete)
+        {
+            long timestamp = record.getTimestamp().getTime();
+
+            if (timestamp < min)
+                min = timestamp;
+            if (timestamp > max)
+                max = timestamp;
+            count++;
+
+            if (!handler.handleRecord(record, complete))
+                stopped = true;
+
+            return !stopped;
+        }
     }
 
     /**
@@ -326,7 +933,8 @@ public class HistoryImpl
 
         try
         {
-            BufferedReader inReader = new BufferedReader(new FileReader(file));
+            BufferedReader inReader = new BufferedReader(
+                new InputStreamReader(HistoryArchive.openInputStream(file)));
             String line = null;
             while ( (line = inReader.readLine()) != null)
             {
@@ -360,7 +968,7 @@ public class HistoryImpl
 
             // parsing is ok . lets overwrite with correct values
             log.trace("File fixed will write to disk!");
-            XMLUtils.writeXML(result, file);
+            HistoryArchive.writeXML(result, file);
 
             return result;
         }
@@ -426,4 +1034,39 @@ public class HistoryImpl
 
         return true;
     }
+
+    /**
+     * The records of a file which has been compacted into another one.
+     */
+    static class FileRange
+    {
+        /**
+         * The name of the file holding the records.
+         */
+        final String filename;
+
+        /**
+         * The index of the first record in the file.
+         */
+        final int offset;
+
+        /**
+         * The number of records.
+         */
+        final int count;
+
+        /**
+         * Creates a range of records.
+         *
+         * @param filename the name of the file holding the records
+         * @param offset the index of the first record in the file
+         * @param count the number of records
+         */
+        FileRange(String filename, int offset, int count)
+        {
+            this.filename = filename;
+            this.offset = offset;
+            this.count = count;
+        }
+    }
 }
@@ -0,0 +1,305 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * An append-only log of records which have been added to a history document
+ * but not yet written to its XML file. Instead of re-serializing the whole
+ * document on every <tt>addRecord</tt> the writer appends a small frame here
+ * and only periodically checkpoints the document into its XML file, after
+ * which the journal is discarded.
+ * <p>
+ * Every record is stored as a {@link JournalFile} frame whose payload
+ * carries the position the record has in its document. When the document is
+ * loaded the journal is replayed on top of it, skipping frames which are
+ * already part of the XML (a checkpoint was written but the journal was not
+ * yet removed) and stopping at the first truncated or corrupted frame.
+ */
+class HistoryJournal
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(HistoryJournal.class);
+
+    /**
+     * The extension appended to the name of the history file in order to
+     * obtain the name of its journal.
+     */
+    static final String JOURNAL_EXTENSION = ".log";
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * The number of records appended since the last checkpoint.
+     */
+    private int recordCount = 0;
+
+    /**
+     * Creates a journal for the history file with name <tt>filename</tt>
+     * located in <tt>directory</tt>. Any previous content of the journal is
+     * discarded as the caller has just checkpointed the document.
+     *
+     * @param directory the directory of the history
+     * @param filename the name of the history file
+     */
+    HistoryJournal(File directory, String filename)
+    {
+        this.file = getJournalFile(directory, filename);
+
+        clear();
+    }
+
+    /**
+     * Returns the journal file for the history file <tt>filename</tt>.
+     *
+     * @param directory the directory of the history
+     * @param filename the name of the history file
+     * @return the journal file
+     */
+    static File getJournalFile(File directory, String filename)
+    {
+        return new File(directory, filename + JOURNAL_EXTENSION);
+    }
+
+    /**
+     * Appends records to the journal with a single write.
+     *
+     * @param frames the records to append, with the names of the properties
+     * as passed to the writer
+     * @throws IOException if writing to the journal fails
+     */
+    synchronized void append(List<Frame> frames)
+        throws IOException
+    {
+        List<byte[]> payloads = new ArrayList<byte[]>(frames.size());
+
+        for (Frame frame : frames)
+            payloads.add(frame.toBytes());
+
+        JournalFile.append(file, payloads);
+
+        recordCount += frames.size();
+    }
+
+    /**
+     * Returns the number of records appended since the last checkpoint.
+     *
+     * @return the number of records appended since the last checkpoint
+     */
+    synchronized int getRecordCount()
+    {
+        return recordCount;
+    }
+
+    /**
+     * Discards the content of the journal. Called once the document has been
+     * checkpointed to its XML file.
+     */
+    synchronized void clear()
+    {
+        if (file.exists() && !file.delete())
+            logger.warn("Cannot remove history journal " + file);
+
+        recordCount = 0;
+    }
+
+    /**
+     * Replays the frames of the journal of a history file into <tt>doc</tt>,
+     * appending all the records which are not yet part of it. The frames
+     * must be read before the document is loaded, so that a checkpoint
+     * happening in between cannot hide records.
+     *
+     * @param frames the frames read from the journal of the file
+     * @param doc the document loaded from the history file
+     * @return the number of replayed records
+     */
+    static int replay(List<Frame> frames, Document doc)
+    {
+        if (frames.isEmpty())
+            return 0;
+
+        Node root = doc.getFirstChild();
+        int docRecords = doc.getElementsByTagName("record").getLength();
+        int replayed = 0;
+
+        for (Frame frame : frames)
+        {
+            // already written with the last checkpoint
+            if (frame.position < docRecords)
+                continue;
+            // appended after a checkpoint the document does not contain
+            if (frame.position > docRecords)
+                break;
+
+            root.appendChild(HistoryWriterImpl.createRecordElement(
+                doc, frame.names, frame.values, frame.timestamp));
+            docRecords++;
+            replayed++;
+        }
+
+        return replayed;
+    }
+
+    /**
+     * Reads the valid frames of the journal of the history file
+     * <tt>filename</tt>.
+     *
+     * @param directory the directory of the history
+     * @param filename the name of the history file
+     * @return the frames of the journal in the order they were appended
+     */
+    static List<Frame> read(File directory, String filename)
+    {
+        File journalFile = getJournalFile(directory, filename);
+        List<Frame> frames = new ArrayList<Frame>();
+
+        for (byte[] bytes : JournalFile.read(journalFile))
+        {
+            try
+            {
+                frames.add(Frame.fromBytes(bytes));
+            }
+            catch (IOException e)
+            {
+                logger.warn("Stopped reading history journal " + journalFile
+                    + " after " + frames.size() + " records: "
+                    + e.getMessage());
+                break;
+            }
+        }
+
+        return frames;
+    }
+
+    /**
+     * A record read from the journal.
+     */
+    static class Frame
+    {
+        /**
+         * The index of the record in its document.
+         */
+        int position;
+
+        /**
+         * The names of the properties as passed to the writer.
+         */
+        String[] names;
+
+        /**
+         * The values of the properties.
+         */
+        String[] values;
+
+        /**
+         * The timestamp of the record.
+         */
+        Date timestamp;
+
+        /**
+         * Serializes the payload of this frame.
+         *
+         * @return the payload of this frame
+         * @throws IOException if serializing fails
+         */
+        byte[] toBytes()
+            throws IOException
+        {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream payloadOut = new DataOutputStream(payload);
+
+            payloadOut.writeInt(position);
+            payloadOut.writeLong(timestamp.getTime());
+
+            int count = 0;
+            for (int i = 0; i < values.length; i++)
+            {
+                if (values[i] != null)
+                    count++;
+            }
+            payloadOut.writeInt(count);
+            for (int i = 0; i < names.length; i++)
+            {
+                if (values[i] == null)
+                    continue;
+
+                JournalFile.writeString(payloadOut, names[i]);
+                JournalFile.writeString(payloadOut, values[i]);
+            }
+            payloadOut.flush();
+
+            return payload.toByteArray();
+        }
+
+        /**
+         * Reads a frame serialized by {@link #toBytes()}.
+         *
+         * @param bytes the payload of the frame
+         * @return the frame
+         * @throws IOException if the payload is invalid
+         */
+        static Frame fromBytes(byte[] bytes)
+            throws IOException
+        {
+            DataInputStream payload
+                = new DataInputStream(new ByteArrayInputStream(bytes));
+
+            Frame frame = new Frame();
+            frame.position = payload.readInt();
+            frame.timestamp = new Date(payload.readLong());
+            int count = payload.readInt();
+            frame.names = new String[count];
+            frame.values = new String[count];
+            for (int i = 0; i < count; i++)
+            {
+                frame.names[i] = JournalFile.readString(payload);
+                frame.values[i] = JournalFile.readString(payload);
+            }
+
+            return frame;
+        }
+
+        /**
+         * Creates the <tt>HistoryRecord</tt> stored in this frame, as it
+         * would be read from the history file.
+         *
+         * @return the <tt>HistoryRecord</tt> stored in this frame
+         */
+        HistoryRecord toHistoryRecord()
+        {
+            String[] propertyNames = new String[names.length];
+            String[] propertyValues = new String[values.length];
+
+            for (int i = 0; i < names.length; i++)
+            {
+                String name = names[i];
+
+                if (name.endsWith(HistoryWriterImpl.CDATA_SUFFIX))
+                {
+                    name = name.substring(0,
+                        name.length() - HistoryWriterImpl.CDATA_SUFFIX.length());
+                }
+                propertyNames[i] = name;
+                propertyValues[i] = values[i].replaceAll("\0", " ");
+            }
+
+            return new HistoryRecord(propertyNames, propertyValues, timestamp);
+        }
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * An inverted index of the property values of a history used to avoid
+ * parsing the files which cannot contain the keywords of a query.
+ * <p>
+ * The keyword queries match substrings, so the index stores the character
+ * trigrams of every property value rather than words: a value can contain a
+ * keyword only if it contains all of its trigrams. Trigrams are normalized
+ * by lower casing every character on its own, which never changes the
+ * length of the text and maps all the characters matched by both the case
+ * sensitive and the case insensitive query to the same value. The index is
+ * therefore only a filter, the records of the remaining files are still
+ * matched exactly as before. Keywords shorter than a trigram do not filter
+ * anything.
+ * <p>
+ * For every file the index keeps the sorted hashes of the (property name,
+ * trigram) pairs found in it. It is loaded on the first keyword query and
+ * stored next to the history files. Like {@link HistoryFileIndex}, entries
+ * are trusted on load only if the length of their file did not change and no
+ * journal is pending, missing entries are rebuilt from the XML when a query
+ * parses the file.
+ */
+class HistoryKeywordIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryKeywordIndex.class);
+
+    /**
+     * The name of the index file stored in the history directory.
+     */
+    static final String INDEX_FILE = "keywordindex.dat";
+
+    /**
+     * The version of the format of the index file.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The length of the indexed character sequences.
+     */
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * The directory of the history.
+     */
+    private final File directory;
+
+    /**
+     * The entries of the index by file name, <tt>null</tt> until the index
+     * is used for the first time.
+     */
+    private Map<String, Entry> entries = null;
+
+    /**
+     * Whether there are changes not yet saved to the index file.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Creates the keyword index of the history stored in <tt>directory</tt>.
+     *
+     * @param directory the directory of the history
+     */
+    HistoryKeywordIndex(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Checks whether the file <tt>filename</tt> may contain records whose
+     * <tt>field</tt> property contains all the <tt>keywords</tt>.
+     *
+     * @param filename the name of the history file
+     * @param field the name of the property the keywords are searched in
+     * @param keywords the keywords
+     * @return <tt>false</tt> if the file is known not to contain the keywords,
+     * <tt>true</tt> otherwise
+     */
+    synchronized boolean mayContain(String filename,
+                                    String field,
+                                    String[] keywords)
+    {
+        if (field == null || keywords == null)
+            return true;
+
+        ensureLoaded();
+
+        Entry entry = entries.get(filename);
+        if (entry == null)
+            return true;
+
+        for (String keyword : keywords)
+        {
+            String normalized = normalize(keyword);
+
+            for (int i = 0; i + GRAM_LENGTH <= normalized.length(); i++)
+            {
+                if (!entry.contains(hash(field, normalized, i)))
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Indexes the document loaded from <tt>filename</tt> unless the file is
+     * already indexed.
+     *
+     * @param filename the name of the history file
+     * @param doc the document loaded from the file
+     */
+    void indexIfAbsent(String filename, Document doc)
+    {
+        synchronized (this)
+        {
+            ensureLoaded();
+
+            if (entries.containsKey(filename))
+                return;
+        }
+
+        GramCollector grams = new GramCollector();
+
+        // the entry is put while holding the document so that a record
+        // appended meanwhile by the writer cannot be missed
+        synchronized (doc)
+        {
+            NodeList nodes = doc.getElementsByTagName("record");
+            for (int i = 0; i < nodes.getLength(); i++)
+            {
+                NodeList propertyNodes = nodes.item(i).getChildNodes();
+
+                for (int j = 0; j < propertyNodes.getLength(); j++)
+                {
+                    Node propertyNode = propertyNodes.item(j);
+
+                    if (propertyNode.getNodeType() != Node.ELEMENT_NODE)
+                        continue;
+
+                    Node valueNode = propertyNode.getFirstChild();
+                    if (valueNode == null)
+                        continue;
+
+                    grams.add(propertyNode.getNodeName(),
+                              valueNode.getNodeValue());
+                }
+            }
+
+            Entry entry = new Entry(grams.toSortedArray());
+            entry.length
+                = HistoryArchive.getStoredFile(directory, filename).length();
+
+            synchronized (this)
+            {
+                if (!entries.containsKey(filename))
+                {
+                    entries.put(filename, entry);
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the entry of <tt>filename</tt> with a newly added record. Does
+     * nothing if the index is not loaded, in which case the entry will be
+     * found stale and rebuilt when loaded.
+     *
+     * @param filename the name of the history file
+     * @param propertyNames the names of the properties as passed to the writer
+     * @param propertyValues the values of the properties
+     */
+    synchronized void recordAdded(String filename,
+                                  String[] propertyNames,
+                                  String[] propertyValues)
+    {
+        if (entries == null)
+            return;
+
+        Entry entry = entries.get(filename);
+        if (entry == null)
+            return;
+
+        GramCollector grams = new GramCollector();
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] == null)
+                continue;
+
+            String name = propertyNames[i];
+            if (name.endsWith(HistoryWriterImpl.CDATA_SUFFIX))
+            {
+                name = name.substring(
+                    0, name.length() - HistoryWriterImpl.CDATA_SUFFIX.length());
+            }
+
+            grams.add(name, propertyValues[i]);
+        }
+
+        entry.addAll(grams.toSortedArray());
+        dirty = true;
+    }
+
+    /**
+     * Creates an empty entry for a newly created history file.
+     *
+     * @param filename the name of the history file
+     */
+    synchronized void fileCreated(String filename)
+    {
+        if (entries != null && !entries.containsKey(filename))
+        {
+            entries.put(filename, new Entry(new int[0]));
+            dirty = true;
+        }
+    }
+
+    /**
+     * Notifies the index that <tt>filename</tt> has been written to disk.
+     *
+     * @param filename the name of the history file
+     */
+    synchronized void fileWritten(String filename)
+    {
+        if (entries == null)
+            return;
+
+        Entry entry = entries.get(filename);
+        if (entry != null)
+        {
+            entry.length
+                = HistoryArchive.getStoredFile(directory, filename).length();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Notifies the index that existing records of <tt>filename</tt> have
+     * been modified, which invalidates its entry.
+     *
+     * @param filename the name of the history file
+     */
+    synchronized void fileUpdated(String filename)
+    {
+        if (entries != null && entries.remove(filename) != null)
+            dirty = true;
+    }
+
+    /**
+     * Drops the whole index and rebuilds it from the XML files of
+     * <tt>history</tt>.
+     *
+     * @param history the history this index belongs to
+     */
+    void rebuild(HistoryImpl history)
+    {
+        synchronized (this)
+        {
+            ensureLoaded();
+
+            entries.clear();
+            dirty = true;
+        }
+
+        List<String> files = new ArrayList<String>();
+        Iterator<String> iter = history.getFileList();
+        while (iter.hasNext())
+            files.add(iter.next());
+
+        for (String filename : files)
+        {
+            Document doc = history.getDocumentForFile(filename);
+
+            if (doc != null)
+                indexIfAbsent(filename, doc);
+        }
+
+        save();
+    }
+
+    /**
+     * Saves the index if it is loaded and has changed since it was last
+     * saved.
+     */
+    synchronized void save()
+    {
+        if (entries == null || !dirty)
+            return;
+
+        File indexFile = new File(directory, INDEX_FILE);
+        File tmpFile = new File(directory, INDEX_FILE + ".tmp");
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try
+            {
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet())
+                {
+                    Entry entry = e.getValue();
+
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.length);
+                    out.writeInt(entry.size);
+                    for (int i = 0; i < entry.size; i++)
+                        out.writeInt(entry.grams[i]);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmpFile.renameTo(indexFile))
+            {
+                indexFile.delete();
+                if (!tmpFile.renameTo(indexFile))
+                    throw new IOException("Cannot rename " + tmpFile);
+            }
+
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot save history keyword index " + indexFile, e);
+        }
+    }
+
+    /**
+     * Loads the index file the first time the index is used and keeps the
+     * entries which are still valid.
+     */
+    private void ensureLoaded()
+    {
+        if (entries != null)
+            return;
+
+        entries = new HashMap<String, Entry>();
+
+        File indexFile = new File(directory, INDEX_FILE);
+        if (!indexFile.exists())
+            return;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)));
+            try
+            {
+                if (in.readInt() != VERSION)
+                {
+                    dirty = true;
+                    return;
+                }
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    String filename = in.readUTF();
+                    long length = in.readLong();
+                    int[] grams = new int[in.readInt()];
+                    for (int j = 0; j < grams.length; j++)
+                        grams[j] = in.readInt();
+
+                    File file
+                        = HistoryArchive.getStoredFile(directory, filename);
+                    if (file.length() == length
+                        && !HistoryJournal.getJournalFile(
+                                directory, filename).exists())
+                    {
+                        Entry entry = new Entry(grams);
+                        entry.length = length;
+                        entries.put(filename, entry);
+                    }
+                    else
+                        dirty = true;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot load history keyword index " + indexFile, e);
+            entries.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Normalizes a text before extracting its trigrams.
+     *
+     * @param text the text to normalize
+     * @return the normalized text, having the same length as <tt>text</tt>
+     */
+    private static String normalize(String text)
+    {
+        char[] chars = text.toCharArray();
+
+        for (int i = 0; i < chars.length; i++)
+        {
+            // the writer stores null characters as spaces
+            if (chars[i] == '\0')
+                chars[i] = ' ';
+            else
+                chars[i] = Character.toLowerCase(chars[i]);
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Returns the hash of the trigram of <tt>text</tt> starting at
+     * <tt>offset</tt> in the property named <tt>field</tt>.
+     *
+     * @param field the name of the property
+     * @param text the normalized text
+     * @param offset the index of the first character of the trigram
+     * @return the hash of the trigram
+     */
+    private static int hash(String field, String text, int offset)
+    {
+        int h = field.hashCode();
+
+        for (int i = offset; i < offset + GRAM_LENGTH; i++)
+            h = 31 * h + text.charAt(i);
+
+        return h;
+    }
+
+    /**
+     * Collects the trigram hashes of property values.
+     */
+    private static class GramCollector
+    {
+        /**
+         * The collected hashes.
+         */
+        private int[] hashes = new int[64];
+
+        /**
+         * The number of collected hashes.
+         */
+        private int size = 0;
+
+        /**
+         * Collects the trigrams of <tt>value</tt> of the property
+         * <tt>field</tt>.
+         *
+         * @param field the name of the property
+         * @param value the value of the property
+         */
+        void add(String field, String value)
+        {
+            String normalized = normalize(value);
+
+            for (int i = 0; i + GRAM_LENGTH <= normalized.length(); i++)
+            {
+                if (size == hashes.length)
+                    hashes = Arrays.copyOf(hashes, size * 2);
+
+                hashes[size++] = hash(field, normalized, i);
+            }
+        }
+
+        /**
+         * Returns the collected hashes sorted and without duplicates.
+         *
+         * @return the collected hashes sorted and without duplicates
+         */
+        int[] toSortedArray()
+        {
+            Arrays.sort(hashes, 0, size);
+
+            int unique = 0;
+            for (int i = 0; i < size; i++)
+            {
+                if (unique == 0 || hashes[unique - 1] != hashes[i])
+                    hashes[unique++] = hashes[i];
+            }
+
+            return Arrays.copyOf(hashes, unique);
+        }
+    }
+
+    /**
+     * The trigram hashes of a history file.
+     */
+    private static class Entry
+    {
+        /**
+         * The sorted hashes, only the first <tt>size</tt> are used.
+         */
+        int[] grams;
+
+        /**
+         * The number of hashes.
+         */
+        int size;
+
+        /**
+         * The length of the file when it was last indexed or written.
+         */
+        long length = -1;
+
+        /**
+         * Creates an entry with the given sorted hashes.
+         *
+         * @param grams the sorted hashes without duplicates
+         */
+        Entry(int[] grams)
+        {
+            this.grams = grams;
+            this.size = grams.length;
+        }
+
+        /**
+         * Checks whether the entry contains the given hash.
+         *
+         * @param hash the hash to look for
+         * @return <tt>true</tt> if the entry contains <tt>hash</tt>
+         */
+        boolean contains(int hash)
+        {
+            return Arrays.binarySearch(grams, 0, size, hash) >= 0;
+        }
+
+        /**
+         * Merges the given sorted hashes into this entry.
+         *
+         * @param added the sorted hashes without duplicates
+         */
+        void addAll(int[] added)
+        {
+            int[] merged = new int[size + added.length];
+            int i = 0, j = 0, k = 0;
+
+            while (i < size || j < added.length)
+            {
+                int next;
+
+                if (j >= added.length
+                    || (i < size && grams[i] <= added[j]))
+                {
+                    next = grams[i++];
+                    if (j < added.length && added[j] == next)
+                        j++;
+                }
+                else
+                    next = added[j++];
+
+                merged[k++] = next;
+            }
+
+            grams = merged;
+            size = k;
+        }
+    }
+}
@@ -35,9 +35,16 @@ public class HistoryQueryImpl implements HistoryQuery
         = new Vector<HistoryRecord>();
 
     /**
-     * Indicates if this query has been canceled.
+     * Indicates if this query has been canceled. Checked by the search
+     * running the query for every record it reads.
+     */
+    private volatile boolean isCanceled = false;
+
+    /**
+     * The status this query ended with or <tt>-1</tt> while it is running.
+     * Guarded by <tt>queryListeners</tt>.
      */
-    private boolean isCanceled = false;
+    private int endStatus = -1;
 
     /**
      * The query string we're looking for in this query.
@@ -92,7 +99,9 @@ public class HistoryQueryImpl implements HistoryQuery
 
     /**
      * Adds the given <tt>HistoryQueryListener</tt> to the list of
-     * listeners interested in query result changes.
+     * listeners interested in query result changes. A listener added once
+     * the query has ended is notified of its status right away, the query
+     * runs in the background and may end before its listeners are added.
      * @param l the <tt>HistoryQueryListener</tt> to add
      */
     public void addHistoryRecordsListener(HistoryQueryListener l)
@@ -100,6 +109,10 @@ public class HistoryQueryImpl implements HistoryQuery
         synchronized (queryListeners)
         {
             queryListeners.add(l);
+
+            if (endStatus != -1)
+                l.queryStatusChanged(
+                    new HistoryQueryStatusEvent(this, endStatus));
         }
     }
 
@@ -128,6 +141,20 @@ public class HistoryQueryImpl implements HistoryQuery
         fireQueryEvent(record);
     }
 
+    /**
+     * Adds the records found in a history file to the result list of this
+     * query and notifies all interested listeners of every one of them, in
+     * the order of <tt>records</tt>.
+     * @param records the <tt>HistoryRecord</tt>s to add
+     */
+    void addHistoryRecords(List<HistoryRecord> records)
+    {
+        historyRecords.addAll(records);
+
+        for (HistoryRecord record : records)
+            fireQueryEvent(record);
+    }
+
     /**
      * Sets this query status to the given <tt>queryStatus</tt> and notifies
      * all interested listeners of the change.
@@ -168,6 +195,8 @@ public class HistoryQueryImpl implements HistoryQuery
 
         synchronized (queryListeners)
         {
+            endStatus = newStatus;
+
             for (HistoryQueryListener l : queryListeners)
             {
                 l.queryStatusChanged(event);
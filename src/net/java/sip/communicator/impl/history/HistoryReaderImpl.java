@@ -9,8 +9,10 @@ package net.java.sip.communicator.impl.history;
 import static
     net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
 
+import java.security.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.locks.*;
 import java.util.regex.*;
 
 import net.java.sip.communicator.service.history.*;
@@ -31,10 +33,6 @@ public class HistoryReaderImpl
     private Vector<HistorySearchProgressListener> progressListeners
         = new Vector<HistorySearchProgressListener>();
 
-    // regexp used for index of case(in)sensitive impl
-    private static String REGEXP_END = ".*$";
-    private static String REGEXP_SENSITIVE_START = "(?s)^.*";
-    private static String REGEXP_INSENSITIVE_START = "(?si)^.*";
 
     /**
      * Creates an instance of <tt>HistoryReaderImpl</tt>.
@@ -55,7 +53,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByStartDate(
+    public QueryResultSet<HistoryRecord> findByStartDate(
                                                                 Date startDate)
             throws RuntimeException
     {
@@ -72,7 +70,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
+    public QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
         throws RuntimeException
     {
         return find(null, endDate, null, null, false);
@@ -89,7 +87,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByPeriod(Date startDate, Date endDate)
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate, Date endDate)
             throws RuntimeException
     {
         return find(startDate, endDate, null, null, false);
@@ -105,7 +103,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByKeyword(String keyword, String field)
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword, String field)
         throws RuntimeException
     {
         return findByKeywords(new String[] { keyword }, field);
@@ -121,7 +119,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByKeywords(String[] keywords, String field)
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords, String field)
             throws RuntimeException
     {
             return find(null, null, keywords, field, false);
@@ -140,7 +138,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByPeriod(Date startDate, Date endDate,
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate, Date endDate,
             String[] keywords, String field) throws UnsupportedOperationException
     {
         return find(startDate, endDate, keywords, field, false);
@@ -155,107 +153,54 @@ public class HistoryReaderImpl
      * @return QueryResultSet
      * @throws RuntimeException
      */
-    public synchronized QueryResultSet<HistoryRecord> findLast(int count) throws RuntimeException
+    public QueryResultSet<HistoryRecord> findLast(int count) throws RuntimeException
     {
-        // the files are supposed to be ordered from oldest to newest
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, null);
+        Lock lock = this.historyImpl.getFilesLock().readLock();
 
-        TreeSet<HistoryRecord> result
-            = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
-        int leftCount = count;
-        int currentFile = filelist.size() - 1;
-
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        while(leftCount > 0 && currentFile >= 0)
+        lock.lock();
+        try
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            // the files are supposed to be ordered from oldest to newest
+            Vector<String> filelist =
+                filterFilesByDate(this.historyImpl.getFileList(), null, null);
 
-            if(doc == null)
-            {
-                currentFile--;
-                continue;
-            }
+            TreeSet<HistoryRecord> result
+                = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
+            int leftCount = count;
+            int currentFile = filelist.size() - 1;
 
-            // will get nodes and construct a List of nodes
-            // so we can easyly get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
+            while(leftCount > 0 && currentFile >= 0)
             {
-                nodes.add(nodesList.item(i));
-            }
-
-            List<Node> lNodes = null;
-
-            if (nodes.size() > leftCount)
-            {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
-                leftCount = 0;
-            }
-            else
-            {
-                lNodes = nodes;
-                leftCount -= nodes.size();
-            }
+                // keep only the last leftCount records of the file
+                final LinkedList<HistoryRecord> fileRecords
+                    = new LinkedList<HistoryRecord>();
+                final int limit = leftCount;
 
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
-            {
-                Node node = i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+                this.historyImpl.readRecords(filelist.get(currentFile),
+                    new HistoryFileReader.RecordHandler()
                     {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue == null)
-                            continue;
-
-                        nameVals.add(propertyNode.getNodeName());
-                        nameVals.add(nodeValue.getNodeValue());
-                    }
-                }
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
+                        public boolean handleRecord(HistoryRecord record,
+                                                    boolean complete)
+                        {
+                            fileRecords.add(record);
+                            if (fileRecords.size() > limit)
+                                fileRecords.removeFirst();
+                            return true;
+                        }
+                    });
 
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
+                leftCount -= fileRecords.size();
+                result.addAll(fileRecords);
 
-                result.add(record);
+                currentFile--;
             }
 
-            currentFile--;
+            return new OrderedQueryResultSet<HistoryRecord>(result);
+        }
+        finally
+        {
+            lock.unlock();
         }
-
-        return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
     /**
@@ -269,7 +214,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByKeyword(String keyword, String field,
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword, String field,
                                         boolean caseSensitive)
         throws RuntimeException
     {
@@ -287,7 +232,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByKeywords(String[] keywords, String field,
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords, String field,
                                          boolean caseSensitive)
         throws RuntimeException
     {
@@ -308,7 +253,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByPeriod(Date startDate, Date endDate,
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate, Date endDate,
                                        String[] keywords, String field,
                                        boolean caseSensitive)
         throws UnsupportedOperationException
@@ -327,96 +272,53 @@ public class HistoryReaderImpl
     public QueryResultSet<HistoryRecord> findFirstRecordsAfter(Date date, int count) throws
         RuntimeException
     {
-        TreeSet<HistoryRecord> result
-            = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
-
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), date, null);
-
-        int leftCount = count;
-        int currentFile = 0;
+        Lock lock = this.historyImpl.getFilesLock().readLock();
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        while(leftCount > 0 && currentFile < filelist.size())
+        lock.lock();
+        try
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            final TreeSet<HistoryRecord> result
+                = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
-            if(doc == null)
-            {
-                currentFile++;
-                continue;
-            }
+            Vector<String> filelist = this.historyImpl.getFileIndex().filter(
+                filterFilesByDate(this.historyImpl.getFileList(), date, null),
+                date, null);
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            final int[] leftCount = new int[] { count };
+            int currentFile = 0;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
+            while(leftCount[0] > 0 && currentFile < filelist.size())
             {
-                node = nodes.item(i);
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
+                final Date startDate = date;
 
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+                // stops reading the file as soon as enough records are found
+                this.historyImpl.readRecords(filelist.get(currentFile),
+                    new HistoryFileReader.RecordHandler()
                     {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
+                        public boolean handleRecord(HistoryRecord record,
+                                                    boolean complete)
                         {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
+                            // if we found a broken record - just skip it
+                            if(complete
+                                && isInPeriod(record.getTimestamp(),
+                                              startDate, null))
+                            {
+                                result.add(record);
+                                leftCount[0]--;
+                            }
+                            return leftCount[0] > 0;
                         }
-                        else
-                            isRecordOK = false;
-                    }
-                }
+                    });
 
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
+                currentFile++;
             }
 
-            currentFile++;
+            return new OrderedQueryResultSet<HistoryRecord>(result);
+        }
+        finally
+        {
+            lock.unlock();
         }
-
-        return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
     /**
@@ -430,188 +332,243 @@ public class HistoryReaderImpl
     public QueryResultSet<HistoryRecord> findLastRecordsBefore(Date date, int count) throws
         RuntimeException
     {
-        // the files are supposed to be ordered from oldest to newest
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, date);
+        Lock lock = this.historyImpl.getFilesLock().readLock();
 
-        TreeSet<HistoryRecord> result
-            = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
-        int leftCount = count;
-
-        int currentFile = filelist.size() - 1;
-
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        while(leftCount > 0 && currentFile >= 0)
+        lock.lock();
+        try
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            // the files are supposed to be ordered from oldest to newest
+            Vector<String> filelist = this.historyImpl.getFileIndex().filter(
+                filterFilesByDate(this.historyImpl.getFileList(), null, date),
+                null, date);
 
-            if(doc == null)
-            {
-                currentFile--;
-                continue;
-            }
+            TreeSet<HistoryRecord> result
+                = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
+            int leftCount = count;
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            int currentFile = filelist.size() - 1;
 
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
+            while(leftCount > 0 && currentFile >= 0)
             {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, null, date))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+                // keep only the last leftCount matching records of the file
+                final LinkedList<HistoryRecord> fileRecords
+                    = new LinkedList<HistoryRecord>();
+                final int limit = leftCount;
+                final Date endDate = date;
+
+                this.historyImpl.readRecords(filelist.get(currentFile),
+                    new HistoryFileReader.RecordHandler()
                     {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
+                        public boolean handleRecord(HistoryRecord record,
+                                                    boolean complete)
                         {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
+                            // if we found a broken record - just skip it
+                            if(complete
+                                && isInPeriod(record.getTimestamp(),
+                                              null, endDate))
+                            {
+                                fileRecords.add(record);
+                                if (fileRecords.size() > limit)
+                                    fileRecords.removeFirst();
+                            }
+                            return true;
                         }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
+                    });
 
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
+                leftCount -= fileRecords.size();
+                result.addAll(fileRecords);
 
-                result.add(record);
-                leftCount--;
+                currentFile--;
             }
 
-            currentFile--;
+            return new OrderedQueryResultSet<HistoryRecord>(result);
+        }
+        finally
+        {
+            lock.unlock();
         }
-
-        return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
     private QueryResultSet<HistoryRecord> find(
         Date startDate, Date endDate,
         String[] keywords, String field, boolean caseSensitive)
     {
-        TreeSet<HistoryRecord> result
-            = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
-
-        Vector<String> filelist
-            = filterFilesByDate(this.historyImpl.getFileList(),
-                                startDate, endDate);
-
-        double currentProgress
-            = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
-        double fileProgressStep
-            = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
-
-        if(filelist.size() != 0)
-            fileProgressStep
-                = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
-                    / filelist.size();
-
-        // start progress - minimum value
-        fireProgressStateChanged(startDate, endDate,
-            keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
-
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        Iterator<String> fileIterator = filelist.iterator();
-        while (fileIterator.hasNext())
+        Lock lock = this.historyImpl.getFilesLock().readLock();
+
+        lock.lock();
+        try
         {
-            String filename = fileIterator.next();
+            Vector<String> filelist
+                = this.historyImpl.getFileIndex().filter(
+                    filterFilesByDate(this.historyImpl.getFileList(),
+                                      startDate, endDate),
+                    startDate, endDate);
+
+            Pattern[] keywordPatterns = compileKeywords(keywords, caseSensitive);
+            HistoryKeywordIndex keywordIndex
+                = (keywords != null && field != null)
+                    ? this.historyImpl.getKeywordIndex()
+                    : null;
+
+            // nobody follows the progress of the search, so the files are read
+            // only when the records are iterated, in timestamp order within
+            // each file only
+            if(progressListeners.isEmpty())
+            {
+                if(keywordIndex != null)
+                {
+                    Iterator<String> iter = filelist.iterator();
+                    while (iter.hasNext())
+                    {
+                        if(!keywordIndex.mayContain(iter.next(), field, keywords))
+                            iter.remove();
+                    }
+                }
 
-            Document doc = this.historyImpl.getDocumentForFile(filename);
+                return new LazyQueryResultSet(historyImpl, filelist,
+                    startDate, endDate, keywordPatterns, field);
+            }
 
-            if(doc == null)
-                continue;
+            TreeSet<HistoryRecord> result
+                = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            double currentProgress
+                = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
+            double fileProgressStep
+                = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
 
-            double nodesProgressStep = fileProgressStep;
+            if(filelist.size() != 0)
+                fileProgressStep
+                    = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                        / filelist.size();
 
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
+            // start progress - minimum value
+            fireProgressStateChanged(startDate, endDate,
+                keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+            Iterator<String> fileIterator = filelist.iterator();
+            while (fileIterator.hasNext())
             {
-                node = nodes.item(i);
+                String filename = fileIterator.next();
 
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
+                if(keywordIndex != null
+                    && !keywordIndex.mayContain(filename, field, keywords))
                 {
-                    timestamp = sdf.parse(ts);
+                    currentProgress += fileProgressStep;
+                    fireProgressStateChanged(
+                        startDate, endDate, keywords, (int)currentProgress);
+                    continue;
                 }
-                catch (ParseException e)
+
+                if(keywordIndex == null)
                 {
-                    timestamp = new Date(Long.parseLong(ts));
+                    // no keyword to match, read the records without a DOM
+                    final List<HistoryRecord> fileRecords
+                        = new ArrayList<HistoryRecord>();
+
+                    this.historyImpl.readRecords(filename,
+                        new HistoryFileReader.RecordHandler()
+                        {
+                            public boolean handleRecord(HistoryRecord record,
+                                                        boolean complete)
+                            {
+                                fileRecords.add(record);
+                                return true;
+                            }
+                        });
+
+                    double recordsProgressStep = fileProgressStep;
+
+                    if(fileRecords.size() != 0)
+                        recordsProgressStep = fileProgressStep / fileRecords.size();
+
+                    for (HistoryRecord record : fileRecords)
+                    {
+                        if(isInPeriod(record.getTimestamp(), startDate, endDate))
+                            result.add(record);
+
+                        currentProgress += recordsProgressStep;
+                        fireProgressStateChanged(
+                            startDate, endDate, keywords, (int)currentProgress);
+                    }
+
+                    continue;
                 }
 
-                if(isInPeriod(timestamp, startDate, endDate))
+                Document doc = this.historyImpl.getDocumentForFile(filename);
+
+                if(doc == null)
+                    continue;
+
+                keywordIndex.indexIfAbsent(filename, doc);
+
+                // the writer may be appending to the document
+                synchronized (doc)
                 {
-                    NodeList propertyNodes = node.getChildNodes();
+                    NodeList nodes = doc.getElementsByTagName("record");
+
+                    double nodesProgressStep = fileProgressStep;
 
-                    HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+                    if(nodes.getLength() != 0)
+                        nodesProgressStep = fileProgressStep / nodes.getLength();
 
-                    if(record != null)
+                    Node node;
+                    for (int i = 0; i < nodes.getLength(); i++)
                     {
-                        result.add(record);
+                        node = nodes.item(i);
+
+                        Date timestamp;
+                        String ts = node.getAttributes().getNamedItem("timestamp")
+                                .getNodeValue();
+                        try
+                        {
+                            timestamp = sdf.parse(ts);
+                        }
+                        catch (ParseException e)
+                        {
+                            timestamp = new Date(Long.parseLong(ts));
+                        }
+
+                        if(isInPeriod(timestamp, startDate, endDate))
+                        {
+                            NodeList propertyNodes = node.getChildNodes();
+
+                            HistoryRecord record =
+                                filterByKeyword(propertyNodes, timestamp,
+                                                keywordPatterns, field);
+
+                            if(record != null)
+                            {
+                                result.add(record);
+                            }
+                        }
+
+                        currentProgress += nodesProgressStep;
+                        fireProgressStateChanged(
+                            startDate, endDate, keywords, (int)currentProgress);
                     }
                 }
+            }
+
+            if(keywordIndex != null)
+                keywordIndex.save();
 
-                currentProgress += nodesProgressStep;
-                fireProgressStateChanged(
-                    startDate, endDate, keywords, (int)currentProgress);
+            // if maximum value is not reached fire an event
+            if((int)currentProgress
+                    < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+            {
+                fireProgressStateChanged(startDate, endDate, keywords,
+                                         HistorySearchProgressListener.
+                                         PROGRESS_MAXIMUM_VALUE);
             }
-        }
 
-        // if maximum value is not reached fire an event
-        if((int)currentProgress
-                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+            return new OrderedQueryResultSet<HistoryRecord>(result);
+        }
+        finally
         {
-            fireProgressStateChanged(startDate, endDate, keywords,
-                                     HistorySearchProgressListener.
-                                     PROGRESS_MAXIMUM_VALUE);
+            lock.unlock();
         }
-
-        return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
     /**
@@ -648,16 +605,15 @@ public class HistoryReaderImpl
      *
      * @param propertyNodes NodeList
      * @param timestamp Date
-     * @param keywords String[]
+     * @param keywordPatterns the keywords compiled with
+     * {@link #compileKeywords(String[], boolean)}
      * @param field String
-     * @param caseSensitive boolean
      * @return HistoryRecord
      */
     static HistoryRecord filterByKeyword(   NodeList propertyNodes,
                                             Date timestamp,
-                                            String[] keywords,
-                                            String field,
-                                            boolean caseSensitive)
+                                            Pattern[] keywordPatterns,
+                                            String field)
     {
         ArrayList<String> nameVals = new ArrayList<String>();
         int len = propertyNodes.getLength();
@@ -677,7 +633,7 @@ public class HistoryReaderImpl
                 String nodeValue = nestedNode.getNodeValue();
 
                 if(field != null && field.equals(nodeName)
-                   && !matchKeyword(nodeValue, keywords, caseSensitive))
+                   && !matchKeyword(nodeValue, keywordPatterns))
                 {
                     return null; // doesn't match the given keyword(s)
                                 // so return nothing
@@ -701,30 +657,48 @@ public class HistoryReaderImpl
         return new HistoryRecord(propertyNames, propertyValues, timestamp);
     }
 
+    /**
+     * Compiles the given keywords once per query so that every record is
+     * matched without building a new regular expression.
+     *
+     * @param keywords String[]
+     * @param caseSensitive boolean
+     * @return the compiled keywords or <tt>null</tt> if no keywords given
+     */
+    static Pattern[] compileKeywords(String[] keywords, boolean caseSensitive)
+    {
+        if(keywords == null)
+            return null;
+
+        int flags = Pattern.DOTALL;
+        if(!caseSensitive)
+            flags |= Pattern.CASE_INSENSITIVE;
+
+        Pattern[] patterns = new Pattern[keywords.length];
+        for (int i = 0; i < keywords.length; i++)
+        {
+            patterns[i] = Pattern.compile(Pattern.quote(keywords[i]), flags);
+        }
+
+        return patterns;
+    }
+
     /**
      * Check if a value is in the given keyword(s)
      * If no keyword(s) given must return true
      *
      * @param value String
-     * @param keywords String[]
-     * @param caseSensitive boolean
+     * @param keywordPatterns the keywords compiled with
+     * {@link #compileKeywords(String[], boolean)}
      * @return boolean
      */
-    static boolean matchKeyword(String value, String[] keywords,
-                                 boolean caseSensitive)
+    static boolean matchKeyword(String value, Pattern[] keywordPatterns)
     {
-        if(keywords != null)
+        if(keywordPatterns != null)
         {
-            String regexpStart = null;
-            if(caseSensitive)
-                regexpStart = REGEXP_SENSITIVE_START;
-            else
-                regexpStart = REGEXP_INSENSITIVE_START;
-
-            for (int i = 0; i < keywords.length; i++)
+            for (int i = 0; i < keywordPatterns.length; i++)
             {
-                if(!value.matches(
-                    regexpStart + Pattern.quote(keywords[i]) + REGEXP_END))
+                if(!keywordPatterns[i].matcher(value).find())
                     return false;
             }
 
@@ -907,11 +881,11 @@ public class HistoryReaderImpl
     }
 
     /**
-     * Count the number of messages that a search will return
-     * Actually only the last file is parsed and its nodes are counted.
-     * We accept that the other files are full with max records,
-     * this way we escape parsing all files which will significantly
-     * slow the process and for one search will parse the files twice.
+     * Count the number of messages that a search will return.
+     * The number of records of every file is kept by the file index of the
+     * history and updated by the writer, so only the files which have never
+     * been indexed, or were modified while the application was not running,
+     * are read, once, to count their records.
      *
      * @return the number of searched messages
      * @throws UnsupportedOperationException
@@ -921,28 +895,55 @@ public class HistoryReaderImpl
     public int countRecords()
         throws UnsupportedOperationException
     {
-        int result = 0;
-        String lastFile = null;
-        Iterator<String> filelistIter = this.historyImpl.getFileList();
-        while (filelistIter.hasNext())
+        Lock lock = this.historyImpl.getFilesLock().readLock();
+        boolean indexed = false;
+
+        lock.lock();
+        try
         {
-            lastFile = filelistIter.next();
-            result += HistoryWriterImpl.MAX_RECORDS_PER_FILE;
-        }
+            int result = 0;
+            Iterator<String> filelistIter = this.historyImpl.getFileList();
+            while (filelistIter.hasNext())
+            {
+                String filename = filelistIter.next();
+                int count
+                    = this.historyImpl.getFileIndex().getRecordCount(filename);
 
-        if(lastFile == null)
-            return result;
+                if (count < 0)
+                {
+                    // reading the whole file indexes it
+                    final int[] records = new int[1];
 
-        Document doc = this.historyImpl.getDocumentForFile(lastFile);
+                    this.historyImpl.readRecords(filename,
+                        new HistoryFileReader.RecordHandler()
+                        {
+                            public boolean handleRecord(HistoryRecord record,
+                                                        boolean complete)
+                            {
+                                records[0]++;
+                                return true;
+                            }
+                        });
+                    count = records[0];
+                    indexed = true;
+                }
+                result += count;
+            }
 
-        if(doc == null)
             return result;
+        }
+        catch (InvalidParameterException e)
+        {
+            // the history has been removed meanwhile
+            return 0;
+        }
+        finally
+        {
+            lock.unlock();
 
-        NodeList nodes = doc.getElementsByTagName("record");
-
-        result += nodes.getLength();
-
-        return result;
+            if (indexed)
+                this.historyImpl.getFileIndex().save();
+        }
     }
 
     /**
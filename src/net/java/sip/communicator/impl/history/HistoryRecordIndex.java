@@ -0,0 +1,587 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Maps the values of the properties used to identify records, like the ID of
+ * a file transfer, to the file and the position of the record having them,
+ * so that updating a record does not need to parse every file of the
+ * history.
+ * <p>
+ * A property is indexed from the first time a record is looked up by it,
+ * which scans the files once, and is then kept up to date as records are
+ * added and files compacted. When several records have the same value the
+ * oldest one is kept, the one a scan of the files would find first.
+ * <p>
+ * Like {@link HistoryFileIndex}, the index is stored next to the history
+ * files and the records of a file are trusted on load only if its length
+ * did not change and no journal is pending, other files are scanned again
+ * on the next lookup. Locations are only hints: the writer checks the
+ * record found at a location and falls back to scanning the files if it
+ * does not match.
+ */
+class HistoryRecordIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryRecordIndex.class);
+
+    /**
+     * The name of the index file stored in the history directory.
+     */
+    static final String INDEX_FILE = "recordindex.dat";
+
+    /**
+     * The version of the format of the index file.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The directory of the history.
+     */
+    private final File directory;
+
+    /**
+     * The locations of the records by indexed property and value,
+     * <tt>null</tt> until the index is used for the first time.
+     */
+    private Map<String, Map<String, Location>> properties = null;
+
+    /**
+     * The length of the files whose records are all in the index, when they
+     * were last indexed or written.
+     */
+    private final Map<String, Long> indexedFiles = new HashMap<String, Long>();
+
+    /**
+     * Whether there are changes not yet saved to the index file.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Creates the record index of the history stored in <tt>directory</tt>.
+     *
+     * @param directory the directory of the history
+     */
+    HistoryRecordIndex(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the location of the record whose <tt>property</tt> has the
+     * given value, indexing the property and the files of <tt>history</tt>
+     * which are not indexed yet.
+     *
+     * @param history the history this index belongs to
+     * @param property the name of the property
+     * @param value the value of the property
+     * @return the location of the oldest record having the value or
+     * <tt>null</tt> if there is no such record
+     */
+    Location lookup(HistoryImpl history, String property, String value)
+    {
+        // the file list is locked while files are written, which notify
+        // this index, so it is not read with this index locked
+        List<String> allFiles = new ArrayList<String>();
+        Iterator<String> iter = history.getFileList();
+        while (iter.hasNext())
+            allFiles.add(iter.next());
+
+        List<String> files = new ArrayList<String>();
+
+        synchronized (this)
+        {
+            ensureLoaded();
+
+            if (!properties.containsKey(property))
+            {
+                // the indexed files do not have the values of the new
+                // property, read all of them again
+                for (Map<String, Location> locations : properties.values())
+                    locations.clear();
+                properties.put(property, new HashMap<String, Location>());
+                indexedFiles.clear();
+                dirty = true;
+            }
+
+            for (String filename : allFiles)
+            {
+                if (!indexedFiles.containsKey(filename))
+                    files.add(filename);
+            }
+        }
+
+        for (final String filename : files)
+        {
+            try
+            {
+                if (!history.readRecords(filename,
+                        new HistoryFileReader.RecordHandler()
+                        {
+                            private int position = 0;
+
+                            public boolean handleRecord(HistoryRecord record,
+                                                        boolean complete)
+                            {
+                                add(filename, position++,
+                                    record.getPropertyNames(),
+                                    record.getPropertyValues());
+                                return true;
+                            }
+                        }))
+                    continue;
+            }
+            catch (InvalidParameterException e)
+            {
+                // removed meanwhile
+                continue;
+            }
+
+            synchronized (this)
+            {
+                indexedFiles.put(filename,
+                    HistoryArchive.getStoredFile(directory, filename).length());
+                dirty = true;
+            }
+        }
+
+        if (!files.isEmpty())
+            save();
+
+        synchronized (this)
+        {
+            return properties.get(property).get(value);
+        }
+    }
+
+    /**
+     * Adds a record appended to <tt>filename</tt> by the writer.
+     *
+     * @param filename the name of the history file
+     * @param position the position of the record in the file
+     * @param propertyNames the names of the properties as passed to the writer
+     * @param propertyValues the values of the properties
+     */
+    synchronized void recordAdded(String filename,
+                                  int position,
+                                  String[] propertyNames,
+                                  String[] propertyValues)
+    {
+        ensureLoaded();
+
+        add(filename, position, propertyNames, propertyValues);
+    }
+
+    /**
+     * Updates the index after a property of an existing record has been
+     * changed.
+     *
+     * @param filename the name of the history file
+     * @param position the position of the record in the file
+     * @param property the name of the changed property
+     * @param oldValue the previous value of the property or <tt>null</tt>
+     * @param newValue the new value of the property
+     */
+    synchronized void recordUpdated(String filename,
+                                    int position,
+                                    String property,
+                                    String oldValue,
+                                    String newValue)
+    {
+        ensureLoaded();
+
+        Map<String, Location> locations = properties.get(property);
+        if (locations == null)
+            return;
+
+        if (oldValue != null)
+        {
+            Location location = locations.get(oldValue);
+
+            if (location != null
+                && location.filename.equals(filename)
+                && location.position == position)
+            {
+                // another record may have the old value as well, the next
+                // lookup will not find it
+                locations.remove(oldValue);
+                indexedFiles.clear();
+            }
+        }
+
+        put(locations, normalize(newValue), new Location(filename, position));
+        dirty = true;
+    }
+
+    /**
+     * Creates an empty entry for a newly created history file.
+     *
+     * @param filename the name of the history file
+     */
+    synchronized void fileCreated(String filename)
+    {
+        if (properties != null && !indexedFiles.containsKey(filename))
+        {
+            indexedFiles.put(filename, 0L);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Notifies the index that <tt>filename</tt> has been written to disk.
+     *
+     * @param filename the name of the history file
+     */
+    synchronized void fileWritten(String filename)
+    {
+        if (indexedFiles.containsKey(filename))
+        {
+            indexedFiles.put(filename,
+                HistoryArchive.getStoredFile(directory, filename).length());
+            dirty = true;
+        }
+    }
+
+    /**
+     * Moves the records of compacted files to the compacted file.
+     *
+     * @param target the name of the compacted file
+     * @param ranges where the records of every compacted file are in the
+     * compacted file
+     */
+    synchronized void filesCompacted(String target,
+                                     Map<String, HistoryImpl.FileRange> ranges)
+    {
+        if (properties == null)
+            return;
+
+        boolean indexed = true;
+        for (String filename : ranges.keySet())
+            indexed &= (indexedFiles.remove(filename) != null);
+        if (indexed)
+            indexedFiles.put(target,
+                HistoryArchive.getStoredFile(directory, target).length());
+
+        for (Map<String, Location> locations : properties.values())
+        {
+            for (Map.Entry<String, Location> e : locations.entrySet())
+            {
+                Location location = e.getValue();
+                HistoryImpl.FileRange range = ranges.get(location.filename);
+
+                if (range != null)
+                {
+                    e.setValue(new Location(
+                        range.filename, range.offset + location.position));
+                }
+            }
+        }
+
+        dirty = true;
+    }
+
+    /**
+     * Drops the records of <tt>filename</tt> from the index, so that the
+     * file is scanned again by the next lookup.
+     *
+     * @param filename the name of the history file
+     */
+    synchronized void invalidate(String filename)
+    {
+        if (properties == null)
+            return;
+
+        for (Map<String, Location> locations : properties.values())
+        {
+            Iterator<Location> iter = locations.values().iterator();
+            while (iter.hasNext())
+            {
+                if (iter.next().filename.equals(filename))
+                    iter.remove();
+            }
+        }
+
+        indexedFiles.remove(filename);
+        dirty = true;
+    }
+
+    /**
+     * Saves the index if it is loaded and has changed since it was last
+     * saved.
+     */
+    synchronized void save()
+    {
+        if (properties == null || !dirty)
+            return;
+
+        File indexFile = new File(directory, INDEX_FILE);
+        File tmpFile = new File(directory, INDEX_FILE + ".tmp");
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try
+            {
+                // only the records of the indexed files are worth saving
+                Map<String, Integer> fileNumbers
+                    = new HashMap<String, Integer>();
+
+                out.writeInt(VERSION);
+                out.writeInt(indexedFiles.size());
+                for (Map.Entry<String, Long> e : indexedFiles.entrySet())
+                {
+                    fileNumbers.put(e.getKey(), fileNumbers.size());
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue());
+                }
+
+                out.writeInt(properties.size());
+                for (Map.Entry<String, Map<String, Location>> p
+                        : properties.entrySet())
+                {
+                    List<Map.Entry<String, Location>> saved
+                        = new ArrayList<Map.Entry<String, Location>>();
+                    for (Map.Entry<String, Location> e
+                            : p.getValue().entrySet())
+                    {
+                        if (fileNumbers.containsKey(e.getValue().filename))
+                            saved.add(e);
+                    }
+
+                    out.writeUTF(p.getKey());
+                    out.writeInt(saved.size());
+                    for (Map.Entry<String, Location> e : saved)
+                    {
+                        out.writeUTF(e.getKey());
+                        out.writeInt(fileNumbers.get(e.getValue().filename));
+                        out.writeInt(e.getValue().position);
+                    }
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmpFile.renameTo(indexFile))
+            {
+                indexFile.delete();
+                if (!tmpFile.renameTo(indexFile))
+                    throw new IOException("Cannot rename " + tmpFile);
+            }
+
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot save history record index " + indexFile, e);
+        }
+    }
+
+    /**
+     * Adds the indexed properties of a record.
+     *
+     * @param filename the name of the history file
+     * @param position the position of the record in the file
+     * @param propertyNames the names of the properties of the record
+     * @param propertyValues the values of the properties of the record
+     */
+    private synchronized void add(String filename,
+                                  int position,
+                                  String[] propertyNames,
+                                  String[] propertyValues)
+    {
+        if (properties.isEmpty())
+            return;
+
+        Location location = null;
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] == null)
+                continue;
+
+            String name = propertyNames[i];
+            if (name.endsWith(HistoryWriterImpl.CDATA_SUFFIX))
+            {
+                name = name.substring(
+                    0, name.length() - HistoryWriterImpl.CDATA_SUFFIX.length());
+            }
+
+            Map<String, Location> locations = properties.get(name);
+            if (locations == null)
+                continue;
+
+            if (location == null)
+                location = new Location(filename, position);
+            put(locations, normalize(propertyValues[i]), location);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Loads the index file the first time the index is used and keeps the
+     * records of the files which did not change.
+     */
+    private void ensureLoaded()
+    {
+        if (properties != null)
+            return;
+
+        properties = new HashMap<String, Map<String, Location>>();
+
+        File indexFile = new File(directory, INDEX_FILE);
+        if (!indexFile.exists())
+            return;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)));
+            try
+            {
+                if (in.readInt() != VERSION)
+                {
+                    dirty = true;
+                    return;
+                }
+
+                String[] files = new String[in.readInt()];
+                for (int i = 0; i < files.length; i++)
+                {
+                    String filename = in.readUTF();
+                    long length = in.readLong();
+
+                    File file
+                        = HistoryArchive.getStoredFile(directory, filename);
+                    if (file.length() == length
+                        && !HistoryJournal.getJournalFile(
+                                directory, filename).exists())
+                    {
+                        files[i] = filename;
+                        indexedFiles.put(filename, length);
+                    }
+                    else
+                        dirty = true;
+                }
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    Map<String, Location> locations
+                        = new HashMap<String, Location>();
+                    properties.put(in.readUTF(), locations);
+
+                    int size = in.readInt();
+                    for (int j = 0; j < size; j++)
+                    {
+                        String value = in.readUTF();
+                        String filename = files[in.readInt()];
+                        int position = in.readInt();
+
+                        if (filename != null)
+                        {
+                            locations.put(
+                                value, new Location(filename, position));
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (Exception e)
+        {
+            logger.warn("Cannot load history record index " + indexFile, e);
+            properties.clear();
+            indexedFiles.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Puts a location unless the value is already known at an older record.
+     *
+     * @param locations the locations of the values of a property
+     * @param value the value
+     * @param location the location of a record having the value
+     */
+    private static void put(Map<String, Location> locations,
+                            String value,
+                            Location location)
+    {
+        Location existing = locations.get(value);
+
+        if (existing == null || existing.compareTo(location) > 0)
+            locations.put(value, location);
+    }
+
+    /**
+     * Returns a value as the writer stores it.
+     *
+     * @param value the value passed to the writer
+     * @return the value found in the history file
+     */
+    private static String normalize(String value)
+    {
+        return value.replace('\0', ' ');
+    }
+
+    /**
+     * The file and the position in it of a record.
+     */
+    static class Location
+        implements Comparable<Location>
+    {
+        /**
+         * The name of the file of the record.
+         */
+        final String filename;
+
+        /**
+         * The position of the record among the records of the file.
+         */
+        final int position;
+
+        /**
+         * Creates a location.
+         *
+         * @param filename the name of the file of the record
+         * @param position the position of the record in the file
+         */
+        Location(String filename, int position)
+        {
+            this.filename = filename;
+            this.position = position;
+        }
+
+        /**
+         * Orders the locations as the files and their records are scanned.
+         *
+         * @param other the location to compare to
+         * @return a negative number if this location comes first
+         */
+        public int compareTo(Location other)
+        {
+            int result = filename.compareTo(other.filename);
+
+            return (result != 0) ? result : (position - other.position);
+        }
+    }
+}
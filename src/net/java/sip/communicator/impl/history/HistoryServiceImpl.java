@@ -39,6 +39,107 @@ public class HistoryServiceImpl
      */
     public static final String DATA_FILE = "dbstruct.dat";
 
+    /**
+     * The name of the property which enables the append-only storage mode
+     * in which added records are appended to a journal next to the history
+     * file and the whole XML file is only rewritten at checkpoints.
+     */
+    public static final String APPEND_ONLY_ENABLED_PROPERTY =
+        "net.java.sip.communicator.impl.history.APPEND_ONLY_ENABLED";
+
+    /**
+     * The name of the property which specifies how many records are appended
+     * to a journal before the history file is checkpointed.
+     */
+    public static final String CHECKPOINT_INTERVAL_PROPERTY =
+        "net.java.sip.communicator.impl.history.CHECKPOINT_INTERVAL";
+
+    /**
+     * The default number of records appended to a journal before the history
+     * file is checkpointed.
+     */
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 25;
+
+    /**
+     * The name of the property which enables the write-behind mode in which
+     * added records are written to disk by a background thread, grouping the
+     * records added to a history within a short period in a single write.
+     */
+    public static final String WRITE_BEHIND_ENABLED_PROPERTY =
+        "net.java.sip.communicator.impl.history.WRITE_BEHIND_ENABLED";
+
+    /**
+     * The name of the property which specifies the maximum time in
+     * milliseconds an added record waits before being written to disk in the
+     * write-behind mode.
+     */
+    public static final String WRITE_BEHIND_MAX_LATENCY_PROPERTY =
+        "net.java.sip.communicator.impl.history.WRITE_BEHIND_MAX_LATENCY";
+
+    /**
+     * The default maximum time an added record waits before being written to
+     * disk in the write-behind mode.
+     */
+    private static final long DEFAULT_WRITE_BEHIND_MAX_LATENCY = 500;
+
+    /**
+     * The name of the property which enables the compaction of the existing
+     * histories in the background, rewriting their small files into files of
+     * up to {@link #COMPACTION_SEGMENT_SIZE_PROPERTY} records.
+     */
+    public static final String COMPACTION_ENABLED_PROPERTY =
+        "net.java.sip.communicator.impl.history.COMPACTION_ENABLED";
+
+    /**
+     * The name of the property which specifies the maximum number of records
+     * of a file written by the background compaction.
+     */
+    public static final String COMPACTION_SEGMENT_SIZE_PROPERTY =
+        "net.java.sip.communicator.impl.history.COMPACTION_SEGMENT_SIZE";
+
+    /**
+     * The name of the property which specifies the age in days of the
+     * records of the files the background compaction archives, that is
+     * rewrites gzip compressed. Files are not archived if the property is not
+     * set or if the compaction is not enabled through
+     * {@link #COMPACTION_ENABLED_PROPERTY}.
+     */
+    public static final String ARCHIVE_AGE_PROPERTY =
+        "net.java.sip.communicator.impl.history.ARCHIVE_AGE";
+
+    /**
+     * The name of the property which specifies the time in milliseconds the
+     * background compaction waits after the service is created so that it
+     * does not slow down the startup.
+     */
+    public static final String COMPACTION_START_DELAY_PROPERTY =
+        "net.java.sip.communicator.impl.history.COMPACTION_START_DELAY";
+
+    /**
+     * The default time in milliseconds the background compaction waits after
+     * the service is created.
+     */
+    private static final long DEFAULT_COMPACTION_START_DELAY = 60 * 1000;
+
+    /**
+     * The time in milliseconds the background compaction waits between two
+     * compacted segments.
+     */
+    private static final long COMPACTION_SEGMENT_DELAY = 1000;
+
+    /**
+     * The name of the property which specifies the maximum estimated heap
+     * size in bytes of the documents cached when caching is enabled through
+     * {@link HistoryService#CACHE_ENABLED_PROPERTY}.
+     */
+    public static final String CACHE_MAX_SIZE_PROPERTY =
+        "net.java.sip.communicator.impl.history.CACHE_MAX_SIZE";
+
+    /**
+     * The default maximum estimated heap size of the cached documents.
+     */
+    private static final long DEFAULT_CACHE_MAX_SIZE = 32 * 1024 * 1024;
+
     /**
      * The logger for this class.
      */
@@ -55,6 +156,34 @@ public class HistoryServiceImpl
 
     private final boolean cacheEnabled;
 
+    /**
+     * The documents cache shared by all histories, <tt>null</tt> if caching
+     * is disabled.
+     */
+    private final HistoryDocumentCache documentCache;
+
+    private final boolean appendOnlyEnabled;
+
+    private final int checkpointInterval;
+
+    /**
+     * The queue of the writers flushed in the background, <tt>null</tt> if
+     * the write-behind mode is disabled.
+     */
+    private final HistoryWriteBehind writeBehind;
+
+    /**
+     * The thread compacting the histories in the background, <tt>null</tt>
+     * if the compaction is disabled.
+     */
+    private final Thread compactionThread;
+
+    /**
+     * The threads running the interactive searches of all the histories.
+     */
+    private final ParallelHistoryQuery.Pool searchPool
+        = new ParallelHistoryQuery.Pool("InteractiveHistorySearch");
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -80,13 +209,133 @@ public class HistoryServiceImpl
      */
     public HistoryServiceImpl(BundleContext bundleContext)
         throws Exception
+    {
+        this(getConfigurationService(bundleContext),
+            getFileAccessService(bundleContext));
+    }
+
+    /**
+     * Creates the service with the given configuration and file access
+     * services, used outside OSGi by the benchmarks.
+     *
+     * @param configService the configuration of the service
+     * @param fileAccessService the service which locates the history files
+     * @throws Exception if something went wrong during initialization
+     */
+    HistoryServiceImpl(ConfigurationService configService,
+                       FileAccessService fileAccessService)
+        throws Exception
     {
         this.builder =
             DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
         this.cacheEnabled =
-            getConfigurationService(bundleContext).getBoolean(
-                CACHE_ENABLED_PROPERTY, false);
-        this.fileAccessService = getFileAccessService(bundleContext);
+            configService.getBoolean(CACHE_ENABLED_PROPERTY, false);
+        this.documentCache =
+            cacheEnabled
+                ? new HistoryDocumentCache(
+                    configService.getLong(
+                        CACHE_MAX_SIZE_PROPERTY, DEFAULT_CACHE_MAX_SIZE))
+                : null;
+        this.appendOnlyEnabled =
+            configService.getBoolean(APPEND_ONLY_ENABLED_PROPERTY, false);
+        this.checkpointInterval =
+            configService.getInt(
+                CHECKPOINT_INTERVAL_PROPERTY, DEFAULT_CHECKPOINT_INTERVAL);
+        this.writeBehind =
+            configService.getBoolean(WRITE_BEHIND_ENABLED_PROPERTY, false)
+                ? new HistoryWriteBehind(
+                    configService.getLong(
+                        WRITE_BEHIND_MAX_LATENCY_PROPERTY,
+                        DEFAULT_WRITE_BEHIND_MAX_LATENCY))
+                : null;
+        this.fileAccessService = fileAccessService;
+
+        if (configService.getBoolean(COMPACTION_ENABLED_PROPERTY, false))
+        {
+            final int segmentSize = configService.getInt(
+                COMPACTION_SEGMENT_SIZE_PROPERTY,
+                HistoryCompactor.DEFAULT_SEGMENT_SIZE);
+            final long archiveAge
+                = configService.getLong(ARCHIVE_AGE_PROPERTY, 0)
+                    * 24 * 60 * 60 * 1000;
+            final long startDelay = configService.getLong(
+                COMPACTION_START_DELAY_PROPERTY,
+                DEFAULT_COMPACTION_START_DELAY);
+
+            this.compactionThread = new Thread("HistoryCompaction")
+            {
+                @Override
+                public void run()
+                {
+                    compactHistories(startDelay, segmentSize, archiveAge);
+                }
+            };
+            this.compactionThread.setDaemon(true);
+            this.compactionThread.setPriority(Thread.MIN_PRIORITY);
+            this.compactionThread.start();
+        }
+        else
+            this.compactionThread = null;
+    }
+
+    /**
+     * Compacts the existing histories one segment at a time, pausing between
+     * segments so that the writers and readers of the histories are not
+     * slowed down. Runs in {@link #compactionThread} until all the histories
+     * are compacted or the service is stopped.
+     *
+     * @param startDelay the time in milliseconds to wait before compacting
+     * the first history
+     * @param segmentSize the maximum number of records of a compacted file
+     * @param archiveAge the age in milliseconds of the records of the files
+     * to archive or <tt>0</tt> not to archive any file
+     */
+    private void compactHistories(long startDelay,
+                                  int segmentSize,
+                                  long archiveAge)
+    {
+        try
+        {
+            Thread.sleep(startDelay);
+
+            List<HistoryID> ids = new ArrayList<HistoryID>();
+            for (Iterator<HistoryID> i = getExistingIDs(); i.hasNext();)
+                ids.add(i.next());
+
+            for (HistoryID id : ids)
+            {
+                History history = histories.get(id);
+
+                if (!(history instanceof HistoryImpl))
+                    continue;
+
+                HistoryCompactor compactor = new HistoryCompactor(
+                    (HistoryImpl) history, segmentSize, archiveAge);
+                try
+                {
+                    while (compactor.compactNext())
+                        Thread.sleep(COMPACTION_SEGMENT_DELAY);
+                }
+                catch (InterruptedIOException e)
+                {
+                    // the service is stopped
+                    return;
+                }
+                catch (IOException e)
+                {
+                    logger.error("Could not compact history " + id, e);
+                }
+
+                HistoryCompactor.Result result = compactor.getResult();
+                if (result.getSegments() > 0 && logger.isInfoEnabled())
+                    logger.info("Compacted history " + id + ": " + result);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // the service is stopped
+        }
     }
 
     public Iterator<HistoryID> getExistingIDs()
@@ -200,7 +449,8 @@ public class HistoryServiceImpl
 
     /**
      * Parse documents. Synchronized to avoid exception
-     * when concurrently parsing with same DocumentBuilder
+     * when concurrently parsing with same DocumentBuilder. Archived history
+     * files are decompressed.
      * @param file File the file to parse
      * @return Document the result document
      * @throws SAXException exception
@@ -209,7 +459,18 @@ public class HistoryServiceImpl
     protected synchronized Document parse(File file)
         throws SAXException, IOException
     {
-        return builder.parse(file);
+        if (!HistoryArchive.isArchive(file))
+            return builder.parse(file);
+
+        InputStream in = HistoryArchive.openInputStream(file);
+        try
+        {
+            return builder.parse(in);
+        }
+        finally
+        {
+            in.close();
+        }
     }
 
     /**
@@ -294,6 +555,82 @@ public class HistoryServiceImpl
         return cacheEnabled;
     }
 
+    /**
+     * Returns the documents cache shared by all histories.
+     * @return the documents cache or <tt>null</tt> if caching is disabled
+     */
+    HistoryDocumentCache getDocumentCache()
+    {
+        return documentCache;
+    }
+
+    /**
+     * Returns the threads running the interactive searches of all the
+     * histories.
+     * @return the pool of the interactive searches
+     */
+    ParallelHistoryQuery.Pool getSearchPool()
+    {
+        return searchPool;
+    }
+
+    /**
+     * Returns whether added records are appended to a journal instead of
+     * rewriting the whole history file every time.
+     * @return <tt>true</tt> if the append-only storage mode is enabled
+     */
+    protected boolean isAppendOnlyEnabled()
+    {
+        return appendOnlyEnabled;
+    }
+
+    /**
+     * Returns the number of records appended to a journal before the history
+     * file is checkpointed.
+     * @return the checkpoint interval in records
+     */
+    protected int getCheckpointInterval()
+    {
+        return checkpointInterval;
+    }
+
+    /**
+     * Returns the queue of the writers flushed in the background.
+     * @return the write-behind queue or <tt>null</tt> if the write-behind
+     * mode is disabled
+     */
+    HistoryWriteBehind getWriteBehind()
+    {
+        return writeBehind;
+    }
+
+    /**
+     * Writes to disk all the records which are waiting to be written in the
+     * write-behind mode, stops the background writing, compaction and
+     * interactive searches and saves the indexes of the loaded histories, so
+     * that their record counts are known without reading their files on the
+     * next start. Called when the bundle is stopped.
+     */
+    void stop()
+    {
+        if(compactionThread != null)
+            compactionThread.interrupt();
+
+        searchPool.shutdown();
+
+        if(writeBehind != null)
+            writeBehind.stop();
+
+        synchronized (this.histories)
+        {
+            for (History history : this.histories.values())
+            {
+                if (history instanceof HistoryImpl)
+                    ((HistoryImpl) history).saveIndexes();
+            }
+        }
+    }
+
     /**
      * Permamently removes local stored History
      *
@@ -305,10 +642,18 @@ public class HistoryServiceImpl
     {
         // get the history directory corresponding the given id
         File dir = this.createHistoryDirectories(id);
+
+        // do not let pending records recreate the removed files
+        if(writeBehind != null)
+            writeBehind.flushAll();
+
         if (logger.isTraceEnabled())
             logger.trace("Removing history directory " + dir);
         deleteDirAndContent(dir);
 
+        if(documentCache != null)
+            documentCache.removeAll(dir);
+
         History history = histories.remove(id);
         if(history == null)
         {
@@ -437,6 +782,9 @@ public class HistoryServiceImpl
         // make sure parent path is existing
         newDir.getParentFile().mkdirs();
 
+        if(writeBehind != null)
+            writeBehind.flushAll();
+
         if(!oldDir.renameTo(newDir))
         {
             if (logger.isInfoEnabled())
@@ -445,6 +793,9 @@ public class HistoryServiceImpl
         }
 
         histories.remove(oldId);
+
+        if(documentCache != null)
+            documentCache.removeAll(oldDir);
     }
 
     /**
@@ -0,0 +1,253 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Writes the records added to the histories of a <tt>HistoryServiceImpl</tt>
+ * in the background. A writer with added records is scheduled here instead
+ * of writing its file on every <tt>addRecord</tt> and a single daemon thread
+ * flushes all the scheduled writers at most <tt>maxLatency</tt> milliseconds
+ * after the first of them was scheduled, so that a burst of records ends up
+ * in a single write per history.
+ */
+class HistoryWriteBehind
+    implements Runnable
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryWriteBehind.class);
+
+    /**
+     * The time in milliseconds the writers which failed to write their
+     * records wait at least before they are flushed again.
+     */
+    private static final long MIN_RETRY_DELAY = 1000;
+
+    /**
+     * The time in milliseconds the writers which keep failing to write
+     * their records wait at most before they are flushed again.
+     */
+    private static final long MAX_RETRY_DELAY = 60 * 1000;
+
+    /**
+     * The writers with records which are not yet written, in the order they
+     * were scheduled.
+     */
+    private final Set<HistoryWriterImpl> dirtyWriters
+        = new LinkedHashSet<HistoryWriterImpl>();
+
+    /**
+     * The maximum time in milliseconds a record waits before being written.
+     */
+    private final long maxLatency;
+
+    /**
+     * The thread flushing the scheduled writers, <tt>null</tt> until the
+     * first writer is scheduled or after {@link #stop()}.
+     */
+    private Thread thread = null;
+
+    /**
+     * Indicates if {@link #stop()} has been called, after which the writers
+     * are not scheduled anymore.
+     */
+    private boolean stopped = false;
+
+    /**
+     * The time in milliseconds the scheduled writers wait before the next
+     * flush because the last one failed, or 0 if it succeeded. Doubled after
+     * every failed flush, up to <tt>MAX_RETRY_DELAY</tt>.
+     */
+    private long retryDelay = 0;
+
+    /**
+     * Creates a write-behind queue.
+     *
+     * @param maxLatency the maximum time in milliseconds a record waits
+     * before being written
+     */
+    HistoryWriteBehind(long maxLatency)
+    {
+        this.maxLatency = maxLatency;
+    }
+
+    /**
+     * Schedules <tt>writer</tt> to be flushed, unless this write-behind has
+     * been stopped.
+     *
+     * @param writer the writer with records which are not yet written
+     * @return <tt>true</tt> if <tt>writer</tt> has been scheduled,
+     * <tt>false</tt> if this write-behind has been stopped and the writer
+     * has to write its records itself
+     */
+    synchronized boolean schedule(HistoryWriterImpl writer)
+    {
+        if (stopped)
+            return false;
+
+        if (!dirtyWriters.add(writer))
+            return true;
+
+        if (thread == null)
+        {
+            thread = new Thread(this, "HistoryWriteBehind");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        else
+            notifyAll();
+        return true;
+    }
+
+    /**
+     * Flushes all the scheduled writers in the calling thread. The writers
+     * which fail stay scheduled.
+     */
+    void flushAll()
+    {
+        flush(takeDirtyWriters());
+    }
+
+    /**
+     * Flushes all the scheduled writers and stops the thread. The writers
+     * added to afterwards write their records themselves.
+     */
+    void stop()
+    {
+        Thread thread;
+
+        synchronized (this)
+        {
+            stopped = true;
+            thread = this.thread;
+            this.thread = null;
+            notifyAll();
+        }
+
+        if (thread != null)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        flushAll();
+    }
+
+    /**
+     * Waits for scheduled writers and flushes them once the first of them
+     * has waited <tt>maxLatency</tt> milliseconds, or longer after a failed
+     * flush.
+     */
+    public void run()
+    {
+        Thread currentThread = Thread.currentThread();
+
+        while (true)
+        {
+            synchronized (this)
+            {
+                try
+                {
+                    while (thread == currentThread && dirtyWriters.isEmpty())
+                        wait();
+
+                    // let more records join the group
+                    long deadline = System.currentTimeMillis()
+                        + Math.max(maxLatency, retryDelay);
+                    long timeout;
+                    while (thread == currentThread
+                        && (timeout = deadline - System.currentTimeMillis())
+                            > 0)
+                    {
+                        wait(timeout);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    thread = null;
+                }
+
+                // stop() flushes what is left
+                if (thread != currentThread)
+                    return;
+            }
+
+            flush(takeDirtyWriters());
+        }
+    }
+
+    /**
+     * Removes and returns the scheduled writers.
+     *
+     * @return the writers scheduled so far
+     */
+    private synchronized List<HistoryWriterImpl> takeDirtyWriters()
+    {
+        List<HistoryWriterImpl> writers
+            = new ArrayList<HistoryWriterImpl>(dirtyWriters);
+
+        dirtyWriters.clear();
+        return writers;
+    }
+
+    /**
+     * Flushes <tt>writers</tt>, a failing writer does not prevent the others
+     * from being flushed. The failing writers, which keep their records, are
+     * scheduled again and the next flush is delayed.
+     *
+     * @param writers the writers to flush
+     */
+    private void flush(List<HistoryWriterImpl> writers)
+    {
+        List<HistoryWriterImpl> failedWriters = null;
+
+        for (HistoryWriterImpl writer : writers)
+        {
+            try
+            {
+                writer.flush();
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not write history records", e);
+
+                if (failedWriters == null)
+                    failedWriters = new ArrayList<HistoryWriterImpl>();
+                failedWriters.add(writer);
+            }
+        }
+
+        synchronized (this)
+        {
+            if (failedWriters == null)
+            {
+                retryDelay = 0;
+                return;
+            }
+
+            retryDelay = (retryDelay == 0)
+                ? MIN_RETRY_DELAY
+                : Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+
+            // no thread retries them once stopped, a later flushAll may
+            dirtyWriters.addAll(failedWriters);
+        }
+    }
+}
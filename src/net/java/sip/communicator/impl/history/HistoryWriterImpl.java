@@ -31,7 +31,7 @@ public class HistoryWriterImpl
      */
     public static final int MAX_RECORDS_PER_FILE = 150;
 
-    private static final String CDATA_SUFFIX = "_CDATA";
+    static final String CDATA_SUFFIX = "_CDATA";
 
     private Object docCreateLock = new Object();
 
@@ -47,6 +47,25 @@ public class HistoryWriterImpl
 
     private int currentDocElements = -1;
 
+    /**
+     * The number of <tt>record</tt> elements in the current document, used
+     * as the position of the records appended to the journal.
+     */
+    private int currentDocRecords = 0;
+
+    /**
+     * The journal of the current file when the append-only mode is enabled,
+     * <tt>null</tt> until the current file has been written for the first
+     * time.
+     */
+    private HistoryJournal journal = null;
+
+    /**
+     * The records added to the current document and not yet written to disk.
+     */
+    private final List<HistoryJournal.Frame> pendingRecords
+        = new ArrayList<HistoryJournal.Frame>();
+
     protected HistoryWriterImpl(HistoryImpl historyImpl)
     {
         this.historyImpl = historyImpl;
@@ -102,66 +121,206 @@ public class HistoryWriterImpl
             {
                 this.createNewDoc(date, this.currentDoc == null);
             }
-        }
 
-        synchronized (this.currentDoc)
-        {
-            Node root = this.currentDoc.getFirstChild();
-            synchronized (root)
+            synchronized (this.currentDoc)
             {
-                Element elem = this.currentDoc.createElement("record");
-                SimpleDateFormat sdf
-                    = new SimpleDateFormat(DATE_FORMAT);
-                elem.setAttribute("timestamp", sdf.format(date));
+                Node root = this.currentDoc.getFirstChild();
+                synchronized (root)
+                {
+                    root.appendChild(createRecordElement(
+                        this.currentDoc, propertyNames, propertyValues, date));
+                    this.currentDocElements++;
+                    this.currentDocRecords++;
+                }
 
-                for (int i = 0; i < propertyNames.length; i++)
+                this.historyImpl.documentChanged(
+                    this.currentFile, this.currentDoc);
+
+                // updated while holding the document, see HistoryFileIndex
+                this.historyImpl.getFileIndex().recordAdded(
+                    this.currentFile, date);
+                this.historyImpl.getKeywordIndex().recordAdded(
+                    this.currentFile, propertyNames, propertyValues);
+                this.historyImpl.getRecordIndex().recordAdded(
+                    this.currentFile, this.currentDocRecords - 1,
+                    propertyNames, propertyValues);
+
+                HistoryJournal.Frame frame = new HistoryJournal.Frame();
+                frame.position = this.currentDocRecords - 1;
+                frame.names = propertyNames;
+                frame.values = propertyValues;
+                frame.timestamp = date;
+
+                synchronized (this.pendingRecords)
                 {
-                    String propertyName = propertyNames[i];
-
-                    if(propertyName.endsWith(CDATA_SUFFIX))
-                    {
-                        if (propertyValues[i] != null)
-                        {
-                            propertyName = propertyName.replaceFirst(CDATA_SUFFIX, "");
-
-                            Element propertyElement = this.currentDoc
-                                .createElement(propertyName);
-
-                            Text value = this.currentDoc
-                                .createCDATASection(propertyValues[i].replaceAll("\0", " "));
-                            propertyElement.appendChild(value);
-
-                            elem.appendChild(propertyElement);
-                        }
-                    }
-                    else
-                    {
-                        if (propertyValues[i] != null)
-                        {
-                            Element propertyElement = this.currentDoc
-                                .createElement(propertyName);
-
-                            Text value = this.currentDoc
-                                .createTextNode(propertyValues[i].replaceAll("\0", " "));
-                            propertyElement.appendChild(value);
-
-                            elem.appendChild(propertyElement);
-                        }
-                    }
+                    this.pendingRecords.add(frame);
                 }
+            }
+
+            HistoryWriteBehind writeBehind
+                = historyImpl.getHistoryServiceImpl().getWriteBehind();
+            if (writeBehind != null)
+            {
+                // readers use the document until the records are written
+                this.historyImpl.documentPending(
+                    this.currentFile, this.currentDoc);
 
-                root.appendChild(elem);
-                this.currentDocElements++;
+                // once the write-behind is stopped, we write them ourselves
+                if (writeBehind.schedule(this))
+                    return;
             }
         }
 
         // write changes
+        flush();
+    }
+
+    /**
+     * Writes the records added since the last write to disk. Called after
+     * every added record, or by the write-behind thread and on shutdown when
+     * the write-behind mode is enabled.
+     *
+     * @throws IOException if writing fails
+     */
+    public void flush()
+        throws IOException
+    {
         synchronized (this.docWriteLock)
         {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
+            List<HistoryJournal.Frame> frames;
+
+            synchronized (this.pendingRecords)
+            {
+                if (this.pendingRecords.isEmpty())
+                    return;
+
+                frames = new ArrayList<HistoryJournal.Frame>(
+                    this.pendingRecords);
+                this.pendingRecords.clear();
+            }
+
+            try
+            {
+                if (this.journal != null
+                    && this.journal.getRecordCount() + frames.size()
+                        <= historyImpl.getHistoryServiceImpl()
+                            .getCheckpointInterval())
+                {
+                    this.journal.append(frames);
+                    this.historyImpl.documentFlushed(this.currentFile);
+                }
+                else
+                {
+                    writeCurrentFile();
+                }
+            }
+            catch (IOException e)
+            {
+                // retried with the next flush
+                synchronized (this.pendingRecords)
+                {
+                    this.pendingRecords.addAll(0, frames);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Creates the <tt>record</tt> element for the given properties.
+     * When the record property name ends with _CDATA this is removed from the
+     * property name and a CDATA text node is created to store the text value.
+     *
+     * @param doc the document that will own the element
+     * @param propertyNames the names of the properties
+     * @param propertyValues the values of the properties
+     * @param date the timestamp of the record
+     * @return the newly created <tt>record</tt> element
+     */
+    static Element createRecordElement(Document doc,
+                                       String[] propertyNames,
+                                       String[] propertyValues,
+                                       Date date)
+    {
+        Element elem = doc.createElement("record");
+        SimpleDateFormat sdf
+            = new SimpleDateFormat(DATE_FORMAT);
+        elem.setAttribute("timestamp", sdf.format(date));
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            String propertyName = propertyNames[i];
+
+            if(propertyName.endsWith(CDATA_SUFFIX))
+            {
+                if (propertyValues[i] != null)
+                {
+                    propertyName = propertyName.replaceFirst(CDATA_SUFFIX, "");
+
+                    Element propertyElement = doc
+                        .createElement(propertyName);
+
+                    Text value = doc
+                        .createCDATASection(propertyValues[i].replaceAll("\0", " "));
+                    propertyElement.appendChild(value);
+
+                    elem.appendChild(propertyElement);
+                }
+            }
             else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+            {
+                if (propertyValues[i] != null)
+                {
+                    Element propertyElement = doc
+                        .createElement(propertyName);
+
+                    Text value = doc
+                        .createTextNode(propertyValues[i].replaceAll("\0", " "));
+                    propertyElement.appendChild(value);
+
+                    elem.appendChild(propertyElement);
+                }
+            }
+        }
+
+        return elem;
+    }
+
+    /**
+     * Returns the name of the file the records are currently added to.
+     *
+     * @return the name of the current file or <tt>null</tt> if no record
+     * has been added yet
+     */
+    String getCurrentFile()
+    {
+        return this.currentFile;
+    }
+
+    /**
+     * Writes the whole current document to its file. When the append-only
+     * mode is enabled this is the checkpoint after which the journal of the
+     * current file is discarded.
+     *
+     * @throws IOException if writing the file fails
+     */
+    private void writeCurrentFile()
+        throws IOException
+    {
+        // readers reading the previous file and then the cleared journal
+        // would miss records, let them read the document until it is written
+        if (this.journal != null)
+            this.historyImpl.documentPending(this.currentFile, this.currentDoc);
+
+        this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+
+        if (historyImpl.getHistoryServiceImpl().isAppendOnlyEnabled())
+        {
+            if (this.journal == null)
+                this.journal = new HistoryJournal(
+                    historyImpl.getDirectory(), this.currentFile);
+            else
+                this.journal.clear();
         }
     }
 
@@ -173,9 +332,52 @@ public class HistoryWriterImpl
      * @param loadLastFile boolean
      */
     private void createNewDoc(Date date, boolean loadLastFile)
+        throws IOException
+    {
+        // nothing is written while the current file changes
+        synchronized (this.docWriteLock)
+        {
+            createNewDoc0(date, loadLastFile);
+        }
+    }
+
+    /**
+     * Implements {@link #createNewDoc(Date, boolean)} while holding the
+     * write lock.
+     *
+     * @param date Date
+     * @param loadLastFile boolean
+     */
+    private void createNewDoc0(Date date, boolean loadLastFile)
+        throws IOException
     {
         boolean loaded = false;
 
+        // checkpoint the file we are leaving so that neither its journal nor
+        // its pending records are needed anymore. If writing fails they are
+        // kept and the next added record tries again, no record is added
+        // meanwhile since we are called holding the lock adding them.
+        boolean pending;
+        synchronized (this.pendingRecords)
+        {
+            pending = !this.pendingRecords.isEmpty();
+        }
+        if (pending
+            || (this.journal != null && this.journal.getRecordCount() > 0))
+        {
+            writeCurrentFile();
+        }
+        synchronized (this.pendingRecords)
+        {
+            this.pendingRecords.clear();
+        }
+        this.journal = null;
+
+        // the file we are leaving will not change anymore
+        this.historyImpl.getFileIndex().save();
+        this.historyImpl.getKeywordIndex().save();
+        this.historyImpl.getRecordIndex().save();
+
         if (loadLastFile)
         {
             Iterator<String> files = historyImpl.getFileList();
@@ -207,6 +409,9 @@ public class HistoryWriterImpl
             this.currentFile += ".xml";
 
             this.currentDoc = this.historyImpl.createDocument(this.currentFile);
+            this.historyImpl.getFileIndex().fileCreated(this.currentFile);
+            this.historyImpl.getKeywordIndex().fileCreated(this.currentFile);
+            this.historyImpl.getRecordIndex().fileCreated(this.currentFile);
         }
 
         // TODO: Assert: Assert.assertNonNull(this.currentDoc,
@@ -214,6 +419,8 @@ public class HistoryWriterImpl
 
         this.currentDocElements = this.currentDoc.getFirstChild()
                 .getChildNodes().getLength();
+        this.currentDocRecords = this.currentDoc
+                .getElementsByTagName("record").getLength();
     }
 
     /**
@@ -229,83 +436,172 @@ public class HistoryWriterImpl
             String property, String newValue)
         throws IOException
     {
-        Iterator<String> fileIterator = this.historyImpl.getFileList();
-        String filename = null;
-        while (fileIterator.hasNext())
+        // the compaction must not replace the files we are updating and no
+        // record must be added while the current file is updated, written
+        // and its pending records discarded
+        synchronized (this.historyImpl.getUpdateLock())
         {
-            filename = fileIterator.next();
+            synchronized (this.docCreateLock)
+            {
+                updateRecord0(idProperty, idValue, property, newValue);
+            }
+        }
+    }
 
-            Document doc = this.historyImpl.getDocumentForFile(filename);
+    /**
+     * Updates a record while holding the update lock of the history and the
+     * lock adding records. The record is found through the record index of
+     * the history instead of scanning all the files.
+     *
+     * @param idProperty the id property name
+     * @param idValue the id value
+     * @param property the property to change
+     * @param newValue the new value of the changed property
+     * @throws IOException if the changed file cannot be written
+     */
+    private void updateRecord0(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
+    {
+        HistoryRecordIndex recordIndex = this.historyImpl.getRecordIndex();
 
-            if(doc == null)
-                continue;
+        // the index reads the files it has not indexed yet from disk, where
+        // the records added but not yet written would be missing
+        flush();
 
-            NodeList nodes = doc.getElementsByTagName("record");
+        // a second lookup reads the file again if the first location is out
+        // of date
+        for (int attempt = 0; attempt < 2; attempt++)
+        {
+            HistoryRecordIndex.Location location
+                = recordIndex.lookup(this.historyImpl, idProperty, idValue);
 
-            boolean changed = false;
+            if(location == null)
+                return;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            Document doc = null;
+            if (location.filename.equals(this.currentFile))
             {
-                node = nodes.item(i);
+                // the document the records are added to, which may contain
+                // records not written yet
+                doc = this.currentDoc;
+            }
+            else
+            {
+                try
+                {
+                    doc = this.historyImpl.getDocumentForFile(
+                        location.filename);
+                }
+                catch (InvalidParameterException e)
+                {
+                    // the file has been removed meanwhile
+                }
+            }
 
-                Element idNode = XMLUtils.findChild((Element)node, idProperty);
-                if(idNode == null)
-                    continue;
+            if(doc != null
+                && updateRecord(location.filename, doc, location.position,
+                        idProperty, idValue, property, newValue))
+                return;
 
-                Node nestedNode = idNode.getFirstChild();
-                if(nestedNode == null)
-                    continue;
+            recordIndex.invalidate(location.filename);
+        }
+    }
 
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
+    /**
+     * Updates the record at <tt>position</tt> in <tt>doc</tt> if its
+     * <tt>idProperty</tt> has the value <tt>idValue</tt> and writes the
+     * changed file.
+     *
+     * @param filename the name of the file of the document
+     * @param doc the document loaded from the file
+     * @param position the position of the record in the document
+     * @param idProperty the id property name
+     * @param idValue the id value
+     * @param property the property to change
+     * @param newValue the new value of the changed property
+     * @return <tt>true</tt> if the record has been updated, <tt>false</tt>
+     * if it has not the id value
+     * @throws IOException if the changed file cannot be written
+     */
+    private boolean updateRecord(String filename, Document doc, int position,
+            String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
+    {
+        String oldValue = null;
 
-                if(!nodeValue.equals(idValue))
-                    continue;
+        // the writer may be appending to the document
+        synchronized (doc)
+        {
+            NodeList nodes = doc.getElementsByTagName("record");
+            if(position >= nodes.getLength())
+                return false;
 
-                Element changedNode =
-                    XMLUtils.findChild((Element)node, property);
+            Node node = nodes.item(position);
 
-                if(changedNode != null)
-                {
-                    Node changedNestedNode = changedNode.getFirstChild();
+            Element idNode = XMLUtils.findChild((Element)node, idProperty);
+            if(idNode == null)
+                return false;
 
-                    changedNestedNode.setNodeValue(newValue);
-                }
-                else
-                {
-                    Element propertyElement = this.currentDoc
-                        .createElement(property);
+            Node nestedNode = idNode.getFirstChild();
+            if(nestedNode == null)
+                return false;
 
-                    Text value = this.currentDoc
-                        .createTextNode(newValue.replaceAll("\0", " "));
-                    propertyElement.appendChild(value);
+            // Get nested TEXT node's value
+            String nodeValue = nestedNode.getNodeValue();
 
-                    node.appendChild(propertyElement);
-                }
+            if(!nodeValue.equals(idValue))
+                return false;
 
-                changed = true;
-                break;
-            }
+            Element changedNode =
+                XMLUtils.findChild((Element)node, property);
 
-            if(changed)
+            if(changedNode != null)
             {
-                // write changes
-                synchronized (this.docWriteLock)
-                {
-                    this.historyImpl.writeFile(filename, doc);
-                }
+                Node changedNestedNode = changedNode.getFirstChild();
+
+                oldValue = changedNestedNode.getNodeValue();
+                changedNestedNode.setNodeValue(newValue);
+            }
+            else
+            {
+                Element propertyElement = doc.createElement(property);
+
+                Text value = doc
+                    .createTextNode(newValue.replaceAll("\0", " "));
+                propertyElement.appendChild(value);
+
+                node.appendChild(propertyElement);
+            }
+        }
+
+        this.historyImpl.getRecordIndex().recordUpdated(
+            filename, position, property, oldValue, newValue);
+
+        // write changes
+        synchronized (this.docWriteLock)
+        {
+            this.historyImpl.writeFile(filename, doc);
+            this.historyImpl.getKeywordIndex().fileUpdated(filename);
 
-                // this prevents that the current writer, which holds
-                // instance for the last document he is editing will not
-                // override our last changes to the document
-                if(filename.equals(this.currentFile))
+            // the journal content and the pending records are part
+            // of the written document
+            if(filename.equals(this.currentFile))
+            {
+                synchronized (this.pendingRecords)
                 {
-                    this.currentDoc = doc;
+                    this.pendingRecords.clear();
                 }
-
-                break;
+                if(this.journal != null)
+                    this.journal.clear();
             }
+            else if(historyImpl.getHistoryServiceImpl()
+                        .isAppendOnlyEnabled())
+                HistoryJournal.getJournalFile(
+                    historyImpl.getDirectory(), filename).delete();
         }
+
+        return true;
     }
 }
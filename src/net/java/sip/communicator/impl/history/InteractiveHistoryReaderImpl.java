@@ -11,6 +11,9 @@ import static
 
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.regex.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
@@ -23,6 +26,14 @@ import org.w3c.dom.*;
  * <tt>InteractiveHistoryReader</tt> interface. It allows to search in the
  * history in an interactive way, i.e. be able to cancel the search at any time
  * and track the results through a <tt>HistoryQueryListener</tt>.
+ * <p>
+ * The searches of all the histories run in the small pool of threads of the
+ * history service, so that queries superseded and canceled by their callers,
+ * like the ones made while the user is typing, do not pile up in threads of
+ * their own. The results are delivered file by file, newest first, as soon
+ * as each file has been scanned and a canceled search stops at the next
+ * record. Once the service is stopped, the searches run in the calling
+ * thread.
  *
  * @author Yana Stamcheva
  */
@@ -108,15 +119,24 @@ public class InteractiveHistoryReaderImpl
         final HistoryQueryImpl query
             = new HistoryQueryImpl(queryString.toString());
 
-        new Thread()
+        Runnable search = new Runnable()
         {
-            @Override
             public void run()
             {
                 find(startDate, endDate, keywords, field, caseSensitive,
                         resultCount, query);
             }
-        }.start();
+        };
+
+        try
+        {
+            history.getHistoryServiceImpl().getSearchPool().execute(search);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // the history service has been stopped
+            search.run();
+        }
 
         return query;
     }
@@ -139,60 +159,165 @@ public class InteractiveHistoryReaderImpl
                         int resultCount,
                         HistoryQueryImpl query)
     {
-        Vector<String> filelist
-            = HistoryReaderImpl.filterFilesByDate(  history.getFileList(),
-                                                    startDate, endDate, true);
-        Iterator<String> fileIterator = filelist.iterator();
-
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
-        while (fileIterator.hasNext() && resultCount > 0 && !query.isCanceled())
+        // canceled while waiting for a thread
+        if (query.isCanceled())
         {
-            String filename = fileIterator.next();
-            Document doc = history.getDocumentForFile(filename);
+            query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
+            return;
+        }
 
-            if(doc == null)
-                continue;
+        Lock lock = history.getFilesLock().readLock();
+
+        lock.lock();
+        try
+        {
+            Vector<String> filelist
+                = history.getFileIndex().filter(
+                    HistoryReaderImpl.filterFilesByDate(
+                        history.getFileList(), startDate, endDate, true),
+                    startDate, endDate);
+            Iterator<String> fileIterator = filelist.iterator();
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            Pattern[] keywordPatterns
+                = HistoryReaderImpl.compileKeywords(keywords, caseSensitive);
+            HistoryKeywordIndex keywordIndex
+                = (keywords != null && field != null)
+                    ? history.getKeywordIndex()
+                    : null;
 
-            for ( int i = nodes.getLength() - 1;
-                  i >= 0 && !query.isCanceled();
-                  i--)
+            SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+            while (fileIterator.hasNext()
+                    && resultCount > 0
+                    && !query.isCanceled())
             {
-                Node node = nodes.item(i);
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
+                String filename = fileIterator.next();
+
+                if(keywordIndex != null
+                    && !keywordIndex.mayContain(filename, field, keywords))
+                    continue;
+
+                // the matching records of the file, newest first
+                List<HistoryRecord> fileRecords;
+
+                if(keywordIndex == null)
                 {
-                    timestamp = sdf.parse(ts);
+                    fileRecords = readRecords(filename, startDate, endDate,
+                                              resultCount, query);
                 }
-                catch (ParseException e)
+                else
                 {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                    Document doc = history.getDocumentForFile(filename);
 
-                if(HistoryReaderImpl.isInPeriod(timestamp, startDate, endDate))
-                {
-                    NodeList propertyNodes = node.getChildNodes();
+                    if(doc == null)
+                        continue;
 
-                    HistoryRecord record =
-                        HistoryReaderImpl
-                            .filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+                    keywordIndex.indexIfAbsent(filename, doc);
 
-                    if(record != null)
+                    fileRecords = new ArrayList<HistoryRecord>();
+
+                    // the writer may be appending to the document
+                    synchronized (doc)
                     {
-                        query.addHistoryRecord(record);
-                        resultCount--;
+                        NodeList nodes = doc.getElementsByTagName("record");
+
+                        for ( int i = nodes.getLength() - 1;
+                              i >= 0
+                                  && fileRecords.size() < resultCount
+                                  && !query.isCanceled();
+                              i--)
+                        {
+                            Node node = nodes.item(i);
+                            Date timestamp;
+                            String ts = node.getAttributes()
+                                .getNamedItem("timestamp").getNodeValue();
+                            try
+                            {
+                                timestamp = sdf.parse(ts);
+                            }
+                            catch (ParseException e)
+                            {
+                                timestamp = new Date(Long.parseLong(ts));
+                            }
+
+                            if(HistoryReaderImpl.isInPeriod(
+                                    timestamp, startDate, endDate))
+                            {
+                                NodeList propertyNodes = node.getChildNodes();
+
+                                HistoryRecord record =
+                                    HistoryReaderImpl.filterByKeyword(
+                                        propertyNodes, timestamp,
+                                        keywordPatterns, field);
+
+                                if(record != null)
+                                    fileRecords.add(record);
+                            }
+                        }
                     }
                 }
+
+                // delivered once the file is scanned, without holding its
+                // document while the listeners process them
+                if(!fileRecords.isEmpty() && !query.isCanceled())
+                {
+                    query.addHistoryRecords(fileRecords);
+                    resultCount -= fileRecords.size();
+                }
             }
+
+            if(keywordIndex != null)
+                keywordIndex.save();
+
+            if (query.isCanceled())
+                query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
+            else
+                query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
         }
+        finally
+        {
+            lock.unlock();
+        }
+    }
 
-        if (query.isCanceled())
-            query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
-        else
-            query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
+    /**
+     * Reads the records of a history file in the given period without
+     * building its DOM.
+     * @param filename the name of the history file
+     * @param startDate the start date
+     * @param endDate the end date
+     * @param resultCount the maximum number of records to return
+     * @param query the query tracking the results, whose cancellation stops
+     * the reading
+     * @return the last <tt>resultCount</tt> records of the file in the
+     * period, newest first
+     */
+    private List<HistoryRecord> readRecords(String filename,
+                                            final Date startDate,
+                                            final Date endDate,
+                                            int resultCount,
+                                            final HistoryQueryImpl query)
+    {
+        final List<HistoryRecord> fileRecords = new ArrayList<HistoryRecord>();
+
+        history.readRecords(filename,
+            new HistoryFileReader.RecordHandler()
+            {
+                public boolean handleRecord(HistoryRecord record,
+                                            boolean complete)
+                {
+                    if(HistoryReaderImpl.isInPeriod(
+                            record.getTimestamp(), startDate, endDate))
+                        fileRecords.add(record);
+                    return !query.isCanceled();
+                }
+            });
+
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>(
+            Math.min(resultCount, fileRecords.size()));
+        for (int i = fileRecords.size() - 1;
+                i >= 0 && result.size() < resultCount;
+                i--)
+            result.add(fileRecords.get(i));
+        return result;
     }
 }
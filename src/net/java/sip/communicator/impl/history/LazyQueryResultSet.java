@@ -0,0 +1,360 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+import java.util.regex.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * A <tt>QueryResultSet</tt> which reads the records of a history file only
+ * when the cursor reaches it. Only the records of the few files around the
+ * cursor are kept in memory, so iterating over the result of a query which
+ * matches a large part of a history does not need all of its records at
+ * once. The cursor moves in both directions like the one of
+ * {@link OrderedQueryResultSet}: <tt>next()</tt> and <tt>prev()</tt> return
+ * the element after and before the last returned one.
+ * <p>
+ * Records are only ordered by timestamp within their file: the records of
+ * every file are sorted and the files are visited in the order of their
+ * names, which is the order they were created in. Unlike
+ * <tt>OrderedQueryResultSet</tt>, the order is not global. A record added
+ * with an explicit timestamp older than the records of a previous file is
+ * returned after them, since ordering it would mean reading every file of
+ * the query first. Files compacted after the query are read from the
+ * compacted file, so the iteration neither misses nor repeats their
+ * records.
+ */
+class LazyQueryResultSet
+    implements QueryResultSet<HistoryRecord>
+{
+    /**
+     * The number of files whose matching records are kept in memory.
+     */
+    private static final int MAX_LOADED_FILES = 3;
+
+    /**
+     * The history whose records are read.
+     */
+    private final HistoryImpl historyImpl;
+
+    /**
+     * The files which may contain matching records, from oldest to newest.
+     */
+    private final List<String> files;
+
+    /**
+     * The start of the queried period or <tt>null</tt>.
+     */
+    private final Date startDate;
+
+    /**
+     * The end of the queried period or <tt>null</tt>.
+     */
+    private final Date endDate;
+
+    /**
+     * The keywords the value of <tt>field</tt> must contain or <tt>null</tt>.
+     */
+    private final Pattern[] keywordPatterns;
+
+    /**
+     * The property matched against the keywords or <tt>null</tt>.
+     */
+    private final String field;
+
+    /**
+     * The generation of the files of the history when the query was made.
+     */
+    private final int generation;
+
+    /**
+     * The matching records of the recently used files by file index.
+     */
+    private final Map<Integer, List<HistoryRecord>> loadedFiles
+        = new LinkedHashMap<Integer, List<HistoryRecord>>(
+                MAX_LOADED_FILES + 1, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<Integer, List<HistoryRecord>> eldest)
+            {
+                return size() > MAX_LOADED_FILES;
+            }
+        };
+
+    /**
+     * The index in {@link #files} of the file of the current record.
+     */
+    private int fileIndex = 0;
+
+    /**
+     * The index of the current record among the matching records of its
+     * file, <tt>-1</tt> before the first record.
+     */
+    private int recordIndex = -1;
+
+    /**
+     * Creates a result set over the records of <tt>files</tt> which are in
+     * the given period and whose <tt>field</tt> contains all the keywords.
+     *
+     * @param historyImpl the history whose records are read
+     * @param files the files which may contain matching records, from
+     * oldest to newest
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param keywordPatterns the keywords compiled with
+     * {@link HistoryReaderImpl#compileKeywords(String[], boolean)} or
+     * <tt>null</tt>
+     * @param field the property matched against the keywords or
+     * <tt>null</tt>
+     */
+    LazyQueryResultSet(HistoryImpl historyImpl,
+                       List<String> files,
+                       Date startDate,
+                       Date endDate,
+                       Pattern[] keywordPatterns,
+                       String field)
+    {
+        this.historyImpl = historyImpl;
+        this.files = new ArrayList<String>(files);
+        this.startDate = startDate;
+        this.endDate = endDate;
+        this.keywordPatterns = keywordPatterns;
+        this.field = field;
+        this.generation = historyImpl.getGeneration();
+    }
+
+    /**
+     * Returns <tt>true</tt> if the iteration has more elements.
+     *
+     * @return <tt>true</tt> if the iterator has more elements.
+     */
+    public boolean hasNext()
+    {
+        return move(true, false);
+    }
+
+    /**
+     * Returns true if the iteration has elements preceeding the current one.
+     *
+     * @return true if the iterator has preceeding elements.
+     */
+    public boolean hasPrev()
+    {
+        return move(false, false);
+    }
+
+    /**
+     * Returns the next element in the iteration.
+     *
+     * @return the next element in the iteration.
+     * @throws NoSuchElementException iteration has no more elements.
+     */
+    public HistoryRecord next()
+        throws NoSuchElementException
+    {
+        if (!move(true, true))
+            throw new NoSuchElementException();
+
+        return getRecords(fileIndex).get(recordIndex);
+    }
+
+    /**
+     * A strongly-typed variant of <tt>next()</tt>.
+     *
+     * @return the next history record.
+     * @throws NoSuchElementException iteration has no more elements.
+     */
+    public HistoryRecord nextRecord()
+        throws NoSuchElementException
+    {
+        return next();
+    }
+
+    /**
+     * Returns the previous element in the iteration.
+     *
+     * @return the previous element in the iteration.
+     * @throws NoSuchElementException iteration has no more elements.
+     */
+    public HistoryRecord prev()
+        throws NoSuchElementException
+    {
+        if (!move(false, true))
+            throw new NoSuchElementException();
+
+        return getRecords(fileIndex).get(recordIndex);
+    }
+
+    /**
+     * A strongly-typed variant of <tt>prev()</tt>.
+     *
+     * @return the previous history record.
+     * @throws NoSuchElementException iteration has no more elements.
+     */
+    public HistoryRecord prevRecord()
+        throws NoSuchElementException
+    {
+        return prev();
+    }
+
+    /**
+     * Removes from the underlying collection the last element returned by
+     * the iterator (optional operation).
+     */
+    public void remove()
+    {
+        throw new UnsupportedOperationException("Cannot remove elements "
+                + "from underlaying collection.");
+    }
+
+    /**
+     * Finds the record after or before the current one, reading the files
+     * on the way.
+     *
+     * @param forward <tt>true</tt> to look for the next record,
+     * <tt>false</tt> for the previous one
+     * @param update whether to make the found record the current one
+     * @return <tt>true</tt> if there is such a record
+     */
+    private boolean move(boolean forward, boolean update)
+    {
+        int f = fileIndex;
+        int r = recordIndex;
+
+        if (forward)
+        {
+            r++;
+            while (f < files.size() && r >= getRecords(f).size())
+            {
+                f++;
+                r = 0;
+            }
+            if (f >= files.size())
+                return false;
+        }
+        else
+        {
+            r--;
+            while (r < 0)
+            {
+                if (--f < 0)
+                    return false;
+                r = getRecords(f).size() - 1;
+            }
+        }
+
+        if (update)
+        {
+            fileIndex = f;
+            recordIndex = r;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the matching records of a file, reading it if they are not
+     * in memory.
+     *
+     * @param index the index of the file in {@link #files}
+     * @return the matching records of the file ordered by timestamp
+     */
+    private List<HistoryRecord> getRecords(int index)
+    {
+        List<HistoryRecord> records = loadedFiles.get(index);
+
+        if (records == null)
+        {
+            final List<HistoryRecord> matching
+                = new ArrayList<HistoryRecord>();
+            Lock lock = historyImpl.getFilesLock().readLock();
+
+            lock.lock();
+            try
+            {
+                // the records of a file compacted since the query are part
+                // of a bigger file now
+                HistoryImpl.FileRange range
+                    = historyImpl.locate(files.get(index), generation);
+                final int start = (range == null) ? 0 : range.offset;
+                final int end = (range == null)
+                    ? Integer.MAX_VALUE
+                    : range.offset + range.count;
+
+                historyImpl.readRecords(
+                    (range == null) ? files.get(index) : range.filename,
+                    new HistoryFileReader.RecordHandler()
+                    {
+                        private int position = 0;
+
+                        public boolean handleRecord(HistoryRecord record,
+                                                    boolean complete)
+                        {
+                            if (position >= start && matches(record))
+                                matching.add(record);
+                            return ++position < end;
+                        }
+                    });
+            }
+            catch (InvalidParameterException e)
+            {
+                // the history has been removed meanwhile
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            Collections.sort(matching, new Comparator<HistoryRecord>()
+            {
+                public int compare(HistoryRecord h1, HistoryRecord h2)
+                {
+                    return h1.getTimestamp().compareTo(h2.getTimestamp());
+                }
+            });
+
+            records = matching;
+            loadedFiles.put(index, records);
+        }
+
+        return records;
+    }
+
+    /**
+     * Checks whether <tt>record</tt> is in the queried period and contains
+     * the keywords.
+     *
+     * @param record the record to check
+     * @return <tt>true</tt> if the record is part of the result
+     */
+    private boolean matches(HistoryRecord record)
+    {
+        if (!HistoryReaderImpl.isInPeriod(
+                record.getTimestamp(), startDate, endDate))
+            return false;
+
+        if (field == null)
+            return true;
+
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (field.equals(names[i])
+                && !HistoryReaderImpl.matchKeyword(values[i], keywordPatterns))
+                return false;
+        }
+        return true;
+    }
+}
@@ -7,11 +7,13 @@
 package net.java.sip.communicator.impl.metahistory;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.callhistory.*;
 import net.java.sip.communicator.service.callhistory.event.*;
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.filehistory.*;
+import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.event.ProgressEvent;
 import net.java.sip.communicator.service.metahistory.*;
@@ -53,6 +55,12 @@ public class MetaHistoryServiceImpl
     private final List<HistorySearchProgressListener> progressListeners
         = new ArrayList<HistorySearchProgressListener>();
 
+    /**
+     * The threads querying the wrapped services concurrently, created when
+     * this service starts.
+     */
+    private ParallelHistoryQuery.Pool queryPool = null;
+
     /**
      * Returns all the records for the descriptor after the given date.
      *
@@ -65,55 +73,41 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByStartDate(String[] services,
-            Object descriptor, Date startDate)
+            final Object descriptor, final Date startDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        return findInServices(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            public Collection<?> find(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                if(serv instanceof MessageHistoryService)
+                {
+                    MessageHistoryService mhs = (MessageHistoryService)serv;
 
-                if(descriptor instanceof MetaContact)
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findByStartDate(
+                            (MetaContact)descriptor, startDate);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findByStartDate(
+                            (ChatRoom)descriptor, startDate);
+                    }
+                }
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((MetaContact)descriptor, startDate));
+                    return ((FileHistoryService)serv).findByStartDate(
+                        (MetaContact)descriptor, startDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+                else if(serv instanceof CallHistoryService)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((ChatRoom)descriptor, startDate));
+                    return ((CallHistoryService)serv).findByStartDate(startDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByStartDate(
-                        (MetaContact)descriptor, startDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(chs.findByStartDate(startDate));
-                chs.removeSearchProgressListener(listenWrapper);
+                return null;
             }
-        }
-        listenWrapper.fireLastProgress(startDate, null, null);
-
-        return result;
+        }, startDate, null, null);
     }
 
     /**
@@ -128,56 +122,41 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByEndDate(String[] services,
-            Object descriptor, Date endDate)
+            final Object descriptor, final Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        return findInServices(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            public Collection<?> find(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                if(serv instanceof MessageHistoryService)
+                {
+                    MessageHistoryService mhs = (MessageHistoryService)serv;
 
-                if(descriptor instanceof MetaContact)
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findByEndDate(
+                            (MetaContact)descriptor, endDate);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findByEndDate(
+                            (ChatRoom)descriptor, endDate);
+                    }
+                }
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((MetaContact)descriptor, endDate));
+                    return ((FileHistoryService)serv).findByEndDate(
+                        (MetaContact)descriptor, endDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+                else if(serv instanceof CallHistoryService)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((ChatRoom)descriptor, endDate));
+                    return ((CallHistoryService)serv).findByEndDate(endDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByEndDate(
-                        (MetaContact)descriptor, endDate));
+                return null;
             }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByEndDate(endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(null, endDate, null);
-
-        return result;
+        }, null, endDate, null);
     }
 
     /**
@@ -193,58 +172,42 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByPeriod(String[] services,
-            Object descriptor, Date startDate, Date endDate)
+            final Object descriptor, final Date startDate, final Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        return findInServices(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            public Collection<?> find(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                if(serv instanceof MessageHistoryService)
+                {
+                    MessageHistoryService mhs = (MessageHistoryService)serv;
 
-                if(descriptor instanceof MetaContact)
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findByPeriod(
+                            (MetaContact)descriptor, startDate, endDate);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findByPeriod(
+                            (ChatRoom)descriptor, startDate, endDate);
+                    }
+                }
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor, startDate, endDate));
+                    return ((FileHistoryService)serv).findByPeriod(
+                        (MetaContact)descriptor, startDate, endDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+                else if(serv instanceof CallHistoryService)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor, startDate, endDate));
+                    return ((CallHistoryService)serv).findByPeriod(
+                        startDate, endDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor, startDate, endDate));
+                return null;
             }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByPeriod(startDate, endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(startDate, endDate, null);
-
-        return result;
+        }, startDate, endDate, null);
     }
 
     /**
@@ -284,75 +247,53 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByPeriod(String[] services,
-            Object descriptor, Date startDate, Date endDate,
-            String[] keywords, boolean caseSensitive)
+            final Object descriptor,
+            final Date startDate, final Date endDate,
+            final String[] keywords, final boolean caseSensitive)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        return findInServices(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            public Collection<?> find(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                if(serv instanceof MessageHistoryService)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
+                    MessageHistoryService mhs = (MessageHistoryService)serv;
+
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findByPeriod(
                             (MetaContact)descriptor,
                             startDate, endDate,
-                            keywords, caseSensitive));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findByPeriod(
+                            keywords, caseSensitive);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findByPeriod(
                             (ChatRoom)descriptor,
                             startDate, endDate,
-                            keywords, caseSensitive));
+                            keywords, caseSensitive);
+                    }
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
+                {
+                    return ((FileHistoryService)serv).findByPeriod(
                         (MetaContact)descriptor,
                         startDate, endDate,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                Collection<CallRecord> cs =
-                    chs.findByPeriod(startDate, endDate);
-
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
+                        keywords, caseSensitive);
+                }
+                else if(serv instanceof CallHistoryService)
                 {
-                    CallRecord callRecord = iter.next();
+                    Collection<CallRecord> cs =
+                        ((CallHistoryService)serv).findByPeriod(
+                            startDate, endDate);
 
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                    return filterCallRecords(cs, keywords, caseSensitive);
                 }
-                chs.removeSearchProgressListener(listenWrapper);
+                return null;
             }
-        }
-        listenWrapper.fireLastProgress(startDate, endDate, keywords);
-
-        return result;
+        }, startDate, endDate, keywords);
     }
 
     /**
@@ -424,72 +365,48 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findByKeywords(String[] services,
-            Object descriptor, String[] keywords, boolean caseSensitive)
+            final Object descriptor, final String[] keywords,
+            final boolean caseSensitive)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        return findInServices(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            public Collection<?> find(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (MetaContact)descriptor, keywords, caseSensitive));
-                }
-                else if(descriptor instanceof ChatRoom)
+                if(serv instanceof MessageHistoryService)
                 {
-                    result.addAll(
-                        mhs.findByKeywords(
+                    MessageHistoryService mhs = (MessageHistoryService)serv;
+
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findByKeywords(
+                            (MetaContact)descriptor, keywords, caseSensitive);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findByKeywords(
                             (ChatRoom)descriptor,
-                            keywords, caseSensitive));
+                            keywords, caseSensitive);
+                    }
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByKeywords(
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
+                {
+                    return ((FileHistoryService)serv).findByKeywords(
                         (MetaContact)descriptor,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-
-                // this will get all call records
-                Collection<CallRecord> cs =
-                    chs.findByEndDate(new Date());
-
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
+                        keywords, caseSensitive);
+                }
+                else if(serv instanceof CallHistoryService)
                 {
-                    CallRecord callRecord = iter.next();
+                    // this will get all call records
+                    Collection<CallRecord> cs =
+                        ((CallHistoryService)serv).findByEndDate(new Date());
 
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                    return filterCallRecords(cs, keywords, caseSensitive);
                 }
-                chs.removeSearchProgressListener(listenWrapper);
+                return null;
             }
-        }
-        listenWrapper.fireLastProgress(null, null, keywords);
-
-        return result;
+        }, null, null, keywords);
     }
 
     /**
@@ -504,67 +421,51 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findLast(String[] services,
-            Object descriptor, int count)
+            final Object descriptor, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<Object> result = findInServices(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            public Collection<?> find(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                if(serv instanceof MessageHistoryService)
                 {
-                    result.addAll(
-                        mhs.findLast(
+                    MessageHistoryService mhs = (MessageHistoryService)serv;
+
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findLast(
                             (MetaContact)descriptor,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findLast(
+                            count);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findLast(
                             (ChatRoom)descriptor,
-                            count));
+                            count);
+                    }
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findLast(
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
+                {
+                    return ((FileHistoryService)serv).findLast(
                         (MetaContact)descriptor,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findLast(count));
-                chs.removeSearchProgressListener(listenWrapper);
+                        count);
+                }
+                else if(serv instanceof CallHistoryService)
+                {
+                    return ((CallHistoryService)serv).findLast(count);
+                }
+                return null;
             }
-        }
-        listenWrapper.fireLastProgress(null, null, null);
+        }, null, null, null);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+        int startIndex = result.size() - count;
 
         if(startIndex < 0)
             startIndex = 0;
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return result.subList(startIndex, result.size());
     }
 
     /**
@@ -580,79 +481,64 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findFirstMessagesAfter(String[] services,
-            Object descriptor, Date date, int count)
+            final Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<Object> result = findInServices(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            public Collection<?> find(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                if(serv instanceof MessageHistoryService)
                 {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
+                    MessageHistoryService mhs = (MessageHistoryService)serv;
+
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findFirstMessagesAfter(
                             (MetaContact)descriptor,
                             date,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
+                            count);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findFirstMessagesAfter(
                             (ChatRoom)descriptor,
                             date,
-                            count));
+                            count);
+                    }
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findFirstRecordsAfter(
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
+                {
+                    return ((FileHistoryService)serv).findFirstRecordsAfter(
                         (MetaContact)descriptor,
                         date,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-
-                Collection<CallRecord> col = chs.findByStartDate(date);
-                if(col.size() > count)
+                        count);
+                }
+                else if(serv instanceof CallHistoryService)
                 {
-                    // before we make a sublist make sure there are sorted in the
-                    // right order
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    Collections.sort(l, new RecordsComparator());
-                    result.addAll(l.subList(0, count));
+                    Collection<CallRecord> col =
+                        ((CallHistoryService)serv).findByStartDate(date);
+                    if(col.size() > count)
+                    {
+                        // before we make a sublist make sure there are sorted
+                        // in the right order
+                        List<CallRecord> l = new LinkedList<CallRecord>(col);
+                        Collections.sort(l, new RecordsComparator());
+                        return l.subList(0, count);
+                    }
+                    else
+                        return col;
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
+                return null;
             }
-        }
-        listenWrapper.fireLastProgress(date, null, null);
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
+        }, date, null, null);
 
         int toIndex = count;
-        if(toIndex > resultAsList.size())
-            toIndex = resultAsList.size();
+        if(toIndex > result.size())
+            toIndex = result.size();
 
-        return resultAsList.subList(0, toIndex);
+        return result.subList(0, toIndex);
     }
 
     /**
@@ -668,77 +554,62 @@ public class MetaHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<Object> findLastMessagesBefore(String[] services,
-            Object descriptor, Date date, int count)
+            final Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
+        List<Object> result = findInServices(services, new ServiceQuery()
         {
-            String name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+            public Collection<?> find(Object serv)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                if(serv instanceof MessageHistoryService)
                 {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
+                    MessageHistoryService mhs = (MessageHistoryService)serv;
+
+                    if(descriptor instanceof MetaContact)
+                    {
+                        return mhs.findLastMessagesBefore(
                             (MetaContact)descriptor,
                             date,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
+                            count);
+                    }
+                    else if(descriptor instanceof ChatRoom)
+                    {
+                        return mhs.findLastMessagesBefore(
                             (ChatRoom)descriptor,
                             date,
-                            count));
+                            count);
+                    }
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findLastRecordsBefore(
+                else if(serv instanceof FileHistoryService
+                        && descriptor instanceof MetaContact)
+                {
+                    return ((FileHistoryService)serv).findLastRecordsBefore(
                         (MetaContact)descriptor,
                         date,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-
-                Collection<CallRecord> col = chs.findByEndDate(date);
-                if(col.size() > count)
+                        count);
+                }
+                else if(serv instanceof CallHistoryService)
                 {
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    result.addAll(l.subList(l.size() - count, l.size()));
+                    Collection<CallRecord> col =
+                        ((CallHistoryService)serv).findByEndDate(date);
+                    if(col.size() > count)
+                    {
+                        List<CallRecord> l = new LinkedList<CallRecord>(col);
+                        return l.subList(l.size() - count, l.size());
+                    }
+                    else
+                        return col;
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
+                return null;
             }
-        }
-        listenWrapper.fireLastProgress(date, null, null);
+        }, date, null, null);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+        int startIndex = result.size() - count;
 
         if(startIndex < 0)
             startIndex = 0;
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return result.subList(startIndex, result.size());
     }
 
     /**
@@ -767,6 +638,107 @@ public class MetaHistoryServiceImpl
         }
    }
 
+    /**
+     * Runs <tt>query</tt> on the given services concurrently and merges the
+     * found records.
+     *
+     * @param services the services classnames we will query
+     * @param query the query run on every service
+     * @param startDate the start date of the search for the progress events
+     * @param endDate the end date of the search for the progress events
+     * @param keywords the keywords of the search for the progress events
+     * @return the found records ordered by date
+     */
+    private List<Object> findInServices(String[] services,
+                                        final ServiceQuery query,
+                                        Date startDate,
+                                        Date endDate,
+                                        String[] keywords)
+    {
+        final SearchProgress progress = new SearchProgress(services.length);
+        ParallelHistoryQuery<Object> search
+            = new ParallelHistoryQuery<Object>(
+                queryPool, new RecordsComparator());
+
+        for (int i = 0; i < services.length; i++)
+        {
+            final Object serv = getService(services[i]);
+            final MessageProgressWrapper listenWrapper
+                = new MessageProgressWrapper(progress, i);
+
+            search.add(new Callable<List<Object>>()
+            {
+                public List<Object> call()
+                {
+                    if(serv instanceof MessageHistoryService)
+                    {
+                        ((MessageHistoryService)serv)
+                            .addSearchProgressListener(listenWrapper);
+                    }
+                    else if(serv instanceof CallHistoryService)
+                    {
+                        ((CallHistoryService)serv)
+                            .addSearchProgressListener(listenWrapper);
+                    }
+
+                    try
+                    {
+                        Collection<?> records = query.find(serv);
+
+                        return (records == null)
+                            ? new ArrayList<Object>()
+                            : new ArrayList<Object>(records);
+                    }
+                    finally
+                    {
+                        if(serv instanceof MessageHistoryService)
+                        {
+                            ((MessageHistoryService)serv)
+                                .removeSearchProgressListener(listenWrapper);
+                        }
+                        else if(serv instanceof CallHistoryService)
+                        {
+                            ((CallHistoryService)serv)
+                                .removeSearchProgressListener(listenWrapper);
+                        }
+                        listenWrapper.finished();
+                    }
+                }
+            });
+        }
+
+        List<Object> result = search.execute();
+        progress.fireLastProgress(startDate, endDate, keywords);
+
+        return result;
+    }
+
+    /**
+     * Returns the call records with a peer matching all the keywords.
+     *
+     * @param callRecords the call records to filter
+     * @param keywords the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the matching call records
+     */
+    private List<CallRecord> filterCallRecords(
+        Collection<CallRecord> callRecords,
+        String[] keywords, boolean caseSensitive)
+    {
+        List<CallRecord> result = new ArrayList<CallRecord>();
+
+        Iterator<CallRecord> iter = callRecords.iterator();
+        while (iter.hasNext())
+        {
+            CallRecord callRecord = iter.next();
+
+            if(matchCallPeer(
+                    callRecord.getPeerRecords(), keywords, caseSensitive))
+                result.add(callRecord);
+        }
+        return result;
+    }
+
    private Object getService(String name)
    {
        Object serv = services.get(name);
@@ -864,6 +836,7 @@ public class MetaHistoryServiceImpl
         if (logger.isDebugEnabled())
             logger.debug("Starting the call history implementation.");
         this.bundleContext = bc;
+        this.queryPool = new ParallelHistoryQuery.Pool("MetaHistoryQuery");
 
         services.clear();
 
@@ -880,6 +853,9 @@ public class MetaHistoryServiceImpl
     {
         bc.removeServiceListener(this);
         services.clear();
+
+        if (queryPool != null)
+            queryPool.shutdown();
     }
 
     /**
@@ -916,25 +892,100 @@ public class MetaHistoryServiceImpl
         }
     }
 
-    private class MessageProgressWrapper
-        implements MessageHistorySearchProgressListener,
-        CallHistorySearchProgressListener
+    /**
+     * A query run on one of the wrapped history services.
+     */
+    private interface ServiceQuery
     {
-        private final int count;
-
-        private int ix;
+        /**
+         * Runs the query on <tt>service</tt>.
+         *
+         * @param service the history service
+         * @return the found records or <tt>null</tt> if the service does not
+         * support the query
+         */
+        Collection<?> find(Object service);
+    }
 
-        public MessageProgressWrapper(int count)
+    /**
+     * The progress of a search over several services running concurrently.
+     * Every service has the same share of the whole search.
+     */
+    private class SearchProgress
+    {
+        /**
+         * The last progress of every service between 0 and 1.
+         */
+        private final double[] progress;
+
+        /**
+         * The last progress fired.
+         */
+        private int lastProgress
+            = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
+
+        /**
+         * Creates the progress of a search over <tt>count</tt> services.
+         *
+         * @param count the number of searched services
+         */
+        SearchProgress(int count)
         {
-            this.count = count;
+            this.progress = new double[count];
         }
 
-        public void setIx(int ix)
+        /**
+         * Updates the progress of a service and fires the progress of the
+         * whole search if it has grown.
+         *
+         * @param ix the index of the service
+         * @param serviceProgress the progress of the service between 0 and 1
+         * @param startDate the start date of the search
+         * @param endDate the end date of the search
+         * @param keywords the keywords of the search
+         */
+        void progressChanged(int ix, double serviceProgress,
+            Date startDate, Date endDate, String[] keywords)
         {
-            this.ix = ix;
+            int convProgress;
+
+            synchronized(this)
+            {
+                progress[ix] = Math.max(progress[ix], serviceProgress);
+
+                double sum = 0;
+                for (double p : progress)
+                    sum += p;
+
+                // the maximum is fired by fireLastProgress only
+                convProgress = Math.min(
+                    (int)(sum / progress.length
+                        * HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE),
+                    HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE - 1);
+
+                if(convProgress <= lastProgress)
+                    return;
+                lastProgress = convProgress;
+            }
+
+            ProgressEvent ev = new ProgressEvent(
+                MetaHistoryServiceImpl.this,
+                startDate,
+                endDate,
+                keywords);
+            ev.setProgress(convProgress);
+
+            fireEvent(ev);
         }
 
-        private void fireProgress(int origProgress, int maxVal,
+        /**
+         * Fires the end of the search.
+         *
+         * @param startDate the start date of the search
+         * @param endDate the end date of the search
+         * @param keywords the keywords of the search
+         */
+        void fireLastProgress(
             Date startDate, Date endDate, String[] keywords)
         {
             ProgressEvent ev = new ProgressEvent(
@@ -942,14 +993,7 @@ public class MetaHistoryServiceImpl
                 startDate,
                 endDate,
                 keywords);
-
-            double part1 = origProgress/
-                ((double)maxVal*count);
-            double convProgress =
-                part1*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE +
-                ix*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE/count;
-
-            ev.setProgress((int)convProgress);
+            ev.setProgress(HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
 
             fireEvent(ev);
         }
@@ -966,39 +1010,64 @@ public class MetaHistoryServiceImpl
             for (HistorySearchProgressListener listener : listeners)
                 listener.progressChanged(ev);
         }
+    }
 
-        public void fireLastProgress(
-            Date startDate, Date endDate, String[] keywords)
+    /**
+     * Reports the progress of one of the searched services to the
+     * <tt>SearchProgress</tt> of the search.
+     */
+    private static class MessageProgressWrapper
+        implements MessageHistorySearchProgressListener,
+        CallHistorySearchProgressListener
+    {
+        private final SearchProgress progress;
+
+        private final int ix;
+
+        private Date startDate;
+
+        private Date endDate;
+
+        private String[] keywords;
+
+        public MessageProgressWrapper(SearchProgress progress, int ix)
         {
-            ProgressEvent ev = new ProgressEvent(
-                MetaHistoryServiceImpl.this,
-                startDate,
-                endDate,
-                keywords);
-            ev.setProgress(HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+            this.progress = progress;
+            this.ix = ix;
+        }
 
-            fireEvent(ev);
+        /**
+         * Marks the service as done, some services do not report any
+         * progress.
+         */
+        void finished()
+        {
+            progress.progressChanged(ix, 1, startDate, endDate, keywords);
         }
 
         public void progressChanged(
             net.java.sip.communicator.service.msghistory.event.ProgressEvent evt)
         {
-            fireProgress(
-                evt.getProgress(),
-                MessageHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
-                evt.getStartDate(),
-                evt.getEndDate(),
-                evt.getKeywords());
+            startDate = evt.getStartDate();
+            endDate = evt.getEndDate();
+            keywords = evt.getKeywords();
+
+            progress.progressChanged(ix,
+                evt.getProgress()/(double)MessageHistorySearchProgressListener
+                    .PROGRESS_MAXIMUM_VALUE,
+                startDate, endDate, keywords);
         }
 
         public void progressChanged(net.java.sip.communicator.service.callhistory.event.ProgressEvent evt)
         {
-            fireProgress(
-                evt.getProgress(),
-                CallHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE,
-                evt.getStartDate(),
-                evt.getEndDate(),
-                null);
+            startDate = evt.getStartDate();
+            endDate = evt.getEndDate();
+
+            progress.progressChanged(ix,
+                evt.getProgress()/(double)CallHistorySearchProgressListener
+                    .PROGRESS_MAXIMUM_VALUE,
+                startDate, endDate, null);
         }
     }
+
 }
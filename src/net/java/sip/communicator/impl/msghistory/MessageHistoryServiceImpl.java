@@ -13,6 +13,7 @@ import java.beans.*;
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.history.*;
@@ -83,8 +84,23 @@ public class MessageHistoryServiceImpl
 
     private MessageHistoryPropertyChangeListener msgHistoryPropListener;
 
+    /**
+     * The threads querying the histories of the contacts of a meta contact
+     * concurrently, created when this service starts.
+     */
+    private ParallelHistoryQuery.Pool queryPool = null;
+
     private static ResourceManagementService resourcesService;
 
+    /**
+     * The last messages of the recently used histories, which are written
+     * or read when a chat is opened.
+     */
+    private final RecentMessagesCache recentMessages
+        = new RecentMessagesCache(
+            RecentMessagesCache.DEFAULT_MAX_RECORDS,
+            RecentMessagesCache.DEFAULT_MAX_HISTORIES);
+
     /**
      * Returns the history service.
      * @return the history service
@@ -104,42 +120,83 @@ public class MessageHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<EventObject> findByStartDate( MetaContact contact,
-                                                    Date startDate)
+                                                    final Date startDate)
         throws RuntimeException
     {
-        TreeSet<EventObject> result =
-            new TreeSet<EventObject>(new MessageEventComparator<EventObject>());
-        // get the readers for this contact
+        return findInHistories(contact, new ReaderQuery()
+        {
+            public QueryResultSet<HistoryRecord> find(HistoryReader reader)
+            {
+                return reader.findByStartDate(startDate);
+            }
+        });
+    }
+
+    /**
+     * Runs <tt>query</tt> on the history readers of all the contacts in
+     * <tt>contact</tt> concurrently and merges the found messages.
+     *
+     * @param contact the meta contact whose histories are searched
+     * @param query the query run on every history reader
+     * @return the found messages ordered by timestamp
+     */
+    private Collection<EventObject> findInHistories(MetaContact contact,
+                                                    final ReaderQuery query)
+    {
         Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
+        MetaContactSearchProgress progress = null;
 
-        int recordsCount = countRecords(readers);
+        synchronized(progressListeners)
+        {
+            if(!progressListeners.isEmpty())
+                progress = new MetaContactSearchProgress(readers.values());
+        }
+
+        ParallelHistoryQuery<EventObject> search
+            = new ParallelHistoryQuery<EventObject>(queryPool,
+                new MessageEventComparator<EventObject>());
 
+        int index = 0;
         for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
+            final Contact item = readerEntry.getKey();
+            final HistoryReader reader = readerEntry.getValue();
+            final HistorySearchProgressListener progressListener
+                = (progress == null) ? null : progress.getListener(index);
 
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.findByStartDate(startDate);
-            while (recs.hasNext())
+            search.add(new Callable<List<EventObject>>()
             {
-                result.add(
-                    convertHistoryRecordToMessageEvent(recs.next(), item));
-            }
-        }
+                public List<EventObject> call()
+                {
+                    List<EventObject> result = new ArrayList<EventObject>();
 
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
+                    if(progressListener != null)
+                        reader.addSearchProgressListener(progressListener);
+                    try
+                    {
+                        Iterator<HistoryRecord> recs = query.find(reader);
+                        while (recs.hasNext())
+                        {
+                            result.add(convertHistoryRecordToMessageEvent(
+                                recs.next(), item));
+                        }
+                    }
+                    finally
+                    {
+                        if(progressListener != null)
+                        {
+                            reader.removeSearchProgressListener(
+                                progressListener);
+                        }
+                    }
 
-        return result;
-    }
+                    return result;
+                }
+            });
+            index++;
+        }
 
-    private void removeHistorySearchProgressListeners(
-        Map<?, HistoryReader> readers)
-    {
-        for (HistoryReader item : readers.values())
-            removeHistorySearchProgressListeners(item);
+        return search.execute();
     }
 
     /**
@@ -152,36 +209,16 @@ public class MessageHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<EventObject> findByEndDate(   MetaContact contact,
-                                                    Date endDate)
+                                                    final Date endDate)
         throws RuntimeException
     {
-        TreeSet<EventObject> result = new TreeSet<EventObject>(
-            new MessageEventComparator<EventObject>());
-
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        return findInHistories(contact, new ReaderQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.findByEndDate(endDate);
-            while (recs.hasNext())
+            public QueryResultSet<HistoryRecord> find(HistoryReader reader)
             {
-                result
-                    .add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByEndDate(endDate);
             }
-        }
-
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
-
-        return result;
+        });
     }
 
     /**
@@ -195,39 +232,17 @@ public class MessageHistoryServiceImpl
      * @throws RuntimeException
      */
     public Collection<EventObject> findByPeriod(MetaContact contact,
-                                                Date startDate,
-                                                Date endDate)
+                                                final Date startDate,
+                                                final Date endDate)
         throws RuntimeException
     {
-        TreeSet<EventObject> result
-            = new TreeSet<EventObject>(new MessageEventComparator<EventObject>());
-
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        return findInHistories(contact, new ReaderQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-
-            Iterator<HistoryRecord> recs
-                = reader.findByPeriod(startDate, endDate);
-            while (recs.hasNext())
+            public QueryResultSet<HistoryRecord> find(HistoryReader reader)
             {
-                result
-                    .add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByPeriod(startDate, endDate);
             }
-        }
-
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
-
-        return result;
+        });
     }
 
     /**
@@ -307,8 +322,7 @@ public class MessageHistoryServiceImpl
             {
                 History history = this.getHistory(null, item);
 
-                HistoryReader reader = history.getReader();
-                Iterator<HistoryRecord> recs = reader.findLast(count);
+                Iterator<HistoryRecord> recs = findLastRecords(history, count);
                 while (recs.hasNext())
                 {
                     result.add(
@@ -442,9 +456,8 @@ public class MessageHistoryServiceImpl
             {
                 History history = this.getHistory(null, item);
 
-                HistoryReader reader = history.getReader();
                 Iterator<HistoryRecord> recs
-                    = reader.findLastRecordsBefore(date, count);
+                    = findLastRecordsBefore(history, date, count);
                 while (recs.hasNext())
                 {
                     result.add(
@@ -468,6 +481,58 @@ public class MessageHistoryServiceImpl
         return resultAsList.subList(startIndex, resultAsList.size());
     }
 
+    /**
+     * Returns the last <tt>count</tt> records of a history, from the recent
+     * messages if they are cached there.
+     *
+     * @param history the history to search
+     * @param count the number of records
+     * @return the last records of the history from oldest to newest
+     */
+    private Iterator<HistoryRecord> findLastRecords(History history,
+                                                    int count)
+    {
+        List<HistoryRecord> records
+            = recentMessages.findLast(history.getID(), count);
+
+        if (records == null)
+        {
+            long modificationCount = recentMessages.getModificationCount();
+
+            records = new ArrayList<HistoryRecord>();
+            Iterator<HistoryRecord> recs = history.getReader().findLast(count);
+            while (recs.hasNext())
+                records.add(recs.next());
+
+            recentMessages.recordsRead(history.getID(), modificationCount,
+                records, records.size() < count);
+        }
+
+        return records.iterator();
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records of a history written before
+     * <tt>date</tt>, from the recent messages if they are cached there.
+     *
+     * @param history the history to search
+     * @param date the date the records are written before
+     * @param count the number of records
+     * @return the found records from oldest to newest
+     */
+    private Iterator<HistoryRecord> findLastRecordsBefore(History history,
+                                                          Date date,
+                                                          int count)
+    {
+        List<HistoryRecord> records
+            = recentMessages.findLastBefore(history.getID(), date, count);
+
+        if (records != null)
+            return records.iterator();
+
+        return history.getReader().findLastRecordsBefore(date, count);
+    }
+
     /**
      * Returns the history by specified local and remote contact
      * if one of them is null the default is used
@@ -790,6 +855,8 @@ public class MessageHistoryServiceImpl
     public void start(BundleContext bc)
     {
         this.bundleContext = bc;
+        this.queryPool
+            = new ParallelHistoryQuery.Pool("MessageHistoryQuery");
 
         ServiceReference refConfig = bundleContext.getServiceReference(
             ConfigurationService.class.getName());
@@ -833,6 +900,9 @@ public class MessageHistoryServiceImpl
             configService.removePropertyChangeListener(msgHistoryPropListener);
 
         stopMessageHistoryService();
+
+        if (queryPool != null)
+            queryPool.shutdown();
     }
 
     // //////////////////////////////////////////////////////////////////////////
@@ -1024,14 +1094,12 @@ public class MessageHistoryServiceImpl
             Message message, Date messageTimestamp)
     {
         try {
-            HistoryWriter historyWriter = history.getWriter();
             SimpleDateFormat sdf
                 = new SimpleDateFormat(HistoryService.DATE_FORMAT);
-            historyWriter.addRecord(new String[] { direction,
+            addRecord(history, new String[] { direction,
                     message.getContent(), message.getContentType(),
                     message.getEncoding(), message.getMessageUID(),
-                    message.getSubject(), sdf.format(messageTimestamp) },
-                    new Date()); // this date is when the history record is written
+                    message.getSubject(), sdf.format(messageTimestamp) });
         } catch (IOException e)
         {
             logger.error("Could not add message to history", e);
@@ -1057,15 +1125,13 @@ public class MessageHistoryServiceImpl
             if(from == null)
                 return;
 
-            HistoryWriter historyWriter = history.getWriter();
             SimpleDateFormat sdf
                 = new SimpleDateFormat(HistoryService.DATE_FORMAT);
-            historyWriter.addRecord(new String[] { direction,
+            addRecord(history, new String[] { direction,
                     message.getContent(), message.getContentType(),
                     message.getEncoding(), message.getMessageUID(),
                     from.getContactAddress(),
-                    sdf.format(messageTimestamp) },
-                    new Date()); // this date is when the history record is written
+                    sdf.format(messageTimestamp) });
         } catch (IOException e)
         {
             logger.error("Could not add message to history", e);
@@ -1087,21 +1153,38 @@ public class MessageHistoryServiceImpl
     {
         try
         {
-            HistoryWriter historyWriter = history.getWriter();
             SimpleDateFormat sdf
                 = new SimpleDateFormat(HistoryService.DATE_FORMAT);
-            historyWriter.addRecord(new String[] { direction,
+            addRecord(history, new String[] { direction,
                     message.getContent(), message.getContentType(),
                     message.getEncoding(), message.getMessageUID(),
                     from.getAddress(),
-                    sdf.format(messageTimestamp) },
-                    new Date()); // this date is when the history record is written
+                    sdf.format(messageTimestamp) });
         } catch (IOException e)
         {
             logger.error("Could not add message to history", e);
         }
     }
 
+    /**
+     * Writes a record to a history and appends it to the recent messages of
+     * the history.
+     *
+     * @param history the history to which the record is written
+     * @param propertyValues the values of the properties of the record
+     * @throws IOException if the record cannot be written
+     */
+    private void addRecord(History history, String[] propertyValues)
+        throws IOException
+    {
+        // this date is when the history record is written
+        Date timestamp = new Date();
+
+        history.getWriter().addRecord(propertyValues, timestamp);
+        recentMessages.recordAdded(
+            history.getID(), STRUCTURE_NAMES, propertyValues, timestamp);
+    }
+
     // //////////////////////////////////////////////////////////////////////////
 
     /**
@@ -1134,6 +1217,7 @@ public class MessageHistoryServiceImpl
             if (this.historyService == historyService)
             {
                 this.historyService = null;
+                recentMessages.clear();
 
                 if (logger.isDebugEnabled())
                     logger.debug("History service unregistered.");
@@ -1364,36 +1448,20 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findByPeriod(MetaContact contact, Date startDate,
-                                   Date endDate, String[] keywords,
-                                   boolean caseSensitive)
+    public Collection<EventObject> findByPeriod(MetaContact contact,
+                                   final Date startDate, final Date endDate,
+                                   final String[] keywords,
+                                   final boolean caseSensitive)
         throws RuntimeException
     {
-        TreeSet<EventObject> result = new TreeSet<EventObject>(new MessageEventComparator<EventObject>());
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        return findInHistories(contact, new ReaderQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.findByPeriod(startDate, endDate, keywords,
-                                                SEARCH_FIELD, caseSensitive);
-            while (recs.hasNext())
+            public QueryResultSet<HistoryRecord> find(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByPeriod(startDate, endDate, keywords,
+                                           SEARCH_FIELD, caseSensitive);
             }
-        }
-
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
-
-        return result;
+        });
     }
 
     /**
@@ -1406,35 +1474,19 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findByKeyword(MetaContact contact, String keyword,
-                                    boolean caseSensitive)
+    public Collection<EventObject> findByKeyword(MetaContact contact,
+                                    final String keyword,
+                                    final boolean caseSensitive)
         throws RuntimeException
     {
-        TreeSet<EventObject> result = new TreeSet<EventObject>(new MessageEventComparator<EventObject>());
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        return findInHistories(contact, new ReaderQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.
-                findByKeyword(keyword, SEARCH_FIELD, caseSensitive);
-            while (recs.hasNext())
+            public QueryResultSet<HistoryRecord> find(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByKeyword(keyword, SEARCH_FIELD,
+                                            caseSensitive);
             }
-        }
-
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
-
-        return result;
+        });
     }
 
     /**
@@ -1447,35 +1499,19 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection<EventObject> findByKeywords(MetaContact contact, String[] keywords,
-                                     boolean caseSensitive)
+    public Collection<EventObject> findByKeywords(MetaContact contact,
+                                     final String[] keywords,
+                                     final boolean caseSensitive)
         throws RuntimeException
     {
-        TreeSet<EventObject> result = new TreeSet<EventObject>(new MessageEventComparator<EventObject>());
-        // get the readers for this contact
-        Map<Contact, HistoryReader> readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-
-        for (Map.Entry<Contact, HistoryReader> readerEntry : readers.entrySet())
+        return findInHistories(contact, new ReaderQuery()
         {
-            Contact item = readerEntry.getKey();
-            HistoryReader reader = readerEntry.getValue();
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator<HistoryRecord> recs = reader.
-                findByKeywords(keywords, SEARCH_FIELD, caseSensitive);
-            while (recs.hasNext())
+            public QueryResultSet<HistoryRecord> find(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent(recs.next(), item));
+                return reader.findByKeywords(keywords, SEARCH_FIELD,
+                                             caseSensitive);
             }
-        }
-
-        // now remove this listeners
-        removeHistorySearchProgressListeners(readers);
-
-        return result;
+        });
     }
 
     /**
@@ -1831,10 +1867,8 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            // get the readers for this room
-            HistoryReader reader =
-                this.getHistoryForMultiChat(room).getReader();
-            Iterator<HistoryRecord> recs = reader.findLast(count);
+            Iterator<HistoryRecord> recs = findLastRecords(
+                this.getHistoryForMultiChat(room), count);
             while (recs.hasNext())
             {
                 result.add(
@@ -1923,10 +1957,8 @@ public class MessageHistoryServiceImpl
 
         try
         {
-            HistoryReader reader =
-                this.getHistoryForMultiChat(room).getReader();
-            Iterator<HistoryRecord> recs
-                = reader.findLastRecordsBefore(date, count);
+            Iterator<HistoryRecord> recs = findLastRecordsBefore(
+                this.getHistoryForMultiChat(room), date, count);
             while (recs.hasNext())
             {
                 result.add(
@@ -1973,6 +2005,140 @@ public class MessageHistoryServiceImpl
         return resourcesService;
     }
 
+    /**
+     * A query run on the history reader of every contact of a meta contact.
+     */
+    private interface ReaderQuery
+    {
+        /**
+         * Runs the query on <tt>reader</tt>.
+         *
+         * @param reader the history reader of a contact
+         * @return the found records
+         */
+        QueryResultSet<HistoryRecord> find(HistoryReader reader);
+    }
+
+    /**
+     * Combines the progress of the history readers of a meta contact which
+     * are searched concurrently. The progress of every reader is weighted
+     * by its number of records, as done by <tt>SearchProgressWrapper</tt>
+     * for readers searched one after another.
+     */
+    private class MetaContactSearchProgress
+    {
+        /**
+         * The share of every reader in the whole search.
+         */
+        private final double[] weights;
+
+        /**
+         * The last progress reported by every reader.
+         */
+        private final int[] progress;
+
+        /**
+         * The last combined progress fired.
+         */
+        private int lastProgress
+            = MessageHistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
+
+        /**
+         * Creates the progress of a search over <tt>readers</tt>.
+         *
+         * @param readers the searched history readers
+         */
+        MetaContactSearchProgress(Collection<HistoryReader> readers)
+        {
+            weights = new double[readers.size()];
+            progress = new int[readers.size()];
+
+            int allRecords = 0;
+            int i = 0;
+            for (HistoryReader reader : readers)
+            {
+                weights[i] = reader.countRecords();
+                allRecords += weights[i];
+                i++;
+            }
+            for (i = 0; i < weights.length; i++)
+            {
+                weights[i] = (allRecords == 0)
+                    ? 1.0 / weights.length
+                    : weights[i] / allRecords;
+            }
+        }
+
+        /**
+         * Returns the listener added to the reader with index <tt>index</tt>.
+         *
+         * @param index the index of the reader
+         * @return the listener of the progress of the reader
+         */
+        HistorySearchProgressListener getListener(final int index)
+        {
+            return new HistorySearchProgressListener()
+            {
+                public void progressChanged(ProgressEvent evt)
+                {
+                    MetaContactSearchProgress.this.progressChanged(index, evt);
+                }
+            };
+        }
+
+        /**
+         * Updates the progress of a reader and fires the combined progress
+         * of the search if it has grown.
+         *
+         * @param index the index of the reader
+         * @param evt the progress event fired by the reader
+         */
+        private void progressChanged(int index, ProgressEvent evt)
+        {
+            int combined;
+
+            synchronized(this)
+            {
+                progress[index] = evt.getProgress();
+
+                double sum = 0;
+                boolean finished = true;
+                for (int i = 0; i < progress.length; i++)
+                {
+                    sum += weights[i] * progress[i];
+                    if(progress[i] < HistorySearchProgressListener
+                                        .PROGRESS_MAXIMUM_VALUE)
+                        finished = false;
+                }
+
+                // no rounding losses once every reader is done
+                combined = finished
+                    ? MessageHistorySearchProgressListener
+                        .PROGRESS_MAXIMUM_VALUE
+                    : Math.min((int)sum, MessageHistorySearchProgressListener
+                        .PROGRESS_MAXIMUM_VALUE - 1);
+
+                if(combined <= lastProgress)
+                    return;
+                lastProgress = combined;
+            }
+
+            List<MessageHistorySearchProgressListener> listeners;
+            synchronized(progressListeners)
+            {
+                listeners = new ArrayList<MessageHistorySearchProgressListener>(
+                    progressListeners.keySet());
+            }
+
+            net.java.sip.communicator.service.msghistory.event.ProgressEvent
+                msgEvt = new net.java.sip.communicator.service.msghistory
+                    .event.ProgressEvent(
+                        MessageHistoryServiceImpl.this, evt, combined);
+            for (MessageHistorySearchProgressListener listener : listeners)
+                listener.progressChanged(msgEvt);
+        }
+    }
+
     /**
      * A wrapper around HistorySearchProgressListener
      * that fires events for MessageHistorySearchProgressListener
@@ -2271,6 +2437,8 @@ public class MessageHistoryServiceImpl
      */
     private void stopMessageHistoryService()
     {
+        recentMessages.clear();
+
         // start listening for newly register or removed protocol providers
         bundleContext.removeServiceListener(this);
 
@@ -2389,6 +2557,7 @@ public class MessageHistoryServiceImpl
         HistoryID historyId = HistoryID.createFromRawID(
                     new String[] {  "messages" });
         historyService.purgeLocallyStoredHistory(historyId);
+        recentMessages.clear();
     }
 
     /**
@@ -2407,6 +2576,7 @@ public class MessageHistoryServiceImpl
 
             History history = this.getHistory(null, item);
             historyService.purgeLocallyStoredHistory(history.getID());
+            recentMessages.remove(history.getID());
         }
     }
 
@@ -2421,5 +2591,6 @@ public class MessageHistoryServiceImpl
     {
         History history = this.getHistoryForMultiChat(room);
         historyService.purgeLocallyStoredHistory(history.getID());
+        recentMessages.remove(history.getID());
     }
 }
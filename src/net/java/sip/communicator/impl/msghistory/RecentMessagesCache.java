@@ -0,0 +1,341 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.msghistory;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Keeps the last records of the recently used message histories in memory,
+ * so that opening a chat again does not read the history files to show its
+ * last messages. The last records of a history are cached when they are
+ * read from its files and the records written afterwards are appended to
+ * them, so that the cached records are always the tail of the history.
+ * <p>
+ * The records of every history are kept in a ring buffer of
+ * <tt>maxRecords</tt> records and only the <tt>maxHistories</tt> most
+ * recently used histories are cached.
+ */
+class RecentMessagesCache
+{
+    /**
+     * The default maximum number of records cached per history.
+     */
+    static final int DEFAULT_MAX_RECORDS = 100;
+
+    /**
+     * The default maximum number of cached histories.
+     */
+    static final int DEFAULT_MAX_HISTORIES = 50;
+
+    /**
+     * The suffix of the names of the properties written as CDATA, which is
+     * not part of the names read from the history files.
+     */
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    /**
+     * The maximum number of records cached per history.
+     */
+    private final int maxRecords;
+
+    /**
+     * The cached records by history, from least to most recently used.
+     */
+    private final Map<HistoryID, RecentRecords> histories;
+
+    /**
+     * The number of times the cached histories have been modified, which
+     * tells whether records read from a history may be cached.
+     */
+    private long modificationCount = 0;
+
+    /**
+     * Creates a cache of the last records of message histories.
+     *
+     * @param maxRecords the maximum number of records cached per history
+     * @param maxHistories the maximum number of cached histories
+     */
+    RecentMessagesCache(int maxRecords, final int maxHistories)
+    {
+        this.maxRecords = maxRecords;
+        this.histories = new LinkedHashMap<HistoryID, RecentRecords>(
+                16, 0.75f, true)
+            {
+                private static final long serialVersionUID = 0L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                    Map.Entry<HistoryID, RecentRecords> eldest)
+                {
+                    return size() > maxHistories;
+                }
+            };
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records of a history if they are
+     * cached.
+     *
+     * @param id the id of the history
+     * @param count the number of records
+     * @return the last records of the history from oldest to newest or
+     * <tt>null</tt> if they have to be read from the history
+     */
+    synchronized List<HistoryRecord> findLast(HistoryID id, int count)
+    {
+        return findLastBefore(id, Long.MAX_VALUE, count);
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records of a history written before
+     * <tt>date</tt> if they are cached.
+     *
+     * @param id the id of the history
+     * @param date the date the records are written before
+     * @param count the number of records
+     * @return the found records from oldest to newest or <tt>null</tt> if
+     * they have to be read from the history
+     */
+    synchronized List<HistoryRecord> findLastBefore(HistoryID id,
+                                                    Date date,
+                                                    int count)
+    {
+        return findLastBefore(id, date.getTime(), count);
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records of a history written before
+     * <tt>time</tt> if they are cached.
+     *
+     * @param id the id of the history
+     * @param time the time in milliseconds the records are written before
+     * @param count the number of records
+     * @return the found records from oldest to newest or <tt>null</tt> if
+     * they have to be read from the history
+     */
+    private List<HistoryRecord> findLastBefore(HistoryID id,
+                                               long time,
+                                               int count)
+    {
+        RecentRecords records = histories.get(id);
+
+        if (records == null)
+            return null;
+
+        LinkedList<HistoryRecord> result = new LinkedList<HistoryRecord>();
+        for (int i = records.size - 1; i >= 0 && result.size() < count; i--)
+        {
+            HistoryRecord record = records.get(i);
+
+            if (record.getTimestamp().getTime() < time)
+                result.addFirst(record);
+        }
+
+        // the older records may not be cached
+        if (result.size() < count && !records.complete)
+            return null;
+        return result;
+    }
+
+    /**
+     * Returns the number of times the cached histories have been modified,
+     * to be passed to {@link #recordsRead(HistoryID, long, List, boolean)}
+     * once the records are read from the history.
+     *
+     * @return the number of times the cached histories have been modified
+     */
+    synchronized long getModificationCount()
+    {
+        return modificationCount;
+    }
+
+    /**
+     * Caches the last records read from a history, unless a record has been
+     * written to a history meanwhile.
+     *
+     * @param id the id of the history
+     * @param modificationCount the number of times the cached histories had
+     * been modified before the records were read
+     * @param records the last records of the history from oldest to newest
+     * @param complete whether <tt>records</tt> are all the records of the
+     * history
+     */
+    synchronized void recordsRead(HistoryID id,
+                                  long modificationCount,
+                                  List<HistoryRecord> records,
+                                  boolean complete)
+    {
+        // the read records may miss the records written meanwhile
+        if (modificationCount != this.modificationCount)
+            return;
+
+        RecentRecords recentRecords = new RecentRecords(maxRecords);
+
+        recentRecords.complete = complete && records.size() <= maxRecords;
+        for (int i = Math.max(0, records.size() - maxRecords);
+                i < records.size();
+                i++)
+            recentRecords.add(records.get(i));
+        histories.put(id, recentRecords);
+    }
+
+    /**
+     * Appends a record written to a history to its cached records.
+     *
+     * @param id the id of the history
+     * @param propertyNames the names of the properties of the record as in
+     * the structure of the history
+     * @param propertyValues the values of the properties
+     * @param timestamp the timestamp of the record
+     */
+    synchronized void recordAdded(HistoryID id,
+                                  String[] propertyNames,
+                                  String[] propertyValues,
+                                  Date timestamp)
+    {
+        modificationCount++;
+
+        RecentRecords records = histories.get(id);
+        if (records != null)
+        {
+            records.add(createRecord(
+                propertyNames, propertyValues, timestamp));
+        }
+    }
+
+    /**
+     * Removes the cached records of a history.
+     *
+     * @param id the id of the history
+     */
+    synchronized void remove(HistoryID id)
+    {
+        modificationCount++;
+        histories.remove(id);
+    }
+
+    /**
+     * Removes the cached records of all the histories.
+     */
+    synchronized void clear()
+    {
+        modificationCount++;
+        histories.clear();
+    }
+
+    /**
+     * Creates a record the way it is read from the history files: the
+     * properties without a value are not written and the CDATA suffix is
+     * not part of the property names.
+     *
+     * @param propertyNames the names of the properties of the record as in
+     * the structure of the history
+     * @param propertyValues the values of the properties
+     * @param timestamp the timestamp of the record
+     * @return the record as it is read from the history
+     */
+    private static HistoryRecord createRecord(String[] propertyNames,
+                                              String[] propertyValues,
+                                              Date timestamp)
+    {
+        List<String> names = new ArrayList<String>(propertyNames.length);
+        List<String> values = new ArrayList<String>(propertyNames.length);
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] == null)
+                continue;
+
+            String name = propertyNames[i];
+            if (name.endsWith(CDATA_SUFFIX))
+            {
+                name = name.substring(0,
+                    name.length() - CDATA_SUFFIX.length());
+            }
+            names.add(name);
+            values.add(propertyValues[i].replace('\0', ' '));
+        }
+
+        return new HistoryRecord(
+            names.toArray(new String[names.size()]),
+            values.toArray(new String[values.size()]),
+            timestamp);
+    }
+
+    /**
+     * The last records of a history in a ring buffer.
+     */
+    private static class RecentRecords
+    {
+        /**
+         * The ring buffer of the records.
+         */
+        private final HistoryRecord[] records;
+
+        /**
+         * The index in {@link #records} of the oldest record.
+         */
+        private int first = 0;
+
+        /**
+         * The number of records in the buffer.
+         */
+        private int size = 0;
+
+        /**
+         * Whether the buffer holds all the records of the history.
+         */
+        private boolean complete = false;
+
+        /**
+         * Creates an empty buffer.
+         *
+         * @param capacity the maximum number of records of the buffer
+         */
+        RecentRecords(int capacity)
+        {
+            records = new HistoryRecord[capacity];
+        }
+
+        /**
+         * Appends a record, dropping the oldest one if the buffer is full.
+         *
+         * @param record the newest record of the history
+         */
+        void add(HistoryRecord record)
+        {
+            if (records.length == 0)
+            {
+                complete = false;
+                return;
+            }
+
+            if (size < records.length)
+                records[(first + size++) % records.length] = record;
+            else
+            {
+                records[first] = record;
+                first = (first + 1) % records.length;
+                complete = false;
+            }
+        }
+
+        /**
+         * Returns a record of the buffer.
+         *
+         * @param index the index of the record from the oldest one
+         * @return the record
+         */
+        HistoryRecord get(int index)
+        {
+            return records[(first + index) % records.length];
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.contactlist;
+
+import java.util.*;
+
+/**
+ * The outcome of
+ * {@link MetaContactListService#importMetaContacts(
+ *  net.java.sip.communicator.service.protocol.ProtocolProviderService,
+ *  MetaContactGroup, Map)}: the meta contacts and groups it created and the
+ * reason each contact which could not be imported failed.
+ */
+public class MetaContactImportResult
+{
+    /**
+     * The created meta contacts, in the order they were created.
+     */
+    private final List<MetaContact> createdMetaContacts
+        = new ArrayList<MetaContact>();
+
+    /**
+     * The created meta contact groups.
+     */
+    private final List<MetaContactGroup> createdGroups
+        = new ArrayList<MetaContactGroup>();
+
+    /**
+     * The failures by the identifier of the contact which failed.
+     */
+    private final Map<String, MetaContactListException> failures
+        = new LinkedHashMap<String, MetaContactListException>();
+
+    /**
+     * Records a meta contact created by the import.
+     *
+     * @param metaContact the created meta contact
+     */
+    public void addCreatedMetaContact(MetaContact metaContact)
+    {
+        createdMetaContacts.add(metaContact);
+    }
+
+    /**
+     * Records a meta contact group created by the import.
+     *
+     * @param group the created group
+     */
+    public void addCreatedGroup(MetaContactGroup group)
+    {
+        createdGroups.add(group);
+    }
+
+    /**
+     * Records that a contact could not be imported.
+     *
+     * @param contactID the identifier of the contact
+     * @param reason the reason of the failure
+     */
+    public void addFailure(String contactID, MetaContactListException reason)
+    {
+        failures.put(contactID, reason);
+    }
+
+    /**
+     * Returns the meta contacts created by the import.
+     *
+     * @return the created meta contacts
+     */
+    public List<MetaContact> getCreatedMetaContacts()
+    {
+        return Collections.unmodifiableList(createdMetaContacts);
+    }
+
+    /**
+     * Returns the meta contact groups created by the import.
+     *
+     * @return the created meta contact groups
+     */
+    public List<MetaContactGroup> getCreatedGroups()
+    {
+        return Collections.unmodifiableList(createdGroups);
+    }
+
+    /**
+     * Returns the reasons the contacts which could not be imported failed.
+     *
+     * @return the failures by contact identifier
+     */
+    public Map<String, MetaContactListException> getFailures()
+    {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Returns a string representation of this result.
+     *
+     * @return a string representation of this result
+     */
+    @Override
+    public String toString()
+    {
+        return "MetaContactImportResult[created="
+            + createdMetaContacts.size()
+            + " groups=" + createdGroups.size()
+            + " failed=" + failures.size() + "]";
+    }
+}
@@ -295,6 +295,34 @@ public interface MetaContactListService
                                   String contactID)
         throws MetaContactListException;
 
+    /**
+     * Creates a meta contact for each of many protocol specific contacts at
+     * once, for example when provisioning a directory. The subscriptions
+     * are sent to the server without waiting for each other to be confirmed,
+     * listeners receive a single <tt>MetaContactGroupEvent</tt> with the
+     * <tt>CONTACTS_IMPORTED</tt> id for the whole import instead of an event
+     * per contact, and the local copy of the list is written once.
+     * <p>
+     * A contact which cannot be created does not stop the import, the reason
+     * it failed is reported in the returned result instead.
+     * <p>
+     * @param provider the <tt>ProtocolProviderService</tt> which will create
+     * the protocol specific contacts.
+     * @param parentGroup the <tt>MetaContactGroup</tt> where the contacts and
+     * groups are imported.
+     * @param contactIDsByGroup the identifiers of the contacts to create by
+     * the name of the subgroup of <tt>parentGroup</tt> they belong to, which
+     * is created if <tt>parentGroup</tt> has no such subgroup, or by
+     * <tt>null</tt> for the contacts to create in <tt>parentGroup</tt>
+     * itself.
+     * @return the created meta contacts and groups and the contacts which
+     * failed
+     */
+    public MetaContactImportResult importMetaContacts(
+                                  ProtocolProviderService provider,
+                                  MetaContactGroup parentGroup,
+                                  Map<String, List<String>> contactIDsByGroup);
+
     /**
      * Moves the specified <tt>MetaContact</tt> to <tt>newGroup</tt>.
      * <p>
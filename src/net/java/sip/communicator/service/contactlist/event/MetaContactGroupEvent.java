@@ -76,6 +76,30 @@ public class MetaContactGroupEvent
      */
     public static final int META_CONTACT_GROUP_RENAMED = 7;
 
+    /**
+     * Indicates that the MetaContactGroupEvent instance was triggered by
+     * loading the groups and meta contacts stored for the account of the
+     * source provider into the source group, the root of the contact list,
+     * and its subgroups. It replaces the events of every loaded group and
+     * meta contact and is delivered to <tt>metaContactGroupModified</tt>.
+     * <p>
+     * No <tt>META_CONTACT_GROUP_ADDED</tt> or
+     * <tt>MetaContactEvent.META_CONTACT_ADDED</tt> event is fired for the
+     * groups and meta contacts loaded this way, so listeners which keep a
+     * view of the contact list have to read it again from the source group
+     * when they receive this event.
+     */
+    public static final int CONTACT_LIST_LOADED = 8;
+
+    /**
+     * Indicates that the MetaContactGroupEvent instance was triggered by a
+     * bulk import of meta contacts, and possibly subgroups, into the source
+     * group. It replaces the events of every imported group and meta contact
+     * and is delivered to <tt>metaContactGroupModified</tt>. As for
+     * <tt>CONTACT_LIST_LOADED</tt>, no added events are fired for them.
+     */
+    public static final int CONTACTS_IMPORTED = 9;
+
     /**
      * the ProtocolProviderService instance where this event
      * occurred.
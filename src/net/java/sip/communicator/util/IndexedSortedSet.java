@@ -0,0 +1,475 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.util.*;
+
+/**
+ * A sorted set whose elements are also accessed by their index, kept in a
+ * persistent AVL tree whose nodes also count the elements below them.
+ * Adding, removing, finding the index of an element and getting the element
+ * at an index take O(log n). Meta contact groups keep their child contacts
+ * in such a set.
+ * <p>
+ * The nodes are never modified: a change copies the path from the root to
+ * the changed node and then publishes the new root. Readers do not lock and
+ * an iterator goes on over the elements the set had when it was created,
+ * whatever the changes made meanwhile. Changes are serialized on the set.
+ * <p>
+ * Just like with a <tt>TreeSet</tt>, an element has to be removed before it
+ * changes in a way which changes its order and added back afterwards.
+ *
+ * @param <E> the type of the elements
+ */
+public class IndexedSortedSet<E extends Comparable<? super E>>
+    implements Iterable<E>
+{
+    /**
+     * The root of the current tree or <tt>null</tt> if the set is empty.
+     */
+    private volatile Node<E> root = null;
+
+    /**
+     * Returns the number of elements of the set.
+     *
+     * @return the number of elements of the set
+     */
+    public int size()
+    {
+        return size(root);
+    }
+
+    /**
+     * Determines whether the set contains an element equal to
+     * <tt>element</tt> according to its <tt>compareTo</tt> method.
+     *
+     * @param element the element to look for
+     * @return <tt>true</tt> if the set contains <tt>element</tt>
+     */
+    public boolean contains(E element)
+    {
+        Node<E> node = root;
+
+        while (node != null)
+        {
+            int cmp = element.compareTo(node.element);
+
+            if (cmp == 0)
+                return true;
+            node = (cmp < 0) ? node.left : node.right;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the element at <tt>index</tt> in the order of the set.
+     *
+     * @param index the index of the element
+     * @return the element at <tt>index</tt>
+     * @throws IndexOutOfBoundsException if <tt>index</tt> is not a valid
+     * index
+     */
+    public E get(int index)
+        throws IndexOutOfBoundsException
+    {
+        Node<E> node = root;
+
+        if (index < 0 || index >= size(node))
+            throw new IndexOutOfBoundsException(
+                "Index: " + index + ", Size: " + size(node));
+
+        while (true)
+        {
+            int leftSize = size(node.left);
+
+            if (index == leftSize)
+                return node.element;
+            if (index < leftSize)
+                node = node.left;
+            else
+            {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the <tt>element</tt> instance in the order of the
+     * set.
+     *
+     * @param element the element to look for
+     * @return the index of <tt>element</tt> or -1 if the set does not
+     * contain it
+     */
+    public int indexOf(E element)
+    {
+        Node<E> snapshot = root;
+        Node<E> node = snapshot;
+        int index = 0;
+
+        while (node != null)
+        {
+            int cmp = element.compareTo(node.element);
+
+            if (cmp == 0)
+            {
+                if (node.element == element)
+                    return index + size(node.left);
+                break;
+            }
+            if (cmp < 0)
+                node = node.left;
+            else
+            {
+                index += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+
+        // an equal element or one which changed without being removed, look
+        // for the instance itself
+        index = 0;
+        for (Iterator<E> iter = new NodeIterator<E>(snapshot); iter.hasNext();)
+        {
+            if (iter.next() == element)
+                return index;
+            index++;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds <tt>element</tt> to the set unless it already contains an equal
+     * element.
+     *
+     * @param element the element to add
+     * @return the index of <tt>element</tt>, or of the equal element the set
+     * already contained, in the order of the set
+     */
+    public synchronized int add(E element)
+    {
+        Node<E> node = root = insert(root, element);
+        int index = 0;
+
+        while (true)
+        {
+            int cmp = element.compareTo(node.element);
+
+            if (cmp == 0)
+                return index + size(node.left);
+            if (cmp < 0)
+                node = node.left;
+            else
+            {
+                index += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Removes the element equal to <tt>element</tt> from the set.
+     *
+     * @param element the element to remove
+     * @return <tt>true</tt> if the set contained such an element
+     */
+    public synchronized boolean remove(E element)
+    {
+        Node<E> newRoot = delete(root, element);
+
+        if (newRoot == root)
+            return false;
+        root = newRoot;
+        return true;
+    }
+
+    /**
+     * Returns an iterator over the elements the set contains now, in their
+     * order. The iterator does not support removal.
+     *
+     * @return an iterator over the elements of the set
+     */
+    public Iterator<E> iterator()
+    {
+        return new NodeIterator<E>(root);
+    }
+
+    /**
+     * Returns the copy of the tree rooted at <tt>node</tt> containing
+     * <tt>element</tt>.
+     *
+     * @param node the root of a tree
+     * @param element the element to insert
+     * @return <tt>node</tt> if the tree already contains an equal element or
+     * the root of the new tree
+     */
+    private static <E extends Comparable<? super E>> Node<E> insert(
+        Node<E> node, E element)
+    {
+        if (node == null)
+            return new Node<E>(element, null, null);
+
+        int cmp = element.compareTo(node.element);
+
+        if (cmp == 0)
+            return node;
+        if (cmp < 0)
+        {
+            Node<E> left = insert(node.left, element);
+
+            return (left == node.left)
+                ? node
+                : balance(node.element, left, node.right);
+        }
+        else
+        {
+            Node<E> right = insert(node.right, element);
+
+            return (right == node.right)
+                ? node
+                : balance(node.element, node.left, right);
+        }
+    }
+
+    /**
+     * Returns the copy of the tree rooted at <tt>node</tt> without the
+     * element equal to <tt>element</tt>.
+     *
+     * @param node the root of a tree
+     * @param element the element to delete
+     * @return <tt>node</tt> if the tree contains no such element or the root
+     * of the new tree
+     */
+    private static <E extends Comparable<? super E>> Node<E> delete(
+        Node<E> node, E element)
+    {
+        if (node == null)
+            return null;
+
+        int cmp = element.compareTo(node.element);
+
+        if (cmp < 0)
+        {
+            Node<E> left = delete(node.left, element);
+
+            return (left == node.left)
+                ? node
+                : balance(node.element, left, node.right);
+        }
+        if (cmp > 0)
+        {
+            Node<E> right = delete(node.right, element);
+
+            return (right == node.right)
+                ? node
+                : balance(node.element, node.left, right);
+        }
+
+        if (node.left == null)
+            return node.right;
+        if (node.right == null)
+            return node.left;
+
+        // replace the element by its successor
+        Node<E> successor = node.right;
+
+        while (successor.left != null)
+            successor = successor.left;
+        return balance(successor.element,
+            node.left, deleteFirst(node.right));
+    }
+
+    /**
+     * Returns the copy of the tree rooted at <tt>node</tt> without its first
+     * element.
+     *
+     * @param node the root of a non-empty tree
+     * @return the root of the new tree
+     */
+    private static <E> Node<E> deleteFirst(Node<E> node)
+    {
+        if (node.left == null)
+            return node.right;
+        return balance(node.element, deleteFirst(node.left), node.right);
+    }
+
+    /**
+     * Creates a node with the specified element and subtrees, rotating them
+     * if their heights differ by more than one.
+     *
+     * @param element the element of the node
+     * @param left the left subtree
+     * @param right the right subtree
+     * @return the root of the balanced tree
+     */
+    private static <E> Node<E> balance(E element, Node<E> left, Node<E> right)
+    {
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+
+        if (leftHeight > rightHeight + 1)
+        {
+            if (height(left.left) >= height(left.right))
+            {
+                return new Node<E>(left.element,
+                    left.left,
+                    new Node<E>(element, left.right, right));
+            }
+            else
+            {
+                return new Node<E>(left.right.element,
+                    new Node<E>(left.element, left.left, left.right.left),
+                    new Node<E>(element, left.right.right, right));
+            }
+        }
+        if (rightHeight > leftHeight + 1)
+        {
+            if (height(right.right) >= height(right.left))
+            {
+                return new Node<E>(right.element,
+                    new Node<E>(element, left, right.left),
+                    right.right);
+            }
+            else
+            {
+                return new Node<E>(right.left.element,
+                    new Node<E>(element, left, right.left.left),
+                    new Node<E>(right.element, right.left.right, right.right));
+            }
+        }
+        return new Node<E>(element, left, right);
+    }
+
+    /**
+     * Returns the height of a tree.
+     *
+     * @param node the root of the tree or <tt>null</tt>
+     * @return the height of the tree
+     */
+    private static int height(Node<?> node)
+    {
+        return (node == null) ? 0 : node.height;
+    }
+
+    /**
+     * Returns the number of elements of a tree.
+     *
+     * @param node the root of the tree or <tt>null</tt>
+     * @return the number of elements of the tree
+     */
+    private static int size(Node<?> node)
+    {
+        return (node == null) ? 0 : node.size;
+    }
+
+    /**
+     * An immutable node of the tree.
+     *
+     * @param <E> the type of the element
+     */
+    private static class Node<E>
+    {
+        /**
+         * The element of this node.
+         */
+        final E element;
+
+        /**
+         * The subtree of the elements before {@link #element}.
+         */
+        final Node<E> left;
+
+        /**
+         * The subtree of the elements after {@link #element}.
+         */
+        final Node<E> right;
+
+        /**
+         * The height of the tree rooted at this node.
+         */
+        final int height;
+
+        /**
+         * The number of elements of the tree rooted at this node.
+         */
+        final int size;
+
+        /**
+         * Creates a node.
+         *
+         * @param element the element of the node
+         * @param left the subtree of the elements before <tt>element</tt>
+         * @param right the subtree of the elements after <tt>element</tt>
+         */
+        Node(E element, Node<E> left, Node<E> right)
+        {
+            this.element = element;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+
+    /**
+     * Iterates in order over the elements of a tree.
+     *
+     * @param <E> the type of the elements
+     */
+    private static class NodeIterator<E>
+        implements Iterator<E>
+    {
+        /**
+         * The nodes whose element and right subtree are still to be visited,
+         * the next one last.
+         */
+        private final Deque<Node<E>> path = new ArrayDeque<Node<E>>();
+
+        /**
+         * Creates an iterator over the tree rooted at <tt>root</tt>.
+         *
+         * @param root the root of the tree or <tt>null</tt>
+         */
+        NodeIterator(Node<E> root)
+        {
+            pushLeft(root);
+        }
+
+        /**
+         * Pushes <tt>node</tt> and its left descendants.
+         *
+         * @param node the root of a tree or <tt>null</tt>
+         */
+        private void pushLeft(Node<E> node)
+        {
+            for (; node != null; node = node.left)
+                path.push(node);
+        }
+
+        public boolean hasNext()
+        {
+            return !path.isEmpty();
+        }
+
+        public E next()
+        {
+            if (path.isEmpty())
+                throw new NoSuchElementException();
+
+            Node<E> node = path.pop();
+
+            pushLeft(node.right);
+            return node.element;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Reads and appends the frames of an append-only journal file. Every frame
+ * is stored as <tt>[length][crc32][payload]</tt> so that a frame torn by a
+ * crash or otherwise corrupted is detected when the journal is read, which
+ * then stops at it and returns the frames before it. The payloads are
+ * opaque to this class, {@link #writeString(DataOutputStream, String)} and
+ * {@link #readString(DataInputStream)} help serializing them.
+ */
+public final class JournalFile
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(JournalFile.class);
+
+    /**
+     * This class only has static methods.
+     */
+    private JournalFile()
+    {
+    }
+
+    /**
+     * Appends frames with the given payloads to <tt>file</tt> with a single
+     * write, creating the file if it does not exist.
+     *
+     * @param file the journal file
+     * @param payloads the payloads of the frames to append
+     * @throws IOException if writing to the journal fails
+     */
+    public static void append(File file, List<byte[]> payloads)
+        throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream bufferOut = new DataOutputStream(buffer);
+
+        for (byte[] payload : payloads)
+        {
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+
+            bufferOut.writeInt(payload.length);
+            bufferOut.writeInt((int) crc.getValue());
+            bufferOut.write(payload);
+        }
+        bufferOut.flush();
+
+        OutputStream out = new FileOutputStream(file, true);
+        try
+        {
+            buffer.writeTo(out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the payloads of the valid frames of <tt>file</tt>, stopping at
+     * the first truncated or corrupted frame.
+     *
+     * @param file the journal file
+     * @return the payloads of the frames in the order they were appended or
+     * an empty list if <tt>file</tt> does not exist
+     */
+    public static List<byte[]> read(File file)
+    {
+        List<byte[]> payloads = new ArrayList<byte[]>();
+
+        if (!file.exists())
+            return payloads;
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+
+            while (true)
+            {
+                int length;
+                try
+                {
+                    length = in.readInt();
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+
+                int checksum = in.readInt();
+                if (length < 0 || length > file.length())
+                    throw new IOException("Invalid frame length " + length);
+
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum)
+                    throw new IOException("Frame checksum mismatch");
+
+                payloads.add(payload);
+            }
+        }
+        catch (IOException e)
+        {
+            // a truncated frame left from a crash, keep what we have so far
+            logger.warn("Stopped reading journal " + file + " after "
+                + payloads.size() + " frames: " + e.getMessage());
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+
+        return payloads;
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string.
+     *
+     * @param out the stream to write to
+     * @param s the string to write
+     * @throws IOException if writing fails
+     */
+    public static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}
+     * from a stream over a payload.
+     *
+     * @param in the stream to read from
+     * @return the read string
+     * @throws IOException if reading fails or the length of the string
+     * exceeds the rest of the payload
+     */
+    public static String readString(DataInputStream in)
+        throws IOException
+    {
+        int length = in.readInt();
+
+        if (length < 0 || length > in.available())
+            throw new IOException("Invalid string length " + length);
+
+        byte[] bytes = new byte[length];
+
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the queries of a search over several histories concurrently and
+ * merges their ordered results. The queries run on the {@link Pool} of
+ * daemon threads of the service making the search, so that searching a meta
+ * contact with many protocol contacts, or several history services at once,
+ * takes about as long as its slowest history instead of the sum of all of
+ * them. A query started from one of the threads of the pool runs its own
+ * queries in the calling thread, so nested searches cannot wait on each other
+ * for a free thread.
+ * <p>
+ * Like the <tt>TreeSet</tt>s the searches used to collect their results in,
+ * the merged results keep only the first of the results which compare
+ * equal.
+ *
+ * @param <T> the type of the query results
+ */
+public class ParallelHistoryQuery<T>
+{
+    /**
+     * The maximum number of threads of a pool.
+     */
+    private static final int MAX_THREADS
+        = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The pool running the queries or <tt>null</tt> to run them in the
+     * calling thread.
+     */
+    private final Pool pool;
+
+    /**
+     * The queries to run.
+     */
+    private final List<Callable<List<T>>> queries
+        = new ArrayList<Callable<List<T>>>();
+
+    /**
+     * The order of the merged results.
+     */
+    private final Comparator<? super T> comparator;
+
+    /**
+     * Creates a search whose merged results are ordered by
+     * <tt>comparator</tt>.
+     *
+     * @param pool the pool running the queries or <tt>null</tt> to run them
+     * in the calling thread
+     * @param comparator the order of the results
+     */
+    public ParallelHistoryQuery(Pool pool, Comparator<? super T> comparator)
+    {
+        this.pool = pool;
+        this.comparator = comparator;
+    }
+
+    /**
+     * Adds a query to this search. Its results do not need to be ordered.
+     *
+     * @param query the query returning the results of one history
+     */
+    public void add(Callable<List<T>> query)
+    {
+        queries.add(query);
+    }
+
+    /**
+     * Runs the queries and returns all their results ordered by the
+     * comparator of this search. Of the results which compare equal, only
+     * the first one returned by the first query is kept.
+     *
+     * @return the ordered results of all the queries
+     * @throws RuntimeException if a query throws an exception
+     */
+    public List<T> execute()
+        throws RuntimeException
+    {
+        List<List<T>> results = new ArrayList<List<T>>(queries.size());
+
+        if (queries.size() < 2
+            || pool == null
+            || Thread.currentThread().getThreadGroup() == pool.threadGroup)
+        {
+            for (Callable<List<T>> query : queries)
+                results.add(sort(call(query)));
+        }
+        else
+        {
+            List<Future<List<T>>> futures
+                = new ArrayList<Future<List<T>>>(queries.size());
+
+            for (final Callable<List<T>> query : queries)
+            {
+                Callable<List<T>> sorted = new Callable<List<T>>()
+                {
+                    public List<T> call()
+                    {
+                        return sort(ParallelHistoryQuery.call(query));
+                    }
+                };
+
+                try
+                {
+                    futures.add(pool.executor.submit(sorted));
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // the pool has been shut down with its service
+                    FutureTask<List<T>> task = new FutureTask<List<T>>(sorted);
+
+                    task.run();
+                    futures.add(task);
+                }
+            }
+
+            try
+            {
+                for (Future<List<T>> future : futures)
+                    results.add(future.get());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted history search", e);
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new RuntimeException(cause);
+            }
+            finally
+            {
+                for (Future<List<T>> future : futures)
+                    future.cancel(true);
+            }
+        }
+
+        return merge(results, comparator);
+    }
+
+    /**
+     * Merges lists ordered by <tt>comparator</tt> with a k-way merge over a
+     * heap holding the head of every list. Of the elements which compare
+     * equal, only the first one of the first list is kept.
+     *
+     * @param lists the ordered lists
+     * @param comparator the order of the lists
+     * @param <T> the type of the elements
+     * @return the distinct ordered elements of all the lists
+     */
+    public static <T> List<T> merge(List<? extends List<? extends T>> lists,
+                                    final Comparator<? super T> comparator)
+    {
+        int size = 0;
+        for (List<? extends T> list : lists)
+            size += list.size();
+
+        List<T> result = new ArrayList<T>(size);
+
+        PriorityQueue<Head<T>> heads = new PriorityQueue<Head<T>>(
+            Math.max(1, lists.size()),
+            new Comparator<Head<T>>()
+            {
+                public int compare(Head<T> h1, Head<T> h2)
+                {
+                    int c = comparator.compare(h1.value, h2.value);
+
+                    return (c != 0) ? c : h1.index - h2.index;
+                }
+            });
+
+        for (int i = 0; i < lists.size(); i++)
+        {
+            Iterator<? extends T> iter = lists.get(i).iterator();
+
+            if (iter.hasNext())
+                heads.add(new Head<T>(i, iter));
+        }
+
+        while (!heads.isEmpty())
+        {
+            Head<T> head = heads.poll();
+
+            // the equal elements are polled one after the other
+            if (result.isEmpty()
+                || comparator.compare(
+                        result.get(result.size() - 1), head.value) != 0)
+                result.add(head.value);
+            if (head.advance())
+                heads.add(head);
+        }
+
+        return result;
+    }
+
+    /**
+     * Runs a query, rethrowing its checked exceptions as
+     * <tt>RuntimeException</tt>s.
+     *
+     * @param query the query
+     * @param <T> the type of the query results
+     * @return the results of the query
+     */
+    private static <T> List<T> call(Callable<List<T>> query)
+    {
+        try
+        {
+            return query.call();
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Orders the results of a query, which usually are already ordered.
+     *
+     * @param results the results of a query
+     * @return <tt>results</tt>
+     */
+    private List<T> sort(List<T> results)
+    {
+        Collections.sort(results, comparator);
+        return results;
+    }
+
+    /**
+     * The daemon threads running the queries of the searches of a service.
+     * The service creates its pool when it starts and shuts it down when it
+     * stops, the searches made after that run in the calling thread. Idle
+     * threads exit.
+     */
+    public static class Pool
+    {
+        /**
+         * The threads of the pool.
+         */
+        private final ThreadGroup threadGroup;
+
+        /**
+         * The executor running the queries.
+         */
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * Creates a pool whose threads are named after <tt>name</tt>.
+         *
+         * @param name the name of the pool
+         */
+        public Pool(final String name)
+        {
+            threadGroup = new ThreadGroup(name);
+            executor = new ThreadPoolExecutor(
+                MAX_THREADS, MAX_THREADS,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    private int count = 0;
+
+                    public synchronized Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(threadGroup, r,
+                            name + "-" + (++count));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        /**
+         * Runs <tt>task</tt> in a thread of the pool, for the searches which
+         * deliver their results on their own instead of being merged.
+         *
+         * @param task the task to run
+         * @throws RejectedExecutionException if the pool has been shut down
+         */
+        public void execute(Runnable task)
+            throws RejectedExecutionException
+        {
+            executor.execute(task);
+        }
+
+        /**
+         * Stops the threads of the pool once the queries already submitted
+         * are done.
+         */
+        public void shutdown()
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The next element of one of the merged lists.
+     *
+     * @param <T> the type of the elements
+     */
+    private static class Head<T>
+    {
+        /**
+         * The index of the list, ties are broken by it.
+         */
+        final int index;
+
+        /**
+         * The rest of the list.
+         */
+        private final Iterator<? extends T> iter;
+
+        /**
+         * The next element of the list.
+         */
+        T value;
+
+        /**
+         * Creates the head of a non empty list.
+         *
+         * @param index the index of the list
+         * @param iter the iterator over the list
+         */
+        Head(int index, Iterator<? extends T> iter)
+        {
+            this.index = index;
+            this.iter = iter;
+            this.value = iter.next();
+        }
+
+        /**
+         * Moves to the next element of the list.
+         *
+         * @return <tt>false</tt> if the list has no more elements
+         */
+        boolean advance()
+        {
+            if (!iter.hasNext())
+                return false;
+
+            value = iter.next();
+            return true;
+        }
+    }
+}
@@ -90,12 +90,21 @@ public class MetaContactListServiceLick
         addTestSuite(TestMetaContact.class);
         addTestSuite(TestMetaContactGroup.class);
 
+        //tests the set meta contact groups keep their child contacts in.
+        addTestSuite(TestIndexedSortedSet.class);
+
         //tests that verify proper support of multiple protocol providers
         addTest(TestSupportForMultipleProviders.suite());
 
         //tests that verify persistence of the meta contact list.
         addTest(TestMetaContactListPersistence.suite());
 
+        //tests that verify recovery from damaged storage files.
+        addTest(TestMetaContactListStorage.suite());
+
+        //tests that verify the asynchronous delivery of events.
+        addTest(TestMetaContactListEventDispatch.suite());
+
         //register the slick itself
         context.registerService(getClass().getName()
                                 , this
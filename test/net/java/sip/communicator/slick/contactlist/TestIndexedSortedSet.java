@@ -0,0 +1,275 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.contactlist;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Tests the <tt>IndexedSortedSet</tt> meta contact groups keep their child
+ * contacts in, against a <tt>TreeSet</tt> of the same elements.
+ */
+public class TestIndexedSortedSet extends TestCase
+{
+    /**
+     * The number of random changes made to the tested sets.
+     */
+    private static final int CHANGE_COUNT = 5000;
+
+    /**
+     * The set we're testing.
+     */
+    private IndexedSortedSet<Element> set = null;
+
+    /**
+     * The set the tested set is compared with.
+     */
+    private TreeSet<Element> reference = null;
+
+    /**
+     * Generates the random changes, with a fixed seed so that a failure
+     * can be reproduced.
+     */
+    private Random random = null;
+
+    public TestIndexedSortedSet(String name)
+    {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        set = new IndexedSortedSet<Element>();
+        reference = new TreeSet<Element>();
+        random = new Random(4242);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        set = null;
+        reference = null;
+        random = null;
+
+        super.tearDown();
+    }
+
+    /**
+     * Adds and removes random elements and checks after every change that
+     * the index returned by <tt>add</tt>, <tt>remove</tt>, <tt>contains</tt>,
+     * <tt>indexOf</tt>, <tt>get</tt> and the iteration order match the
+     * reference set.
+     */
+    public void testRandomChanges()
+    {
+        List<Element> elements = new ArrayList<Element>();
+
+        for (int i = 0; i < CHANGE_COUNT; i++)
+        {
+            if (elements.isEmpty() || random.nextInt(3) != 0)
+            {
+                Element element = new Element(random.nextInt(1000), i);
+
+                reference.add(element);
+                assertEquals("add returned a wrong index",
+                    reference.headSet(element).size(), set.add(element));
+                elements.add(element);
+            }
+            else
+            {
+                Element element
+                    = elements.remove(random.nextInt(elements.size()));
+
+                assertTrue("remove did not find " + element,
+                    set.remove(element));
+                reference.remove(element);
+                assertFalse("remove found a removed element",
+                    set.remove(element));
+                assertFalse("contains found a removed element",
+                    set.contains(element));
+                assertEquals(-1, set.indexOf(element));
+            }
+
+            if (i % 100 == 0)
+                assertSameElements();
+        }
+
+        assertSameElements();
+    }
+
+    /**
+     * Checks that adding an element equal to one of the set does not change
+     * the set and returns the index of the element of the set.
+     */
+    public void testAddEqualElement()
+    {
+        Element element = new Element(5, 1);
+
+        set.add(new Element(3, 0));
+        set.add(element);
+        set.add(new Element(7, 2));
+
+        assertEquals(1, set.add(new Element(5, 1)));
+        assertEquals(3, set.size());
+        assertSame(element, set.get(1));
+
+        // another instance equal to an element is not the element itself
+        assertEquals(-1, set.indexOf(new Element(5, 1)));
+    }
+
+    /**
+     * Changes the sort key of elements without removing them from the set
+     * and checks that they are still found at their position in the tree,
+     * and that they can be removed once their key is restored.
+     */
+    public void testElementChangedWithoutRemoval()
+    {
+        for (int i = 0; i < 200; i++)
+        {
+            Element element = new Element(random.nextInt(1000), i);
+
+            set.add(element);
+            reference.add(element);
+        }
+
+        List<Element> order = new ArrayList<Element>(reference);
+
+        for (int i = 0; i < 20; i++)
+        {
+            int index = random.nextInt(order.size());
+            Element element = order.get(index);
+            int key = element.key;
+
+            element.key = (key + 500) % 1000;
+
+            assertEquals("A changed element was not found at its position",
+                index, set.indexOf(element));
+            assertSame(element, set.get(index));
+
+            int position = 0;
+            for (Element e : set)
+                assertSame(order.get(position++), e);
+
+            element.key = key;
+            assertTrue("remove did not find a restored element",
+                set.remove(element));
+            assertEquals(index, set.add(element));
+        }
+    }
+
+    /**
+     * Checks that an iterator goes on over the elements the set had when
+     * it was created, whatever the changes made meanwhile.
+     */
+    public void testIteratorIsSnapshot()
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            Element element = new Element(i, i);
+
+            set.add(element);
+            reference.add(element);
+        }
+
+        List<Element> expected = new ArrayList<Element>(reference);
+        Iterator<Element> iter = set.iterator();
+
+        for (int i = 0; i < 50; i++)
+        {
+            assertSame(expected.get(i), iter.next());
+
+            set.remove(expected.get(99 - i));
+            set.add(new Element(-i, 1000 + i));
+        }
+
+        for (int i = 50; i < 100; i++)
+            assertSame(expected.get(i), iter.next());
+        assertFalse(iter.hasNext());
+    }
+
+    /**
+     * Checks that the tested set contains the elements of the reference set
+     * in the same order.
+     */
+    private void assertSameElements()
+    {
+        assertEquals("Wrong size", reference.size(), set.size());
+
+        Iterator<Element> iter = set.iterator();
+        int index = 0;
+
+        for (Element element : reference)
+        {
+            assertSame("Wrong element at " + index, element, iter.next());
+            assertSame("Wrong element at " + index, element, set.get(index));
+            assertEquals("Wrong index of " + element,
+                index, set.indexOf(element));
+            assertTrue("contains did not find " + element,
+                set.contains(element));
+            index++;
+        }
+        assertFalse("The set has more elements than the reference set",
+            iter.hasNext());
+
+        try
+        {
+            set.get(index);
+            fail("get returned an element after the last one");
+        }
+        catch (IndexOutOfBoundsException ex)
+        {
+        }
+    }
+
+    /**
+     * An element sorted by a key which may change and then by a unique
+     * id, like meta contacts are sorted by status and name and then by uid.
+     */
+    private static class Element
+        implements Comparable<Element>
+    {
+        /**
+         * The key the element is sorted by first.
+         */
+        int key;
+
+        /**
+         * The unique id of the element.
+         */
+        final int id;
+
+        /**
+         * Creates an element.
+         *
+         * @param key the key the element is sorted by first
+         * @param id the unique id of the element
+         */
+        Element(int key, int id)
+        {
+            this.key = key;
+            this.id = id;
+        }
+
+        public int compareTo(Element o)
+        {
+            if (key != o.key)
+                return (key < o.key) ? -1 : 1;
+            return (id < o.id) ? -1 : ((id == o.id) ? 0 : 1);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Element[key=" + key + ", id=" + id + "]";
+        }
+    }
+}
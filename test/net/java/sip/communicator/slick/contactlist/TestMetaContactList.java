@@ -354,6 +354,67 @@ public class TestMetaContactList
 
     }
 
+    /**
+     * Adds a protocol contact which is also equal to another form of its
+     * address, as the contacts of some protocols are, and checks that
+     * <tt>findMetaContactByContact</tt> finds its meta contact by a contact
+     * with that other address, which the index of the list does not know,
+     * by falling back to searching the list.
+     */
+    public void testFindMetaContactByContactNotIndexed()
+    {
+        String newGroupName
+            = "testFindMetaContactByContactNotIndexed.NewContactGroup";
+        String contactID = "testFindMetaContactByContactNotIndexed.Contact";
+        String alias = "sip:" + contactID;
+
+        MockContactGroup newContactGroup
+            = new MockContactGroup(newGroupName, MclSlickFixture.mockProvider);
+        MockContact aliasedContact
+            = new AliasedMockContact(
+                    contactID, alias, MclSlickFixture.mockProvider);
+
+        newContactGroup.addContact(aliasedContact);
+        MclSlickFixture.mockPresOpSet.addMockGroupAndFireEvent(
+            (MockContactGroup)
+                MclSlickFixture.mockPresOpSet.getServerStoredContactListRoot(),
+            newContactGroup);
+
+        MetaContactGroup newMetaGroup = fixture.metaClService
+            .findMetaContactGroupByContactGroup(newContactGroup);
+
+        assertNotNull("The new contact group was not imported", newMetaGroup);
+
+        try
+        {
+            MetaContact expectedMetaContact = fixture.metaClService
+                .findMetaContactByContact(aliasedContact);
+
+            assertNotNull("find failed for the indexed contact " + contactID
+                , expectedMetaContact);
+            assertSame("Parent of the imported contact"
+                , newMetaGroup
+                , expectedMetaContact.getParentMetaContactGroup());
+
+            MetaContact actualResult = fixture.metaClService
+                .findMetaContactByContact(
+                    new MockContact(alias, MclSlickFixture.mockProvider));
+
+            assertSame("find failed for the contact " + contactID
+                         + " by its not indexed address " + alias
+                , expectedMetaContact, actualResult);
+
+            assertNull("found a contact which is not in the list"
+                , fixture.metaClService.findMetaContactByContact(
+                    new MockContact(alias + ".Unknown",
+                        MclSlickFixture.mockProvider)));
+        }
+        finally
+        {
+            fixture.metaClService.removeMetaContactGroup(newMetaGroup);
+        }
+    }
+
     /**
      * Performs several tests in order to verify that the
      * <tt>findMetaContactGroupByContactGroup</tt>  method of the tested
@@ -982,6 +1043,81 @@ public class TestMetaContactList
                                                     .getGroup(newGroupName));
     }
 
+    /**
+     * Imports contacts into the root and into a new group at once and checks
+     * that they are created with a single event, a repeated identifier
+     * once, and that the contacts which already exist are reported as
+     * failures.
+     */
+    public void testImportMetaContacts()
+    {
+        String newGroupName = "testImportMetaContacts.NewContactGroup";
+        String rootContactID = "testImportMetaContacts.RootContactID";
+        String groupContactID1 = "testImportMetaContacts.GroupContactID1";
+        String groupContactID2 = "testImportMetaContacts.GroupContactID2";
+        MetaContactGroup root = fixture.metaClService.getRoot();
+
+        Map<String, List<String>> contactIDsByGroup
+            = new LinkedHashMap<String, List<String>>();
+
+        contactIDsByGroup.put(null, Arrays.asList(rootContactID));
+        contactIDsByGroup.put(newGroupName,
+            Arrays.asList(groupContactID1, groupContactID2, groupContactID1));
+
+        MclEventCollector evtCollector = new MclEventCollector();
+
+        fixture.metaClService.addMetaContactListListener(evtCollector);
+        MetaContactImportResult result = fixture.metaClService
+            .importMetaContacts(MclSlickFixture.mockProvider, root,
+                contactIDsByGroup);
+        fixture.metaClService.removeMetaContactListListener(evtCollector);
+
+        assertEquals("Meta contacts created by the import"
+            , 3, result.getCreatedMetaContacts().size());
+        assertEquals("Groups created by the import"
+            , 1, result.getCreatedGroups().size());
+        assertEquals("Failures of the import"
+            , 0, result.getFailures().size());
+
+        MetaContactGroup newMetaGroup = root.getMetaContactSubgroup(newGroupName);
+
+        assertNotNull("The import did not create the group", newMetaGroup);
+        assertNotNull("The import did not create a contact in the root"
+            , root.getMetaContact(MclSlickFixture.mockProvider, rootContactID));
+        assertNotNull("The import did not create a contact in the group"
+            , newMetaGroup.getMetaContact(MclSlickFixture.mockProvider,
+                groupContactID2));
+        assertNotNull("The import did not create the proto group"
+            , MclSlickFixture.mockPresOpSet.getServerStoredContactListRoot()
+                .getGroup(newGroupName));
+
+        //verify that a single event has been delivered.
+        assertEquals("Meta contact events delivered by the import"
+            , 0, evtCollector.collectedMetaContactEvents.size());
+        assertEquals("Group events delivered by the import"
+            , 1, evtCollector.collectedMetaContactGroupEvents.size());
+        assertEquals("Event ID of the event delivered by the import"
+            , MetaContactGroupEvent.CONTACTS_IMPORTED
+            , ((MetaContactGroupEvent) evtCollector
+                .collectedMetaContactGroupEvents.get(0)).getEventID());
+
+        //importing the same contacts again fails for each of them
+        result = fixture.metaClService.importMetaContacts(
+            MclSlickFixture.mockProvider, root, contactIDsByGroup);
+
+        assertEquals("Meta contacts created by a repeated import"
+            , 0, result.getCreatedMetaContacts().size());
+        assertEquals("Failures of a repeated import"
+            , 3, result.getFailures().size());
+        assertEquals("Code of the failure of an existing contact"
+            , MetaContactListException.CODE_CONTACT_ALREADY_EXISTS_ERROR
+            , result.getFailures().get(groupContactID1).getErrorCode());
+
+        fixture.metaClService.removeMetaContact(
+            root.getMetaContact(MclSlickFixture.mockProvider, rootContactID));
+        fixture.metaClService.removeMetaContactGroup(newMetaGroup);
+    }
+
     /**
      * Tests the MetaContactListService.findParentMetaContactGroup(MetaContact)
      * method for two different meta contacts.
@@ -1098,6 +1234,59 @@ public class TestMetaContactList
     }
 
 
+    /**
+     * A mock contact which is also equal to another form of its address, as
+     * the contacts of some protocols are equal to the address with or
+     * without a <tt>sip:</tt> prefix.
+     */
+    private static class AliasedMockContact
+        extends MockContact
+    {
+        /**
+         * The other form of the address of the contact.
+         */
+        private final String alias;
+
+        /**
+         * Creates a contact with the specified address which is also equal
+         * to <tt>alias</tt>.
+         *
+         * @param id the address of the contact
+         * @param alias the other form of the address of the contact
+         * @param parentProvider the provider of the contact
+         */
+        AliasedMockContact(String id, String alias, MockProvider parentProvider)
+        {
+            super(id, parentProvider);
+            this.alias = alias;
+        }
+
+        /**
+         * Determines whether <tt>obj</tt> is the other form of the address of
+         * this contact or a contact with the same address.
+         *
+         * @param obj the <tt>Object</tt> which is to be compared to this
+         * instance
+         * @return <tt>true</tt> if <tt>obj</tt> is equal to this contact
+         */
+        @Override
+        public boolean equals(Object obj)
+        {
+            return alias.equals(obj) || super.equals(obj);
+        }
+
+        /**
+         * Returns the hash code of the address of this contact.
+         *
+         * @return the hash code of the address of this contact
+         */
+        @Override
+        public int hashCode()
+        {
+            return super.hashCode();
+        }
+    }
+
     private class MclEventCollector implements MetaContactListListener
     {
         public Vector<EventObject> collectedMetaContactEvents = new Vector<EventObject>();
@@ -0,0 +1,586 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.contactlist;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.contactlist.event.*;
+import net.java.sip.communicator.service.protocol.*;
+
+import org.jitsi.service.configuration.*;
+import org.osgi.framework.*;
+
+/**
+ * Tests in this class verify the delivery of the events of the meta contact
+ * list when the meta contact list bundle is started with asynchronous event
+ * dispatch: every listener gets its events in order, a slow listener does not
+ * delay the others and the reorder events queued for a slow listener are
+ * coalesced. They run after the persistence tests, on the mock provider
+ * these registered.
+ */
+public class TestMetaContactListEventDispatch extends TestCase
+{
+    /**
+     * The property enabling the asynchronous dispatch of the events.
+     */
+    private static final String ASYNC_EVENT_DISPATCH_PROPERTY
+        = "net.java.sip.communicator.impl.contactlist.ASYNC_EVENT_DISPATCH";
+
+    /**
+     * The number of times we rename a meta contact in a row.
+     */
+    private static final int RENAME_COUNT = 20;
+
+    /**
+     * The number of times we change the presence status of a contact in a
+     * row.
+     */
+    private static final int STATUS_CHANGE_COUNT = 10;
+
+    /**
+     * The time in milliseconds we wait for events to be delivered.
+     */
+    private static final long EVENT_TIMEOUT = 10000;
+
+    /**
+     * A reference to the SLICK fixture.
+     */
+    private MclSlickFixture fixture = new MclSlickFixture(getClass().getName());
+
+    /**
+     * The presence operation set of the mock provider registered by the
+     * persistence tests, whose contacts we change.
+     */
+    private MockPersistentPresenceOperationSet presOpSet = null;
+
+    public TestMetaContactListEventDispatch(String name)
+    {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        fixture.setUp();
+
+        presOpSet = (MockPersistentPresenceOperationSet)
+            MclSlickFixture.replacementMockPr.getOperationSet(
+                OperationSetPersistentPresence.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        fixture.tearDown();
+
+        fixture = null;
+        presOpSet = null;
+        super.tearDown();
+    }
+
+    /**
+     * Returns tests in this class in the order that they are supposed to be
+     * executed.
+     * @return a Test suite containing tests in this class in the order they are
+     * to be executed.
+     */
+    public static Test suite()
+    {
+        TestSuite suite = new TestSuite();
+
+        suite.addTest(new TestMetaContactListEventDispatch(
+            "testEnableAsynchronousDispatch"));
+        suite.addTest(new TestMetaContactListEventDispatch(
+            "testSlowListenerDoesNotDelayOthers"));
+        suite.addTest(new TestMetaContactListEventDispatch(
+            "testReorderEventsCoalesced"));
+        suite.addTest(new TestMetaContactListEventDispatch(
+            "testDisableAsynchronousDispatch"));
+
+        return suite;
+    }
+
+    /**
+     * Restarts the meta contact list bundle with asynchronous event dispatch.
+     *
+     * @throws Exception if restarting the bundle fails
+     */
+    public void testEnableAsynchronousDispatch()
+        throws Exception
+    {
+        Bundle metaClBundle = stopMetaClBundle();
+
+        getConfigurationService().setProperty(
+            ASYNC_EVENT_DISPATCH_PROPERTY, Boolean.toString(true));
+
+        startMetaClBundle(metaClBundle);
+    }
+
+    /**
+     * Renames a meta contact several times while a listener is blocked in
+     * its first event and verifies that another listener gets all the events
+     * meanwhile, and that both get them in the order they were fired.
+     *
+     * @throws Exception if subscribing to the renamed contact fails
+     */
+    public void testSlowListenerDoesNotDelayOthers()
+        throws Exception
+    {
+        MockContact contact = subscribe("DispatchedRenamedContact");
+        MetaContact metaContact
+            = fixture.metaClService.findMetaContactByContact(contact);
+
+        EventRecorder slowListener = new EventRecorder(true);
+        EventRecorder fastListener = new EventRecorder(false);
+        List<String> newNames = new ArrayList<String>();
+
+        fixture.metaClService.addMetaContactListListener(slowListener);
+        fixture.metaClService.addMetaContactListListener(fastListener);
+        try
+        {
+            for (int i = 0; i < RENAME_COUNT; i++)
+            {
+                String newName = "DispatchedRenamedContact" + i;
+
+                newNames.add(newName);
+                fixture.metaClService.renameMetaContact(metaContact, newName);
+            }
+
+            assertEquals("The renames fired while a listener was blocked "
+                    + "were not delivered to another listener"
+                , newNames
+                , fastListener.waitForRenames(RENAME_COUNT));
+            assertEquals("The blocked listener got more than its first event"
+                , 1, slowListener.countEvents());
+
+            slowListener.release();
+
+            assertEquals("The renames were not delivered in order to the "
+                    + "listener which was blocked"
+                , newNames
+                , slowListener.waitForRenames(RENAME_COUNT));
+        }
+        finally
+        {
+            slowListener.release();
+            fixture.metaClService.removeMetaContactListListener(slowListener);
+            fixture.metaClService.removeMetaContactListListener(fastListener);
+
+            presOpSet.unsubscribe(contact);
+        }
+    }
+
+    /**
+     * Changes the presence status of a contact several times while a
+     * listener is blocked in the first reorder event this fires and verifies
+     * that the listener then gets the following reorder events as a single
+     * one.
+     *
+     * @throws Exception if we are interrupted while waiting for events
+     */
+    public void testReorderEventsCoalesced()
+        throws Exception
+    {
+        // sorted first while online, as it is once added, and last while
+        // offline
+        MockContact contact = subscribe("AaaDispatchedReorderedContact");
+        MetaContactGroup parentGroup = fixture.metaClService
+            .findMetaContactByContact(contact).getParentMetaContactGroup();
+
+        EventRecorder slowListener = new EventRecorder(true);
+        EventRecorder fastListener = new EventRecorder(false);
+
+        fixture.metaClService.addMetaContactListListener(slowListener);
+        fixture.metaClService.addMetaContactListListener(fastListener);
+        try
+        {
+            presOpSet.changePresenceStatusForContact(
+                contact, MockStatusEnum.MOCK_STATUS_00);
+            slowListener.waitUntilBlocked();
+
+            for (int i = 1; i < STATUS_CHANGE_COUNT; i++)
+            {
+                presOpSet.changePresenceStatusForContact(
+                    contact,
+                    (i % 2 == 0)
+                        ? MockStatusEnum.MOCK_STATUS_00
+                        : MockStatusEnum.MOCK_STATUS_100);
+            }
+
+            slowListener.release();
+
+            List<MetaContactGroupEvent> reorders
+                = slowListener.waitForReorders(2);
+
+            // let a wrongly queued third event arrive
+            Thread.sleep(500);
+
+            assertEquals("The reorder events queued for the blocked listener "
+                    + "were not coalesced"
+                , 2, slowListener.countEvents());
+            for (MetaContactGroupEvent evt : reorders)
+            {
+                assertSame("A reorder event came from a wrong group"
+                    , parentGroup, evt.getSourceMetaContactGroup());
+            }
+
+            assertTrue("The other listener got no reorder event"
+                , fastListener.waitForReorders(1).size() >= 1);
+        }
+        finally
+        {
+            slowListener.release();
+            fixture.metaClService.removeMetaContactListListener(slowListener);
+            fixture.metaClService.removeMetaContactListListener(fastListener);
+
+            presOpSet.unsubscribe(contact);
+        }
+    }
+
+    /**
+     * Restarts the meta contact list bundle with synchronous event dispatch
+     * again.
+     *
+     * @throws Exception if restarting the bundle fails
+     */
+    public void testDisableAsynchronousDispatch()
+        throws Exception
+    {
+        Bundle metaClBundle = stopMetaClBundle();
+
+        getConfigurationService().removeProperty(
+            ASYNC_EVENT_DISPATCH_PROPERTY);
+
+        startMetaClBundle(metaClBundle);
+    }
+
+    /**
+     * Subscribes to a new contact of the mock provider, which the meta
+     * contact list adds to its root group.
+     *
+     * @param contactID the identifier of the new contact
+     * @return the new contact
+     * @throws Exception if subscribing fails
+     */
+    private MockContact subscribe(String contactID)
+        throws Exception
+    {
+        presOpSet.subscribe(contactID);
+
+        MockContact contact = (MockContact)
+            presOpSet.findContactByID(contactID);
+
+        assertNotNull("The meta contact list was not updated after adding "
+                      + "contact " + contact + " to the mock provider."
+                      , fixture.metaClService.findMetaContactByContact(contact));
+
+        return contact;
+    }
+
+    /**
+     * Returns the configuration service the meta contact list reads its
+     * properties from.
+     *
+     * @return the configuration service
+     */
+    private static ConfigurationService getConfigurationService()
+    {
+        ServiceReference ref = MclSlickFixture.bundleContext
+            .getServiceReference(ConfigurationService.class.getName());
+
+        assertNotNull("No configuration service", ref);
+
+        return (ConfigurationService)
+            MclSlickFixture.bundleContext.getService(ref);
+    }
+
+    /**
+     * Stops the meta contact list bundle.
+     *
+     * @return the stopped bundle
+     * @throws Exception if stopping the bundle fails
+     */
+    private Bundle stopMetaClBundle()
+        throws Exception
+    {
+        Bundle metaClBundle = findMetaClBundle();
+
+        assertNotNull("Couldn't find the bundle that exports the meta "
+                      + "contact list servce implementation that we're "
+                      + "currently testing"
+                      , metaClBundle);
+
+        metaClBundle.stop();
+
+        assertTrue("Couldn't stop the meta cl bundle. State was "
+                   + metaClBundle.getState()
+                   ,    Bundle.ACTIVE   != metaClBundle.getState()
+                     && Bundle.STOPPING != metaClBundle.getState());
+
+        return metaClBundle;
+    }
+
+    /**
+     * Starts the meta contact list bundle again and updates the fixture with
+     * the new service.
+     *
+     * @param metaClBundle the stopped meta contact list bundle
+     * @throws Exception if starting the bundle fails
+     */
+    private void startMetaClBundle(Bundle metaClBundle)
+        throws Exception
+    {
+        metaClBundle.start();
+        assertEquals("Couldn't re-start meta cl bundle."
+                     , Bundle.ACTIVE, metaClBundle.getState());
+
+        fixture.metaClService
+            = (MetaContactListService)
+                MclSlickFixture.bundleContext.getService(
+                        MclSlickFixture.bundleContext.getServiceReference(
+                                MetaContactListService.class.getName()));
+
+        assertNotNull("The meta contact list service was not re-registered "
+                      +"after restarting its bundle."
+                      , fixture.metaClService);
+    }
+
+    /**
+     * Returns the bundle that has registered the meta contact list service
+     * implementation that we're currently testing.
+     *
+     * @return the Bundle that has registered the meta contact list service
+     * we're using in the slick.
+     */
+    private Bundle findMetaClBundle()
+    {
+        Bundle[] bundles = MclSlickFixture.bundleContext.getBundles();
+
+        for (int i = 0; i < bundles.length; i++)
+        {
+            ServiceReference[] registeredServices
+                = bundles[i].getRegisteredServices();
+
+            if(registeredServices == null)
+                continue;
+
+            for (int j = 0; j < registeredServices.length; j++)
+            {
+                Object service
+                    = MclSlickFixture.bundleContext.getService(
+                            registeredServices[j]);
+                if(service == fixture.metaClService)
+                    return bundles[i];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Records the rename and reorder events it gets, optionally blocking in
+     * the first one until released.
+     */
+    private static class EventRecorder
+        extends MetaContactListAdapter
+    {
+        /**
+         * The recorded events.
+         */
+        private final List<EventObject> events = new ArrayList<EventObject>();
+
+        /**
+         * Whether the first event blocks until {@link #release()} is
+         * called.
+         */
+        private boolean blocking;
+
+        /**
+         * Whether a thread is blocked in the first event.
+         */
+        private boolean blocked = false;
+
+        /**
+         * Creates a recorder.
+         *
+         * @param blocking <tt>true</tt> to block in the first event until
+         * {@link #release()} is called
+         */
+        EventRecorder(boolean blocking)
+        {
+            this.blocking = blocking;
+        }
+
+        @Override
+        public void metaContactRenamed(MetaContactRenamedEvent evt)
+        {
+            record(evt);
+        }
+
+        @Override
+        public void childContactsReordered(MetaContactGroupEvent evt)
+        {
+            record(evt);
+        }
+
+        /**
+         * Records an event and blocks if it is the first one of a blocking
+         * recorder.
+         *
+         * @param evt the event
+         */
+        private synchronized void record(EventObject evt)
+        {
+            events.add(evt);
+            notifyAll();
+
+            long deadline = System.currentTimeMillis() + EVENT_TIMEOUT;
+
+            blocked = blocking;
+            while (blocking)
+            {
+                long timeout = deadline - System.currentTimeMillis();
+
+                if (timeout <= 0)
+                    break;
+                try
+                {
+                    wait(timeout);
+                }
+                catch (InterruptedException ex)
+                {
+                    break;
+                }
+            }
+            blocking = false;
+            blocked = false;
+        }
+
+        /**
+         * Unblocks the thread blocked in the first event, or lets the first
+         * event through if it did not arrive yet.
+         */
+        synchronized void release()
+        {
+            blocking = false;
+            notifyAll();
+        }
+
+        /**
+         * Returns the number of recorded events.
+         *
+         * @return the number of recorded events
+         */
+        synchronized int countEvents()
+        {
+            return events.size();
+        }
+
+        /**
+         * Waits until a thread is blocked in the first event.
+         */
+        synchronized void waitUntilBlocked()
+        {
+            waitFor(1);
+            assertTrue("The listener was not blocked in its first event"
+                , blocked);
+        }
+
+        /**
+         * Waits for <tt>count</tt> rename events and returns the new names
+         * they carry.
+         *
+         * @param count the number of rename events to wait for
+         * @return the new names of the recorded rename events
+         */
+        synchronized List<String> waitForRenames(int count)
+        {
+            List<String> names = new ArrayList<String>();
+            long deadline = System.currentTimeMillis() + EVENT_TIMEOUT;
+
+            while (true)
+            {
+                names.clear();
+                for (EventObject evt : events)
+                {
+                    if (evt instanceof MetaContactRenamedEvent)
+                    {
+                        names.add(((MetaContactRenamedEvent) evt)
+                            .getNewDisplayName());
+                    }
+                }
+                if (names.size() >= count || !waitUntil(deadline))
+                    return names;
+            }
+        }
+
+        /**
+         * Waits for <tt>count</tt> reorder events and returns them.
+         *
+         * @param count the number of reorder events to wait for
+         * @return the recorded reorder events
+         */
+        synchronized List<MetaContactGroupEvent> waitForReorders(int count)
+        {
+            List<MetaContactGroupEvent> reorders
+                = new ArrayList<MetaContactGroupEvent>();
+            long deadline = System.currentTimeMillis() + EVENT_TIMEOUT;
+
+            while (true)
+            {
+                reorders.clear();
+                for (EventObject evt : events)
+                {
+                    if (evt instanceof MetaContactGroupEvent)
+                        reorders.add((MetaContactGroupEvent) evt);
+                }
+                if (reorders.size() >= count || !waitUntil(deadline))
+                    return reorders;
+            }
+        }
+
+        /**
+         * Waits until at least <tt>count</tt> events are recorded.
+         *
+         * @param count the number of events to wait for
+         */
+        private void waitFor(int count)
+        {
+            long deadline = System.currentTimeMillis() + EVENT_TIMEOUT;
+
+            while (events.size() < count && waitUntil(deadline));
+        }
+
+        /**
+         * Waits for a new event until <tt>deadline</tt>.
+         *
+         * @param deadline the time in milliseconds to wait until
+         * @return <tt>false</tt> if the deadline has passed
+         */
+        private boolean waitUntil(long deadline)
+        {
+            long timeout = deadline - System.currentTimeMillis();
+
+            if (timeout <= 0)
+                return false;
+            try
+            {
+                wait(timeout);
+            }
+            catch (InterruptedException ex)
+            {
+                return false;
+            }
+            return true;
+        }
+    }
+}
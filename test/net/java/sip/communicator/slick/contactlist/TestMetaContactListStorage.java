@@ -0,0 +1,492 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.contactlist;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.fileaccess.*;
+import org.osgi.framework.*;
+
+/**
+ * Tests in this class verify that the meta contact list recovers what it can
+ * from its storage files when the meta contact list bundle is restarted
+ * after a crash left them damaged.
+ */
+public class TestMetaContactListStorage extends TestCase
+{
+    /**
+     * The name of the property holding the name of the contact list file.
+     */
+    private static final String FILE_NAME_PROPERTY
+        = "net.java.sip.communicator.CONTACTLIST_FILE_NAME";
+
+    /**
+     * The extension of the journal of the contact list file.
+     */
+    private static final String JOURNAL_EXTENSION = ".log";
+
+    /**
+     * The extension of the binary snapshot of the contact list file.
+     */
+    private static final String SNAPSHOT_EXTENSION = ".bin";
+
+    /**
+     * The operation of a journal entry putting an element into the list.
+     */
+    private static final byte PUT = 1;
+
+    /**
+     * A reference to the SLICK fixture.
+     */
+    private MclSlickFixture fixture = new MclSlickFixture(getClass().getName());
+
+    public TestMetaContactListStorage(String name)
+    {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        fixture.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        fixture.tearDown();
+
+        fixture = null;
+        super.tearDown();
+    }
+
+    /**
+     * Returns tests in this class in the order that they are supposed to be
+     * executed.
+     * @return a Test suite containing tests in this class in the order they are
+     * to be executed.
+     */
+    public static Test suite()
+    {
+        TestSuite suite = new TestSuite();
+
+        suite.addTest(new TestMetaContactListStorage(
+            "testReplayJournalWithTornTail"));
+        suite.addTest(new TestMetaContactListStorage(
+            "testReplayJournalWithCorruptEntry"));
+        suite.addTest(new TestMetaContactListStorage(
+            "testLoadWithoutSnapshot"));
+        suite.addTest(new TestMetaContactListStorage(
+            "testLoadWithStaleSnapshot"));
+        suite.addTest(new TestMetaContactListStorage(
+            "testPurgeLocalContactListCopy"));
+
+        return suite;
+    }
+
+    /**
+     * Leaves a journal ending with an entry torn by a crash next to the
+     * contact list file and verifies that the entries before the torn one
+     * are replayed when the meta contact list bundle starts again.
+     *
+     * @throws Exception if restarting the bundle or writing the journal
+     * fails.
+     */
+    public void testReplayJournalWithTornTail()
+        throws Exception
+    {
+        // previous tests may have purged the contact list file, have it
+        // written again
+        startMetaClBundle(stopMetaClBundle());
+
+        String rootUID = fixture.metaClService.getRoot().getMetaUID();
+
+        Bundle metaClBundle = stopMetaClBundle();
+
+        File journalFile = getContactListFile(JOURNAL_EXTENSION);
+        byte[] torn = createGroupEntry(rootUID, "TornEntryGroup");
+
+        JournalFile.append(journalFile, Arrays.asList(
+            createGroupEntry(rootUID, "ReplayedGroup1"),
+            createGroupEntry(rootUID, "ReplayedGroup2")));
+        appendFrame(journalFile, torn, torn.length / 2, false);
+
+        startMetaClBundle(metaClBundle);
+
+        MetaContactGroup root = fixture.metaClService.getRoot();
+
+        assertNotNull("An entry before the torn one was not replayed",
+            root.getMetaContactSubgroup("ReplayedGroup1"));
+        assertNotNull("An entry before the torn one was not replayed",
+            root.getMetaContactSubgroup("ReplayedGroup2"));
+        assertNull("The torn entry was replayed",
+            root.getMetaContactSubgroup("TornEntryGroup"));
+    }
+
+    /**
+     * Leaves a journal with an entry whose checksum does not match its
+     * content next to the contact list file and verifies that neither this
+     * entry nor the ones after it are replayed when the meta contact list
+     * bundle starts again.
+     *
+     * @throws Exception if restarting the bundle or writing the journal
+     * fails.
+     */
+    public void testReplayJournalWithCorruptEntry()
+        throws Exception
+    {
+        String rootUID = fixture.metaClService.getRoot().getMetaUID();
+
+        Bundle metaClBundle = stopMetaClBundle();
+
+        File journalFile = getContactListFile(JOURNAL_EXTENSION);
+        byte[] corrupt = createGroupEntry(rootUID, "CorruptEntryGroup");
+
+        JournalFile.append(journalFile, Arrays.asList(
+            createGroupEntry(rootUID, "ReplayedGroup3")));
+        appendFrame(journalFile, corrupt, corrupt.length, true);
+        JournalFile.append(journalFile, Arrays.asList(
+            createGroupEntry(rootUID, "UnreachableEntryGroup")));
+
+        startMetaClBundle(metaClBundle);
+
+        MetaContactGroup root = fixture.metaClService.getRoot();
+
+        assertNotNull("An entry before the corrupt one was not replayed",
+            root.getMetaContactSubgroup("ReplayedGroup3"));
+        assertNull("The corrupt entry was replayed",
+            root.getMetaContactSubgroup("CorruptEntryGroup"));
+        assertNull("An entry after the corrupt one was replayed",
+            root.getMetaContactSubgroup("UnreachableEntryGroup"));
+
+        // the groups replayed by the previous test have been checkpointed
+        assertNotNull("A replayed entry was lost after a restart",
+            root.getMetaContactSubgroup("ReplayedGroup1"));
+    }
+
+    /**
+     * Removes the binary snapshot written next to the contact list file when
+     * the meta contact list bundle stops and verifies that the contact list
+     * is loaded from the XML file when the bundle starts again.
+     *
+     * @throws Exception if restarting the bundle fails.
+     */
+    public void testLoadWithoutSnapshot()
+        throws Exception
+    {
+        String expected = describeGroup(fixture.metaClService.getRoot());
+
+        Bundle metaClBundle = stopMetaClBundle();
+
+        File snapshotFile = getContactListFile(SNAPSHOT_EXTENSION);
+
+        assertTrue("No snapshot was written when the bundle stopped",
+            snapshotFile.exists());
+        assertTrue("Couldn't remove the snapshot", snapshotFile.delete());
+
+        startMetaClBundle(metaClBundle);
+
+        assertEquals("The contact list changed when loaded from XML",
+            expected, describeGroup(fixture.metaClService.getRoot()));
+    }
+
+    /**
+     * Changes the contact list file after the meta contact list bundle wrote
+     * it with its binary snapshot and verifies that the snapshot, which no
+     * longer matches the file, is ignored when the bundle starts again.
+     *
+     * @throws Exception if restarting the bundle or changing the file fails.
+     */
+    public void testLoadWithStaleSnapshot()
+        throws Exception
+    {
+        Bundle metaClBundle = stopMetaClBundle();
+
+        File contactlistFile = getContactListFile("");
+
+        assertTrue("No snapshot was written when the bundle stopped",
+            getContactListFile(SNAPSHOT_EXTENSION).exists());
+
+        String xml = readFile(contactlistFile);
+        String groupName = "name=\"ReplayedGroup3\"";
+
+        assertTrue("The contact list file lacks a group",
+            xml.indexOf(groupName) != -1);
+        writeFile(contactlistFile,
+            xml.replace(groupName, "name=\"ChangedInXmlGroup\""));
+
+        startMetaClBundle(metaClBundle);
+
+        MetaContactGroup root = fixture.metaClService.getRoot();
+
+        assertNotNull("The change made to the XML file was not loaded",
+            root.getMetaContactSubgroup("ChangedInXmlGroup"));
+        assertNull("The stale snapshot was loaded",
+            root.getMetaContactSubgroup("ReplayedGroup3"));
+    }
+
+    /**
+     * Removes the locally stored contact list copy. The purpose of this is to
+     * leave the local list empty for a next round of testing.
+     */
+    public void testPurgeLocalContactListCopy()
+    {
+        fixture.metaClService.purgeLocallyStoredContactListCopy();
+    }
+
+    /**
+     * Creates the payload of a journal entry putting an empty meta contact
+     * group without protocol groups into the group with uid
+     * <tt>parentUID</tt>.
+     *
+     * @param parentUID the uid of the parent meta contact group
+     * @param groupName the name of the new group, also used as its uid
+     * @return the payload of the journal entry
+     * @throws IOException if serializing the entry fails
+     */
+    private static byte[] createGroupEntry(String parentUID, String groupName)
+        throws IOException
+    {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+
+        payloadOut.writeByte(PUT);
+        JournalFile.writeString(payloadOut, "group");
+        JournalFile.writeString(payloadOut, groupName);
+        JournalFile.writeString(payloadOut, parentUID);
+        JournalFile.writeString(payloadOut,
+            "<group name=\"" + groupName + "\" uid=\"" + groupName + "\">"
+                + "<proto-groups/><subgroups/><child-contacts/></group>");
+        payloadOut.flush();
+
+        return payload.toByteArray();
+    }
+
+    /**
+     * Appends a frame which <tt>JournalFile</tt> does not accept to
+     * <tt>journalFile</tt>, as a crash or a damaged disk would leave it.
+     *
+     * @param journalFile the journal file
+     * @param payload the payload of the frame
+     * @param length the number of bytes of the payload actually written
+     * @param badChecksum whether the checksum of the frame does not match
+     * its payload
+     * @throws IOException if writing the journal fails
+     */
+    private static void appendFrame(File journalFile,
+                                    byte[] payload,
+                                    int length,
+                                    boolean badChecksum)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        DataOutputStream out
+            = new DataOutputStream(new FileOutputStream(journalFile, true));
+        try
+        {
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue() + (badChecksum ? 1 : 0));
+            out.write(payload, 0, length);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Describes the names of the subgroups and meta contacts of
+     * <tt>group</tt> and of its subgroups, so that the description of two
+     * groups with the same content is the same.
+     *
+     * @param group the meta contact group to describe
+     * @return the description of <tt>group</tt>
+     */
+    private static String describeGroup(MetaContactGroup group)
+    {
+        SortedSet<String> children = new TreeSet<String>();
+
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while (contacts.hasNext())
+        {
+            MetaContact contact = contacts.next();
+
+            children.add(contact.getDisplayName() + "("
+                + contact.getContactCount() + ")");
+        }
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            children.add(describeGroup(subgroups.next()));
+
+        return group.getGroupName() + children;
+    }
+
+    /**
+     * Reads the content of a UTF-8 text file.
+     *
+     * @param file the file to read
+     * @return the content of <tt>file</tt>
+     * @throws IOException if reading fails
+     */
+    private static String readFile(File file)
+        throws IOException
+    {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            in.readFully(bytes);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Replaces the content of a UTF-8 text file.
+     *
+     * @param file the file to write
+     * @param content the new content of <tt>file</tt>
+     * @throws IOException if writing fails
+     */
+    private static void writeFile(File file, String content)
+        throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(content.getBytes("UTF-8"));
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the file with extension <tt>extension</tt> stored next to the
+     * contact list file.
+     *
+     * @param extension the extension appended to the name of the contact
+     * list file
+     * @return the file stored next to the contact list file
+     * @throws Exception if the file access service fails
+     */
+    private static File getContactListFile(String extension)
+        throws Exception
+    {
+        String fileName = System.getProperty(FILE_NAME_PROPERTY);
+
+        if (fileName == null)
+            fileName = "contactlist.xml";
+
+        FileAccessService faService
+            = (FileAccessService) MclSlickFixture.bundleContext.getService(
+                    MclSlickFixture.bundleContext.getServiceReference(
+                            FileAccessService.class.getName()));
+
+        return faService.getPrivatePersistentFile(fileName + extension);
+    }
+
+    /**
+     * Stops the meta contact list bundle, which writes the whole contact
+     * list to its file.
+     *
+     * @return the stopped bundle
+     * @throws Exception if stopping the bundle fails
+     */
+    private Bundle stopMetaClBundle()
+        throws Exception
+    {
+        Bundle metaClBundle = findMetaClBundle();
+
+        assertNotNull("Couldn't find the bundle that exports the meta "
+                      + "contact list servce implementation that we're "
+                      + "currently testing"
+                      , metaClBundle);
+
+        metaClBundle.stop();
+
+        assertTrue("Couldn't stop the meta cl bundle. State was "
+                   + metaClBundle.getState()
+                   ,    Bundle.ACTIVE   != metaClBundle.getState()
+                     && Bundle.STOPPING != metaClBundle.getState());
+
+        return metaClBundle;
+    }
+
+    /**
+     * Starts the meta contact list bundle again, which loads the contact
+     * list from its files, and updates the fixture with the new service.
+     *
+     * @param metaClBundle the stopped meta contact list bundle
+     * @throws Exception if starting the bundle fails
+     */
+    private void startMetaClBundle(Bundle metaClBundle)
+        throws Exception
+    {
+        metaClBundle.start();
+        assertEquals("Couldn't re-start meta cl bundle."
+                     , Bundle.ACTIVE, metaClBundle.getState());
+
+        fixture.metaClService
+            = (MetaContactListService)
+                MclSlickFixture.bundleContext.getService(
+                        MclSlickFixture.bundleContext.getServiceReference(
+                                MetaContactListService.class.getName()));
+
+        assertNotNull("The meta contact list service was not re-registered "
+                      +"after restarting its bundle."
+                      , fixture.metaClService);
+    }
+
+    /**
+     * Returns the bundle that has registered the meta contact list service
+     * implementation that we're currently testing.
+     *
+     * @return the Bundle that has registered the meta contact list service
+     * we're using in the slick.
+     */
+    private Bundle findMetaClBundle()
+    {
+        Bundle[] bundles = MclSlickFixture.bundleContext.getBundles();
+
+        for (int i = 0; i < bundles.length; i++)
+        {
+            ServiceReference[] registeredServices
+                = bundles[i].getRegisteredServices();
+
+            if(registeredServices == null)
+                continue;
+
+            for (int j = 0; j < registeredServices.length; j++)
+            {
+                Object service
+                    = MclSlickFixture.bundleContext.getService(
+                            registeredServices[j]);
+                if(service == fixture.metaClService)
+                    return bundles[i];
+            }
+        }
+
+        return null;
+    }
+}
@@ -41,6 +41,7 @@ public class HistoryServiceLick extends TestSuite implements BundleActivator {
         properties.put("service.pid", getName());
 
         addTest(TestHistoryService.suite());
+        addTestSuite(TestParallelHistoryQuery.class);
         bundleContext.registerService(getClass().getName(), this, properties);
 
         logger.debug("Successfully registered " + getClass().getName());
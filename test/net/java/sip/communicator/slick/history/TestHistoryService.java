@@ -6,12 +6,19 @@
  */
 package net.java.sip.communicator.slick.history;
 
+import java.io.*;
+import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import junit.framework.*;
 import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
 
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.osgi.framework.*;
 
 public class TestHistoryService extends TestCase {
@@ -19,6 +26,103 @@ public class TestHistoryService extends TestCase {
     private static HistoryRecordStructure recordStructure =
         new HistoryRecordStructure(new String[] { "age", "name_CDATA", "sex" });
 
+    /**
+     * The prefix of the configuration properties of the history service
+     * implementation, which are read when its bundle starts.
+     */
+    private static final String PROPERTY_PREFIX
+        = "net.java.sip.communicator.impl.history.";
+
+    /**
+     * The property enabling the append-only storage mode.
+     */
+    private static final String APPEND_ONLY_ENABLED_PROPERTY
+        = PROPERTY_PREFIX + "APPEND_ONLY_ENABLED";
+
+    /**
+     * The property holding the number of records journaled between two
+     * writes of a history file in the append-only mode.
+     */
+    private static final String CHECKPOINT_INTERVAL_PROPERTY
+        = PROPERTY_PREFIX + "CHECKPOINT_INTERVAL";
+
+    /**
+     * The property enabling the write-behind mode, which writes the added
+     * records in the background.
+     */
+    private static final String WRITE_BEHIND_ENABLED_PROPERTY
+        = PROPERTY_PREFIX + "WRITE_BEHIND_ENABLED";
+
+    /**
+     * The property holding the maximum time in milliseconds an added record
+     * waits before being written in the write-behind mode.
+     */
+    private static final String WRITE_BEHIND_MAX_LATENCY_PROPERTY
+        = PROPERTY_PREFIX + "WRITE_BEHIND_MAX_LATENCY";
+
+    /**
+     * The property enabling the compaction of the histories in the
+     * background.
+     */
+    private static final String COMPACTION_ENABLED_PROPERTY
+        = PROPERTY_PREFIX + "COMPACTION_ENABLED";
+
+    /**
+     * The property holding the time in milliseconds the compaction waits
+     * after the history bundle has started.
+     */
+    private static final String COMPACTION_START_DELAY_PROPERTY
+        = PROPERTY_PREFIX + "COMPACTION_START_DELAY";
+
+    /**
+     * The property holding the age in days of the records of the files the
+     * compaction archives.
+     */
+    private static final String ARCHIVE_AGE_PROPERTY
+        = PROPERTY_PREFIX + "ARCHIVE_AGE";
+
+    /**
+     * The property holding the maximum estimated size in bytes of the parsed
+     * history documents kept in memory when caching is enabled.
+     */
+    private static final String CACHE_MAX_SIZE_PROPERTY
+        = PROPERTY_PREFIX + "CACHE_MAX_SIZE";
+
+    /**
+     * The directory the history service stores the histories in.
+     */
+    private static final String DATA_DIRECTORY = "history_ver1.0";
+
+    /**
+     * The extension of the journal of a history file.
+     */
+    private static final String JOURNAL_EXTENSION = ".log";
+
+    /**
+     * The extension of the history files.
+     */
+    private static final String FILE_EXTENSION = ".xml";
+
+    /**
+     * The extension of the archived history files.
+     */
+    private static final String ARCHIVE_EXTENSION = ".gz";
+
+    /**
+     * The index of the timestamps of the records of every history file.
+     */
+    private static final String FILE_INDEX = "fileindex.dat";
+
+    /**
+     * The index of the property values of every history file.
+     */
+    private static final String KEYWORD_INDEX = "keywordindex.dat";
+
+    /**
+     * One day in milliseconds.
+     */
+    private static final long ONE_DAY = 24 * 60 * 60 * 1000L;
+
     /**
      * The ConfigurationService that we will be testing.
      */
@@ -28,6 +132,12 @@ public class TestHistoryService extends TestCase {
 
     private History history = null;
 
+    /**
+     * The history bundle while it is stopped by a test, so that the test can
+     * start it again whatever the failure.
+     */
+    private Bundle stoppedHistoryBundle = null;
+
     private Random random = new Random();
 
     public TestHistoryService(String name)
@@ -42,6 +152,31 @@ public class TestHistoryService extends TestCase {
         suite.addTest(new TestHistoryService("testCreateDB"));
         suite.addTest(new TestHistoryService("testWriteRecords"));
         suite.addTest(new TestHistoryService("testReadRecords"));
+        suite.addTest(new TestHistoryService("testUpdateRecords"));
+        suite.addTest(new TestHistoryService("testCountRecords"));
+        suite.addTest(
+            new TestHistoryService("testConcurrentAppendAndRead"));
+        suite.addTest(
+            new TestHistoryService("testUpdateRecordsWhileAppending"));
+        suite.addTest(
+            new TestHistoryService("testReplayJournalAfterCrash"));
+        suite.addTest(
+            new TestHistoryService("testFileIndexInvalidation"));
+        suite.addTest(
+            new TestHistoryService("testFileIndexUnwrittenRecord"));
+        suite.addTest(
+            new TestHistoryService("testKeywordIndexInvalidation"));
+        suite.addTest(new TestHistoryService("testDocumentCache"));
+        suite.addTest(new TestHistoryService("testWriteBehind"));
+        suite.addTest(new TestHistoryService("testWriteBehindRetry"));
+        suite.addTest(
+            new TestHistoryService("testCheckpointFailureOnRollover"));
+        suite.addTest(new TestHistoryService("testInteractiveSearch"));
+        suite.addTest(
+            new TestHistoryService("testCancelInteractiveSearch"));
+        suite.addTest(
+            new TestHistoryService("testBrowseQueryResultBothWays"));
+        suite.addTest(new TestHistoryService("testCompactAndArchive"));
         suite.addTest(new TestHistoryService("testPurgeLocallyStoredHistory"));
 
         return suite;
@@ -181,16 +316,1617 @@ public class TestHistoryService extends TestCase {
         }
     }
 
-    public void testPurgeLocallyStoredHistory()
+    /**
+     * Updates records of the first and of the last file of the history by
+     * their name and checks that only these records have changed.
+     */
+    public void testUpdateRecords()
+        throws Exception
+    {
+        HistoryWriter writer = this.history.getWriter();
+
+        writer.updateRecord("name", "name3", "sex", "x");
+        writer.updateRecord("name", "name201", "sex", "y");
+        // unknown names are ignored
+        writer.updateRecord("name", "nobody", "sex", "z");
+
+        QueryResultSet<HistoryRecord> result
+            = this.history.getReader().findByKeyword("name", "name");
+        int count = 0;
+
+        while (result.hasNext())
+        {
+            String[] vals = result.nextRecord().getPropertyValues();
+            String expected;
+
+            if ("name3".equals(vals[1]))
+                expected = "x";
+            else if ("name201".equals(vals[1]))
+                expected = "y";
+            else
+            {
+                int n = Integer.parseInt(vals[1].substring(4));
+
+                expected = (n % 2 == 0) ? "m" : "f";
+            }
+
+            assertEquals(vals[1], expected, vals[2]);
+            count++;
+        }
+
+        assertEquals(202, count);
+    }
+
+    /**
+     * Checks that the records of a history spanning several files are
+     * counted exactly, also after new records are added.
+     */
+    public void testCountRecords()
+        throws Exception
+    {
+        HistoryReader reader = this.history.getReader();
+
+        assertEquals(202, reader.countRecords());
+
+        this.history.getWriter().addRecord(
+            new String[] { "" + random.nextInt(), "name202", "m" });
+
+        assertEquals(203, reader.countRecords());
+    }
+
+    /**
+     * Appends records to a history while several threads query it and checks
+     * that every query sees all the records added before it, in order and
+     * without gaps, and never fewer records than its previous query.
+     */
+    public void testConcurrentAppendAndRead()
+        throws Exception
+    {
+        final int recordCount = 600;
+        final int readerCount = 4;
+        final long start = System.currentTimeMillis();
+        final List<Throwable> errors
+            = Collections.synchronizedList(new ArrayList<Throwable>());
+        final boolean[] writing = new boolean[] { true };
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "concurrent" });
+        if (this.historyService.isHistoryExisting(id))
+            this.historyService.purgeLocallyStoredHistory(id);
+        final History history
+            = this.historyService.createHistory(id, recordStructure);
+
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for (int i = 0; i < recordCount; i++)
+                    {
+                        history.getWriter().addRecord(
+                            new String[] { "" + i,
+                                           "name" + i,
+                                           i % 2 == 0 ? "m" : "f" },
+                            new Date(start + i));
+                    }
+                }
+                catch (Throwable t)
+                {
+                    errors.add(t);
+                }
+                finally
+                {
+                    synchronized (writing)
+                    {
+                        writing[0] = false;
+                    }
+                }
+            }
+        };
+
+        Thread[] readers = new Thread[readerCount];
+        for (int r = 0; r < readerCount; r++)
+        {
+            readers[r] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    HistoryReader reader = history.getReader();
+                    int lastCount = 0;
+                    int lastAge = -1;
+
+                    try
+                    {
+                        while (true)
+                        {
+                            boolean done;
+                            synchronized (writing)
+                            {
+                                done = !writing[0];
+                            }
+
+                            int count = checkSequence(reader.findByPeriod(
+                                new Date(start),
+                                new Date(start + recordCount)), 0);
+                            assertTrue("Records lost: " + count + " after "
+                                + lastCount, count >= lastCount);
+                            lastCount = count;
+
+                            QueryResultSet<HistoryRecord> last
+                                = reader.findLast(10);
+                            if (last.hasNext())
+                            {
+                                int first = Integer.parseInt(
+                                    last.nextRecord().getPropertyValues()[0]);
+                                int age = first + checkSequence(last, first + 1);
+                                assertTrue("Last records went back from "
+                                    + lastAge + " to " + age, age >= lastAge);
+                                lastAge = age;
+                            }
+
+                            if (done)
+                                break;
+                        }
+
+                        assertEquals(recordCount, lastCount);
+                    }
+                    catch (Throwable t)
+                    {
+                        errors.add(t);
+                    }
+                }
+            };
+        }
+
+        writer.start();
+        for (Thread reader : readers)
+            reader.start();
+
+        writer.join();
+        for (Thread reader : readers)
+            reader.join();
+
+        this.historyService.purgeLocallyStoredHistory(id);
+
+        if (!errors.isEmpty())
+        {
+            Throwable t = errors.get(0);
+            AssertionFailedError e = new AssertionFailedError(
+                errors.size() + " errors, first: " + t);
+
+            e.initCause(t);
+            throw e;
+        }
+    }
+
+    /**
+     * Updates records of the file records are being appended to while
+     * another thread appends records and checks that no appended record is
+     * lost and that every update is kept.
+     */
+    public void testUpdateRecordsWhileAppending()
+        throws Exception
+    {
+        final int recordCount = 400;
+        final long start = System.currentTimeMillis();
+        final List<Throwable> errors
+            = Collections.synchronizedList(new ArrayList<Throwable>());
+        // the number of records written so far
+        final int[] written = new int[] { 0 };
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "updating" });
+        if (this.historyService.isHistoryExisting(id))
+            this.historyService.purgeLocallyStoredHistory(id);
+        final History history
+            = this.historyService.createHistory(id, recordStructure);
+
+        Thread writer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for (int i = 0; i < recordCount; i++)
+                    {
+                        history.getWriter().addRecord(
+                            new String[] { "" + i,
+                                           "name" + i,
+                                           i % 2 == 0 ? "m" : "f" },
+                            new Date(start + i));
+
+                        synchronized (written)
+                        {
+                            written[0] = i + 1;
+                        }
+                    }
+                }
+                catch (Throwable t)
+                {
+                    errors.add(t);
+                }
+            }
+        };
+
+        writer.start();
+
+        // update the last written record while the writer goes on, which is
+        // most of the time a record of the file the writer appends to
+        Set<Integer> updated = new HashSet<Integer>();
+        int lastUpdated = -1;
+        while (writer.isAlive())
+        {
+            int last;
+            synchronized (written)
+            {
+                last = written[0] - 1;
+            }
+
+            if (last > lastUpdated)
+            {
+                history.getWriter().updateRecord(
+                    "name", "name" + last, "sex", "u");
+                updated.add(last);
+                lastUpdated = last;
+            }
+            else
+                Thread.yield();
+        }
+        writer.join();
+
+        try
+        {
+            assertTrue("Writer failed: " + errors, errors.isEmpty());
+
+            QueryResultSet<HistoryRecord> result
+                = history.getReader().findByPeriod(
+                    new Date(start), new Date(start + recordCount));
+            int count = 0;
+
+            while (result.hasNext())
+            {
+                String[] vals = result.nextRecord().getPropertyValues();
+                int n = Integer.parseInt(vals[0]);
+
+                assertEquals("Records lost before " + n, count, n);
+                assertEquals(vals[1],
+                    updated.contains(n) ? "u" : (n % 2 == 0 ? "m" : "f"),
+                    vals[2]);
+                count++;
+            }
+
+            assertEquals(recordCount, count);
+        }
+        finally
+        {
+            this.historyService.purgeLocallyStoredHistory(id);
+        }
+    }
+
+    /**
+     * Appends records to a history in the append-only mode, then stops the
+     * history bundle, which leaves the records added since the last write of
+     * the history file in its journal as a crash would, and tears the last
+     * frame of the journal. Checks that the records of the journal are found
+     * once the bundle starts again, and that the history can be appended to.
+     */
+    public void testReplayJournalAfterCrash()
+        throws Exception
     {
+        final int recordCount = 200;
+        long start = System.currentTimeMillis();
+
+        setConfigProperty(APPEND_ONLY_ENABLED_PROPERTY, "true");
+        // keep all the records of the last file in its journal
+        setConfigProperty(CHECKPOINT_INTERVAL_PROPERTY, "1000");
+        restartHistoryBundle();
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "journal" });
         try
         {
-            this.historyService.purgeLocallyStoredHistory(this.history.getID());
+            History history = createEmptyHistory(id);
+
+            for (int i = 0; i < recordCount; i++)
+            {
+                history.getWriter().addRecord(
+                    new String[] { "" + i, "name" + i, "m" },
+                    new Date(start + i));
+            }
+
+            Bundle historyBundle = stopHistoryBundle();
+
+            List<File> journals = getFiles(id, JOURNAL_EXTENSION);
+            assertEquals("No journal was left by the stopped bundle",
+                1, journals.size());
+            assertTrue("The journal is empty", journals.get(0).length() > 0);
+
+            // a frame announcing more bytes than the crash let us write
+            DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(journals.get(0), true));
+            try
+            {
+                out.writeInt(100);
+                out.writeInt(0);
+                out.write(new byte[] { 1, 2, 3 });
+            }
+            finally
+            {
+                out.close();
+            }
+
+            startHistoryBundle(historyBundle);
+
+            history = this.historyService.getHistory(id);
+            assertEquals("Records of the journal were lost", recordCount,
+                checkSequence(history.getReader().findByPeriod(
+                    new Date(start), new Date(start + recordCount + 1)), 0));
+
+            history.getWriter().addRecord(
+                new String[] { "" + recordCount, "name" + recordCount, "m" },
+                new Date(start + recordCount));
+            restartHistoryBundle();
+
+            history = this.historyService.getHistory(id);
+            assertEquals("The record added after the replay was lost",
+                recordCount + 1,
+                checkSequence(history.getReader().findByPeriod(
+                    new Date(start), new Date(start + recordCount + 1)), 0));
         }
-        catch (Exception ex)
+        finally
         {
-            fail("Cannot delete local history with id " + this.history.getID()
-                 + " : " + ex.getMessage());
+            if (this.historyService.isHistoryExisting(id))
+                this.historyService.purgeLocallyStoredHistory(id);
+
+            removeConfigProperty(APPEND_ONLY_ENABLED_PROPERTY);
+            removeConfigProperty(CHECKPOINT_INTERVAL_PROPERTY);
+            restartHistoryBundle();
+        }
+    }
+
+    /**
+     * Changes a history file while the history bundle is stopped, first by
+     * writing a record into it and then by leaving a record in its journal,
+     * and checks that the stale entry saved in the file index does not hide
+     * the new record from the period queries and the record count.
+     */
+    public void testFileIndexInvalidation()
+        throws Exception
+    {
+        final int recordCount = 20;
+        long start = System.currentTimeMillis();
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "fileindex" });
+        try
+        {
+            History history = createEmptyHistory(id);
+
+            for (int i = 0; i < recordCount; i++)
+            {
+                history.getWriter().addRecord(
+                    new String[] { "" + i, "name" + i, "m" },
+                    new Date(start + i));
+            }
+            assertEquals(recordCount, history.getReader().countRecords());
+
+            Bundle historyBundle = stopHistoryBundle();
+            assertEquals("The file index was not saved",
+                1, getFiles(id, FILE_INDEX).size());
+
+            Date written = new Date(start + ONE_DAY);
+            appendToHistoryFile(id,
+                new String[] { "" + recordCount, "written", "f" }, written);
+            startHistoryBundle(historyBundle);
+
+            history = this.historyService.getHistory(id);
+            assertEquals("A record written into an indexed file was not found",
+                1,
+                checkSequence(history.getReader().findByPeriod(
+                    written, new Date(written.getTime() + 1)), recordCount));
+            assertEquals(recordCount + 1, history.getReader().countRecords());
+
+            historyBundle = stopHistoryBundle();
+
+            Date journaled = new Date(start + 2 * ONE_DAY);
+            appendToJournal(id, recordCount + 1,
+                new String[] { "" + (recordCount + 1), "journaled", "f" },
+                journaled);
+            setConfigProperty(APPEND_ONLY_ENABLED_PROPERTY, "true");
+            startHistoryBundle(historyBundle);
+
+            history = this.historyService.getHistory(id);
+            assertEquals("A journaled record of an indexed file was not found",
+                1,
+                checkSequence(history.getReader().findByPeriod(
+                    journaled, new Date(journaled.getTime() + 1)),
+                    recordCount + 1));
+            assertEquals(recordCount + 2, history.getReader().countRecords());
+        }
+        finally
+        {
+            if (this.historyService.isHistoryExisting(id))
+                this.historyService.purgeLocallyStoredHistory(id);
+
+            removeConfigProperty(APPEND_ONLY_ENABLED_PROPERTY);
+            restartHistoryBundle();
+        }
+    }
+
+    /**
+     * Makes the write of a record fail and stops the history bundle, which
+     * saves the file index without writing the record as a crash after the
+     * save would, and checks that the saved record count is the one of the
+     * history file and not the one of the document the record was added to.
+     */
+    public void testFileIndexUnwrittenRecord()
+        throws Exception
+    {
+        final int recordCount = 20;
+        long start = System.currentTimeMillis();
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "fileindexcount" });
+        File blocker = null;
+        try
+        {
+            History history = createEmptyHistory(id);
+
+            for (int i = 0; i < recordCount; i++)
+            {
+                history.getWriter().addRecord(
+                    new String[] { "" + i, "name" + i, "m" },
+                    new Date(start + i));
+            }
+
+            blocker = new File(getHistoryDirectory(id),
+                start + FILE_EXTENSION + ".tmp");
+            assertTrue("Could not create " + blocker, blocker.mkdir());
+
+            try
+            {
+                history.getWriter().addRecord(
+                    new String[] { "" + recordCount, "unwritten", "m" },
+                    new Date(start + recordCount));
+                fail("Writing a record did not fail");
+            }
+            catch (IOException e)
+            {
+            }
+            assertEquals(recordCount + 1, history.getReader().countRecords());
+
+            Bundle historyBundle = stopHistoryBundle();
+            assertTrue("Could not delete " + blocker, blocker.delete());
+            assertEquals(recordCount, countStoredRecords(id));
+            startHistoryBundle(historyBundle);
+
+            history = this.historyService.getHistory(id);
+            assertEquals("The saved count has a record which was not written",
+                recordCount, history.getReader().countRecords());
+            assertEquals(recordCount,
+                checkSequence(history.getReader().findByPeriod(
+                    new Date(start), new Date(start + recordCount + 1)), 0));
+        }
+        finally
+        {
+            if (blocker != null)
+                blocker.delete();
+            if (this.historyService.isHistoryExisting(id))
+                this.historyService.purgeLocallyStoredHistory(id);
+        }
+    }
+
+    /**
+     * Changes the files of two histories whose keyword index has an entry
+     * for them while the history bundle is stopped, writing a record into the
+     * file of the first one and leaving a record in the journal of the
+     * second one, and checks that the stale entries saved in their keyword
+     * indexes do not hide the new records from the keyword queries.
+     */
+    public void testKeywordIndexInvalidation()
+        throws Exception
+    {
+        final int recordCount = 20;
+        long start = System.currentTimeMillis();
+
+        HistoryID writtenID = HistoryID.createFromRawID(
+            new String[] { "test", "keywordindex", "written" });
+        HistoryID journaledID = HistoryID.createFromRawID(
+            new String[] { "test", "keywordindex", "journaled" });
+        try
+        {
+            for (HistoryID id : new HistoryID[] { writtenID, journaledID })
+            {
+                History history = createEmptyHistory(id);
+
+                for (int i = 0; i < recordCount; i++)
+                {
+                    history.getWriter().addRecord(
+                        new String[] { "" + i, "name" + i, "m" },
+                        new Date(start + i));
+                }
+
+                // the files of a search followed by a listener are indexed
+                HistorySearchProgressListener listener
+                    = new HistorySearchProgressListener()
+                    {
+                        public void progressChanged(ProgressEvent evt)
+                        {
+                        }
+                    };
+                history.getReader().addSearchProgressListener(listener);
+                assertEquals(0, checkSequence(history.getReader()
+                    .findByKeyword("zebra", "name"), 0));
+                history.getReader().removeSearchProgressListener(listener);
+            }
+
+            Bundle historyBundle = stopHistoryBundle();
+            assertEquals("The keyword index was not saved",
+                1, getFiles(writtenID, KEYWORD_INDEX).size());
+
+            appendToHistoryFile(writtenID,
+                new String[] { "" + recordCount, "zebra", "f" },
+                new Date(start + recordCount));
+            appendToJournal(journaledID, recordCount,
+                new String[] { "" + recordCount, "zebra", "f" },
+                new Date(start + recordCount));
+            setConfigProperty(APPEND_ONLY_ENABLED_PROPERTY, "true");
+            startHistoryBundle(historyBundle);
+
+            assertEquals("A record written into an indexed file was not found",
+                1,
+                checkSequence(this.historyService.getHistory(writtenID)
+                    .getReader().findByKeyword("zebra", "name"), recordCount));
+            assertEquals("A journaled record of an indexed file was not found",
+                1,
+                checkSequence(this.historyService.getHistory(journaledID)
+                    .getReader().findByKeyword("zebra", "name"), recordCount));
+        }
+        finally
+        {
+            for (HistoryID id : new HistoryID[] { writtenID, journaledID })
+            {
+                if (this.historyService.isHistoryExisting(id))
+                    this.historyService.purgeLocallyStoredHistory(id);
+            }
+
+            removeConfigProperty(APPEND_ONLY_ENABLED_PROPERTY);
+            restartHistoryBundle();
+        }
+    }
+
+    /**
+     * Enables the cache of the parsed history documents with room for about
+     * two of the three files of a history, reads the history twice and then
+     * updates and adds records. Checks that every read returns all the
+     * records with their current values.
+     */
+    public void testDocumentCache()
+        throws Exception
+    {
+        final int recordCount = 400;
+        long start = System.currentTimeMillis();
+
+        setConfigProperty(HistoryService.CACHE_ENABLED_PROPERTY, "true");
+        setConfigProperty(CACHE_MAX_SIZE_PROPERTY, "150000");
+        restartHistoryBundle();
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "cache" });
+        try
+        {
+            History history = createEmptyHistory(id);
+
+            for (int i = 0; i < recordCount; i++)
+            {
+                history.getWriter().addRecord(
+                    new String[] { "" + i, "name" + i, "m" },
+                    new Date(start + i));
+            }
+
+            // the second time partly from the cache
+            for (int i = 0; i < 2; i++)
+            {
+                assertEquals(recordCount,
+                    checkSequence(history.getReader().findByPeriod(
+                        new Date(start), new Date(start + recordCount)), 0));
+            }
+
+            history.getWriter().updateRecord("name", "name3", "sex", "x");
+            history.getWriter().updateRecord(
+                "name", "name" + (recordCount - 1), "sex", "y");
+            history.getWriter().addRecord(
+                new String[] { "" + recordCount, "name" + recordCount, "m" },
+                new Date(start + recordCount));
+
+            QueryResultSet<HistoryRecord> result
+                = history.getReader().findByPeriod(
+                    new Date(start), new Date(start + recordCount + 1));
+            int count = 0;
+
+            while (result.hasNext())
+            {
+                String[] vals = result.nextRecord().getPropertyValues();
+                String expected;
+
+                if (count == 3)
+                    expected = "x";
+                else if (count == recordCount - 1)
+                    expected = "y";
+                else
+                    expected = "m";
+
+                assertEquals("" + count, vals[0]);
+                assertEquals(vals[1], expected, vals[2]);
+                count++;
+            }
+            assertEquals(recordCount + 1, count);
+        }
+        finally
+        {
+            if (this.historyService.isHistoryExisting(id))
+                this.historyService.purgeLocallyStoredHistory(id);
+
+            removeConfigProperty(HistoryService.CACHE_ENABLED_PROPERTY);
+            removeConfigProperty(CACHE_MAX_SIZE_PROPERTY);
+            restartHistoryBundle();
+        }
+    }
+
+    /**
+     * Adds records in the write-behind mode with a latency longer than the
+     * test and checks that they are read before being written to disk, that
+     * stopping the history bundle writes all of them and that they are read
+     * from disk once the bundle starts again.
+     */
+    public void testWriteBehind()
+        throws Exception
+    {
+        final int recordCount = 200;
+        long start = System.currentTimeMillis();
+
+        setConfigProperty(WRITE_BEHIND_ENABLED_PROPERTY, "true");
+        setConfigProperty(WRITE_BEHIND_MAX_LATENCY_PROPERTY, "600000");
+        restartHistoryBundle();
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "writebehind" });
+        try
+        {
+            History history = createEmptyHistory(id);
+
+            for (int i = 0; i < recordCount; i++)
+            {
+                history.getWriter().addRecord(
+                    new String[] { "" + i, "name" + i, "m" },
+                    new Date(start + i));
+            }
+
+            assertEquals("Records waiting to be written were not read",
+                recordCount,
+                checkSequence(history.getReader().findByPeriod(
+                    new Date(start), new Date(start + recordCount)), 0));
+            assertEquals(recordCount, history.getReader().countRecords());
+            assertTrue("Records were written before the latency elapsed",
+                countStoredRecords(id) < recordCount);
+
+            Bundle historyBundle = stopHistoryBundle();
+            assertEquals("Stopping the bundle did not write all the records",
+                recordCount, countStoredRecords(id));
+            startHistoryBundle(historyBundle);
+
+            history = this.historyService.getHistory(id);
+            assertEquals(recordCount,
+                checkSequence(history.getReader().findByPeriod(
+                    new Date(start), new Date(start + recordCount)), 0));
+
+            // the last file is read from disk until records are added to it
+            for (int i = recordCount; i < recordCount + 10; i++)
+            {
+                history.getWriter().addRecord(
+                    new String[] { "" + i, "name" + i, "m" },
+                    new Date(start + i));
+            }
+            assertEquals("Records added to a written file were not read",
+                recordCount + 10,
+                checkSequence(history.getReader().findByPeriod(
+                    new Date(start), new Date(start + recordCount + 10)), 0));
+            assertEquals(recordCount, countStoredRecords(id));
+        }
+        finally
+        {
+            if (this.historyService.isHistoryExisting(id))
+                this.historyService.purgeLocallyStoredHistory(id);
+
+            removeConfigProperty(WRITE_BEHIND_ENABLED_PROPERTY);
+            removeConfigProperty(WRITE_BEHIND_MAX_LATENCY_PROPERTY);
+            restartHistoryBundle();
+        }
+    }
+
+    /**
+     * Makes the first writes of the write-behind thread fail and checks that
+     * the records are written once writing succeeds again, without another
+     * record being added or the bundle being stopped, and that the records
+     * added to a history once the bundle is stopped are written right away.
+     */
+    public void testWriteBehindRetry()
+        throws Exception
+    {
+        final int recordCount = 10;
+        long start = System.currentTimeMillis();
+
+        setConfigProperty(WRITE_BEHIND_ENABLED_PROPERTY, "true");
+        setConfigProperty(WRITE_BEHIND_MAX_LATENCY_PROPERTY, "100");
+        restartHistoryBundle();
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "writebehindretry" });
+        File blocker = null;
+        try
+        {
+            History history = createEmptyHistory(id);
+
+            // the temporary file the history file is written to cannot be
+            // created while a directory has its name
+            blocker = new File(getHistoryDirectory(id),
+                start + FILE_EXTENSION + ".tmp");
+            assertTrue("Could not create " + blocker, blocker.mkdir());
+
+            for (int i = 0; i < recordCount; i++)
+            {
+                history.getWriter().addRecord(
+                    new String[] { "" + i, "name" + i, "m" },
+                    new Date(start + i));
+            }
+
+            Thread.sleep(500);
+            assertEquals("Records were written while writing fails",
+                0, countStoredRecords(id));
+
+            assertTrue("Could not delete " + blocker, blocker.delete());
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (countStoredRecords(id) < recordCount
+                    && System.currentTimeMillis() < deadline)
+                Thread.sleep(100);
+            assertEquals("The records which failed to be written were not "
+                    + "written again",
+                recordCount, countStoredRecords(id));
+
+            Bundle historyBundle = stopHistoryBundle();
+            history.getWriter().addRecord(
+                new String[] { "" + recordCount, "name" + recordCount, "m" },
+                new Date(start + recordCount));
+            assertEquals("A record added once the bundle is stopped was not "
+                    + "written",
+                recordCount + 1, countStoredRecords(id));
+            startHistoryBundle(historyBundle);
+        }
+        finally
+        {
+            if (blocker != null)
+                blocker.delete();
+            if (this.historyService.isHistoryExisting(id))
+                this.historyService.purgeLocallyStoredHistory(id);
+
+            removeConfigProperty(WRITE_BEHIND_ENABLED_PROPERTY);
+            removeConfigProperty(WRITE_BEHIND_MAX_LATENCY_PROPERTY);
+            restartHistoryBundle();
+        }
+    }
+
+    /**
+     * Makes the write of a record fail and then the checkpoint of its file
+     * when the next record starts a new file, and checks that the record is
+     * written to its file once writing succeeds again.
+     */
+    public void testCheckpointFailureOnRollover()
+        throws Exception
+    {
+        final int recordCount = 150;
+        long start = System.currentTimeMillis();
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "rollover" });
+        File blocker = null;
+        try
+        {
+            History history = createEmptyHistory(id);
+            HistoryWriter writer = history.getWriter();
+
+            for (int i = 0; i < recordCount; i++)
+            {
+                writer.addRecord(
+                    new String[] { "" + i, "name" + i, "m" },
+                    new Date(start + i));
+            }
+            assertEquals(recordCount, countStoredRecords(id));
+
+            blocker = new File(getHistoryDirectory(id),
+                start + FILE_EXTENSION + ".tmp");
+            assertTrue("Could not create " + blocker, blocker.mkdir());
+
+            // the last record of the file, which is kept to be written again
+            try
+            {
+                writer.addRecord(
+                    new String[] { "" + recordCount, "name" + recordCount,
+                        "m" },
+                    new Date(start + recordCount));
+                fail("Writing a record did not fail");
+            }
+            catch (IOException e)
+            {
+            }
+
+            // starts a new file, after the failing checkpoint of the full one
+            try
+            {
+                writer.addRecord(new String[] { "-1", "lost", "m" },
+                    new Date(start + recordCount + 1));
+                fail("The checkpoint of the full file did not fail");
+            }
+            catch (IOException e)
+            {
+            }
+
+            assertTrue("Could not delete " + blocker, blocker.delete());
+
+            writer.addRecord(
+                new String[] { "" + (recordCount + 1),
+                    "name" + (recordCount + 1), "m" },
+                new Date(start + recordCount + 2));
+            assertEquals("The records of the full file were lost",
+                recordCount + 2, countStoredRecords(id));
+            assertEquals(2, getFiles(id, FILE_EXTENSION).size());
+
+            restartHistoryBundle();
+            history = this.historyService.getHistory(id);
+            assertEquals(recordCount + 2,
+                checkSequence(history.getReader().findByPeriod(
+                    new Date(start), new Date(start + recordCount + 3)), 0));
+        }
+        finally
+        {
+            if (blocker != null)
+                blocker.delete();
+            if (this.historyService.isHistoryExisting(id))
+                this.historyService.purgeLocallyStoredHistory(id);
+        }
+    }
+
+    /**
+     * Searches a history of four files through its interactive reader, which
+     * streams the files, and checks that the listener of the query receives
+     * the requested number of records newest first and then the completion
+     * of the query.
+     */
+    public void testInteractiveSearch()
+        throws Exception
+    {
+        final int recordCount = 500;
+        final int resultCount = 200;
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "interactive" });
+        try
+        {
+            History history = createInteractiveHistory(id, recordCount);
+
+            HistoryQuery query = history.getInteractiveReader()
+                .findByKeyword("name", null, resultCount);
+            RecordingQueryListener listener = new RecordingQueryListener();
+            query.addHistoryRecordsListener(listener);
+
+            assertEquals("The search did not complete",
+                HistoryQueryStatusEvent.QUERY_COMPLETED,
+                listener.waitForStatus());
+
+            List<HistoryRecord> records
+                = new ArrayList<HistoryRecord>(query.getHistoryRecords());
+            assertEquals(resultCount, records.size());
+            for (int i = 0; i < records.size(); i++)
+                assertEquals(recordCount - 1 - i, getAge(records.get(i)));
+
+            // the listener may have been added after the first records
+            List<HistoryRecord> received = listener.getRecords();
+            assertEquals(
+                records.subList(records.size() - received.size(),
+                    records.size()),
+                received);
+        }
+        finally
+        {
+            if (this.historyService.isHistoryExisting(id))
+                this.historyService.purgeLocallyStoredHistory(id);
+        }
+    }
+
+    /**
+     * Cancels an interactive search of a history of four files when its
+     * listener receives the records of the first file and checks that the
+     * search ends as canceled without reading the other files.
+     */
+    public void testCancelInteractiveSearch()
+        throws Exception
+    {
+        final int recordCount = 500;
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "interactivecancel" });
+        try
+        {
+            History history = createInteractiveHistory(id, recordCount);
+
+            // the listener misses the first file if it is added too late
+            for (int attempt = 0; attempt < 5; attempt++)
+            {
+                final HistoryQuery query = history.getInteractiveReader()
+                    .findByKeyword("name", null, recordCount);
+                RecordingQueryListener listener = new RecordingQueryListener()
+                {
+                    @Override
+                    public void historyRecordReceived(HistoryRecordEvent evt)
+                    {
+                        super.historyRecordReceived(evt);
+                        query.cancel();
+                    }
+                };
+                query.addHistoryRecordsListener(listener);
+
+                int status = listener.waitForStatus();
+                List<HistoryRecord> received = listener.getRecords();
+
+                if (received.isEmpty()
+                    || getAge(received.get(0)) != recordCount - 1)
+                    continue;
+
+                assertEquals("The search was not canceled",
+                    HistoryQueryStatusEvent.QUERY_CANCELED, status);
+                assertEquals("Files were read after the search was canceled",
+                    recordCount % 151, query.getHistoryRecords().size());
+                return;
+            }
+
+            fail("The listener was always added after the first file");
+        }
+        finally
+        {
+            if (this.historyService.isHistoryExisting(id))
+                this.historyService.purgeLocallyStoredHistory(id);
+        }
+    }
+
+    /**
+     * Browses the result of a period query over five history files, more than
+     * the result keeps in memory, forward and backward and checks that every
+     * move returns the record after or before the last returned one.
+     */
+    public void testBrowseQueryResultBothWays()
+        throws Exception
+    {
+        final int recordCount = 700;
+        final int first = 100;
+        final int last = recordCount - 101;
+        long start = System.currentTimeMillis();
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "browse" });
+        try
+        {
+            History history = createEmptyHistory(id);
+
+            for (int i = 0; i < recordCount; i++)
+            {
+                history.getWriter().addRecord(
+                    new String[] { "" + i, "name" + i, "m" },
+                    new Date(start + i));
+            }
+            assertEquals(5, getFiles(id, FILE_EXTENSION).size());
+
+            QueryResultSet<HistoryRecord> result
+                = history.getReader().findByPeriod(
+                    new Date(start + first), new Date(start + last + 1));
+
+            assertFalse(result.hasPrev());
+            for (int age = first; age <= 350; age++)
+                assertEquals(age, getAge(result.nextRecord()));
+            for (int age = 349; age >= first; age--)
+                assertEquals(age, getAge(result.prevRecord()));
+            assertFalse(result.hasPrev());
+
+            for (int age = first + 1; age <= last; age++)
+                assertEquals(age, getAge(result.nextRecord()));
+            assertFalse(result.hasNext());
+            for (int age = last - 1; age >= first; age--)
+                assertEquals(age, getAge(result.prevRecord()));
+            assertFalse(result.hasPrev());
+
+            try
+            {
+                result.prevRecord();
+                fail("A record was returned before the first one");
+            }
+            catch (NoSuchElementException ex)
+            {
+            }
+            assertEquals(first + 1, getAge(result.nextRecord()));
+        }
+        finally
+        {
+            if (this.historyService.isHistoryExisting(id))
+                this.historyService.purgeLocallyStoredHistory(id);
+        }
+    }
+
+    /**
+     * Writes a history whose first files only have records older than the
+     * archive age, restarts the history bundle with the compaction enabled
+     * and waits for the old files to be archived. Checks that all the records
+     * are found by period and keyword queries while the history is being
+     * compacted, after the compaction and once the bundle has started again.
+     */
+    public void testCompactAndArchive()
+        throws Exception
+    {
+        final int oldCount = 400;
+        final int recentCount = 200;
+        final int recordCount = oldCount + recentCount;
+        long now = System.currentTimeMillis();
+        long oldStart = now - 730 * ONE_DAY;
+
+        HistoryID id = HistoryID.createFromRawID(
+            new String[] { "test", "compaction" });
+        try
+        {
+            History history = createEmptyHistory(id);
+
+            for (int i = 0; i < recordCount; i++)
+            {
+                history.getWriter().addRecord(
+                    new String[] { "" + i, "name" + i, "m" },
+                    new Date((i < oldCount) ? oldStart + i : now + i));
+            }
+
+            setConfigProperty(COMPACTION_ENABLED_PROPERTY, "true");
+            setConfigProperty(COMPACTION_START_DELAY_PROPERTY, "0");
+            setConfigProperty(ARCHIVE_AGE_PROPERTY, "1");
+            restartHistoryBundle();
+
+            history = this.historyService.getHistory(id);
+            long timeout = System.currentTimeMillis() + 30000;
+            while (getFiles(id, ARCHIVE_EXTENSION).isEmpty())
+            {
+                assertCompactedRecords(history, oldStart, now, recordCount);
+                assertTrue("No history file was archived",
+                    System.currentTimeMillis() < timeout);
+                Thread.sleep(100);
+            }
+            assertCompactedRecords(history, oldStart, now, recordCount);
+
+            removeConfigProperty(COMPACTION_ENABLED_PROPERTY);
+            restartHistoryBundle();
+
+            assertCompactedRecords(this.historyService.getHistory(id),
+                oldStart, now, recordCount);
+        }
+        finally
+        {
+            if (this.historyService.isHistoryExisting(id))
+                this.historyService.purgeLocallyStoredHistory(id);
+
+            removeConfigProperty(COMPACTION_ENABLED_PROPERTY);
+            removeConfigProperty(COMPACTION_START_DELAY_PROPERTY);
+            removeConfigProperty(ARCHIVE_AGE_PROPERTY);
+            restartHistoryBundle();
+        }
+    }
+
+    /**
+     * Checks that all the records written by {@link #testCompactAndArchive()}
+     * are found by period and keyword queries.
+     *
+     * @param history the compacted history
+     * @param oldStart the timestamp of the first old record
+     * @param now the time the recent records were written after
+     * @param recordCount the number of records of the history
+     */
+    private static void assertCompactedRecords(History history,
+                                               long oldStart,
+                                               long now,
+                                               int recordCount)
+    {
+        HistoryReader reader = history.getReader();
+
+        assertEquals(recordCount,
+            checkSequence(reader.findByPeriod(
+                new Date(oldStart), new Date(now + recordCount)), 0));
+        assertEquals(recordCount, reader.countRecords());
+        assertEquals(1,
+            checkSequence(reader.findByKeyword("name123", "name"), 123));
+        assertEquals(1,
+            checkSequence(reader.findByKeyword(
+                "name" + (recordCount - 1), "name"), recordCount - 1));
+    }
+
+    /**
+     * Checks that the ages of the remaining records of <tt>result</tt> are
+     * consecutive integers starting at <tt>firstAge</tt>.
+     *
+     * @param result the records to check
+     * @param firstAge the expected age of the next record
+     * @return the number of checked records
+     */
+    private static int checkSequence(QueryResultSet<HistoryRecord> result,
+                                     int firstAge)
+    {
+        int count = 0;
+
+        while (result.hasNext())
+        {
+            HistoryRecord record = result.nextRecord();
+
+            assertEquals(firstAge + count,
+                Integer.parseInt(record.getPropertyValues()[0]));
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the age of a record of the tests, which is its index in the
+     * history.
+     *
+     * @param record the record
+     * @return the age of <tt>record</tt>
+     */
+    private static int getAge(HistoryRecord record)
+    {
+        return Integer.parseInt(record.getPropertyValues()[0]);
+    }
+
+    public void testPurgeLocallyStoredHistory()
+    {
+        try
+        {
+            this.historyService.purgeLocallyStoredHistory(this.history.getID());
+        }
+        catch (Exception ex)
+        {
+            fail("Cannot delete local history with id " + this.history.getID()
+                 + " : " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Creates a history with <tt>recordCount</tt> records whose age and
+     * timestamp increase with their index.
+     *
+     * @param id the id of the history
+     * @param recordCount the number of records to add
+     * @return the created history
+     * @throws Exception if the history cannot be created
+     */
+    private History createInteractiveHistory(HistoryID id, int recordCount)
+        throws Exception
+    {
+        long start = System.currentTimeMillis();
+        History history = createEmptyHistory(id);
+
+        for (int i = 0; i < recordCount; i++)
+        {
+            history.getWriter().addRecord(
+                new String[] { "" + i, "name" + i, "m" },
+                new Date(start + i));
+        }
+
+        return history;
+    }
+
+    /**
+     * Creates a history with the record structure of the tests, removing
+     * the records left in it by a previous run.
+     *
+     * @param id the id of the history
+     * @return the created history
+     * @throws Exception if the history cannot be created
+     */
+    private History createEmptyHistory(HistoryID id)
+        throws Exception
+    {
+        if (this.historyService.isHistoryExisting(id))
+            this.historyService.purgeLocallyStoredHistory(id);
+
+        return this.historyService.createHistory(id, recordStructure);
+    }
+
+    /**
+     * Returns the number of records stored in the files of a history.
+     *
+     * @param id the id of the history
+     * @return the number of records stored in the files of the history
+     * @throws Exception if the files cannot be read
+     */
+    private static int countStoredRecords(HistoryID id)
+        throws Exception
+    {
+        int count = 0;
+
+        for (File file : getFiles(id, FILE_EXTENSION))
+        {
+            String content = readFile(file);
+
+            for (int i = content.indexOf("<record ");
+                    i >= 0;
+                    i = content.indexOf("<record ", i + 1))
+                count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Reads the whole content of a file.
+     *
+     * @param file the file to read
+     * @return the content of the file
+     * @throws IOException if the file cannot be read
+     */
+    private static String readFile(File file)
+        throws IOException
+    {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            in.readFully(bytes);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Writes a record at the end of the last file of a history the way the
+     * history service would, while its bundle is stopped.
+     *
+     * @param id the id of the history
+     * @param values the values of the age, name and sex of the record
+     * @param date the timestamp of the record
+     * @throws Exception if the file cannot be rewritten
+     */
+    private static void appendToHistoryFile(HistoryID id,
+                                            String[] values,
+                                            Date date)
+        throws Exception
+    {
+        List<File> files = getFiles(id, FILE_EXTENSION);
+        File file = files.get(files.size() - 1);
+        String content = readFile(file);
+        int end = content.lastIndexOf("</history>");
+        String record = "<record timestamp=\""
+            + new SimpleDateFormat(HistoryService.DATE_FORMAT).format(date)
+            + "\"><age>" + values[0] + "</age>"
+            + "<name><![CDATA[" + values[1] + "]]></name>"
+            + "<sex>" + values[2] + "</sex></record>";
+
+        assertTrue("No history element in " + file, end >= 0);
+
+        OutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write((content.substring(0, end) + record
+                + content.substring(end)).getBytes("UTF-8"));
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Appends a record to the journal of the last file of a history the way
+     * the history service does in the append-only mode, while its bundle is
+     * stopped.
+     *
+     * @param id the id of the history
+     * @param position the number of records of the file before this one
+     * @param values the values of the age, name and sex of the record
+     * @param date the timestamp of the record
+     * @throws Exception if the journal cannot be written
+     */
+    private static void appendToJournal(HistoryID id,
+                                        int position,
+                                        String[] values,
+                                        Date date)
+        throws Exception
+    {
+        List<File> files = getFiles(id, FILE_EXTENSION);
+        File file = files.get(files.size() - 1);
+        String[] names = recordStructure.getPropertyNames();
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+
+        out.writeInt(position);
+        out.writeLong(date.getTime());
+        out.writeInt(names.length);
+        for (int i = 0; i < names.length; i++)
+        {
+            JournalFile.writeString(out, names[i]);
+            JournalFile.writeString(out, values[i]);
+        }
+        out.flush();
+
+        JournalFile.append(
+            new File(file.getParentFile(), file.getName() + JOURNAL_EXTENSION),
+            Collections.singletonList(payload.toByteArray()));
+    }
+
+    /**
+     * Sets a configuration property read by the history service when its
+     * bundle starts.
+     *
+     * @param name the name of the property
+     * @param value the value of the property
+     */
+    private static void setConfigProperty(String name, String value)
+    {
+        getConfigurationService().setProperty(name, value);
+    }
+
+    /**
+     * Removes a configuration property read by the history service when its
+     * bundle starts.
+     *
+     * @param name the name of the property
+     */
+    private static void removeConfigProperty(String name)
+    {
+        getConfigurationService().removeProperty(name);
+    }
+
+    /**
+     * Returns the configuration service the history service reads its
+     * properties from.
+     *
+     * @return the configuration service
+     */
+    private static ConfigurationService getConfigurationService()
+    {
+        BundleContext context = HistoryServiceLick.bc;
+
+        return (ConfigurationService) context.getService(
+            context.getServiceReference(ConfigurationService.class.getName()));
+    }
+
+    /**
+     * Returns the files of the directory of a history whose name ends with
+     * <tt>suffix</tt>, sorted by name.
+     *
+     * @param id the id of the history
+     * @param suffix the end of the names of the files
+     * @return the files of the history ending with <tt>suffix</tt>
+     * @throws Exception if the directory of the history cannot be found
+     */
+    private static List<File> getFiles(HistoryID id, String suffix)
+        throws Exception
+    {
+        List<File> files = new ArrayList<File>();
+
+        for (File file : getHistoryDirectory(id).listFiles())
+        {
+            if (file.getName().endsWith(suffix))
+                files.add(file);
+        }
+        Collections.sort(files);
+
+        return files;
+    }
+
+    /**
+     * Returns the directory of the files of a history.
+     *
+     * @param id the id of the history
+     * @return the directory of the history
+     * @throws Exception if the directory of the history cannot be found
+     */
+    private static File getHistoryDirectory(HistoryID id)
+        throws Exception
+    {
+        BundleContext context = HistoryServiceLick.bc;
+        FileAccessService fileAccessService
+            = (FileAccessService) context.getService(
+                context.getServiceReference(
+                    FileAccessService.class.getName()));
+
+        String[] idComponents = id.getID();
+        String[] dirs = new String[idComponents.length + 1];
+
+        dirs[0] = DATA_DIRECTORY;
+        System.arraycopy(idComponents, 0, dirs, 1, idComponents.length);
+
+        return fileAccessService.getPrivatePersistentDirectory(dirs);
+    }
+
+    /**
+     * Stops and starts again the history bundle, which reads its
+     * configuration again and loads the histories from their files. Only
+     * starts it if a failed test left it stopped.
+     *
+     * @throws Exception if restarting the bundle fails
+     */
+    private void restartHistoryBundle()
+        throws Exception
+    {
+        startHistoryBundle(
+            (stoppedHistoryBundle == null)
+                ? stopHistoryBundle()
+                : stoppedHistoryBundle);
+    }
+
+    /**
+     * Stops the history bundle.
+     *
+     * @return the stopped bundle
+     * @throws Exception if stopping the bundle fails
+     */
+    private Bundle stopHistoryBundle()
+        throws Exception
+    {
+        Bundle historyBundle = findHistoryBundle();
+
+        assertNotNull("Couldn't find the bundle that exports the history "
+                      + "service implementation that we're currently testing"
+                      , historyBundle);
+
+        historyBundle.stop();
+        stoppedHistoryBundle = historyBundle;
+
+        assertTrue("Couldn't stop the history bundle. State was "
+                   + historyBundle.getState()
+                   ,    Bundle.ACTIVE   != historyBundle.getState()
+                     && Bundle.STOPPING != historyBundle.getState());
+
+        return historyBundle;
+    }
+
+    /**
+     * Starts the history bundle again and uses the service it registers.
+     *
+     * @param historyBundle the stopped history bundle
+     * @throws Exception if starting the bundle fails
+     */
+    private void startHistoryBundle(Bundle historyBundle)
+        throws Exception
+    {
+        BundleContext context = HistoryServiceLick.bc;
+
+        historyBundle.start();
+        assertEquals("Couldn't re-start the history bundle."
+                     , Bundle.ACTIVE, historyBundle.getState());
+        stoppedHistoryBundle = null;
+
+        this.historyServiceRef = context.getServiceReference(
+            HistoryService.class.getName());
+        this.historyService
+            = (HistoryService) context.getService(this.historyServiceRef);
+
+        assertNotNull("The history service was not re-registered "
+                      + "after restarting its bundle."
+                      , this.historyService);
+
+        // load the histories stored by the stopped bundle
+        this.historyService.getExistingIDs();
+    }
+
+    /**
+     * Returns the bundle that has registered the history service
+     * implementation that we're currently testing.
+     *
+     * @return the bundle that has registered the history service we're
+     * using in the slick.
+     */
+    private Bundle findHistoryBundle()
+    {
+        BundleContext context = HistoryServiceLick.bc;
+        Bundle[] bundles = context.getBundles();
+
+        for (int i = 0; i < bundles.length; i++)
+        {
+            ServiceReference[] registeredServices
+                = bundles[i].getRegisteredServices();
+
+            if(registeredServices == null)
+                continue;
+
+            for (int j = 0; j < registeredServices.length; j++)
+            {
+                Object service = context.getService(registeredServices[j]);
+
+                if(service == this.historyService)
+                    return bundles[i];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Records the results of an interactive query and lets the test wait
+     * for its end.
+     */
+    private static class RecordingQueryListener
+        implements HistoryQueryListener
+    {
+        /**
+         * The records received, in the order they were received.
+         */
+        private final List<HistoryRecord> records
+            = new Vector<HistoryRecord>();
+
+        /**
+         * Released when the query ends.
+         */
+        private final CountDownLatch ended = new CountDownLatch(1);
+
+        /**
+         * The status the query ended with.
+         */
+        private volatile int status = -1;
+
+        /**
+         * Records the received record.
+         *
+         * @param evt the event carrying the record
+         */
+        public void historyRecordReceived(HistoryRecordEvent evt)
+        {
+            records.add(evt.getHistoryRecord());
+        }
+
+        /**
+         * Records the status the query ended with.
+         *
+         * @param evt the event carrying the status
+         */
+        public void queryStatusChanged(HistoryQueryStatusEvent evt)
+        {
+            status = evt.getEventType();
+            ended.countDown();
+        }
+
+        /**
+         * Waits for the end of the query.
+         *
+         * @return the status the query ended with
+         * @throws InterruptedException if interrupted while waiting
+         */
+        int waitForStatus()
+            throws InterruptedException
+        {
+            assertTrue("The query did not end",
+                ended.await(30, TimeUnit.SECONDS));
+            return status;
+        }
+
+        /**
+         * Returns the records received so far.
+         *
+         * @return the received records
+         */
+        List<HistoryRecord> getRecords()
+        {
+            return new ArrayList<HistoryRecord>(records);
         }
     }
 }
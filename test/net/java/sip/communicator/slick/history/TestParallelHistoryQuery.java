@@ -0,0 +1,257 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.history;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Tests the <tt>ParallelHistoryQuery</tt> the message and meta history
+ * services search several histories with, against the <tt>TreeSet</tt>s they
+ * used to collect the results of the histories in.
+ */
+public class TestParallelHistoryQuery extends TestCase
+{
+    /**
+     * Orders the results by their key only, like the history services order
+     * their records by timestamp only.
+     */
+    private static final Comparator<Result> BY_KEY
+        = new Comparator<Result>()
+        {
+            public int compare(Result r1, Result r2)
+            {
+                return (r1.key < r2.key) ? -1 : ((r1.key == r2.key) ? 0 : 1);
+            }
+        };
+
+    /**
+     * The pool running the queries.
+     */
+    private ParallelHistoryQuery.Pool pool = null;
+
+    public TestParallelHistoryQuery(String name)
+    {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        pool = new ParallelHistoryQuery.Pool("TestParallelHistoryQuery");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        pool.shutdown();
+        pool = null;
+
+        super.tearDown();
+    }
+
+    /**
+     * Runs queries returning unordered results with many equal keys within
+     * and across queries, and checks that the merged results are the ones
+     * a <tt>TreeSet</tt> keeps when the results are added to it query after
+     * query.
+     */
+    public void testResultsOfTreeSet()
+    {
+        Random random = new Random(4242);
+        ParallelHistoryQuery<Result> search
+            = new ParallelHistoryQuery<Result>(pool, BY_KEY);
+        TreeSet<Result> reference = new TreeSet<Result>(BY_KEY);
+
+        for (int query = 0; query < 6; query++)
+        {
+            final List<Result> results = new ArrayList<Result>();
+
+            for (int i = 0; i < 200; i++)
+                results.add(new Result(random.nextInt(300), query));
+            reference.addAll(results);
+
+            search.add(new Callable<List<Result>>()
+            {
+                public List<Result> call()
+                {
+                    return new ArrayList<Result>(results);
+                }
+            });
+        }
+
+        assertSameResults(reference, search.execute());
+    }
+
+    /**
+     * Runs two queries which can only complete if they run at the same time
+     * and checks that they ran in the threads of the pool.
+     */
+    public void testQueriesRunConcurrently()
+    {
+        final CountDownLatch started = new CountDownLatch(2);
+        final Set<Thread> threads
+            = Collections.synchronizedSet(new HashSet<Thread>());
+        ParallelHistoryQuery<Result> search
+            = new ParallelHistoryQuery<Result>(pool, BY_KEY);
+
+        for (int query = 0; query < 2; query++)
+        {
+            final int source = query;
+
+            search.add(new Callable<List<Result>>()
+            {
+                public List<Result> call()
+                    throws Exception
+                {
+                    threads.add(Thread.currentThread());
+                    started.countDown();
+                    assertTrue("The queries did not run concurrently",
+                        started.await(10, TimeUnit.SECONDS));
+
+                    return Collections.singletonList(new Result(source, 0));
+                }
+            });
+        }
+
+        assertEquals(2, search.execute().size());
+        assertEquals(2, threads.size());
+        assertFalse(threads.contains(Thread.currentThread()));
+    }
+
+    /**
+     * Runs queries which make searches of their own on the same pool, more
+     * than the pool has threads, and checks that the nested searches run in
+     * the threads of their queries instead of waiting for a free thread.
+     */
+    public void testNestedSearchesRunInline()
+    {
+        ParallelHistoryQuery<Result> search
+            = new ParallelHistoryQuery<Result>(pool, BY_KEY);
+
+        for (int query = 0; query < 8; query++)
+        {
+            final int source = query;
+
+            search.add(new Callable<List<Result>>()
+            {
+                public List<Result> call()
+                {
+                    final Thread caller = Thread.currentThread();
+                    ParallelHistoryQuery<Result> nested
+                        = new ParallelHistoryQuery<Result>(pool, BY_KEY);
+
+                    for (int i = 0; i < 2; i++)
+                    {
+                        final Result result = new Result(source * 2 + i, 0);
+
+                        nested.add(new Callable<List<Result>>()
+                        {
+                            public List<Result> call()
+                            {
+                                assertSame(caller, Thread.currentThread());
+                                return Collections.singletonList(result);
+                            }
+                        });
+                    }
+
+                    return nested.execute();
+                }
+            });
+        }
+
+        List<Result> results = search.execute();
+
+        assertEquals(16, results.size());
+        for (int i = 0; i < results.size(); i++)
+            assertEquals(i, results.get(i).key);
+    }
+
+    /**
+     * Shuts the pool down like a stopping service does and checks that the
+     * searches made after that run in the calling thread.
+     */
+    public void testSearchAfterShutdown()
+    {
+        pool.shutdown();
+
+        ParallelHistoryQuery<Result> search
+            = new ParallelHistoryQuery<Result>(pool, BY_KEY);
+
+        for (int query = 0; query < 3; query++)
+        {
+            final int source = query;
+
+            search.add(new Callable<List<Result>>()
+            {
+                public List<Result> call()
+                {
+                    return Collections.singletonList(new Result(source, 0));
+                }
+            });
+        }
+
+        assertEquals(3, search.execute().size());
+    }
+
+    /**
+     * Checks that <tt>results</tt> holds the same instances as
+     * <tt>reference</tt> in the same order.
+     *
+     * @param reference the expected results
+     * @param results the merged results
+     */
+    private static void assertSameResults(Collection<Result> reference,
+                                          List<Result> results)
+    {
+        assertEquals("Wrong number of results",
+            reference.size(), results.size());
+
+        Iterator<Result> iter = results.iterator();
+        for (Result result : reference)
+            assertSame(result, iter.next());
+    }
+
+    /**
+     * A result of a query, ordered by its key only.
+     */
+    private static class Result
+    {
+        /**
+         * The key the result is ordered by.
+         */
+        final int key;
+
+        /**
+         * The index of the query which returned the result.
+         */
+        final int source;
+
+        /**
+         * Creates a result.
+         *
+         * @param key the key the result is ordered by
+         * @param source the index of the query which returned the result
+         */
+        Result(int key, int source)
+        {
+            this.key = key;
+            this.source = source;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Result[key=" + key + ", source=" + source + "]";
+        }
+    }
+}
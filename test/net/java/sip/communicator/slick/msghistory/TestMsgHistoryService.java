@@ -6,11 +6,13 @@
  */
 package net.java.sip.communicator.slick.msghistory;
 
+import java.text.*;
 import java.util.*;
 
 import junit.framework.*;
 import net.java.sip.communicator.impl.protocol.mock.*;
 import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.msghistory.*;
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
@@ -34,6 +36,7 @@ public class TestMsgHistoryService
 
     static final String TEST_CONTACT_NAME_1 = "Mincho_Penchev_the_fisrt";
     static final String TEST_CONTACT_NAME_2 = "Mincho_Penchev_the_second";
+    static final String TEST_CONTACT_NAME_3 = "Mincho_Penchev_the_third";
 
     static final String TEST_ROOM_NAME = "test_room";
 
@@ -86,6 +89,8 @@ public class TestMsgHistoryService
             new TestMsgHistoryService("writeRecords"));
         suite.addTest(
             new TestMsgHistoryService("readRecords"));
+        suite.addTest(
+            new TestMsgHistoryService("readRecentRecords"));
         suite.addTest(
             new TestMsgHistoryService("writeRecordsToMultiChat"));
         suite.addTest(
@@ -380,6 +385,125 @@ public class TestMsgHistoryService
                    msgs.contains(messagesToSend[2].getContent()));
     }
 
+    /**
+     * Tests that the last messages, which are kept in memory once read, are
+     * the same as the ones read from the history files, that the messages
+     * written afterwards are added to them without reading the history again
+     * and that erasing the history drops them. The test has its own contact
+     * so that erasing its history leaves the other tests unaffected.
+     */
+    public void readRecentRecords()
+        throws Exception
+    {
+        metaClService.createMetaContact(
+            mockProvider, metaClService.getRoot(), TEST_CONTACT_NAME_3);
+
+        Contact contact = mockPresOpSet.findContactByID(TEST_CONTACT_NAME_3);
+        MetaContact metaContact
+            = metaClService.findMetaContactByContact(contact);
+
+        assertNotNull("No metacontact", metaContact);
+
+        // the history may be left from a previous run
+        msgHistoryService.eraseLocallyStoredHistory(metaContact);
+
+        Message[] messages = new Message[6];
+        for (int i = 0; i < messages.length; i++)
+        {
+            messages[i] = mockBImOpSet.createMessage(
+                "recent message " + i + "-" + Math.random());
+        }
+
+        mockBImOpSet.deliverMessage(TEST_CONTACT_NAME_3, messages[0]);
+        waitWrite(100);
+        Date controlDate = new Date();
+        waitWrite(100);
+        for (int i = 1; i < 4; i++)
+            mockBImOpSet.deliverMessage(TEST_CONTACT_NAME_3, messages[i]);
+
+        // reads the last messages from the history files
+        List<EventObject> last = new ArrayList<EventObject>(
+            msgHistoryService.findLast(metaContact, 3));
+        List<EventObject> read = new ArrayList<EventObject>(
+            msgHistoryService.findByStartDate(metaContact, controlDate));
+
+        assertEquals("Messages must be 3", 3, last.size());
+        assertEquals("Messages must be 3", 3, read.size());
+        for (int i = 0; i < read.size(); i++)
+        {
+            assertEquals("Wrong message",
+                getMessages(read).get(i), getMessages(last).get(i));
+            assertEquals("Wrong timestamp",
+                getTimestamp(read.get(i)), getTimestamp(last.get(i)));
+        }
+
+        // a record written to the history file without going through the
+        // message listeners is not in the messages kept in memory
+        HistoryService historyService = getHistoryService();
+        HistoryID historyId = HistoryID.createFromRawID(
+            new String[] {  "messages",
+                            "default",
+                            mockProvider.getAccountID().getAccountUniqueID(),
+                            contact.getAddress() });
+        String unlisted = "unlisted message " + Math.random();
+
+        historyService.getHistory(historyId).getWriter().addRecord(
+            new String[] { "in", unlisted, "text/plain", "UTF-8",
+                "unlisted-" + Math.random(), contact.getAddress(),
+                new SimpleDateFormat(HistoryService.DATE_FORMAT)
+                    .format(new Date()) },
+            new Date());
+        waitWrite(100);
+
+        mockBImOpSet.deliverMessage(TEST_CONTACT_NAME_3, messages[4]);
+
+        List<String> msgs = getMessages(
+            msgHistoryService.findByStartDate(metaContact, controlDate));
+        assertTrue("The history file misses a message",
+                   msgs.contains(unlisted));
+
+        msgs = getMessages(msgHistoryService.findLast(metaContact, 3));
+        assertEquals("The last messages were read again",
+                     Arrays.asList(
+                         messages[2].getContent(),
+                         messages[3].getContent(),
+                         messages[4].getContent()),
+                     msgs);
+
+        msgs = getMessages(msgHistoryService.findLastMessagesBefore(
+            metaContact, controlDate, 3));
+        assertEquals("Messages must be 1", 1, msgs.size());
+        assertEquals("Message no found",
+                     messages[0].getContent(), msgs.get(0));
+
+        // erasing the history drops the messages kept in memory
+        msgHistoryService.eraseLocallyStoredHistory(metaContact);
+
+        assertTrue("Messages found after erasing the history",
+                   msgHistoryService.findLast(metaContact, 3).isEmpty());
+
+        mockBImOpSet.deliverMessage(TEST_CONTACT_NAME_3, messages[5]);
+
+        msgs = getMessages(msgHistoryService.findLast(metaContact, 3));
+        assertEquals("Wrong messages after erasing the history",
+                     Collections.singletonList(messages[5].getContent()),
+                     msgs);
+    }
+
+    /**
+     * Returns the history service the message history service writes to.
+     *
+     * @return the <tt>HistoryService</tt>
+     */
+    private static HistoryService getHistoryService()
+    {
+        ServiceReference historyServiceRef = MsgHistoryServiceLick.bc
+            .getServiceReference(HistoryService.class.getName());
+
+        return (HistoryService)
+            MsgHistoryServiceLick.bc.getService(historyServiceRef);
+    }
+
     private static void waitWrite(long timeout)
     {
         synchronized (lock)
@@ -641,6 +765,14 @@ public class TestMsgHistoryService
         return result;
     }
 
+    private Date getTimestamp(EventObject item)
+    {
+        if(item instanceof MessageDeliveredEvent)
+            return ((MessageDeliveredEvent)item).getTimestamp();
+        else
+            return ((MessageReceivedEvent)item).getTimestamp();
+    }
+
     private List<String> getChatMessages(Collection<EventObject> rs)
     {
         List<String> result = new Vector<String>();
@@ -0,0 +1,278 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.contactlist;
+
+import java.io.*;
+
+import javax.xml.parsers.*;
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.contactlist.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Tests that the <tt>MclNodeIndex</tt> finds the elements of a contact list
+ * document in the format of the <tt>MclStorageManager</tt> after they are
+ * added, moved, removed and reloaded the way the storage manager does it.
+ */
+public class TestMclNodeIndex extends TestCase
+{
+    /**
+     * The account id of the proto contacts of the tested document.
+     */
+    private static final String ACCOUNT_ID = "Mock:mclstorage@slick";
+
+    /**
+     * The tested index.
+     */
+    private MclNodeIndex index;
+
+    /**
+     * The contact list document indexed by {@link #index}.
+     */
+    private Document document;
+
+    /**
+     * The root group of {@link #document}.
+     */
+    private Element rootGroup;
+
+    /**
+     * A subgroup of {@link #rootGroup}.
+     */
+    private Element subgroup;
+
+    /**
+     * Creates a document with a root group containing a meta contact and a
+     * subgroup, and indexes it.
+     *
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        document = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().newDocument();
+
+        Element root = document.createElement("sip-communicator");
+        document.appendChild(root);
+
+        rootGroup = createGroup("root");
+        root.appendChild(rootGroup);
+
+        subgroup = createGroup("group1");
+        getChild(rootGroup, "subgroups").appendChild(subgroup);
+
+        getChild(rootGroup, "child-contacts")
+            .appendChild(createMetaContact("mc1", "alice"));
+
+        index = new MclNodeIndex();
+        index.rebuild(document);
+    }
+
+    /**
+     * Checks that the elements of the document are found after rebuilding
+     * the index and that an element added to the document is found once it
+     * is added to the index.
+     */
+    public void testAdd()
+    {
+        assertSame(rootGroup, index.findGroupNode("root"));
+        assertSame(subgroup, index.findGroupNode("group1"));
+        assertEquals("mc1",
+            index.findMetaContactNode("mc1").getAttribute("uid"));
+        assertEquals("alice",
+            index.findProtoContactNode(ACCOUNT_ID, "alice")
+                .getAttribute("address"));
+
+        Element metaContact = createMetaContact("mc2", "bob");
+
+        getChild(subgroup, "child-contacts").appendChild(metaContact);
+        assertNull(index.findMetaContactNode("mc2"));
+
+        index.add(metaContact);
+
+        assertSame(metaContact, index.findMetaContactNode("mc2"));
+        assertSame(getChild(metaContact, "contact"),
+            index.findProtoContactNode(ACCOUNT_ID, "bob"));
+        assertNull(index.findMetaContactNode(null));
+        assertNull(index.findGroupNode(null));
+        assertNull(index.findProtoContactNode("Mock:other@slick", "bob"));
+    }
+
+    /**
+     * Moves a meta contact to another group and a proto contact to another
+     * meta contact, and checks that the moved elements are still found.
+     */
+    public void testMove()
+    {
+        Element metaContact = index.findMetaContactNode("mc1");
+        Element protoContact = index.findProtoContactNode(ACCOUNT_ID, "alice");
+
+        metaContact.getParentNode().removeChild(metaContact);
+        getChild(subgroup, "child-contacts").appendChild(metaContact);
+
+        assertSame(metaContact, index.findMetaContactNode("mc1"));
+        assertSame(subgroup,
+            index.findMetaContactNode("mc1").getParentNode().getParentNode());
+
+        Element newParent = createMetaContact("mc2", "bob");
+
+        getChild(rootGroup, "child-contacts").appendChild(newParent);
+        index.add(newParent);
+
+        protoContact.getParentNode().removeChild(protoContact);
+        newParent.appendChild(protoContact);
+
+        assertSame(protoContact,
+            index.findProtoContactNode(ACCOUNT_ID, "alice"));
+        assertSame(newParent,
+            index.findProtoContactNode(ACCOUNT_ID, "alice").getParentNode());
+    }
+
+    /**
+     * Replaces a group with a new element for the same group, as the storage
+     * manager does when the protocol groups of a meta group change, and
+     * checks that removing the old element keeps the new one indexed.
+     */
+    public void testReplace()
+    {
+        Element newSubgroup = createGroup("group1");
+        Node parent = subgroup.getParentNode();
+
+        parent.removeChild(subgroup);
+        parent.appendChild(newSubgroup);
+        index.add(newSubgroup);
+        index.remove(subgroup);
+
+        assertSame(newSubgroup, index.findGroupNode("group1"));
+    }
+
+    /**
+     * Removes a group containing a meta contact and checks that neither of
+     * them is found anymore while the rest of the document still is.
+     */
+    public void testRemove()
+    {
+        Element metaContact = createMetaContact("mc2", "bob");
+
+        getChild(subgroup, "child-contacts").appendChild(metaContact);
+        index.add(metaContact);
+
+        subgroup.getParentNode().removeChild(subgroup);
+        index.remove(subgroup);
+
+        assertNull(index.findGroupNode("group1"));
+        assertNull(index.findMetaContactNode("mc2"));
+        assertNull(index.findProtoContactNode(ACCOUNT_ID, "bob"));
+        assertSame(rootGroup, index.findGroupNode("root"));
+        assertNotNull(index.findMetaContactNode("mc1"));
+        assertNotNull(index.findProtoContactNode(ACCOUNT_ID, "alice"));
+    }
+
+    /**
+     * Stores the document after some changes, reloads it and rebuilds the
+     * index, and checks that the index finds the elements of the reloaded
+     * document only.
+     *
+     * @throws Exception if anything goes wrong.
+     */
+    public void testReload() throws Exception
+    {
+        Element metaContact = index.findMetaContactNode("mc1");
+
+        metaContact.getParentNode().removeChild(metaContact);
+        getChild(subgroup, "child-contacts").appendChild(metaContact);
+
+        StringWriter stored = new StringWriter();
+
+        TransformerFactory.newInstance().newTransformer().transform(
+            new DOMSource(document), new StreamResult(stored));
+
+        Document reloaded = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().parse(
+                new ByteArrayInputStream(stored.toString().getBytes("UTF-8")));
+
+        index.rebuild(reloaded);
+
+        Element reloadedMetaContact = index.findMetaContactNode("mc1");
+        Element reloadedSubgroup = index.findGroupNode("group1");
+
+        assertNotNull(reloadedMetaContact);
+        assertSame(reloaded, reloadedMetaContact.getOwnerDocument());
+        assertSame(reloaded, reloadedSubgroup.getOwnerDocument());
+        assertSame(reloaded, index.findGroupNode("root").getOwnerDocument());
+        assertSame(reloadedSubgroup,
+            reloadedMetaContact.getParentNode().getParentNode());
+        assertSame(reloadedMetaContact,
+            index.findProtoContactNode(ACCOUNT_ID, "alice").getParentNode());
+    }
+
+    /**
+     * Creates a group element without subgroups and child contacts.
+     *
+     * @param uid the uid of the group
+     * @return the created group element
+     */
+    private Element createGroup(String uid)
+    {
+        Element group = document.createElement("group");
+
+        group.setAttribute("name", uid);
+        group.setAttribute("uid", uid);
+        group.appendChild(document.createElement("subgroups"));
+        group.appendChild(document.createElement("child-contacts"));
+        return group;
+    }
+
+    /**
+     * Creates a meta contact element with a single proto contact.
+     *
+     * @param uid the uid of the meta contact
+     * @param address the address of its proto contact
+     * @return the created meta contact element
+     */
+    private Element createMetaContact(String uid, String address)
+    {
+        Element metaContact = document.createElement("meta-contact");
+
+        metaContact.setAttribute("uid", uid);
+
+        Element protoContact = document.createElement("contact");
+
+        protoContact.setAttribute("address", address);
+        protoContact.setAttribute("account-id", ACCOUNT_ID);
+        metaContact.appendChild(protoContact);
+        return metaContact;
+    }
+
+    /**
+     * Returns the first child element of <tt>parent</tt> with the specified
+     * name.
+     *
+     * @param parent the parent element
+     * @param name the name of the child element
+     * @return the child element or <tt>null</tt> if there is none
+     */
+    private static Element getChild(Element parent, String name)
+    {
+        for (Node child = parent.getFirstChild();
+                child != null;
+                child = child.getNextSibling())
+        {
+            if (name.equals(child.getNodeName()))
+                return (Element) child;
+        }
+        return null;
+    }
+}
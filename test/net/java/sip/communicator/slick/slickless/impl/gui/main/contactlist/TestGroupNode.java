@@ -0,0 +1,618 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.gui.main.contactlist;
+
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+
+import javax.swing.*;
+import javax.swing.event.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.gui.main.contactlist.*;
+import net.java.sip.communicator.plugin.desktoputil.*;
+import net.java.sip.communicator.service.gui.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Tests the binary insertion and the repositioning of the children of a
+ * <tt>GroupNode</tt> against the order the group got by adding each node and
+ * sorting all its children again, and checks that the events fired for the
+ * changes describe them.
+ */
+public class TestGroupNode extends TestCase
+{
+    /**
+     * The order of the children of a group: contacts before groups, then by
+     * source index, unknown indexes last.
+     */
+    private static final Comparator<ContactListNode> ORDER
+        = new Comparator<ContactListNode>()
+        {
+            public int compare(ContactListNode node1, ContactListNode node2)
+            {
+                boolean group1 = (node1 instanceof GroupNode);
+                boolean group2 = (node2 instanceof GroupNode);
+
+                if (group1 != group2)
+                    return group1 ? 1 : -1;
+
+                long index1 = node1.getSourceIndex();
+                long index2 = node2.getSourceIndex();
+
+                if (index1 < 0)
+                    index1 = Long.MAX_VALUE;
+                if (index2 < 0)
+                    index2 = Long.MAX_VALUE;
+
+                return (index1 < index2) ? -1 : ((index1 == index2) ? 0 : 1);
+            }
+        };
+
+    /**
+     * The number of source indexes the nodes are given, so that many of them
+     * are equal.
+     */
+    private static final int INDEX_COUNT = 20;
+
+    /**
+     * The model of the tested group.
+     */
+    private ContactListTreeModel treeModel = null;
+
+    /**
+     * The tested group.
+     */
+    private GroupNode group = null;
+
+    /**
+     * The children the group should have, in their order.
+     */
+    private List<ContactListNode> expected = null;
+
+    /**
+     * The events fired by the model since the last check.
+     */
+    private List<Event> events = null;
+
+    /**
+     * Generates the source indexes of the nodes, with a fixed seed so that a
+     * failure can be reproduced.
+     */
+    private Random random = null;
+
+    public TestGroupNode(String name)
+    {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        treeModel = new ContactListTreeModel(new JTree());
+        group = treeModel.getRoot();
+        expected = new ArrayList<ContactListNode>();
+        events = new ArrayList<Event>();
+        random = new Random(4242);
+
+        treeModel.addTreeModelListener(new TreeModelListener()
+        {
+            public void treeNodesChanged(TreeModelEvent e)
+            {
+                events.add(new Event("changed", e));
+            }
+
+            public void treeNodesInserted(TreeModelEvent e)
+            {
+                events.add(new Event("inserted", e));
+            }
+
+            public void treeNodesRemoved(TreeModelEvent e)
+            {
+                events.add(new Event("removed", e));
+            }
+
+            public void treeStructureChanged(TreeModelEvent e)
+            {
+                events.add(new Event("structure", e));
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        treeModel = null;
+        group = null;
+        expected = null;
+        events = null;
+        random = null;
+
+        super.tearDown();
+    }
+
+    /**
+     * Adds contacts and groups one by one and checks after every addition
+     * that the node was inserted where sorting all the children puts it, and
+     * that a single insertion at that index was fired.
+     */
+    public void testSortedAdd()
+    {
+        for (int i = 0; i < 300; i++)
+        {
+            ContactListNode node;
+
+            if (random.nextInt(10) == 0)
+            {
+                node = group.sortedAddContactGroup(
+                    new TestUIGroup(nextSourceIndex()));
+            }
+            else
+            {
+                node = group.sortedAddContact(
+                    new TestUIContact(nextSourceIndex()));
+            }
+
+            expected.add(node);
+            Collections.sort(expected, ORDER);
+
+            assertEvents(
+                new Event("inserted", new int[]{ indexOf(expected, node) }));
+            assertSameChildren();
+        }
+    }
+
+    /**
+     * Adds contacts in batches to a group which already has children and
+     * checks that the children are in the order adding the contacts one by
+     * one gives, and that a single insertion of all of them was fired at
+     * their new indexes.
+     */
+    public void testSortedAddContacts()
+    {
+        for (int i = 0; i < 20; i++)
+        {
+            expected.add(group.sortedAddContactGroup(
+                new TestUIGroup(nextSourceIndex())));
+            expected.add(group.sortedAddContact(
+                new TestUIContact(nextSourceIndex())));
+        }
+        Collections.sort(expected, ORDER);
+        assertSameChildren();
+        events.clear();
+
+        for (int i = 0; i < 30; i++)
+        {
+            List<TestUIContact> contacts = new ArrayList<TestUIContact>();
+            int count = random.nextInt(20) + 1;
+
+            for (int j = 0; j < count; j++)
+                contacts.add(new TestUIContact(nextSourceIndex()));
+
+            List<ContactNode> nodes = group.sortedAddContacts(contacts);
+
+            assertEquals(count, nodes.size());
+            for (int j = 0; j < count; j++)
+            {
+                assertSame(contacts.get(j).getContactNode(), nodes.get(j));
+                expected.add(nodes.get(j));
+            }
+            Collections.sort(expected, ORDER);
+
+            int[] insertedIndexes = new int[count];
+            int inserted = 0;
+
+            for (int j = 0; j < expected.size(); j++)
+            {
+                if (nodes.contains(expected.get(j)))
+                    insertedIndexes[inserted++] = j;
+            }
+
+            assertEvents(new Event("inserted", insertedIndexes));
+            assertSameChildren();
+        }
+
+        assertTrue(group.sortedAddContacts(new ArrayList<UIContactImpl>())
+            .isEmpty());
+        assertEvents();
+    }
+
+    /**
+     * Changes the source index of random contacts and checks that
+     * repositioning them gives the order sorting all the children gives, that
+     * only a change is fired for a contact which stays in place, and that the
+     * removal and the insertion fired for a contact which moves turn the
+     * previous children into the new ones.
+     */
+    public void testRepositionContact()
+    {
+        List<TestUIContact> contacts = new ArrayList<TestUIContact>();
+
+        for (int i = 0; i < 5; i++)
+        {
+            expected.add(group.sortedAddContactGroup(
+                new TestUIGroup(nextSourceIndex())));
+        }
+        for (int i = 0; i < 100; i++)
+        {
+            TestUIContact contact = new TestUIContact(nextSourceIndex());
+
+            contacts.add(contact);
+            expected.add(group.sortedAddContact(contact));
+        }
+        Collections.sort(expected, ORDER);
+        assertSameChildren();
+
+        for (int i = 0; i < 500; i++)
+        {
+            TestUIContact contact
+                = contacts.get(random.nextInt(contacts.size()));
+            ContactNode node = contact.getContactNode();
+            int oldIndex = indexOf(expected, node);
+            List<ContactListNode> oldChildren
+                = new ArrayList<ContactListNode>(expected);
+
+            contact.sourceIndex = nextSourceIndex();
+            events.clear();
+            group.repositionContact(node);
+
+            Collections.sort(expected, ORDER);
+
+            int newIndex = indexOf(expected, node);
+
+            if (newIndex == oldIndex)
+            {
+                assertEvents(new Event("changed", new int[]{ oldIndex }));
+            }
+            else
+            {
+                assertEvents(
+                    new Event("removed", new int[]{ oldIndex }),
+                    new Event("inserted", new int[]{ newIndex }));
+
+                oldChildren.remove(oldIndex);
+                oldChildren.add(newIndex, node);
+                assertEquals(expected, oldChildren);
+            }
+            assertSameChildren();
+        }
+    }
+
+    /**
+     * Returns a random source index, which is unknown for some nodes.
+     *
+     * @return a source index from -1 to <tt>INDEX_COUNT - 1</tt>
+     */
+    private int nextSourceIndex()
+    {
+        return random.nextInt(INDEX_COUNT + 1) - 1;
+    }
+
+    /**
+     * Checks that the group has the expected children in the expected order.
+     */
+    private void assertSameChildren()
+    {
+        assertEquals("Wrong child count",
+            expected.size(), group.getChildCount());
+
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertSame("Wrong child at " + i,
+                expected.get(i), group.getChildAt(i));
+        }
+    }
+
+    /**
+     * Checks that the events fired since the last check are the given ones
+     * and forgets them.
+     *
+     * @param expectedEvents the events which should have been fired
+     */
+    private void assertEvents(Event... expectedEvents)
+    {
+        assertEquals(Arrays.asList(expectedEvents).toString(),
+            events.toString());
+        events.clear();
+    }
+
+    /**
+     * Returns the index of the given instance in <tt>nodes</tt>, nodes being
+     * compared by identity.
+     *
+     * @param nodes the nodes to search
+     * @param node the node to find
+     * @return the index of <tt>node</tt> or -1 if <tt>nodes</tt> does not
+     * contain it
+     */
+    private static int indexOf(List<ContactListNode> nodes,
+                               ContactListNode node)
+    {
+        for (int i = 0; i < nodes.size(); i++)
+        {
+            if (nodes.get(i) == node)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * An event fired by the tree model for the children of the tested group.
+     */
+    private class Event
+    {
+        /**
+         * The type of the event.
+         */
+        private final String type;
+
+        /**
+         * The indexes of the children the event is about.
+         */
+        private final int[] indexes;
+
+        /**
+         * Creates an event.
+         *
+         * @param type the type of the event
+         * @param indexes the indexes of the children the event is about
+         */
+        Event(String type, int[] indexes)
+        {
+            this.type = type;
+            this.indexes = indexes;
+        }
+
+        /**
+         * Creates the event a <tt>TreeModelEvent</tt> is for the tested
+         * group.
+         *
+         * @param type the type of the event
+         * @param e the event fired by the tree model
+         */
+        Event(String type, TreeModelEvent e)
+        {
+            this(type, e.getChildIndices());
+
+            assertSame("An event was fired for another node",
+                group, e.getTreePath().getLastPathComponent());
+        }
+
+        @Override
+        public String toString()
+        {
+            return type + Arrays.toString(indexes);
+        }
+    }
+
+    /**
+     * A contact with a source index which may change.
+     */
+    private static class TestUIContact
+        extends UIContactImpl
+    {
+        /**
+         * The index of the contact in its source, -1 if unknown.
+         */
+        int sourceIndex;
+
+        /**
+         * The node of the contact.
+         */
+        private ContactNode contactNode;
+
+        /**
+         * Creates a contact.
+         *
+         * @param sourceIndex the index of the contact in its source
+         */
+        TestUIContact(int sourceIndex)
+        {
+            this.sourceIndex = sourceIndex;
+        }
+
+        @Override
+        public int getSourceIndex()
+        {
+            return sourceIndex;
+        }
+
+        @Override
+        public ContactNode getContactNode()
+        {
+            return contactNode;
+        }
+
+        @Override
+        public void setContactNode(ContactNode contactNode)
+        {
+            this.contactNode = contactNode;
+        }
+
+        @Override
+        public String getDisplayName()
+        {
+            return "contact " + sourceIndex;
+        }
+
+        @Override
+        public ImageIcon getStatusIcon()
+        {
+            return null;
+        }
+
+        @Override
+        public ImageIcon getScaledAvatar(
+            boolean isSelected, int width, int height)
+        {
+            return null;
+        }
+
+        @Override
+        public Object getDescriptor()
+        {
+            return this;
+        }
+
+        @Override
+        public String getDisplayDetails()
+        {
+            return null;
+        }
+
+        @Override
+        public ExtendedTooltip getToolTip()
+        {
+            return null;
+        }
+
+        @Override
+        public Component getRightButtonMenu()
+        {
+            return null;
+        }
+
+        @Override
+        public UIGroup getParentGroup()
+        {
+            return null;
+        }
+
+        @Override
+        public void setParentGroup(UIGroup parentGroup)
+        {
+        }
+
+        @Override
+        public Iterator<String> getSearchStrings()
+        {
+            return null;
+        }
+
+        @Override
+        public UIContactDetail getDefaultContactDetail(
+            Class<? extends OperationSet> opSetClass)
+        {
+            return null;
+        }
+
+        @Override
+        public List<UIContactDetail> getContactDetailsForOperationSet(
+            Class<? extends OperationSet> opSetClass)
+        {
+            return null;
+        }
+
+        @Override
+        public List<UIContactDetail> getContactDetails()
+        {
+            return null;
+        }
+
+        @Override
+        public Collection<SIPCommButton> getContactCustomActionButtons()
+        {
+            return null;
+        }
+    }
+
+    /**
+     * A group with a fixed source index.
+     */
+    private static class TestUIGroup
+        extends UIGroupImpl
+    {
+        /**
+         * The index of the group in its source, -1 if unknown.
+         */
+        private final int sourceIndex;
+
+        /**
+         * The node of the group.
+         */
+        private GroupNode groupNode;
+
+        /**
+         * Creates a group.
+         *
+         * @param sourceIndex the index of the group in its source
+         */
+        TestUIGroup(int sourceIndex)
+        {
+            this.sourceIndex = sourceIndex;
+        }
+
+        @Override
+        public int getSourceIndex()
+        {
+            return sourceIndex;
+        }
+
+        @Override
+        public GroupNode getGroupNode()
+        {
+            return groupNode;
+        }
+
+        @Override
+        public void setGroupNode(GroupNode groupNode)
+        {
+            this.groupNode = groupNode;
+        }
+
+        @Override
+        public Object getDescriptor()
+        {
+            return this;
+        }
+
+        @Override
+        public String getDisplayName()
+        {
+            return "group " + sourceIndex;
+        }
+
+        @Override
+        public UIGroup getParentGroup()
+        {
+            return null;
+        }
+
+        @Override
+        public boolean isGroupCollapsed()
+        {
+            return false;
+        }
+
+        @Override
+        public int countOnlineChildContacts()
+        {
+            return 0;
+        }
+
+        @Override
+        public int countChildContacts()
+        {
+            return 0;
+        }
+
+        @Override
+        public String getId()
+        {
+            return "group " + sourceIndex;
+        }
+
+        @Override
+        public Component getRightButtonMenu()
+        {
+            return null;
+        }
+    }
+}
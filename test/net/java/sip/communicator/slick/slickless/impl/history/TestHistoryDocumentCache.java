@@ -0,0 +1,146 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Tests that the <tt>HistoryDocumentCache</tt> stays within its maximum size
+ * while the document of the writer grows.
+ */
+public class TestHistoryDocumentCache extends TestCase
+{
+    /**
+     * The maximum estimated size of the tested cache.
+     */
+    private static final long MAX_SIZE = 50000;
+
+    /**
+     * The files created by the test.
+     */
+    private final List<File> files = new ArrayList<File>();
+
+    /**
+     * Removes the files created by the test.
+     * @throws Exception if anything goes wrong.
+     */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        for (File file : files)
+            file.delete();
+
+        super.tearDown();
+    }
+
+    /**
+     * Caches the documents of two files read from disk, then makes the file
+     * of the document of the writer grow and caches that document again
+     * after every write, as the history does. Checks that the cache evicts
+     * the other documents to stay within its maximum size and keeps the
+     * document of the writer.
+     *
+     * @throws Exception if anything goes wrong.
+     */
+    public void testWrittenDocumentGrows() throws Exception
+    {
+        HistoryDocumentCache cache = new HistoryDocumentCache(MAX_SIZE);
+
+        File read1 = createFile(2000);
+        File read2 = createFile(2000);
+        Document doc1 = createDocument();
+        Document doc2 = createDocument();
+
+        assertSame(doc1, cache.putIfAbsent(read1, doc1));
+        assertSame(doc2, cache.putIfAbsent(read2, doc2));
+
+        File written = createFile(1000);
+        Document doc = createDocument();
+
+        cache.put(written, doc);
+        long initialSize = cache.getSize();
+        assertEquals(0, cache.getEvictions());
+
+        for (int i = 0; i < 8; i++)
+        {
+            append(written, 1000);
+            cache.put(written, doc);
+
+            assertTrue("The cache exceeds its maximum size: " + cache,
+                cache.getSize() <= MAX_SIZE);
+            assertSame(doc, cache.get(written));
+        }
+
+        assertTrue("The growth of the document was not estimated: " + cache,
+            cache.getSize() > initialSize);
+        assertEquals(2, cache.getEvictions());
+        assertNull(cache.get(read1));
+        assertNull(cache.get(read2));
+    }
+
+    /**
+     * Creates a temporary file of <tt>length</tt> bytes.
+     *
+     * @param length the length of the file
+     * @return the created file
+     * @throws IOException if the file cannot be created
+     */
+    private File createFile(int length)
+        throws IOException
+    {
+        File file = File.createTempFile("history", ".xml");
+
+        files.add(file);
+        append(file, length);
+        return file;
+    }
+
+    /**
+     * Appends <tt>length</tt> bytes to <tt>file</tt>.
+     *
+     * @param file the file
+     * @param length the number of bytes to append
+     * @throws IOException if the file cannot be written
+     */
+    private static void append(File file, int length)
+        throws IOException
+    {
+        OutputStream out = new FileOutputStream(file, true);
+        try
+        {
+            out.write(new byte[length]);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Creates an empty history document.
+     *
+     * @return the created document
+     * @throws Exception if the document cannot be created
+     */
+    private static Document createDocument()
+        throws Exception
+    {
+        Document doc = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().newDocument();
+
+        doc.appendChild(doc.createElement("history"));
+        return doc;
+    }
+}